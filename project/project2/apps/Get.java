@@ -1,10 +1,14 @@
 package apps;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import common.*;
 import naming.*;
-import client.*;
+import storage.*;
+import rmi.*;
 
 /** Retrieves a file stored on the distributed filesystem.
 
@@ -21,6 +25,8 @@ public class Get extends ClientApplication
     /** The size of each request for data cannot exceed
         <code>BLOCK_SIZE</code>. */
     private static final int    BLOCK_SIZE = 1024 * 1024;
+    /** Number of requests for data that may be outstanding at once. */
+    private static final int    READ_AHEAD = 4;
 
     /** Application entry point. */
     public static void main(String[] arguments)
@@ -79,39 +85,52 @@ public class Get extends ClientApplication
                                          t.getMessage());
         }
 
-        // Create an input stream reading bytes from the remote file, and an
-        // output stream for writing bytes to a local copy of the file.
-        // Repeatedly read up to BLOCK_SIZE bytes from the remote file, and
-        // write them to the local file.
-        byte[]              read_buffer;
-        DFSInputStream      input_stream = null;
+        // Retrieve a stub for the storage server hosting the remote file, and
+        // create an output stream for writing bytes to a local copy of the
+        // file. Requests for up to BLOCK_SIZE bytes of the remote file are sent
+        // through an asynchronous stub, with up to READ_AHEAD requests
+        // outstanding, so that the network round trips overlap each other and
+        // the writing of the local file. Blocks are written in order as their
+        // requests complete.
         OutputStream        output_stream = null;
 
         try
         {
-            read_buffer = new byte[BLOCK_SIZE];
-            output_stream = new FileOutputStream(destination);
-            input_stream = new DFSInputStream(naming_server, source.path);
-
-            int             bytes_remaining = input_stream.available();
+            Storage         storage_server =
+                naming_server.getStorage(source.path);
+            StorageAsync    storage =
+                Stub.createAsync(StorageAsync.class, storage_server);
+            long            length = storage_server.size(source.path);
+
+            ArrayDeque<CompletableFuture<byte[]>>   reads =
+                new ArrayDeque<CompletableFuture<byte[]>>();
+            long            next_offset = 0;
             int             bytes_to_transfer;
-            int             bytes_read;
 
-            while(bytes_remaining > 0)
-            {
-                bytes_to_transfer = bytes_remaining;
-                if(bytes_to_transfer > BLOCK_SIZE)
-                    bytes_to_transfer = BLOCK_SIZE;
+            output_stream = new FileOutputStream(destination);
 
-                bytes_read =
-                    input_stream.read(read_buffer, 0, bytes_to_transfer);
-                bytes_remaining = input_stream.available();
+            while(next_offset < length || !reads.isEmpty())
+            {
+                while(next_offset < length && reads.size() < READ_AHEAD)
+                {
+                    bytes_to_transfer =
+                        (int)Math.min(BLOCK_SIZE, length - next_offset);
+                    reads.add(storage.read(source.path, next_offset,
+                                           bytes_to_transfer));
+                    next_offset += bytes_to_transfer;
+                }
 
-                if(bytes_read <= 0)
-                    throw new EOFException("unexpected end of file");
+                byte[]      block;
+                try
+                {
+                    block = reads.remove().get();
+                }
+                catch(ExecutionException e)
+                {
+                    throw e.getCause();
+                }
 
-                // Write only as many bytes as were actually read.
-                output_stream.write(read_buffer, 0, bytes_read);
+                output_stream.write(block);
             }
         }
         catch(Throwable t)
@@ -121,17 +140,8 @@ public class Get extends ClientApplication
         }
         finally
         {
-            // In all cases, make an effort to close all streams, and to
+            // In all cases, make an effort to close the output stream, and to
             // unlock the file.
-            if(input_stream != null)
-            {
-                try
-                {
-                    input_stream.close();
-                }
-                catch(Throwable t) { }
-            }
-
             if(output_stream != null)
             {
                 try
@@ -3,6 +3,7 @@ package apps;
 import java.util.*;
 
 import naming.*;
+import rmi.*;
 
 /** Lists files and directories.
 
@@ -97,10 +98,18 @@ public class List extends ClientApplication
                                          t.getMessage());
         }
 
+        // The path is checked and listed in one round trip. If the path is a
+        // file, the listing fails and its result is ignored.
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            Batch<Service>  batch = new Batch<Service>(naming_server);
+            batch.calls().isDirectory(object.path);
+            batch.calls().list(object.path);
+
+            java.util.List<Batch.Result>    results = batch.flush(false);
+
+            if((Boolean)results.get(0).get())
+                components = (String[])results.get(1).get();
             else
                 components = new String[] {object.path.last()};
         }
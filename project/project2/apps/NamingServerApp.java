@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,13 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application takes an optional argument: a directory in
+    which the naming server keeps a journal and snapshots of its metadata. It
+    starts a naming server listening on the default client and registration
+    ports for clients and storage servers, respectively. If a directory is
+    given, the metadata recorded there is loaded first, so that storage servers
+    registered before the naming server was restarted need not register
+    again. Otherwise, the naming server starts empty.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +38,24 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there is more than one command line
+                                  argument.
+        @throws IOException If the metadata directory cannot be created or
+                            read.
         @throws RMIException If the naming server cannot be started.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, IOException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("usage: naming");
+        if(arguments.length > 1)
+            throw new BadUsageException("usage: naming [metadata_directory]");
+
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+            server = new StoppingNamingServer(new File(arguments[0]));
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +69,18 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server that keeps no metadata on disk. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server that keeps its metadata in the given
+            directory. */
+        StoppingNamingServer(File directory) throws IOException
+        {
+            super(directory);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -30,6 +30,17 @@ public class DFSInputStream extends InputStream
 {
     /** Path to the file. */
     private final Path      path;
+    /** Call policy for the storage server. Each call waits at most thirty
+        seconds for a reply and is attempted up to three times, so that a hung
+        storage server cannot block the stream forever. */
+    static final CallPolicy STORAGE_POLICY =
+        CallPolicy.defaults().withTimeout(30000).withRetries(3, 100, 2000);
+
+    /** Address of this host, given to the naming server so that it may
+        prefer replicas on this host, or <code>null</code> if it is not
+        known. */
+    private static final String LOCAL_HOST = localHost();
+
     /** Storage server hosting the file. */
     private final Storage   storage_server;
     /** Naming server used to find the storage server hosting the file. */
@@ -47,7 +58,9 @@ public class DFSInputStream extends InputStream
         naming server.
 
         <p>
-        The file should be locked on the naming server for shared access.
+        The file should be locked on the naming server for shared access. The
+        stream reads from the replica of the file that the naming server puts
+        first, or from the next replica if that one cannot be contacted.
 
         @param naming_server Stub for the naming server hosting metadata for the
                              file.
@@ -62,26 +75,53 @@ public class DFSInputStream extends InputStream
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve stubs for the storage servers hosting the file, in the order
+        // chosen by the naming server. Naming servers that do not report
+        // replicas give only the one server.
+        Storage[]       replicas;
+
         try
         {
-            storage_server = naming_server.getStorage(file);
+            try
+            {
+                replicas = naming_server.getReplicas(file, LOCAL_HOST);
+            }
+            catch(UnsupportedOperationException e)
+            {
+                replicas = new Storage[] {naming_server.getStorage(file)};
+            }
         }
         catch(RMIException e)
         {
             throw new IOException("could not contact naming server", e);
         }
 
-        // Retrieve the length of the file from the storage server.
-        try
-        {
-            length = storage_server.size(file);
-        }
-        catch(RMIException e)
+        // Retrieve the length of the file from the first storage server that
+        // can be contacted.
+        Storage         server = null;
+        long            size = 0;
+        RMIException    failure = null;
+
+        for(Storage replica : replicas)
         {
-            throw new IOException("could not contact storage server", e);
+            try
+            {
+                server = Stub.withPolicy(replica, STORAGE_POLICY);
+                size = server.size(file);
+                failure = null;
+                break;
+            }
+            catch(RMIException e)
+            {
+                failure = e;
+            }
         }
 
+        if(server == null || failure != null)
+            throw new IOException("could not contact storage server", failure);
+
+        storage_server = server;
+        length = size;
         path = file;
         this.naming_server = naming_server;
     }
@@ -339,4 +379,18 @@ public class DFSInputStream extends InputStream
 
         return (int)(length - offset);
     }
+
+    /** Returns the address of this host, or <code>null</code> if it cannot be
+        determined. */
+    private static String localHost()
+    {
+        try
+        {
+            return InetAddress.getLocalHost().getHostAddress();
+        }
+        catch(UnknownHostException e)
+        {
+            return null;
+        }
+    }
 }
@@ -59,7 +59,8 @@ public class DFSOutputStream extends OutputStream
         // Retrieve a stub for the storage server hosting the file.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            storage_server = Stub.withPolicy(naming_server.getStorage(file),
+                                             DFSInputStream.STORAGE_POLICY);
         }
         catch(RMIException e)
         {
@@ -126,7 +126,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
         }
         ArrayList<String> filenames = new ArrayList<>();
         LinkedList<File> toVisit = new LinkedList<>();
-        ArrayList<File> alreadyVisited = new ArrayList<>();
+        HashSet<File> alreadyVisited = new HashSet<>();
         toVisit.add(directory);
         String originalPath = directory.getAbsolutePath().replace("\\", "/");
         /* Breadth First Search through the directory structure. */
@@ -136,9 +136,12 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
             alreadyVisited.add(visiting);
             for (File file : visiting.listFiles())
             {
-                if (file.isDirectory() && !alreadyVisited.contains(file))
+                if (file.isDirectory())
                 {
-                    toVisit.add(file);
+                    if (alreadyVisited.add(file))
+                    {
+                        toVisit.add(file);
+                    }
                 }
                 else
                 {
@@ -0,0 +1,109 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Failure detector of the naming server.
+
+    <p>
+    Storage servers send heartbeats at regular intervals. For each server, the
+    detector keeps a moving average of the time between heartbeats, and
+    computes the suspicion level phi of the server from the time since its last
+    heartbeat: phi is the negative decimal logarithm of the probability that
+    the next heartbeat comes that late, assuming that the times between
+    heartbeats are exponentially distributed. A server whose phi exceeds
+    <code>naming.phi_threshold</code> (eight by default, a chance of one in a
+    hundred million of being wrong) is declared failed. A server heard from
+    only once has no average yet, and is declared failed once
+    <code>naming.failure_timeout</code> milliseconds pass without a second
+    heartbeat. A server recovered from the journal counts as heard from once
+    when the naming server starts. Other servers that never send heartbeats
+    are never declared failed.
+
+    <p>
+    The detector checks every server each
+    <code>naming.failure_check_interval</code> milliseconds, and on the same
+    schedule has the replication manager retry the copies that restore files
+    to the replicas they had before a failure. A failed server that sends a
+    heartbeat again is live again, but keeps none of the replicas it lost.
+ */
+class FailureDetector {
+    static final double THRESHOLD = Double.parseDouble(System.getProperty("naming.phi_threshold", "8"));
+    static final long CHECK_INTERVAL = Long.getLong("naming.failure_check_interval", 1000);
+    static final long FIRST_TIMEOUT = Long.getLong("naming.failure_timeout", 10000);
+    // shortest average time between heartbeats, in nanoseconds, so that a
+    // burst of heartbeats does not make the next gap look like a failure
+    private static final double MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    // weight of the latest time between heartbeats in the average
+    private static final double WEIGHT = 0.1;
+
+    /** Arrival times of the heartbeats of a storage server. */
+    static final class Arrivals {
+        private long last;
+        private double mean;
+        private int count;
+
+        synchronized void heard(long now) {
+            if (this.count > 0) {
+                double interval = now - this.last;
+                this.mean = this.count == 1 ? interval : this.mean + WEIGHT * (interval - this.mean);
+            }
+            this.last = now;
+            this.count = Math.min(this.count + 1, 2);
+        }
+
+        // the suspicion level at the given time
+        synchronized double phi(long now) {
+            if (this.count == 0) {
+                return 0;
+            }
+            long elapsed = now - this.last;
+            if (this.count == 1) {
+                return elapsed > TimeUnit.MILLISECONDS.toNanos(FIRST_TIMEOUT) ? Double.POSITIVE_INFINITY : 0;
+            }
+            return elapsed / Math.max(this.mean, MIN_INTERVAL) * Math.log10(Math.E);
+        }
+    }
+
+    private final NamingServer server;
+    private final List<StorageMachine> servers;
+    private final Replicator replicator;
+    private ScheduledExecutorService checker;
+
+    FailureDetector(NamingServer server, List<StorageMachine> servers, Replicator replicator) {
+        this.server = server;
+        this.servers = servers;
+        this.replicator = replicator;
+    }
+
+    synchronized void start() {
+        if (this.checker == null) {
+            this.checker = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "failure-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.checker.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void close() {
+        if (this.checker != null) {
+            this.checker.shutdownNow();
+        }
+    }
+
+    private void check() {
+        try {
+            long now = System.nanoTime();
+            for (StorageMachine sm : this.servers) {
+                if (sm.alive && sm.arrivals.phi(now) > THRESHOLD) {
+                    this.server.failed(sm);
+                }
+            }
+            this.replicator.repair();
+        } catch (Throwable t) {
+            // checked again at the next interval
+        }
+    }
+}
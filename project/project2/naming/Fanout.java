@@ -0,0 +1,154 @@
+package naming;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Sends delete commands to many storage servers at once.
+
+    <p>
+    Each server is sent a single command: its paths in one
+    <code>Batch</code>, or all the files it hosts under a directory in one
+    <code>deleteTree</code> call. The servers are commanded in parallel on a
+    pool of background threads, the last of them on the calling thread. A
+    call returns once every server has answered or failed, with the servers
+    that failed and the reason for each, so that the caller can keep the
+    replicas that were not deleted.
+ */
+class Fanout {
+    // a command to one server
+    private interface Action<T> {
+        void run(StorageMachine sm, T work) throws Throwable;
+    }
+
+    private static final int THREADS = Integer.getInteger("naming.fanout_threads", 16);
+
+    private final ThreadPoolExecutor pool;
+
+    Fanout() {
+        this.pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>(), Fanout::daemon);
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static Thread daemon(Runnable task) {
+        Thread thread = new Thread(task, "fanout");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    void close() {
+        this.pool.shutdownNow();
+    }
+
+    /** Deletes paths from storage servers.
+
+        @param work The paths to delete from each server.
+        @param strict Whether a server answering <code>false</code> for a path
+                      has failed. Otherwise only servers that cannot be
+                      commanded have failed.
+        @return The servers that failed, each with the cause of its failure.
+                The map is empty if every server succeeded.
+     */
+    Map<StorageMachine, Throwable> delete(Map<StorageMachine, List<Path>> work, boolean strict) {
+        return this.fan(work, (sm, paths) -> delete(sm, paths, strict));
+    }
+
+    /** Deletes a directory from storage servers.
+
+        @param directory The directory.
+        @param work The files each server hosts under the directory.
+        @param remaining Receives, for each server, the files it could not
+                         delete, if there are any.
+        @return The servers that failed, each with the cause of its failure.
+                The map is empty if every server succeeded.
+     */
+    Map<StorageMachine, Throwable> deleteTree(Path directory, Map<StorageMachine, List<Path>> work,
+                                              Map<StorageMachine, Path[]> remaining) {
+        return this.fan(work, (sm, files) -> {
+            Path[] left;
+            try {
+                left = sm.command_stub.deleteTree(directory, files.toArray(new Path[files.size()]));
+            } catch (UnsupportedOperationException e) {
+                sm.command_stub.delete(directory);
+                left = new Path[0];
+            }
+            if (left.length > 0) {
+                remaining.put(sm, left);
+            }
+        });
+    }
+
+    private <T> Map<StorageMachine, Throwable> fan(Map<StorageMachine, T> work, Action<T> action) {
+        Map<StorageMachine, Throwable> failures = new ConcurrentHashMap<StorageMachine, Throwable>();
+        Map<StorageMachine, Future<?>> pending = new HashMap<StorageMachine, Future<?>>();
+        Iterator<Map.Entry<StorageMachine, T>> servers = work.entrySet().iterator();
+        while (servers.hasNext()) {
+            Map.Entry<StorageMachine, T> server = servers.next();
+            StorageMachine sm = server.getKey();
+            T command = server.getValue();
+            if (!servers.hasNext()) {
+                run(action, sm, command, failures);
+                break;
+            }
+            try {
+                pending.put(sm, this.pool.submit(() -> run(action, sm, command, failures)));
+            } catch (RejectedExecutionException e) {
+                failures.put(sm, e);
+            }
+        }
+        boolean interrupted = false;
+        for (Map.Entry<StorageMachine, Future<?>> command : pending.entrySet()) {
+            while (true) {
+                try {
+                    command.getValue().get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failures.put(command.getKey(), e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failures;
+    }
+
+    private static <T> void run(Action<T> action, StorageMachine sm, T work,
+                                Map<StorageMachine, Throwable> failures) {
+        try {
+            action.run(sm, work);
+        } catch (Throwable t) {
+            failures.put(sm, t);
+        }
+    }
+
+    private static void delete(StorageMachine sm, List<Path> paths, boolean strict) throws Exception {
+        if (paths.size() == 1 || !Proxy.isProxyClass(sm.command_stub.getClass())) {
+            for (Path path : paths) {
+                if (!sm.command_stub.delete(path) && strict) {
+                    throw new IllegalStateException(path + " not deleted");
+                }
+            }
+            return;
+        }
+        Batch<Command> batch = new Batch<Command>(sm.command_stub);
+        for (Path path : paths) {
+            batch.calls().delete(path);
+        }
+        int index = 0;
+        for (Batch.Result result : batch.flush(false)) {
+            if (!Boolean.TRUE.equals(result.get()) && strict) {
+                throw new IllegalStateException(paths.get(index) + " not deleted");
+            }
+            index++;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package naming;
+
+import java.util.ArrayDeque;
+
+/** Shared/exclusive lock on one object of the directory tree.
+
+    <p>
+    Requests are served in FIFO order. A request that cannot be granted at once
+    waits in the lock's queue. When the lock is released, the request at the
+    head of the queue is granted if it can be, along with every shared request
+    directly behind it if it is shared. A shared request therefore waits behind
+    an exclusive request that is already waiting, even while the lock is held
+    only for shared access. Waiting threads sleep on the lock's monitor and are
+    woken only when it is released.
+
+    <p>
+    Locks are not owned by threads: a lock taken by one call may be released
+    by another.
+ */
+final class FileLock {
+    // a request waiting in the queue
+    private static final class Waiter {
+        final boolean exclusive;
+        boolean granted;
+
+        Waiter(boolean exclusive) {
+            this.exclusive = exclusive;
+        }
+    }
+
+    // number of holders of shared access
+    private int shared;
+    // whether the lock is held for exclusive access
+    private boolean exclusive;
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+
+    /** Takes the lock, waiting behind earlier requests if necessary.
+
+        @throws IllegalStateException If the lock manager is closed, or the
+                                      thread is interrupted, before the lock
+                                      is granted.
+     */
+    synchronized void lock(boolean exclusive, LockManager manager) {
+        if (manager.closed()) {
+            throw new IllegalStateException("naming server stopped");
+        }
+        if (this.queue.isEmpty() && this.grantable(exclusive)) {
+            this.take(exclusive);
+            return;
+        }
+
+        Waiter waiter = new Waiter(exclusive);
+        this.queue.add(waiter);
+        manager.contended(this);
+        try {
+            while (!waiter.granted) {
+                if (manager.closed()) {
+                    throw new IllegalStateException("naming server stopped");
+                }
+                this.wait();
+            }
+        } catch (InterruptedException e) {
+            if (!waiter.granted) {
+                throw new IllegalStateException("lock attempt interrupted");
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!waiter.granted) {
+                // a waiter leaving the head of the queue may let those behind
+                // it through
+                this.queue.remove(waiter);
+                this.grant();
+            }
+            if (this.queue.isEmpty()) {
+                manager.uncontended(this);
+            }
+        }
+    }
+
+    /** Releases the lock.
+
+        @throws IllegalArgumentException If the lock is not held for the given
+                                         kind of access.
+     */
+    synchronized void unlock(boolean exclusive) {
+        if (exclusive) {
+            if (!this.exclusive) {
+                throw new IllegalArgumentException("not locked for exclusive access");
+            }
+            this.exclusive = false;
+        } else {
+            if (this.shared == 0) {
+                throw new IllegalArgumentException("not locked for shared access");
+            }
+            this.shared--;
+        }
+        this.grant();
+    }
+
+    // wakes the waiting threads so that they notice the manager has closed
+    synchronized void wake() {
+        this.notifyAll();
+    }
+
+    private boolean grantable(boolean exclusive) {
+        if (exclusive) {
+            return !this.exclusive && this.shared == 0;
+        }
+        return !this.exclusive;
+    }
+
+    private void take(boolean exclusive) {
+        if (exclusive) {
+            this.exclusive = true;
+        } else {
+            this.shared++;
+        }
+    }
+
+    // grants the head of the queue, and the shared requests directly behind a
+    // shared head, as far as the lock allows
+    private void grant() {
+        boolean granted = false;
+        while (!this.queue.isEmpty()) {
+            Waiter head = this.queue.peek();
+            if (!this.grantable(head.exclusive)) {
+                break;
+            }
+            this.queue.poll();
+            this.take(head.exclusive);
+            head.granted = true;
+            granted = true;
+            if (head.exclusive) {
+                break;
+            }
+        }
+        if (granted) {
+            this.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package naming;
+
+/** Kind of object at a path of the directory tree. */
+enum FileType {
+    FILE, DIRECTORY
+}
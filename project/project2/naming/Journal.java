@@ -0,0 +1,426 @@
+package naming;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import common.*;
+import storage.*;
+
+/** Write-ahead journal and snapshots of the naming server's metadata.
+
+    <p>
+    Every change to the directory tree or to the set of storage servers is
+    appended to the journal before the naming server acknowledges it or acts
+    on it by commanding storage servers. From time to time
+    the whole state is written to a compact binary snapshot, after which the
+    journal starts again empty. On startup the newest snapshot is loaded and
+    the journal records written after it are replayed, so the time taken to
+    recover depends on the number of changes since the last snapshot rather
+    than on the size of the namespace, and storage servers need not register
+    again.
+
+    <p>
+    Each journal record is framed by its length and CRC32 checksum and carries
+    a sequence number. A record torn by a crash fails its checksum; it and
+    anything after it are discarded on recovery. The snapshot holds the
+    sequence number of the last record it includes, so that records still in
+    the journal after a crash between writing a snapshot and emptying the
+    journal are skipped. Records are written to the operating system as they
+    are appended, and survive the naming server process failing; snapshots are
+    also forced to disk.
+
+    <p>
+    Storage servers are identified in records by a number assigned when they
+    register. Their stubs are kept in the journal and snapshot in serialized
+    form.
+
+    <p>
+    A journal created with no directory records nothing.
+ */
+class Journal implements Closeable {
+    static final byte REGISTER = 1;
+    static final byte CREATE_FILE = 2;
+    static final byte CREATE_DIRECTORY = 3;
+    static final byte DELETE = 4;
+    static final byte ADD_REPLICA = 5;
+    static final byte REMOVE_REPLICA = 6;
+
+    private static final int SNAPSHOT_MAGIC = 0x4e534e50;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte SNAPSHOT_FILE = 0;
+    private static final byte SNAPSHOT_DIRECTORY = 1;
+    // records after which a snapshot is due
+    private static final int SNAPSHOT_RECORDS = Integer.getInteger("naming.snapshot_records", 100000);
+
+    private final File journal_file;
+    private final File snapshot_file;
+    private DataOutputStream out;
+    private long sequence;
+    private int records;
+
+    private Journal(File directory) {
+        this.journal_file = directory == null ? null : new File(directory, "journal");
+        this.snapshot_file = directory == null ? null : new File(directory, "snapshot");
+    }
+
+    /** Returns a journal that records nothing. */
+    static Journal none() {
+        return new Journal(null);
+    }
+
+    /** Opens the journal kept in the given directory, creating the directory
+        if necessary, and loads the state it records.
+
+        @param directory Directory holding the journal and snapshot.
+        @param namespace Empty directory tree, filled in from the journal.
+        @param machines Empty list, filled in with the registered storage
+                        servers.
+        @throws IOException If the directory cannot be created, or the
+                            snapshot cannot be read.
+     */
+    static Journal open(File directory, Namespace namespace, List<StorageMachine> machines)
+        throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create metadata directory " + directory);
+        }
+        Journal journal = new Journal(directory);
+        journal.recover(namespace, machines);
+        return journal;
+    }
+
+    /** Returns <code>true</code> if enough records have been written since the
+        last snapshot that a new one should be taken. */
+    boolean due() {
+        return this.out != null && this.records >= SNAPSHOT_RECORDS;
+    }
+
+    void register(StorageMachine machine) throws IOException {
+        if (this.out == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = start(bytes, REGISTER);
+        write_machine(record, machine);
+        this.append(bytes);
+    }
+
+    void createFile(Path file, StorageMachine machine) throws IOException {
+        this.path_record(CREATE_FILE, file, machine);
+    }
+
+    void createDirectory(Path directory) throws IOException {
+        this.path_record(CREATE_DIRECTORY, directory, null);
+    }
+
+    void delete(Path path) throws IOException {
+        this.path_record(DELETE, path, null);
+    }
+
+    void addReplica(Path file, StorageMachine machine) throws IOException {
+        this.path_record(ADD_REPLICA, file, machine);
+    }
+
+    void removeReplica(Path file, StorageMachine machine) throws IOException {
+        this.path_record(REMOVE_REPLICA, file, machine);
+    }
+
+    private void path_record(byte type, Path path, StorageMachine machine) throws IOException {
+        if (this.out == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = start(bytes, type);
+        record.writeUTF(path.toString());
+        if (machine != null) {
+            record.writeInt(machine.id);
+        }
+        this.append(bytes);
+    }
+
+    private DataOutputStream start(ByteArrayOutputStream bytes, byte type) throws IOException {
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeLong(0);    // sequence number, filled in by append
+        record.writeByte(type);
+        return record;
+    }
+
+    // frames and writes a record, numbering it
+    private synchronized void append(ByteArrayOutputStream bytes) throws IOException {
+        byte[] record = bytes.toByteArray();
+        long number = this.sequence + 1;
+        for (int i = 0; i < 8; i++) {
+            record[i] = (byte) (number >>> (56 - 8 * i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        this.out.writeInt(record.length);
+        this.out.writeInt((int) crc.getValue());
+        this.out.write(record);
+        this.out.flush();
+        this.sequence = number;
+        this.records++;
+    }
+
+    /** Writes a snapshot of the given state and empties the journal. The
+        caller must prevent changes to the state until this returns. */
+    synchronized void snapshot(Namespace namespace, List<StorageMachine> machines) throws IOException {
+        if (this.out == null) {
+            return;
+        }
+        File temporary = new File(this.snapshot_file.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(SNAPSHOT_VERSION);
+            data.writeLong(this.sequence);
+            data.writeInt(machines.size());
+            for (StorageMachine machine : machines) {
+                write_machine(data, machine);
+            }
+            write_tree(data, namespace.root());
+            data.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary.toPath(), this.snapshot_file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.out.close();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.journal_file), 1 << 12));
+        this.records = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    // loads the snapshot and replays the journal after it, then opens the
+    // journal for appending after its last intact record
+    private void recover(Namespace namespace, List<StorageMachine> machines) throws IOException {
+        Map<Integer, StorageMachine> by_id = new HashMap<Integer, StorageMachine>();
+        if (this.snapshot_file.exists()) {
+            try (DataInputStream data = new DataInputStream(new BufferedInputStream(
+                     new FileInputStream(this.snapshot_file), 1 << 16))) {
+                if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("bad snapshot " + this.snapshot_file);
+                }
+                this.sequence = data.readLong();
+                int count = data.readInt();
+                for (int i = 0; i < count; i++) {
+                    StorageMachine machine = read_machine(data);
+                    machines.add(machine);
+                    by_id.put(machine.id, machine);
+                }
+                read_tree(data, namespace.root(), by_id);
+            }
+        }
+
+        long end = 0;
+        if (this.journal_file.exists()) {
+            try (DataInputStream data = new DataInputStream(new BufferedInputStream(
+                     new FileInputStream(this.journal_file), 1 << 16))) {
+                while (true) {
+                    byte[] record = read_record(data);
+                    if (record == null) {
+                        break;
+                    }
+                    end += 8 + record.length;
+                    this.replay(record, namespace, machines, by_id);
+                }
+            }
+            // drop a torn record at the tail, so that new records follow the
+            // last intact one
+            try (FileChannel channel = FileChannel.open(this.journal_file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(this.journal_file, true), 1 << 12));
+    }
+
+    // returns the next intact record, or null at the end of the journal or at
+    // a torn record
+    private static byte[] read_record(DataInputStream data) throws IOException {
+        int length;
+        int checksum;
+        try {
+            length = data.readInt();
+            checksum = data.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 9 || length > (64 << 20)) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        try {
+            data.readFully(record);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue() == checksum ? record : null;
+    }
+
+    private void replay(byte[] bytes, Namespace namespace, List<StorageMachine> machines,
+                        Map<Integer, StorageMachine> by_id) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        long number = record.readLong();
+        byte type = record.readByte();
+        if (number <= this.sequence) {
+            // already in the snapshot
+            return;
+        }
+        this.sequence = number;
+        this.records++;
+
+        if (type == REGISTER) {
+            StorageMachine machine = read_machine(record);
+            machines.add(machine);
+            by_id.put(machine.id, machine);
+            return;
+        }
+        Path path = new Path(record.readUTF());
+        Namespace.Node node = namespace.get(path);
+        switch (type) {
+        case CREATE_FILE:
+        case CREATE_DIRECTORY:
+            Namespace.Node parent = namespace.get(path.parent());
+            if (node == null && parent != null && parent.isDirectory()) {
+                StorageMachine machine = type == CREATE_FILE ? by_id.get(record.readInt()) : null;
+                parent.add(new PathMachinePair(path, type == CREATE_FILE ? FileType.FILE
+                                                                         : FileType.DIRECTORY, machine));
+            }
+            break;
+        case DELETE:
+            if (node != null) {
+                node.remove();
+            }
+            break;
+        case ADD_REPLICA:
+        case REMOVE_REPLICA:
+            StorageMachine machine = by_id.get(record.readInt());
+            if (node != null && machine != null) {
+                if (type == ADD_REPLICA) {
+                    if (!node.entry.machine.contains(machine)) {
+                        node.entry.machine.add(machine);
+                    }
+                } else {
+                    node.entry.machine.remove(machine);
+                }
+            }
+            break;
+        default:
+            throw new IOException("bad journal record type " + type);
+        }
+    }
+
+    private static void write_machine(DataOutputStream data, StorageMachine machine) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream stubs = new ObjectOutputStream(bytes)) {
+            stubs.writeObject(machine.command_stub);
+            stubs.writeObject(machine.client_stub);
+        }
+        data.writeInt(machine.id);
+        data.writeInt(bytes.size());
+        bytes.writeTo(data);
+    }
+
+    private static StorageMachine read_machine(DataInputStream data) throws IOException {
+        int id = data.readInt();
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        try (ObjectInputStream stubs = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            StorageMachine machine = new StorageMachine((Command) stubs.readObject(), (Storage) stubs.readObject());
+            machine.id = id;
+            machine.recovered = true;
+            // counted as heard from now, so that a server which does not come
+            // back is declared failed after naming.failure_timeout
+            machine.arrivals.heard(System.nanoTime());
+            return machine;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("bad storage server stub", e);
+        }
+    }
+
+    // writes the tree in preorder: for each node its kind and name, then the
+    // storage servers of a file or the number of children of a directory
+    private static void write_tree(DataOutputStream data, Namespace.Node root) throws IOException {
+        ArrayDeque<Namespace.Node> pending = new ArrayDeque<Namespace.Node>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Namespace.Node node = pending.pop();
+            data.writeUTF(node.name);
+            if (node.isDirectory()) {
+                Collection<Namespace.Node> children = node.children();
+                data.writeByte(SNAPSHOT_DIRECTORY);
+                data.writeInt(children.size());
+                for (Namespace.Node child : children) {
+                    pending.push(child);
+                }
+            } else {
+                List<StorageMachine> machines = node.entry.machine;
+                data.writeByte(SNAPSHOT_FILE);
+                data.writeInt(machines.size());
+                for (StorageMachine machine : machines) {
+                    data.writeInt(machine == null ? -1 : machine.id);
+                }
+            }
+        }
+    }
+
+    private static void read_tree(DataInputStream data, Namespace.Node root,
+                                  Map<Integer, StorageMachine> by_id) throws IOException {
+        // directories still missing children, with the number missing
+        ArrayDeque<Namespace.Node> directories = new ArrayDeque<Namespace.Node>();
+        ArrayDeque<int[]> missing = new ArrayDeque<int[]>();
+        data.readUTF();
+        if (data.readByte() != SNAPSHOT_DIRECTORY) {
+            throw new IOException("bad snapshot root");
+        }
+        directories.push(root);
+        missing.push(new int[] {data.readInt()});
+        while (!directories.isEmpty()) {
+            if (missing.peek()[0] == 0) {
+                directories.pop();
+                missing.pop();
+                continue;
+            }
+            missing.peek()[0]--;
+            Namespace.Node parent = directories.peek();
+            String name = data.readUTF();
+            byte kind = data.readByte();
+            Path path = new Path(parent.entry.path, name);
+            if (kind == SNAPSHOT_DIRECTORY) {
+                Namespace.Node node = parent.add(new PathMachinePair(path, FileType.DIRECTORY, null));
+                directories.push(node);
+                missing.push(new int[] {data.readInt()});
+            } else {
+                int count = data.readInt();
+                PathMachinePair entry = null;
+                for (int i = 0; i < count; i++) {
+                    StorageMachine machine = by_id.get(data.readInt());
+                    if (entry == null) {
+                        entry = new PathMachinePair(path, FileType.FILE, machine);
+                    } else {
+                        entry.machine.add(machine);
+                    }
+                }
+                if (entry == null) {
+                    entry = new PathMachinePair(path, FileType.FILE, null);
+                    entry.machine.clear();
+                }
+                parent.add(entry);
+            }
+        }
+    }
+}
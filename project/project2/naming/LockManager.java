@@ -0,0 +1,104 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.*;
+
+/** Hierarchical lock manager of the naming server.
+
+    <p>
+    Locking a path takes the lock of every directory above it for shared
+    access, from the root down, and then the lock of the object itself. Each
+    object has its own <code>FileLock</code> with its own FIFO queue, so
+    requests on unrelated subtrees never wait for one another, and a request
+    blocked on one object holds up only the requests queued behind it there.
+    Because every request takes its locks in the same order, from the root
+    down, requests cannot deadlock.
+
+    <p>
+    Each component of the path is looked up only once the lock of its
+    directory is held, so a request that waited while the path was deleted
+    fails cleanly instead of locking a detached object.
+ */
+class LockManager {
+    private final Namespace namespace;
+    private volatile boolean closed;
+    // locks with waiting requests, to be woken when the manager closes
+    private final Set<FileLock> contended = ConcurrentHashMap.newKeySet();
+
+    LockManager(Namespace namespace) {
+        this.namespace = namespace;
+    }
+
+    /** Locks an object and the directories above it.
+
+        @return The node of the locked object.
+        @throws FileNotFoundException If the object does not exist.
+        @throws IllegalStateException If the manager is closed, or the thread
+                                      is interrupted, while the request waits.
+     */
+    Namespace.Node lock(Path path, boolean exclusive) throws FileNotFoundException {
+        ArrayList<Namespace.Node> held = new ArrayList<Namespace.Node>();
+        Namespace.Node node = this.namespace.root();
+        boolean locked = false;
+        try {
+            for (String component : path) {
+                node.entry.file_lock.lock(false, this);
+                held.add(node);
+                node = node.child(component);
+                if (node == null) {
+                    throw new FileNotFoundException("file not found!");
+                }
+            }
+            node.entry.file_lock.lock(exclusive, this);
+            locked = true;
+            return node;
+        } finally {
+            if (!locked) {
+                for (int i = held.size() - 1; i >= 0; i--) {
+                    held.get(i).entry.file_lock.unlock(false);
+                }
+            }
+        }
+    }
+
+    /** Unlocks an object and the directories above it.
+
+        @throws IllegalArgumentException If the object does not exist, or is
+                                         not locked for the given kind of
+                                         access.
+     */
+    void unlock(Path path, boolean exclusive) {
+        Namespace.Node node = this.namespace.get(path);
+        if (node == null) {
+            throw new IllegalArgumentException("path not found");
+        }
+        node.entry.file_lock.unlock(exclusive);
+        for (node = node.parent; node != null; node = node.parent) {
+            node.entry.file_lock.unlock(false);
+        }
+    }
+
+    /** Fails all waiting and future requests with
+        <code>IllegalStateException</code>. */
+    void close() {
+        this.closed = true;
+        for (FileLock lock : this.contended) {
+            lock.wake();
+        }
+    }
+
+    boolean closed() {
+        return this.closed;
+    }
+
+    void contended(FileLock lock) {
+        this.contended.add(lock);
+    }
+
+    void uncontended(FileLock lock) {
+        this.contended.remove(lock);
+    }
+}
@@ -0,0 +1,105 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.*;
+
+/** In-memory directory tree of the naming server.
+
+    <p>
+    Each directory keeps its children in a hash map keyed by name, so looking
+    up a path costs one map lookup per component, however many entries each
+    directory holds. The maps are concurrent: lookups and listings never block,
+    and may run while other threads add or remove entries. Adding an entry
+    succeeds only if no entry of the same name exists, so that two threads
+    creating the same path cannot both succeed.
+ */
+class Namespace {
+    /** Node of the directory tree: a file, or a directory and its children. */
+    static final class Node {
+        final String name;
+        final Node parent;
+        final PathMachinePair entry;
+        // null for files
+        private final ConcurrentHashMap<String, Node> children;
+
+        private Node(String name, Node parent, PathMachinePair entry) {
+            this.name = name;
+            this.parent = parent;
+            this.entry = entry;
+            this.children = entry.file_type == FileType.DIRECTORY
+                ? new ConcurrentHashMap<String, Node>() : null;
+        }
+
+        boolean isDirectory() {
+            return this.children != null;
+        }
+
+        /** Returns the child of the given name, or <code>null</code>. */
+        Node child(String name) {
+            return this.children == null ? null : this.children.get(name);
+        }
+
+        /** Returns the children, which are empty for a file. The collection
+            reflects later changes, and may be iterated while they are made. */
+        Collection<Node> children() {
+            return this.children == null ? Collections.<Node>emptyList() : this.children.values();
+        }
+
+        /** Returns the names of the children. */
+        String[] names() {
+            if (this.children == null) {
+                return new String[0];
+            }
+            return this.children.keySet().toArray(new String[0]);
+        }
+
+        /** Adds a child for the given entry, named by the last component of
+            its path.
+
+            @return The new child, or <code>null</code> if an entry of the same
+                    name already exists.
+            @throws IllegalStateException If this node is a file.
+         */
+        Node add(PathMachinePair entry) {
+            if (this.children == null) {
+                throw new IllegalStateException("cannot add to a file");
+            }
+            String name = entry.path.last();
+            Node child = new Node(name, this, entry);
+            return this.children.putIfAbsent(name, child) == null ? child : null;
+        }
+
+        /** Removes this node, and with it its subtree, from its parent.
+
+            @return <code>true</code> if the node was in the tree.
+         */
+        boolean remove() {
+            return this.parent != null && this.parent.children.remove(this.name, this);
+        }
+    }
+
+    private final Node root;
+
+    Namespace() {
+        this.root = new Node("", null, new PathMachinePair(new Path("/"), FileType.DIRECTORY, null));
+    }
+
+    Node root() {
+        return this.root;
+    }
+
+    /** Returns the node at the given path, or <code>null</code> if there is
+        none. */
+    Node get(Path path) {
+        Node node = this.root;
+        for (String component : path) {
+            node = node.child(component);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+}
@@ -9,51 +9,19 @@ import common.*;
 import storage.*;
 import java.util.ArrayList;
 
-import javax.swing.tree.*;
-import javax.swing.*;
 import java.io.File;
-import java.util.Random;
 import java.net.InetSocketAddress;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-/**
- * This application that requires the following additional files:
- *   TreeDemoHelp.html
- *    arnold.html
- *    bloch.html
- *    chan.html
- *    jls.html
- *    swingtutorial.html
- *    tutorial.html
- *    tutorialcont.html
- *    vm.html
- */
-import javax.swing.JEditorPane;
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-import javax.swing.JSplitPane;
-import javax.swing.UIManager;
-import java.lang.Object;
-import java.awt.Component;
-import java.awt.Container;
-import javax.swing.JComponent;
-import javax.swing.JTree; 
-import javax.swing.tree.DefaultMutableTreeNode;
-import javax.swing.tree.TreeSelectionModel;
-import javax.swing.event.TreeSelectionEvent;
-import javax.swing.event.TreeSelectionListener;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.sql.Timestamp;
-import java.util.UUID;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 
@@ -80,171 +48,39 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
  */
-
-enum FileType {
-    FILE, DIRECTORY
-}
-
-class StorageMachine {
-    public Command command_stub;
-    public Storage client_stub;
-
-    StorageMachine(Command command_stub_, Storage client_stub_) {
-      this.command_stub = command_stub_;
-      this.client_stub = client_stub_;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-	if (o instanceof StorageMachine)
-	{
-            StorageMachine another = (StorageMachine) o;
-            return (this.command_stub == another.command_stub) && (this.client_stub == another.client_stub);
-	}
-        return false;
-    }
-}
-
-class PathMachinePair {
-    public Path path; 
-    public ArrayList<StorageMachine> machine;	
-    public FileType file_type;
-    public FileLock file_lock;
-    PathMachinePair(Path path_, FileType file_type_, StorageMachine machine_) {
-	this.path = path_;
-	this.machine = new ArrayList<StorageMachine>(); 
-	this.machine.add(machine_);
-	this.file_type = file_type_;
-    	this.file_lock = new FileLock();
-    }
-}
-
-class FileLock {
-    private AtomicInteger shared_lockers;
-    public AtomicInteger access_counter;
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Lock readLock = readWriteLock.readLock();
-    private final Lock writeLock = readWriteLock.writeLock();
-    public synchronized boolean isExclusiveLocked() {
-    	return (shared_lockers.intValue() == -1 );
-    }
-    public synchronized boolean isSharedLocked() {
-    	return (shared_lockers.intValue() > 0 );
-    }
-    public synchronized boolean isUnLocked() {
-        return (shared_lockers.intValue() == 0 );
-    }
-    public synchronized boolean lock(boolean exclusive) {
-        writeLock.lock();
-        try {
-	if (exclusive) {
-	    if ( this.isSharedLocked() || this.isExclusiveLocked() ) {
-	        return false;
-	    } else {
-	        this.shared_lockers.set(-1);
-		return true;
-	    }
-	} else {
-	    if (this.isExclusiveLocked()) {
-	        return false;
-	    } else {
-	        this.access_counter.incrementAndGet();
-		this.shared_lockers.incrementAndGet(); 
-	    	return true;
-	    }
-	}
-        } finally {
-            writeLock.unlock();
-        }
-    }
-    public synchronized boolean unlock(boolean exclusive) {
-        writeLock.lock();
-        try {
-	if (exclusive) {
-	    if ( this.isExclusiveLocked()) {
-	        this.shared_lockers.set(0);
-		return true;
-	    } else if ( this.isSharedLocked()){
-	    	return false;
-	    } else {
-		 return false;
-	    }
-	} else {
-	    if ( this.isExclusiveLocked() ) {
-	    	return false;
-	    } else if ( this.isSharedLocked() ) {
-	    	this.shared_lockers.decrementAndGet();
-	    	return true;
-	    } else {
-		return false;
-	    }
-	}
-        } finally {
-            writeLock.unlock();
-        }
-    }
-    public synchronized void replicate(Path path, Storage server, Command command_stub) throws RMIException {
-        if ( access_counter.intValue() == 20 ) {
-	    access_counter.set(0);
-	    try {
-	        command_stub.copy(path, server);
-	    } catch (Throwable t) {
-	        throw new RMIException("cannot copy");
-	    }
-	}
-    }
-    FileLock() {
-	shared_lockers = new AtomicInteger(0);
-	access_counter = new AtomicInteger(0);
-    } 
-}
-
-class LockRequest {
-    public Path path;
-    public boolean exclusive;
-    public int threadid;
-
-    LockRequest() {
-        this.path = new Path();
-        this.exclusive = true;
-        this.threadid = -1;
-    }
-
-    LockRequest(Path path_, boolean exclusive_, int threadid_) {
-        this.path = path_;
-        this.exclusive = exclusive_;
-        this.threadid = threadid_;
-    }
- 
-    Path getPath() {
-        return this.path;
-    }
-}
-
 public class NamingServer implements Service, Registration
 {
-    private ArrayList<StorageMachine> storage_machines; 
+    private List<StorageMachine> storage_machines; 
 
     // a tree structure to remember all the <file, storageMachine>
-    // the structure of the tree resembles the file system tree (at least at the top level)
-    //private TreeNode<PathMachinePair> root;
-    private JTree tree;
-    private DefaultMutableTreeNode root;
+    // the structure of the tree resembles the file system tree
+    private Namespace namespace;
+    private LockManager locks;
+    private Replicator replicator;
+    private FailureDetector detector;
+    // sends deletes to many storage servers in parallel
+    private final Fanout fanout = new Fanout();
+    // records changes to the namespace and storage servers; changes are made
+    // and recorded under the read lock, snapshots are taken under the write
+    // lock
+    private Journal journal;
+    private final ReentrantReadWriteLock metadata = new ReentrantReadWriteLock();
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private final AtomicInteger next_machine_id = new AtomicInteger();
+    // chooses the servers on which new files are placed
+    private final Placement placement = Placement.configured();
+    // orders the replicas of a file for readers
+    private final ReadBalancer balancer = ReadBalancer.configured();
+    // storage servers in the middle of streamed registration; a server has
+    // at most one, which is dropped when it registers again or fails
+    private final ConcurrentHashMap<Long, StorageMachine> registrations =
+        new ConcurrentHashMap<Long, StorageMachine>();
     private volatile boolean stopped;
 
     private int servicePort;
     private int registrationPort;
     private Skeleton<Service> serviceSkeleton;
     private Skeleton<Registration> registrationSkeleton;
-   
-    private static LinkedBlockingQueue<LockRequest> lock_queue;
-    private static Map<Integer, Exception> exception_table;
-    private static Map<Integer, Boolean> finishing_table;
-    private volatile boolean locking;
-    private volatile boolean queueing;
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Lock readLock = readWriteLock.readLock();
-    private final Lock writeLock = readWriteLock.writeLock();
 
     /** Creates the naming server object.
 
@@ -253,45 +89,125 @@ public class NamingServer implements Service, Registration
      */
     public NamingServer()
     {
-        storage_machines = new ArrayList<StorageMachine>();
-	root = new DefaultMutableTreeNode(new PathMachinePair(new Path("/"), FileType.DIRECTORY,null));
-	tree = new JTree(root);
+        storage_machines = new CopyOnWriteArrayList<StorageMachine>();
+	namespace = new Namespace();
+	locks = new LockManager(namespace);
+	replicator = new Replicator(this, locks, storage_machines);
+	detector = new FailureDetector(this, storage_machines, replicator);
+	journal = Journal.none();
 	servicePort = 6000;
 	registrationPort = 6001;
-   
-        lock_queue = new LinkedBlockingQueue<LockRequest>();
-        exception_table = Collections.synchronizedMap(new HashMap<Integer, Exception>());
-        finishing_table = Collections.synchronizedMap(new HashMap<Integer, Boolean>());
-        locking = false;
         stopped = true;
-        queueing = false;
     }
 
-    private DefaultMutableTreeNode get(Path file) {
-        Iterator itr = file.iterator();
-        String cpath = "";
-        DefaultMutableTreeNode ctr = this.root;
-        
-        // traverse the tree from root to the node representing the file, return the respective machine stub
-        int j = 0;
-        while (itr.hasNext()) {
-            cpath = cpath + "/" + itr.next();
-            int i;
-	    for ( i = 0; i < ctr.getChildCount(); i++ ) {
-		DefaultMutableTreeNode pm_child = (DefaultMutableTreeNode) ctr.getChildAt(i);
-            	PathMachinePair child = (PathMachinePair) pm_child.getUserObject();
-                Path cpath_obj = new Path(cpath);
-		if (child.path.equals(cpath_obj)) {
-        	    break;
-        	}
+    /** Creates a naming server object that keeps its metadata in the given
+        directory.
+
+        <p>
+        Changes to the directory tree and the set of registered storage servers
+        are recorded in a journal in the directory, and snapshots of the whole
+        state are written there from time to time and when the server stops.
+        The state recorded in the directory, if any, is loaded, so storage
+        servers registered before a restart need not register again. A storage
+        server that does register again after a restart keeps the files it
+        already hosted. The naming server is not started.
+
+        @param directory Directory holding the metadata. It is created if it
+                         does not exist.
+        @throws IOException If the directory cannot be created or its contents
+                            cannot be read.
+     */
+    public NamingServer(File directory) throws IOException
+    {
+        this();
+        journal = Journal.open(directory, namespace, storage_machines);
+        for (StorageMachine sm : storage_machines) {
+            next_machine_id.set(Math.max(next_machine_id.get(), sm.id + 1));
+        }
+    }
+
+    private Namespace.Node get(Path file) {
+        return this.namespace.get(file);
+    }
+
+    // the directory that holds the given path, which must exist
+    private Namespace.Node directory_of(Path path) throws FileNotFoundException {
+        Namespace.Node parent = this.get(path.parent());
+        if (parent == null || !parent.isDirectory()) {
+            throw new FileNotFoundException("file not found!");
+        }
+        return parent;
+    }
+
+    // Adds a file or directory to the tree and records it in the journal;
+    // returns null if the name is taken.
+    private Namespace.Node add(Namespace.Node directory, PathMachinePair entry) throws IOException {
+        metadata.readLock().lock();
+        try {
+            Namespace.Node node = directory.add(entry);
+            if (node != null) {
+                try {
+                    if (entry.file_type == FileType.FILE) {
+                        journal.createFile(entry.path, entry.machine.get(0));
+                    } else {
+                        journal.createDirectory(entry.path);
+                    }
+                } catch (IOException e) {
+                    node.remove();
+                    throw e;
+                }
             }
-            if ( i == ctr.getChildCount() ) {
-                return null;
+            return node;
+        } finally {
+            metadata.readLock().unlock();
+        }
+    }
+
+    // Removes a file or directory from the tree and records it in the journal.
+    private void remove(Namespace.Node node) throws IOException {
+        metadata.readLock().lock();
+        try {
+            journal.delete(node.entry.path);
+            node.remove();
+        } finally {
+            metadata.readLock().unlock();
+        }
+    }
+
+    // Adds or removes a storage server hosting a file, and records it in the
+    // journal.
+    void replica(PathMachinePair pmp, StorageMachine sm, boolean add) throws IOException {
+        metadata.readLock().lock();
+        try {
+            if (add) {
+                journal.addReplica(pmp.path, sm);
+                pmp.machine.add(sm);
             } else {
-            	ctr = (DefaultMutableTreeNode) ctr.getChildAt(i);
+                journal.removeReplica(pmp.path, sm);
+                pmp.machine.remove(sm);
+            }
+        } finally {
+            metadata.readLock().unlock();
+        }
+    }
+
+    // Writes a snapshot if one is due. Skipped by threads in the middle of a
+    // change, which cannot wait for the write lock.
+    void checkpoint() {
+        if (!journal.due() || metadata.getReadHoldCount() > 0 || !checkpointing.compareAndSet(false, true)) {
+            return;
+        }
+        metadata.writeLock().lock();
+        try {
+            if (journal.due()) {
+                journal.snapshot(namespace, storage_machines);
             }
+        } catch (IOException e) {
+            // the journal is intact, and the snapshot is tried again later
+        } finally {
+            metadata.writeLock().unlock();
+            checkpointing.set(false);
         }
-        return ctr;
     }
 
     /** Starts the naming server.
@@ -316,12 +232,12 @@ public class NamingServer implements Service, Registration
 
             serviceSkeleton.start();
             registrationSkeleton.start();
+            replicator.start();
+            detector.start();
             this.stopped = false;
 	} catch (Throwable t) {
 	    throw new RMIException("cannot start server!");
 	}
-        Thread t = new Thread(new Scheduler());
-        t.start();
     }
 
     /** Stops the naming server.
@@ -335,9 +251,24 @@ public class NamingServer implements Service, Registration
      */
     public void stop()
     {
+        this.stopped = true;
+        locks.close();
+        detector.close();
+        replicator.close();
+        fanout.close();
         serviceSkeleton.stop();
 	registrationSkeleton.stop();
-	stopped(null);
+	Throwable cause = null;
+	metadata.writeLock().lock();
+	try {
+	    journal.snapshot(namespace, storage_machines);
+	    journal.close();
+	} catch (IOException e) {
+	    cause = e;
+	} finally {
+	    metadata.writeLock().unlock();
+	}
+	stopped(cause);
     }
 
     /** Indicates that the server has completely shut down.
@@ -377,191 +308,60 @@ public class NamingServer implements Service, Registration
     @Override
     public void lock(Path path, boolean exclusive) throws FileNotFoundException, RMIException, NullPointerException
     {
-        // The lock mechanism implemented is described in the following picture:
-        // https://goo.gl/photos/Vb4wbs9M2CR6Gz7S8
-        //
-        // The lock in the naming stub adds one lock request in to the request
-        // queue when it is called. The AddRequest with unique ID allocated 
-        // is called and pending, waiting for the signal.
-        //
-        // When started, the start method spawns a thread, Scheduler, which dequeues
-        //  the request queue when the queue is not empty.
-        // After one request is dequeued from the request queue, the locking method
-        // deals with the lock request. After that signals the pending AddRequest to
-        // continue (according to the ID distributed to it). The AddRequest then throws
-        // the expcetion according to the exception table, if any, to the lock method 
-        // in the stub.
-        //
-        // We kept the FIFO order in the queue policy according to the description in
-        // Service.java. When there is at least one request in the queue, the Scheduler
-        // always checks whether the request to be dequeued is able to lock the file or
-        // directory specified by path according to the excluse and shared lock rules, 
-        // and also checks whether is there any thread is locking. If the request of locking
-        // the file or directory specified by the path is not blocked, then the lock
-        // should never lead to the deadlock resulted from locking the parent and its child
-        // simultaneously.
-        // 
-        // The CompareTo method in the Path is not used. Since we are using FIFO order,
-        // we cannot implenment another order, otherwise that could be chaotic.  
-
+        // Locks are taken by LockManager, from the root down, each in its own
+        // FIFO queue; see LockManager and FileLock. Once the file itself is
+        // locked, a write request invalidates its replicas, and a read request
+        // is counted by the Replicator, which may copy the file in the
+        // background.
         if (path == null) {
             throw new NullPointerException("path is null");
         }
-	DefaultMutableTreeNode pm = this.get(path);
-        if (pm == null) {
-            throw new FileNotFoundException("null pointer");
+        Namespace.Node node = locks.lock(path, exclusive);
+        PathMachinePair pmp = node.entry;
+        if (pmp.file_type != FileType.FILE) {
+            return;
         }
-        int tid = UUID.randomUUID().hashCode();
-        Thread thread = new Thread(new AddRequest(path, exclusive, tid));
-        thread.start();
-        while (this.finishing_table.get(tid) == null ) {
-	}
-        try {
-            if (exception_table.get(tid) != null) {
-                Exception e = exception_table.get(tid);
-                //this.finishing_table.remove(tid);
-                //this.exception_table.remove(tid);
-                throw e;
-            }
-        } catch (FileNotFoundException ex1) {
-           throw ex1;
-        } catch (RMIException ex2) {
-            throw ex2;
-        } catch (Exception ex) {}
-        //this.finishing_table.remove(tid);
-    }
 
-    private synchronized void locking(Path path, boolean exclusive, int tid) {
-        //try and add to exception table
-        this.locking = true;
-        try {
-            unit_lock (path, exclusive);
-        } catch (Exception e) {
-            this.exception_table.put(tid, e);
+        if (exclusive) {
+            pmp.version.incrementAndGet();
+            try {
+                invalidate(pmp);
+            } catch (Throwable t) {
+                locks.unlock(path, exclusive);
+                if (t instanceof IllegalStateException) {
+                    throw (IllegalStateException) t;
+                }
+                throw new IllegalStateException("replication cannot be deleted", t);
+            }
+        } else {
+            replicator.read(pmp);
         }
-	this.finishing_table.put(tid, true);
-        this.locking = false;
     }
 
-    private synchronized void unit_lock(Path path, boolean exclusive) throws FileNotFoundException, IllegalStateException, RMIException, NullPointerException{
-	// change the file read(shared)/write(exclusive) counter
-   	// the semantics requires all the files to be locked
-	// lock the upward object for SHARED access
-	// lock the downward objects for EXCLUSIVE acccess
-  
-        // use multithread, one thread notify the queued request 
-        // to continue on its finishing
-        //this.locking = true;
-        if ( path == null ) {
-            throw new NullPointerException("path is null");
+    // deletes every copy of a file but the first, all servers at once; the
+    // copies that cannot be deleted are kept, and reported
+    private void invalidate(PathMachinePair pmp) throws IOException {
+        if (pmp.machine.size() <= 1) {
+            return;
+        }
+        Map<StorageMachine, List<Path>> work = new LinkedHashMap<StorageMachine, List<Path>>();
+        for (StorageMachine sm : pmp.machine.subList(1, pmp.machine.size())) {
+            work.put(sm, Collections.singletonList(pmp.path));
+        }
+        Map<StorageMachine, Throwable> failures = fanout.delete(work, true);
+        for (StorageMachine sm : work.keySet()) {
+            if (!failures.containsKey(sm)) {
+                replica(pmp, sm, false);
+            }
+        }
+        checkpoint();
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("replication cannot be deleted from " + failures.size()
+                                            + " of " + work.size() + " servers",
+                                            failures.values().iterator().next());
         }
-	DefaultMutableTreeNode pm = this.get(path);
-	if ( pm == null ) {
-	    throw new FileNotFoundException("file not found!");
-	}
-	
-	if ( this.isClosed()) {
-	    throw new IllegalStateException("file is locked");
-	}
-	
-	try {
-	    PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
-	    if (!pmp.file_lock.lock(exclusive)) {
-		throw new Error("error");
-	    }
-	
-	    if ( pmp.file_type == FileType.FILE && exclusive ) {
-	        for ( int i = pmp.machine.size()-1; i > 0; i-- ) {
-	            if (!pmp.machine.get(i).command_stub.delete(path)) {
-	    	        throw new IllegalStateException("replication cannot be deleted");
-	    	    }
-		    pmp.machine.remove(i);
-	        }
-	    }
-
-	    //replication policy here
-	    //Random randomGenerator = new Random();
-	    //int random_int = randomGenerator.nextInt()%(storage_machines.size());
-            if (pmp.file_lock.access_counter.intValue() ==20 && !exclusive) {
-		    int random_int = 0;
-		    while (pmp.machine.contains(storage_machines.get(random_int)) ) {
-			random_int++;
-			if (random_int == storage_machines.size()) {
-				break;
-			}
-		    }
-		    pmp.file_lock.replicate(path,  pmp.machine.get(0).client_stub, this.storage_machines.get(random_int).command_stub);
-                    pmp.machine.add(storage_machines.get(random_int));
-	    }
-	    ArrayList<DefaultMutableTreeNode> parents = new ArrayList<DefaultMutableTreeNode>();
-	    DefaultMutableTreeNode parent = (DefaultMutableTreeNode) pm.getParent();
-	    boolean success = true;
-	    while (parent != null ) {
-		PathMachinePair parent_pmp = (PathMachinePair) parent.getUserObject();
-	    	if ( !parent_pmp.file_lock.lock(false)) {
-	        	success = false;
-	    		break; 
-	        }
-	        parents.add(parent);
-	        parent = (DefaultMutableTreeNode) parent.getParent();
-	    }
-
-	    // lock from current object upward, if failed at some point undo all the lock
-	    if ( success == false ) {
-	        for ( int i = parents.size() -1; i >= 0; i-- ) {
-		    DefaultMutableTreeNode parent_pm = parents.get(i);
-	            PathMachinePair parent_pmp = (PathMachinePair) parent_pm.getUserObject();
-		    parent_pmp.file_lock.unlock(false);
-	        }
-	    	throw new Error("error");
-	    }
-	    
-	    // for exclusive access, lock the downstream objects for exclusive access    
-	    // this BFS algorithm may have performance issues, consider modifying to multithread (need to watch out for thread safety)
-	    if (exclusive) {
-		boolean first = true;
-            for (StorageMachine m : pmp.machine) {
-		if (first) {
-			first = false;
-			continue;
-		}
-		m.command_stub.delete(pmp.path);
-		pmp.machine.remove(m);
-	}
-                 
-	        ArrayList<DefaultMutableTreeNode> nodes_to_visit = new ArrayList<DefaultMutableTreeNode>();
-		nodes_to_visit.add(pm);
-		int cursor = 0;	
-		while (cursor < nodes_to_visit.size()) {
-		    DefaultMutableTreeNode currentnode = nodes_to_visit.get(cursor);
-		    PathMachinePair current_pm = (PathMachinePair) currentnode.getUserObject();
-	    	    if (!current_pm.path.equals(pmp.path) && !current_pm.file_lock.lock(exclusive)) {
-		        success = false;
-			break;
-		    }
-		    for ( int i = 0; i < currentnode.getChildCount(); i++ ) {
-			DefaultMutableTreeNode child = (DefaultMutableTreeNode) currentnode.getChildAt(i);
-		    	PathMachinePair pmp_child = (PathMachinePair) child.getUserObject();
-			nodes_to_visit.add(child);
-		    }
-		    cursor++;
-		}
-		
-		if (!success ) {
-	            for ( int i = cursor - 1; i >= 0; i-- ) {
-	                PathMachinePair pmp_parent = (PathMachinePair) parents.get(i).getUserObject();
-			pmp_parent.file_lock.unlock(true);
-	            }
-		    throw new Error("error");
-		}
-	    }
-	} catch (Throwable t) {
-	    throw t;
-	}
     }
 
-
-
     /** Unlocks a file or directory.
         @param path The file or directory to be unlocked.
         @param exclusive Must be <code>true</code> if the object was locked for
@@ -583,69 +383,7 @@ public class NamingServer implements Service, Registration
 	if ( path == null ) {
 	    throw new NullPointerException("path is null");
 	}
-	DefaultMutableTreeNode pm = this.get(path);
-	if ( pm == null ) {
-	    throw new IllegalArgumentException("illegal state");
-	}
-
-	try {
-	    PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
-	    if (!pmp.file_lock.unlock(exclusive)) {
-		throw new Error("error");
-	    }
-	    ArrayList<DefaultMutableTreeNode> parents = new ArrayList<DefaultMutableTreeNode>();
-	    DefaultMutableTreeNode parent = (DefaultMutableTreeNode) pm.getParent();
-	    boolean success = true;
-	    while (parent != null ) {
-	    	PathMachinePair parent_pmp = (PathMachinePair) parent.getUserObject();
-		if ( !parent_pmp.file_lock.unlock(false)) {
-	        	success = false;
-	    	break; 
-	        }
-	        parents.add(parent);
-		parent = (DefaultMutableTreeNode) parent.getParent();
-	    }
-
-	    // lock from current object upward, if failed at some point undo all the lock
-	    if ( success == false ) {
-	        for ( int i = parents.size() -1; i >= 0; i-- ) {
-		    DefaultMutableTreeNode parent_pm = parents.get(i);
-	            PathMachinePair parent_pmp =(PathMachinePair) parent_pm.getUserObject();
-		    parent_pmp.file_lock.lock(false);
-	        }
-	        //return;
-	    	throw new Error("error");
-	    }
-	    
-	    if (exclusive) {
-	        ArrayList<DefaultMutableTreeNode> nodes_to_visit = new ArrayList<DefaultMutableTreeNode>();
-		nodes_to_visit.add(pm);
-		int cursor = 0;	
-		while (cursor < nodes_to_visit.size()) {
-		    DefaultMutableTreeNode currentnode = nodes_to_visit.get(cursor);
-		    PathMachinePair current_pm = (PathMachinePair) currentnode.getUserObject();
-		    if (!current_pm.path.equals(pmp.path) && !current_pm.file_lock.unlock(exclusive) ) {
-		        success = false;
-			break;
-		    }
-	
-		    for ( int i = 0; i < currentnode.getChildCount(); i++ ) {
-		    	nodes_to_visit.add((DefaultMutableTreeNode) currentnode.getChildAt(i));
-		    }
-		    cursor++;
-		}
-		if (!success ) {
-	            for ( int i = cursor - 1; i >= 0; i-- ) {
-	                DefaultMutableTreeNode n2v_pm = nodes_to_visit.get(i);
-			PathMachinePair n2v_pmp = (PathMachinePair) n2v_pm.getUserObject();
-			n2v_pmp.file_lock.lock(true);
-	            }
-		    throw new Error("error");
-		}
-	    }
-	} catch (Throwable t) {
-	    	throw t;
-	}
+	locks.unlock(path, exclusive);
     }
 
     /** Determines whether a path refers to a directory.
@@ -664,11 +402,11 @@ public class NamingServer implements Service, Registration
     @Override
     public boolean isDirectory(Path path) throws FileNotFoundException
     {
-        DefaultMutableTreeNode pm = this.get(path);
+        Namespace.Node pm = this.get(path);
 	if (pm == null ) {
 	    throw new FileNotFoundException("file not found!");
 	}
-	PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
+	PathMachinePair pmp = pm.entry;
 	if ( pmp.file_type == FileType.DIRECTORY ) {
 	    return true;
 	} else {
@@ -691,23 +429,17 @@ public class NamingServer implements Service, Registration
     @Override
     public String[] list(Path directory) throws RMIException, FileNotFoundException
     {
-	DefaultMutableTreeNode pm = this.get(directory);
+	Namespace.Node pm = this.get(directory);
 	if ( pm == null ) {
 	    throw new FileNotFoundException("no such directory");
 	}
-	PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
+	PathMachinePair pmp = pm.entry;
 	
 	if ( pmp.file_type != FileType.DIRECTORY ) {
 	    throw new FileNotFoundException("no such directory");
 	}
 
-	String[] ret = new String[pm.getChildCount()];
-	for ( int i = 0; i < pm.getChildCount(); i++ ) {
-	    DefaultMutableTreeNode pm_child = (DefaultMutableTreeNode) pm.getChildAt(i);	
-	    PathMachinePair pmp_child = (PathMachinePair) pm_child.getUserObject();
-	    ret[i] = pmp_child.path.toString().substring(pmp_child.path.toString().lastIndexOf("/")+1, pmp_child.path.toString().length());
-	}
-	return ret;
+	return pm.names();
     }
 
     /** Creates the given file, if it does not exist.
@@ -728,33 +460,41 @@ public class NamingServer implements Service, Registration
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException
     {
-    	DefaultMutableTreeNode pm = this.get(file);
+    	Namespace.Node pm = this.get(file);
 	if ( pm != null ) {
 	    return false;
 	}
 
-        String[] cpath = file.toString().split("/");
-        String cpath_cat = "";
-        for (int i = 0; i < cpath.length-1; i++) { // exclude the directory to be created
-            cpath_cat = cpath_cat + "/" + cpath[i];
-	    pm = this.get(new Path(cpath_cat));
-            if ( pm == null || !this.isDirectory(new Path(cpath_cat)) ) {
-	        throw new FileNotFoundException("file not found!");
-	    }
-        }
+        pm = this.directory_of(file);
 
 	if (storage_machines.size() == 0 ) {
 	    throw new IllegalStateException("no available storage server");
 	}
 	
+	StorageMachine sm;
+	Namespace.Node node;
+	try {
+	    sm = this.placement.place(file, this.storage_machines);
+	    node = this.add(pm, new PathMachinePair(file, FileType.FILE, sm));
+	    if (node == null) {
+	        return false;
+	    }
+	} catch (Throwable t) {
+	    return false;
+	}
 	try {
-	    Random randomGenerator = new Random();
-	    int random_int = randomGenerator.nextInt()%(this.storage_machines.size());
-	    pm.add(new DefaultMutableTreeNode(new PathMachinePair(file, FileType.FILE, this.storage_machines.get(random_int) )));
-            this.storage_machines.get(random_int).command_stub.create(file); 
+            sm.command_stub.create(file);
 	} catch (Throwable t) {
+	    // the file was recorded before the storage server was asked to
+	    // create it; take it back out of the tree and the journal
+	    try {
+	        this.remove(node);
+	    } catch (IOException e) {
+	        node.remove();
+	    }
 	    return false;
 	}
+	checkpoint();
 	return true;
     }
 
@@ -775,26 +515,20 @@ public class NamingServer implements Service, Registration
     @Override
     public boolean createDirectory(Path directory) throws RMIException, FileNotFoundException
     {
-	DefaultMutableTreeNode pm = this.get(directory);
+	Namespace.Node pm = this.get(directory);
 	if ( pm != null ) {
 	    return false;
 	}
-        String[] cpath = directory.toString().split("/");
-        String cpath_cat = "";
-        DefaultMutableTreeNode pm1 = this.get(new Path("/"));
-        for (int i = 0; i < cpath.length-1; i++) { // exclude the directory to be created
-            cpath_cat = cpath_cat + "/" + cpath[i];
-	    pm1 = this.get(new Path(cpath_cat));
-            if ( pm1 == null || !this.isDirectory(new Path(cpath_cat)) ) {
-	        throw new FileNotFoundException("file not found!");
-	    }
-        }
+        Namespace.Node pm1 = this.directory_of(directory);
 	
 	try {
-	    pm1.add(new DefaultMutableTreeNode(new PathMachinePair(directory, FileType.DIRECTORY, null)));
-	} catch (Throwable t) {
+	    if (this.add(pm1, new PathMachinePair(directory, FileType.DIRECTORY, null)) == null) {
+	        return false;
+	    }
+	} catch (IOException e) {
 	    return false;
 	}
+	checkpoint();
 	return true;
     }
 
@@ -802,6 +536,11 @@ public class NamingServer implements Service, Registration
     <p>
     The parent directory should be locked for exclusive access before this
     operation is performed.
+    <p>
+    If some storage servers cannot be commanded to delete the object,
+    <code>false</code> is returned, and the files under the object are kept
+    with only their copies on those servers, so that deleting the object again
+    deletes the rest.
     @param path Path to the file or directory to be deleted.
     @return <code>true</code> if the file or directory is deleted;
             <code>false</code> otherwise. The root directory cannot be
@@ -814,50 +553,78 @@ public class NamingServer implements Service, Registration
     @Override
     public boolean delete(Path path) throws RMIException, FileNotFoundException
     {
-	DefaultMutableTreeNode pm = this.get(path);
+	Namespace.Node pm = this.get(path);
 	if ( pm == null ) {
 	    throw new FileNotFoundException("file not found!");
 	}
-	PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
-	if (pmp.file_type == FileType.FILE ) {
-	    try {
-	        // only to remove from the first server, 
-                // because when acquiring exlusive locks,
-                //  the replica has already been removed
-                for ( StorageMachine m: storage_machines ) {
-			m.command_stub.delete(path);
-		 }
-		 pmp.machine = new ArrayList<StorageMachine>();
-	    	pm.removeFromParent();
-	    } catch (Throwable t) {
-	         return false;
+	if (path.isRoot()) {
+	    return false;
+	}
+	// A file is deleted from each server holding it. A directory is
+	// deleted from each server holding any file under it, with one command
+	// listing those files. All the servers are commanded at once. Servers
+	// still receiving a copy of a file are sent the file too.
+	ArrayList<PathMachinePair> files = new ArrayList<PathMachinePair>();
+	ArrayDeque<Namespace.Node> directories = new ArrayDeque<Namespace.Node>();
+	if (pm.entry.file_type == FileType.FILE) {
+	    files.add(pm.entry);
+	} else {
+	    directories.push(pm);
+	}
+	while (!directories.isEmpty()) {
+	    for (Namespace.Node child : directories.pop().children()) {
+	        if (child.entry.file_type == FileType.FILE) {
+	            files.add(child.entry);
+	        } else {
+	            directories.push(child);
+	        }
 	    }
-	    return true;
-	} else if ( pmp.file_type == FileType.DIRECTORY ) {
-            // if a directory is to be deleted, BFS all the
-            // files under it, and use their command stubs
-            // to delete the directory
-	    ArrayList<DefaultMutableTreeNode> nodes_to_visit = new ArrayList<DefaultMutableTreeNode>();
-	    nodes_to_visit.add(pm);
-	    int cursor = 0;	
-	    while (cursor < nodes_to_visit.size()) {
-	        DefaultMutableTreeNode currentnode = nodes_to_visit.get(cursor);
-	        PathMachinePair current_pm = (PathMachinePair) currentnode.getUserObject();
-                if (current_pm.file_type == FileType.FILE) {
-		   for ( StorageMachine m: current_pm.machine ) {
-                        m.command_stub.delete(path);
-                   }
-               	}
-		for ( int i = 0; i < currentnode.getChildCount(); i++ ) {
-		    DefaultMutableTreeNode child = (DefaultMutableTreeNode) currentnode.getChildAt(i);
-		    PathMachinePair pmp_child = (PathMachinePair) child.getUserObject();
-		    nodes_to_visit.add(child);
-		}
-		cursor++;
-            }
-	    pm.removeFromParent();
-	    return true; 
 	}
+	Map<StorageMachine, List<Path>> work = new LinkedHashMap<StorageMachine, List<Path>>();
+	for (PathMachinePair file : files) {
+	    for (StorageMachine m : file.machine) {
+	        work.computeIfAbsent(m, k -> new ArrayList<Path>()).add(file.path);
+	    }
+	    StorageMachine target = file.demand.deleting();
+	    if (target != null && !file.machine.contains(target)) {
+	        work.computeIfAbsent(target, k -> new ArrayList<Path>()).add(file.path);
+	    }
+	}
+	Map<StorageMachine, Path[]> remaining = new ConcurrentHashMap<StorageMachine, Path[]>();
+	Map<StorageMachine, Throwable> failures;
+	if (pm.entry.file_type == FileType.FILE) {
+	    failures = fanout.delete(work, false);
+	} else {
+	    failures = fanout.deleteTree(path, work, remaining);
+	}
+	try {
+	    if (failures.isEmpty() && remaining.isEmpty()) {
+	        this.remove(pm);
+	        checkpoint();
+	        return true;
+	    }
+	    // Keep only the copies that were not deleted, so that deleting the
+	    // object again deletes the rest.
+	    Map<StorageMachine, Set<Path>> left = new HashMap<StorageMachine, Set<Path>>();
+	    for (Map.Entry<StorageMachine, Path[]> server : remaining.entrySet()) {
+	        left.put(server.getKey(), new HashSet<Path>(Arrays.asList(server.getValue())));
+	    }
+	    for (PathMachinePair file : files) {
+	        for (StorageMachine m : file.machine) {
+	            if (!failures.containsKey(m) && !left.getOrDefault(m, Collections.<Path>emptySet()).contains(file.path)) {
+	                this.replica(file, m, false);
+	            }
+	        }
+	        if (file.machine.isEmpty()) {
+	            Namespace.Node node = this.get(file.path);
+	            if (node != null && node.entry == file) {
+	                this.remove(node);
+	            }
+	        }
+	    }
+	} catch (IOException e) {
+	}
+	checkpoint();
 	return false;
     }
 
@@ -878,12 +645,27 @@ public class NamingServer implements Service, Registration
     @Override
     public Storage getStorage(Path file) throws RMIException, FileNotFoundException
     {
-	DefaultMutableTreeNode pm = this.get(file);
+	Namespace.Node pm = this.get(file);
+	if ( pm == null || this.isDirectory(file)) {
+	    throw new FileNotFoundException("file not found");
+	}
+	return this.balancer.order(pm.entry.machine, null)[0].client_stub;
+    }
+
+    // The method getReplicas is documented in Service.java.
+    @Override
+    public Storage[] getReplicas(Path file, String host) throws RMIException, FileNotFoundException
+    {
+	Namespace.Node pm = this.get(file);
 	if ( pm == null || this.isDirectory(file)) {
 	    throw new FileNotFoundException("file not found");
 	}
-	PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
-	return pmp.machine.get(0).client_stub;
+	StorageMachine[] replicas = this.balancer.order(pm.entry.machine, host);
+	Storage[] stubs = new Storage[replicas.length];
+	for (int i = 0; i < replicas.length; i++) {
+	    stubs[i] = replicas[i].client_stub;
+	}
+	return stubs;
     }
 
     // The method register is documented in Registration.java.
@@ -916,124 +698,222 @@ public class NamingServer implements Service, Registration
 	if ( client_stub == null || command_stub == null || files == null ) {
 	    throw new NullPointerException("null pointer!");
 	}	
-	    
-	    
-	// lock the root directory
-	
-	ArrayList<Path> ret = new ArrayList<>(); 
+	StorageMachine machine = this.admit(client_stub, command_stub);
 	try {
-	    if ( client_stub == null || command_stub == null || files == null ) {
-	        throw new NullPointerException("null pointer");
-	    }
-	    for ( StorageMachine sm : this.storage_machines) {
-	    	if ( sm.command_stub.hashCode() == command_stub.hashCode() && sm.client_stub.hashCode() == client_stub.hashCode() ) {
-		    throw new IllegalStateException("the storage server is registered!");
-		}
-	    }
+	    return this.merge(machine, files);
+	} finally {
+	    checkpoint();
+	}
+    }
 
-	} catch (Throwable t) {
-	    throw t;
+    // Streamed registration is documented in Registration.java. Each chunk is
+    // merged as by register, and the registering server is known to the
+    // naming server from the start.
+    @Override
+    public long beginRegistration(Storage client_stub, Command command_stub)
+        throws NullPointerException, IllegalStateException, RMIException
+    {
+	if ( client_stub == null || command_stub == null ) {
+	    throw new NullPointerException("null pointer!");
 	}
+	StorageMachine machine = this.admit(client_stub, command_stub);
+	long registration;
+	do {
+	    registration = ThreadLocalRandom.current().nextLong();
+	} while (this.registrations.putIfAbsent(registration, machine) != null);
+	return registration;
+    }
 
+    @Override
+    public Path[] registerFiles(long registration, Path[] files)
+        throws NullPointerException, IllegalArgumentException, RMIException
+    {
+	if ( files == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	StorageMachine machine = this.registrations.get(registration);
+	if (machine == null) {
+	    throw new IllegalArgumentException("unknown registration");
+	}
 	try {
-            // scan and compare the storage directory tree and naming server directory tree
-	    this.storage_machines.add(new StorageMachine(command_stub, client_stub));
+	    return this.merge(machine, files);
+	} finally {
+	    checkpoint();
+	}
+    }
 
-	    for ( int i = 0; i < files.length; i++ ) {
-		if( this.get(files[i]) != null && !files[i].isRoot()) {
-                    ret.add(files[i]);
-	        } else {
-		    ArrayList<Path> parents = new ArrayList<Path>();
-		    Path parent = files[i].parent();
-		    while (this.get(parent) == null && !parent.isRoot() && !files[i].isRoot()) {
-		        parents.add(parent);	
-		        parent = parent.parent();
-		    }
-		    for ( int j = parents.size() - 1; j >= 0; j-- ) {
-		        this.createDirectory(parents.get(j));		
-		    }
-    	            DefaultMutableTreeNode pm = this.get(files[i]);
-	            if ( pm != null ) {
-			continue;
-	            }
+    @Override
+    public void endRegistration(long registration) throws IllegalArgumentException, RMIException
+    {
+	if (this.registrations.remove(registration) == null) {
+	    throw new IllegalArgumentException("unknown registration");
+	}
+    }
 
-                    String[] cpath = files[i].toString().split("/");
-                    String cpath_cat = "";
-                    for (int j = 0; j < cpath.length-1; j++) { // exclude the directory to be created
-                        cpath_cat = cpath_cat + "/" + cpath[j];
-	                pm = this.get(new Path(cpath_cat));
-                        if ( pm == null || !this.isDirectory(new Path(cpath_cat)) ) {
-	                    throw new FileNotFoundException("file not found!");
-	                }
-                    }
+    // The method heartbeat is documented in Registration.java.
+    @Override
+    public void heartbeat(Storage client_stub, LoadReport load)
+        throws NullPointerException, IllegalStateException, RMIException
+    {
+	if ( client_stub == null || load == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	StorageMachine sm = this.machine(client_stub);
+	if (sm == null) {
+	    throw new IllegalStateException("the storage server is not registered!");
+	}
+	// a server declared failed has lost the replicas that had copies
+	// elsewhere, and must register again to learn which of its files to
+	// delete
+	if (!sm.alive) {
+	    throw new IllegalStateException("the storage server was declared failed!");
+	}
+	sm.arrivals.heard(System.nanoTime());
+	sm.load = load;
+	sm.placed.set(0);
+	sm.served.set(0);
+    }
 
-                    if (storage_machines.size() == 0 ) {
-	                throw new IllegalStateException("no available storage server");
-	            }
-	
-	            pm.add(new DefaultMutableTreeNode(new PathMachinePair(files[i], FileType.FILE, new StorageMachine(command_stub, client_stub))));
+    // the registered storage server with the given client stub, or null
+    StorageMachine machine(Storage client_stub) {
+	for (StorageMachine sm : this.storage_machines) {
+	    if (sm.client_stub.equals(client_stub)) {
+	        return sm;
+	    }
+	}
+	return null;
+    }
+
+    // whether a file is still in the directory tree
+    boolean current(PathMachinePair pmp) {
+	Namespace.Node node = this.get(pmp.path);
+	return node != null && node.entry == pmp;
+    }
+
+    // Marks a storage server failed. Its replicas of files that have copies
+    // on other servers are dropped, and the files copied to other servers
+    // until they have as many replicas as before. Files whose only copy is
+    // on the server keep it, in case the server comes back.
+    void failed(StorageMachine machine) {
+	machine.alive = false;
+	this.abandon(machine);
+	ArrayDeque<Namespace.Node> directories = new ArrayDeque<Namespace.Node>();
+	directories.push(this.namespace.root());
+	while (!directories.isEmpty()) {
+	    for (Namespace.Node child : directories.pop().children()) {
+	        PathMachinePair pmp = child.entry;
+	        if (pmp.file_type == FileType.DIRECTORY) {
+	            directories.push(child);
+	            continue;
 	        }
-            }
-	} catch (Throwable t) {
-	    throw t;
-	} finally {
-	    Path[] r = new Path[ret.size()];
-            r = ret.toArray(r);
-	    return r;
+	        int replicas = pmp.machine.size();
+	        if (replicas <= 1 || !pmp.machine.contains(machine)) {
+	            continue;
+	        }
+	        try {
+	            this.replica(pmp, machine, false);
+	        } catch (IOException e) {
+	            continue;
+	        }
+	        this.replicator.repair(pmp, replicas);
+	    }
 	}
+	checkpoint();
     }
-    class Scheduler implements Runnable {
-        public void run () {
-            LockRequest lock_request = null;
-            while(!NamingServer.this.stopped) {
-                try {
-                    lock_request = NamingServer.this.lock_queue.take();
-                } catch (InterruptedException e) {}
-                Path pqueue = lock_request.path;
-                if (pqueue == null) {
-                    NamingServer.this.locking(lock_request.path, lock_request.exclusive, lock_request.threadid);
-                    continue;
-                }
-                DefaultMutableTreeNode pm = NamingServer.this.get(pqueue);
-                if (pm == null) {
-                    NamingServer.this.locking(lock_request.path, lock_request.exclusive, lock_request.threadid);
-                    continue;
-                } 
-                PathMachinePair pmp = (PathMachinePair) pm.getUserObject();
-                while ( NamingServer.this.locking ||
-                           !(((pmp.file_lock.isSharedLocked() ||
-                           pmp.file_lock.isUnLocked()) && 
-                           (!lock_request.exclusive)) ||
-                           (pmp.file_lock.isUnLocked() &&
-                            lock_request.exclusive)) ) { }
-                NamingServer.this.locking(lock_request.path, lock_request.exclusive, lock_request.threadid);
-            }
-        }
+
+    // Adds a storage server to the registered servers, or takes back one known
+    // from the journal, and returns it.
+    private StorageMachine admit(Storage client_stub, Command command_stub) {
+	synchronized (this.storage_machines) {
+	    for ( StorageMachine sm : this.storage_machines) {
+	    	if ( sm.command_stub.equals(command_stub) && sm.client_stub.equals(client_stub) ) {
+		    // a server known from the journal may register again after
+		    // the naming server restarts, and a failed server once it
+		    // restarts or its heartbeats are refused
+		    if (!sm.recovered && sm.alive) {
+		        throw new IllegalStateException("the storage server is registered!");
+		    }
+		    // a registration the server began before failing or
+		    // restarting will not be ended
+		    this.abandon(sm);
+		    sm.recovered = false;
+		    sm.alive = true;
+		    return sm;
+		}
+	    }
+	    StorageMachine machine = new StorageMachine(command_stub, client_stub);
+	    machine.id = next_machine_id.getAndIncrement();
+	    metadata.readLock().lock();
+	    try {
+	        journal.register(machine);
+	        this.storage_machines.add(machine);
+	    } catch (IOException e) {
+	        throw new IllegalStateException("cannot record registration", e);
+	    } finally {
+	        metadata.readLock().unlock();
+	    }
+	    return machine;
+	}
     }
-    class AddRequest implements Runnable {
-        private Path path;
-        private boolean exclusive;
-        private int tid;
-
-        AddRequest(Path path_, boolean exclusive_, int tid_) {
-            this.path = path_;
-            this.exclusive = exclusive_;
-            this.tid = tid_;
-        }
 
-        public synchronized void run () {
-            try {
-                NamingServer.this.lock_queue.put(new LockRequest(this.path, this.exclusive, this.tid));
-            } catch (InterruptedException e) {}
-            while (true) {
-                if (NamingServer.this.finishing_table.get(this.tid) == null) {
-                    return;
-                } else if (NamingServer.this.finishing_table.get(this.tid)) {
-                    return;
-                }
-            }
-        }
+    // Drops the streamed registrations of a storage server.
+    private void abandon(StorageMachine machine) {
+	this.registrations.values().removeIf(sm -> sm == machine);
     }
-}
 
+    // Merges the files of a registering storage server with the tree in one
+    // pass, creating missing directories on the way down to each file.
+    // Returns the files the server must delete: those whose path is already
+    // taken by a file on another server, by a directory, or by a file on the
+    // way to it. Files the server already hosts are kept.
+    private Path[] merge(StorageMachine machine, Path[] files) {
+	ArrayList<Path> duplicates = new ArrayList<Path>();
+	metadata.readLock().lock();
+	try {
+	    for (Path file : files) {
+	        if (file.isRoot()) {
+	            continue;
+	        }
+	        if (!this.merge(machine, file)) {
+	            duplicates.add(file);
+	        }
+	    }
+	} catch (IOException e) {
+	    throw new IllegalStateException("cannot record registration", e);
+	} finally {
+	    metadata.readLock().unlock();
+	}
+	return duplicates.toArray(new Path[duplicates.size()]);
+    }
 
+    private boolean merge(StorageMachine machine, Path file) throws IOException {
+	List<String> components = file.getComponents();
+	Namespace.Node node = this.namespace.root();
+	for (int i = 0; i < components.size() - 1; i++) {
+	    String component = components.get(i);
+	    Namespace.Node child = node.child(component);
+	    if (child == null) {
+	        child = this.add(node, new PathMachinePair(new Path(node.entry.path, component),
+	                                                   FileType.DIRECTORY, null));
+	        if (child == null) {
+	            // created by another thread in the meantime
+	            child = node.child(component);
+	        }
+	    }
+	    if (child == null || !child.isDirectory()) {
+	        return false;
+	    }
+	    node = child;
+	}
+	Namespace.Node existing = node.child(file.last());
+	if (existing == null) {
+	    existing = this.add(node, new PathMachinePair(file, FileType.FILE, machine));
+	    if (existing != null) {
+	        return true;
+	    }
+	    existing = node.child(file.last());
+	}
+	return existing != null && existing.entry.file_type == FileType.FILE
+	    && existing.entry.machine.contains(machine);
+    }
+}
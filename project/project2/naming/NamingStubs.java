@@ -36,6 +36,31 @@ public abstract class NamingStubs
         return service(hostname, SERVICE_PORT);
     }
 
+    /** Returns an asynchronous stub for a naming server client service
+        interface.
+
+        @param hostname Naming server hostname.
+        @param port Client service interface port.
+     */
+    public static ServiceAsync serviceAsync(String hostname, int port)
+    {
+        InetSocketAddress   address = new InetSocketAddress(hostname, port);
+        return Stub.createAsync(ServiceAsync.class, Service.class, address);
+    }
+
+    /** Returns an asynchronous stub for a naming server client service
+        interface.
+
+        <p>
+        The default port is used.
+
+        @param hostname Naming server hostname.
+     */
+    public static ServiceAsync serviceAsync(String hostname)
+    {
+        return serviceAsync(hostname, SERVICE_PORT);
+    }
+
     /** Returns a stub for a naming server registration interface.
 
         @param hostname Naming server hostname.
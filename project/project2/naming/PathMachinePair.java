@@ -0,0 +1,29 @@
+package naming;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+
+/** Object of the directory tree: a file with the storage servers holding its
+    replicas, or a directory with the server it was first seen on.
+ */
+class PathMachinePair {
+    public Path path;
+    public List<StorageMachine> machine;
+    public FileType file_type;
+    public FileLock file_lock;
+    // reads of the file, which decide its number of replicas
+    public final Replicator.Demand demand = new Replicator.Demand();
+    // exclusive locks taken on the file, which make running copies stale
+    public final AtomicInteger version = new AtomicInteger();
+
+    PathMachinePair(Path path_, FileType file_type_, StorageMachine machine_) {
+        this.path = path_;
+        this.machine = new CopyOnWriteArrayList<StorageMachine>();
+        this.machine.add(machine_);
+        this.file_type = file_type_;
+        this.file_lock = new FileLock();
+    }
+}
@@ -0,0 +1,195 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import common.*;
+import storage.*;
+
+/** Strategy choosing the storage server on which to place a new file.
+
+    <p>
+    Strategies use the load reports that storage servers send with their
+    heartbeats. Servers found to have failed are passed over, and so is a
+    server whose storage is nearly full, unless every server is. Between heartbeats, each file placed on a server counts
+    as one request per second of load, so that a burst of creations is not all
+    sent to the server that was idlest at the last heartbeat. Servers that have
+    not yet reported count as idle and empty.
+
+    <p>
+    The strategy used by a naming server is named by the system property
+    <code>naming.placement</code>:
+    <ul>
+    <li><code>least_loaded</code> (the default) places each file on the server
+        with the lowest load, breaking ties by the fraction of storage in
+        use.</li>
+    <li><code>two_choices</code> compares two servers chosen at random and
+        places the file on the less loaded one, which spreads files almost as
+        well without every creation favoring the same server.</li>
+    <li><code>consistent_hash</code> places the files of each directory
+        together, on a server chosen by hashing the directory's path onto a
+        ring of servers, so that adding or removing a server moves few
+        directories.</li>
+    </ul>
+ */
+abstract class Placement {
+    // a server with less free space than this is full
+    static final long MIN_FREE = Long.getLong("naming.min_free_bytes", 64L << 20);
+    // a server with more of its storage in use than this is full
+    static final double MAX_USED = 0.95;
+
+    /** Returns the strategy named by the system property
+        <code>naming.placement</code>. */
+    static Placement configured() {
+        String name = System.getProperty("naming.placement", "least_loaded");
+        if (name.equals("least_loaded")) {
+            return new LeastLoaded();
+        } else if (name.equals("two_choices")) {
+            return new TwoChoices();
+        } else if (name.equals("consistent_hash")) {
+            return new ConsistentHash();
+        }
+        throw new IllegalArgumentException("unknown placement strategy " + name);
+    }
+
+    /** Chooses the server on which to place a new file, and counts the file
+        in the server's load.
+
+        @param file The new file.
+        @param servers The registered servers, of which there must be at least
+                       one.
+     */
+    final StorageMachine place(Path file, List<StorageMachine> servers) {
+        List<StorageMachine> live = new ArrayList<StorageMachine>(servers.size());
+        for (StorageMachine sm : servers) {
+            if (sm.alive) {
+                live.add(sm);
+            }
+        }
+        if (live.isEmpty()) {
+            live.addAll(servers);
+        }
+        List<StorageMachine> candidates = new ArrayList<StorageMachine>(live.size());
+        for (StorageMachine sm : live) {
+            if (!full(sm)) {
+                candidates.add(sm);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(live);
+        }
+        StorageMachine chosen = this.choose(file, candidates);
+        chosen.placed.incrementAndGet();
+        return chosen;
+    }
+
+    /** Chooses among servers that are not full. */
+    abstract StorageMachine choose(Path file, List<StorageMachine> candidates);
+
+    static boolean full(StorageMachine sm) {
+        LoadReport report = sm.load;
+        return report != null && report.totalSpace() > 0
+            && (report.freeSpace() < MIN_FREE || report.used() > MAX_USED);
+    }
+
+    static double load(StorageMachine sm) {
+        LoadReport report = sm.load;
+        return (report == null ? 0 : report.requestRate()) + sm.placed.get();
+    }
+
+    static double used(StorageMachine sm) {
+        LoadReport report = sm.load;
+        return report == null ? 0 : report.used();
+    }
+
+    // orders servers by load, then by the fraction of storage in use
+    static int compare(StorageMachine a, StorageMachine b) {
+        int order = Double.compare(load(a), load(b));
+        return order != 0 ? order : Double.compare(used(a), used(b));
+    }
+
+    static final class LeastLoaded extends Placement {
+        @Override
+        StorageMachine choose(Path file, List<StorageMachine> candidates) {
+            StorageMachine best = candidates.get(0);
+            for (StorageMachine sm : candidates) {
+                if (compare(sm, best) < 0) {
+                    best = sm;
+                }
+            }
+            return best;
+        }
+    }
+
+    static final class TwoChoices extends Placement {
+        @Override
+        StorageMachine choose(Path file, List<StorageMachine> candidates) {
+            int n = candidates.size();
+            if (n == 1) {
+                return candidates.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(n);
+            int second = random.nextInt(n - 1);
+            if (second >= first) {
+                second++;
+            }
+            StorageMachine a = candidates.get(first);
+            StorageMachine b = candidates.get(second);
+            return compare(b, a) < 0 ? b : a;
+        }
+    }
+
+    static final class ConsistentHash extends Placement {
+        // points on the ring for each server
+        private static final int POINTS = 64;
+
+        private List<StorageMachine> servers = Collections.emptyList();
+        private TreeMap<Integer, StorageMachine> ring = new TreeMap<Integer, StorageMachine>();
+
+        @Override
+        synchronized StorageMachine choose(Path file, List<StorageMachine> candidates) {
+            if (!this.servers.containsAll(candidates)) {
+                this.rebuild(candidates);
+            }
+            Set<StorageMachine> allowed = new HashSet<StorageMachine>(candidates);
+            int key = mix(file.isRoot() ? 0 : file.parent().toString().hashCode());
+            // walk clockwise from the directory's point to the first server
+            // that is not full
+            for (StorageMachine sm : this.ring.tailMap(key).values()) {
+                if (allowed.contains(sm)) {
+                    return sm;
+                }
+            }
+            for (StorageMachine sm : this.ring.values()) {
+                if (allowed.contains(sm)) {
+                    return sm;
+                }
+            }
+            return candidates.get(0);
+        }
+
+        private void rebuild(List<StorageMachine> candidates) {
+            // keep the servers already on the ring, which may only be full
+            Set<StorageMachine> servers = new LinkedHashSet<StorageMachine>(this.servers);
+            servers.addAll(candidates);
+            this.servers = new ArrayList<StorageMachine>(servers);
+            this.ring = new TreeMap<Integer, StorageMachine>();
+            for (StorageMachine sm : this.servers) {
+                for (int point = 0; point < POINTS; point++) {
+                    this.ring.put(mix(sm.id * POINTS + point + 0x5bd1e995), sm);
+                }
+            }
+        }
+
+        // spreads hash codes over the ring
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package naming;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rmi.*;
+import storage.*;
+
+/** Policy ordering the replicas of a file for readers.
+
+    <p>
+    The first replica in the order is the one <code>getStorage</code> returns,
+    and each reader it is given to counts as one request per second of load on
+    its server until the server's next heartbeat, as files placed on a server
+    do for <code>Placement</code>.
+
+    <p>
+    The policy used by a naming server is named by the system property
+    <code>naming.read_policy</code>:
+    <ul>
+    <li><code>least_outstanding</code> (the default) puts first the server
+        with the fewest requests outstanding, estimated from the request rate
+        in its last heartbeat and the readers given to it since.</li>
+    <li><code>round_robin</code> rotates the order on each call, regardless of
+        load.</li>
+    <li><code>locality</code> puts first the servers on the client's host, and
+        orders the rest as <code>least_outstanding</code> does.</li>
+    </ul>
+ */
+abstract class ReadBalancer {
+    /** Returns the policy named by the system property
+        <code>naming.read_policy</code>. */
+    static ReadBalancer configured() {
+        String name = System.getProperty("naming.read_policy", "least_outstanding");
+        if (name.equals("least_outstanding")) {
+            return new LeastOutstanding();
+        } else if (name.equals("round_robin")) {
+            return new RoundRobin();
+        } else if (name.equals("locality")) {
+            return new Locality();
+        }
+        throw new IllegalArgumentException("unknown read policy " + name);
+    }
+
+    /** Orders the replicas of a file, and counts a reader on the first.
+
+        @param replicas The servers hosting the file, of which there must be at
+                        least one.
+        @param host Host name or address of the client, or <code>null</code>.
+     */
+    final StorageMachine[] order(List<StorageMachine> replicas, String host) {
+        StorageMachine[] ordered = replicas.toArray(new StorageMachine[0]);
+        if (ordered.length > 1) {
+            this.sort(ordered, host);
+        }
+        ordered[0].served.incrementAndGet();
+        return ordered;
+    }
+
+    abstract void sort(StorageMachine[] replicas, String host);
+
+    static double outstanding(StorageMachine sm) {
+        LoadReport report = sm.load;
+        return (report == null ? 0 : report.requestRate()) + sm.served.get();
+    }
+
+    static final class LeastOutstanding extends ReadBalancer {
+        @Override
+        void sort(StorageMachine[] replicas, String host) {
+            Arrays.sort(replicas, Comparator.comparingDouble(ReadBalancer::outstanding));
+        }
+    }
+
+    static final class RoundRobin extends ReadBalancer {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        void sort(StorageMachine[] replicas, String host) {
+            int first = Math.floorMod(this.next.getAndIncrement(), replicas.length);
+            StorageMachine[] original = replicas.clone();
+            for (int i = 0; i < replicas.length; i++) {
+                replicas[i] = original[(first + i) % replicas.length];
+            }
+        }
+    }
+
+    static final class Locality extends ReadBalancer {
+        @Override
+        void sort(StorageMachine[] replicas, String host) {
+            InetAddress client = null;
+            if (host != null) {
+                try {
+                    client = InetAddress.getByName(host);
+                } catch (UnknownHostException e) {
+                }
+            }
+            final InetAddress near = client;
+            Comparator<StorageMachine> local =
+                Comparator.comparing((StorageMachine sm) -> !local(sm, near));
+            Arrays.sort(replicas, local.thenComparingDouble(ReadBalancer::outstanding));
+        }
+
+        // whether a server runs on the given host
+        private static boolean local(StorageMachine sm, InetAddress host) {
+            if (host == null) {
+                return false;
+            }
+            InetAddress address;
+            try {
+                address = Stub.address(sm.client_stub).getAddress();
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (address == null) {
+                return false;
+            }
+            return address.equals(host) || (address.isLoopbackAddress() && host.isLoopbackAddress());
+        }
+    }
+}
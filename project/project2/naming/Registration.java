@@ -2,6 +2,7 @@ package naming;
 
 import common.*;
 import storage.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 
 /** Naming server registration interface.
@@ -52,4 +53,117 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Begins registering a storage server whose files are sent in chunks.
+
+        <p>
+        Streamed registration has the same effect as <code>register</code>, but
+        lets a storage server with many files send its file list in chunks of
+        any size, with <code>registerFiles</code>, and delete the duplicate
+        files reported for each chunk while it sends the next. The storage
+        server must call <code>endRegistration</code> after sending its last
+        chunk, and then prune its directory tree as after
+        <code>register</code>.
+
+        <p>
+        The default implementation throws
+        <code>UnsupportedOperationException</code>; a storage server receiving
+        it should register with <code>register</code> instead.
+
+        @param client_stub Storage server client service stub.
+        @param command_stub Storage server command service stub.
+        @return A number identifying the registration in the calls that follow.
+        @throws IllegalStateException If the storage server is already
+                                      registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support streamed registration.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default long beginRegistration(Storage client_stub,
+                                          Command command_stub)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("streamed registration is " +
+                                                "not supported");
+    }
+
+    /** Sends a chunk of the files stored on a registering storage server.
+
+        <p>
+        The files are merged with the directory tree as by
+        <code>register</code>.
+
+        @param registration Number returned by <code>beginRegistration</code>.
+        @param files Some of the files stored on the storage server.
+        @return The files of this chunk to delete on the local storage of the
+                registering storage server.
+        @throws IllegalArgumentException If the registration is unknown or has
+                                         ended.
+        @throws NullPointerException If <code>files</code> is
+                                     <code>null</code>.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support streamed registration.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] registerFiles(long registration, Path[] files)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("streamed registration is " +
+                                                "not supported");
+    }
+
+    /** Ends a streamed registration.
+
+        @param registration Number returned by <code>beginRegistration</code>.
+        @throws IllegalArgumentException If the registration is unknown or has
+                                         ended.
+        @throws UnsupportedOperationException If the naming server does not
+                                              support streamed registration.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default void endRegistration(long registration) throws RMIException
+    {
+        throw new UnsupportedOperationException("streamed registration is " +
+                                                "not supported");
+    }
+
+    /** Reports the load of a registered storage server.
+
+        <p>
+        Storage servers call this method periodically once they have
+        registered. The naming server uses the reports to choose the servers
+        on which new files are placed, and the times at which they arrive to
+        detect servers that have failed. A server that stops sending
+        heartbeats is eventually declared failed: its replicas are dropped and
+        copied to other servers, and its heartbeats are refused until it
+        registers again, whether it has restarted or was only slow.
+
+        <p>
+        The default implementation throws
+        <code>UnsupportedOperationException</code>; a storage server receiving
+        it should stop sending heartbeats.
+
+        @param client_stub Storage server client service stub, as given at
+                           registration.
+        @param load The server's current load.
+        @throws IllegalStateException If the storage server is not registered,
+                                      or has been declared failed since it
+                                      registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws UnsupportedOperationException If the naming server does not
+                                              accept heartbeats.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default void heartbeat(Storage client_stub, LoadReport load)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("heartbeats are not " +
+                                                "supported");
+    }
 }
@@ -0,0 +1,323 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import common.*;
+
+/** Replication manager of the naming server.
+
+    <p>
+    The manager keeps, for each file, a count of the reads of the file that
+    decays by half every half-life. The count is the file's demand, and each
+    <code>naming.reads_per_replica</code> reads of demand call for one replica
+    beyond the first copy, up to <code>naming.max_replicas</code> copies in
+    all. When a read finds the file short of replicas, the manager copies it to
+    the least loaded live storage server that does not hold it. A file that
+    loses a replica when a server fails is copied likewise until it has as
+    many replicas as before. Copies run on a
+    bounded pool of background threads, so the reader never waits for them,
+    and only one copy of a file runs at a time.
+
+    <p>
+    A copy runs without any lock on the file. Once it completes, the file is
+    locked for shared access and the new replica is added, unless the file was
+    locked for writing after the copy started, in which case the copy may be
+    stale and is deleted. A file deleted while it is being copied is deleted
+    from the server receiving the copy as well as from its replicas; if the
+    copy completes only after that, it is deleted in turn. Files whose demand
+    has fallen well below their replica count lose one replica each
+    half-life; the replica is deleted under an exclusive lock, so no reader is
+    using it.
+ */
+class Replicator {
+    // time for the demand of a file to decay by half, in milliseconds
+    static final long HALF_LIFE = Long.getLong("naming.replication_half_life", 10000);
+    // demand calling for each replica beyond the first copy
+    static final int READS_PER_REPLICA = Integer.getInteger("naming.reads_per_replica", 20);
+    // most copies of a file, the first included
+    static final int MAX_REPLICAS = Integer.getInteger("naming.max_replicas", 3);
+    private static final int THREADS = Integer.getInteger("naming.replication_threads", 4);
+    // copies waiting for a thread; files read while the queue is full are
+    // copied on a later read
+    private static final int QUEUE = 256;
+
+    /** Decaying count of the reads of a file. */
+    static final class Demand {
+        private double reads;
+        private long stamp;
+        // whether a copy of the file is running or queued
+        final AtomicBoolean copying = new AtomicBoolean();
+        // server receiving the copy, or null
+        private StorageMachine target;
+        // whether the copy has started and completed
+        private boolean started;
+        private boolean copied;
+        // whether the file was deleted before the copy started, or while it
+        // ran
+        private boolean cancelled;
+        private boolean orphaned;
+
+        // counts a read and returns the demand
+        synchronized double read(long now) {
+            this.decay(now);
+            return ++this.reads;
+        }
+
+        synchronized double get(long now) {
+            this.decay(now);
+            return this.reads;
+        }
+
+        synchronized void copying(StorageMachine target) {
+            this.target = target;
+            this.started = false;
+            this.copied = false;
+            this.cancelled = false;
+            this.orphaned = false;
+        }
+
+        // marks the copy started; returns false if the file was deleted
+        // before, in which case the copy is not made
+        synchronized boolean start() {
+            this.started = true;
+            return !this.cancelled;
+        }
+
+        // marks the copy completed; returns whether the file was deleted
+        // while it ran, in which case the copy was not
+        synchronized boolean copied() {
+            this.copied = true;
+            return this.orphaned;
+        }
+
+        /** Returns the server receiving a copy of the file being deleted, or
+            <code>null</code>. The caller deletes the file from that server.
+            A copy yet to start is not made, and a running copy is deleted
+            once it completes. */
+        synchronized StorageMachine deleting() {
+            if (!this.started) {
+                this.cancelled = true;
+            } else if (!this.copied) {
+                this.orphaned = true;
+            }
+            return this.target;
+        }
+
+        synchronized void done() {
+            this.target = null;
+        }
+
+        private void decay(long now) {
+            if (this.stamp != 0) {
+                this.reads *= Math.pow(0.5, (double) (now - this.stamp) / TimeUnit.MILLISECONDS.toNanos(HALF_LIFE));
+            }
+            this.stamp = now;
+        }
+    }
+
+    private final NamingServer server;
+    private final LockManager locks;
+    private final List<StorageMachine> servers;
+    private final Placement targets = new Placement.LeastLoaded();
+    private final ThreadPoolExecutor copies;
+    // files with more than one copy, checked for excess replicas
+    private final Set<PathMachinePair> replicated = ConcurrentHashMap.newKeySet();
+    // files that lost a replica on a failed server, with the number of
+    // replicas to restore
+    private final ConcurrentHashMap<PathMachinePair, Integer> repairs =
+        new ConcurrentHashMap<PathMachinePair, Integer>();
+    private ScheduledExecutorService sweeper;
+
+    Replicator(NamingServer server, LockManager locks, List<StorageMachine> servers) {
+        this.server = server;
+        this.locks = locks;
+        this.servers = servers;
+        this.copies = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                                             new ArrayBlockingQueue<Runnable>(QUEUE), Replicator::daemon);
+        this.copies.allowCoreThreadTimeOut(true);
+    }
+
+    private static Thread daemon(Runnable task) {
+        Thread thread = new Thread(task, "replicator");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /** Starts removing excess replicas each half-life. */
+    synchronized void start() {
+        if (this.sweeper == null) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(Replicator::daemon);
+            this.sweeper.scheduleWithFixedDelay(this::sweep, HALF_LIFE, HALF_LIFE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stops the manager. Running copies are interrupted and their replicas
+        are not added. */
+    synchronized void close() {
+        if (this.sweeper != null) {
+            this.sweeper.shutdownNow();
+        }
+        this.copies.shutdownNow();
+    }
+
+    /** Counts a read of a file, which the caller holds locked for shared
+        access, and starts a copy of the file if its demand calls for another
+        replica. */
+    void read(PathMachinePair pmp) {
+        double demand = pmp.demand.read(System.nanoTime());
+        int live = 0;
+        for (StorageMachine sm : this.servers) {
+            if (sm.alive) {
+                live++;
+            }
+        }
+        int wanted = Math.min(Math.min(MAX_REPLICAS, live), 1 + (int) (demand / READS_PER_REPLICA));
+        if (pmp.machine.size() < wanted) {
+            this.replicate(pmp);
+        }
+    }
+
+    /** Restores a file that has lost a replica on a failed server to the
+        given number of replicas, copying it from a surviving replica. The
+        copies are retried by <code>repair()</code> until they succeed, or the
+        file is deleted. */
+    void repair(PathMachinePair pmp, int replicas) {
+        this.repairs.merge(pmp, replicas, Math::max);
+        this.replicate(pmp);
+    }
+
+    /** Retries the copies of files that are still short of the replicas they
+        had before a server failed. */
+    void repair() {
+        for (Map.Entry<PathMachinePair, Integer> repair : this.repairs.entrySet()) {
+            PathMachinePair pmp = repair.getKey();
+            if (pmp.machine.size() >= repair.getValue() || !this.server.current(pmp)) {
+                this.repairs.remove(pmp, repair.getValue());
+            } else {
+                this.replicate(pmp);
+            }
+        }
+    }
+
+    // starts a copy of a file from a live replica to the least loaded live
+    // server that does not hold it, unless a copy is already running
+    private void replicate(PathMachinePair pmp) {
+        if (!pmp.demand.copying.compareAndSet(false, true)) {
+            return;
+        }
+        StorageMachine source = null;
+        for (StorageMachine sm : pmp.machine) {
+            if (sm.alive) {
+                source = sm;
+                break;
+            }
+        }
+        List<StorageMachine> candidates = new ArrayList<StorageMachine>();
+        for (StorageMachine sm : this.servers) {
+            if (sm.alive && !pmp.machine.contains(sm)) {
+                candidates.add(sm);
+            }
+        }
+        if (source == null || candidates.isEmpty()) {
+            pmp.demand.copying.set(false);
+            return;
+        }
+        StorageMachine target = this.targets.place(pmp.path, candidates);
+        StorageMachine from = source;
+        int version = pmp.version.get();
+        pmp.demand.copying(target);
+        try {
+            this.copies.execute(() -> this.copy(pmp, from, target, version));
+        } catch (RejectedExecutionException e) {
+            pmp.demand.done();
+            pmp.demand.copying.set(false);
+        }
+    }
+
+    // copies a file to a storage server, and adds the replica once the copy is
+    // known to be current
+    private void copy(PathMachinePair pmp, StorageMachine source, StorageMachine target, int version) {
+        try {
+            if (!pmp.demand.start()) {
+                return;
+            }
+            boolean copied = target.command_stub.copy(pmp.path, source.client_stub);
+            if (pmp.demand.copied()) {
+                // deleted before the copy completed
+                target.command_stub.delete(pmp.path);
+                return;
+            }
+            if (!copied) {
+                return;
+            }
+            Namespace.Node node;
+            try {
+                node = this.locks.lock(pmp.path, false);
+            } catch (FileNotFoundException e) {
+                // deleted meanwhile, from this server too
+                return;
+            }
+            try {
+                if (node.entry != pmp) {
+                    return;
+                }
+                if (pmp.version.get() != version) {
+                    target.command_stub.delete(pmp.path);
+                    return;
+                }
+                this.server.replica(pmp, target, true);
+                this.replicated.add(pmp);
+            } finally {
+                this.locks.unlock(pmp.path, false);
+            }
+            this.server.checkpoint();
+        } catch (Throwable t) {
+            // the file keeps the replicas it had, and is copied again on a
+            // later read or repair
+        } finally {
+            pmp.demand.done();
+            pmp.demand.copying.set(false);
+        }
+    }
+
+    // removes one replica from each file whose demand has fallen to less than
+    // half of what its replicas call for
+    private void sweep() {
+        long now = System.nanoTime();
+        for (PathMachinePair pmp : this.replicated) {
+            int replicas = pmp.machine.size();
+            if (replicas <= 1) {
+                this.replicated.remove(pmp);
+            } else if (pmp.demand.get(now) < (replicas - 1) * READS_PER_REPLICA / 2.0) {
+                this.trim(pmp);
+            }
+        }
+    }
+
+    private void trim(PathMachinePair pmp) {
+        Namespace.Node node;
+        try {
+            node = this.locks.lock(pmp.path, true);
+        } catch (Throwable t) {
+            this.replicated.remove(pmp);
+            return;
+        }
+        try {
+            int replicas = pmp.machine.size();
+            if (node.entry == pmp && replicas > 1) {
+                StorageMachine sm = pmp.machine.get(replicas - 1);
+                this.server.replica(pmp, sm, false);
+                sm.command_stub.delete(pmp.path);
+            }
+        } catch (Throwable t) {
+            // the replica is dropped from the metadata even if the storage
+            // server cannot delete it
+        } finally {
+            this.locks.unlock(pmp.path, true);
+        }
+        this.server.checkpoint();
+    }
+}
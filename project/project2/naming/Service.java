@@ -2,6 +2,7 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -138,6 +139,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -155,6 +157,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -226,6 +229,42 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all the storage servers hosting a file, in the order
+        in which they should be tried.
+
+        <p>
+        The naming server orders the servers by its read policy, so that
+        readers spread over the replicas of a file. Under the locality policy,
+        servers on the client's host come first. The first stub is the one
+        <code>getStorage</code> would return. A client reading the file should
+        lock it for shared access before making this call, and may fall back
+        on the later stubs if the first server cannot be contacted. A client
+        writing the file should use <code>getStorage</code>, as a file locked
+        for exclusive access has only one copy.
+
+        <p>
+        The default implementation throws
+        <code>UnsupportedOperationException</code>; a client receiving it
+        should call <code>getStorage</code> instead.
+
+        @param file Path to the file.
+        @param host Host name or address of the client, or <code>null</code>
+                    if it is not known.
+        @return Stubs for communicating with the storage servers.
+        @throws FileNotFoundException If the file does not exist.
+        @throws UnsupportedOperationException If the naming server does not
+                                              report replicas.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default Storage[] getReplicas(Path file, String host)
+        throws RMIException, FileNotFoundException
+    {
+        throw new UnsupportedOperationException("replicas are not reported");
+    }
 }
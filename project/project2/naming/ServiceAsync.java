@@ -0,0 +1,40 @@
+package naming;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+import storage.*;
+
+/** Asynchronous companion of the naming server client service interface.
+
+    <p>
+    Stubs for this interface are created with <code>Stub.createAsync</code>.
+    Each method sends the call of the same name in {@link Service} and returns
+    at once, so that queries about many paths can be outstanding together. The
+    returned future is completed with the result of the call, or exceptionally
+    with the exception the call would have thrown.
+
+    <p>
+    Locking is left out: a lock request is usually waited for before anything
+    else is done.
+ */
+public interface ServiceAsync
+{
+    /** Determines whether a path refers to a directory.
+
+        @see Service#isDirectory(Path)
+     */
+    public CompletableFuture<Boolean> isDirectory(Path path);
+
+    /** Lists the contents of a directory.
+
+        @see Service#list(Path)
+     */
+    public CompletableFuture<String[]> list(Path directory);
+
+    /** Returns a stub for the storage server hosting a file.
+
+        @see Service#getStorage(Path)
+     */
+    public CompletableFuture<Storage> getStorage(Path file);
+}
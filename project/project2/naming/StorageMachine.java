@@ -0,0 +1,37 @@
+package naming;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import storage.*;
+
+/** Storage server registered with the naming server.
+
+    <p>
+    The naming server keeps a single record for each server, which it finds by
+    the server's stubs when the server registers again. Records are therefore
+    compared by identity, and do not override <code>equals</code> or
+    <code>hashCode</code>.
+ */
+class StorageMachine {
+    public Command command_stub;
+    public Storage client_stub;
+    // number identifying the server in the journal
+    public int id;
+    // whether the server was loaded from the journal and has not registered
+    // again since the naming server restarted
+    public boolean recovered;
+    // load at the last heartbeat, or null before the first
+    public volatile LoadReport load;
+    // files placed on the server since the last heartbeat
+    public final AtomicInteger placed = new AtomicInteger();
+    // readers given the server since the last heartbeat
+    public final AtomicInteger served = new AtomicInteger();
+    // heartbeats received, and whether the server is thought to be running
+    public final FailureDetector.Arrivals arrivals = new FailureDetector.Arrivals();
+    public volatile boolean alive = true;
+
+    StorageMachine(Command command_stub_, Storage client_stub_) {
+        this.command_stub = command_stub_;
+        this.client_stub = client_stub_;
+    }
+}
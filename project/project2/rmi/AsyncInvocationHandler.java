@@ -0,0 +1,225 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/** Invocation handler of asynchronous stubs.
+
+    <p>
+    Each method of the asynchronous interface is the counterpart of the remote
+    interface method with the same name and parameter types, and returns a
+    <code>CompletableFuture</code> of its result. A call is written to a pooled
+    connection and the calling thread returns at once; the future is completed
+    by the connection's reader thread when the reply arrives. Many calls may be
+    outstanding on one connection at a time.
+
+    <p>
+    Because futures are completed on the reader thread, dependent actions which
+    may block should be attached with the <code>...Async</code> methods of
+    <code>CompletableFuture</code>, so that they run elsewhere.
+ */
+class AsyncInvocationHandler implements InvocationHandler, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final InetSocketAddress address;
+    private final Class<?> remoteInterface;
+    private final Class<?> asyncInterface;
+    // timeouts; calls are not retried
+    private final CallPolicy policy;
+    // remote methods by asynchronous method; rebuilt after the stub is
+    // deserialized
+    private transient HashMap<Method, MethodTable.Entry> entries;
+
+    AsyncInvocationHandler(InetSocketAddress address, Class<?> remoteInterface, Class<?> asyncInterface) {
+        this(address, remoteInterface, asyncInterface, CallPolicy.defaults());
+    }
+
+    AsyncInvocationHandler(InetSocketAddress address, Class<?> remoteInterface, Class<?> asyncInterface,
+                           CallPolicy policy) {
+        this.address = address;
+        this.remoteInterface = remoteInterface;
+        this.asyncInterface = asyncInterface;
+        this.policy = policy;
+        this.entries = resolve(asyncInterface, remoteInterface);
+    }
+
+    InetSocketAddress getInetSocketAddress() {
+        return address;
+    }
+
+    Class<?> getInterface() {
+        return remoteInterface;
+    }
+
+    /** Maps each method of the asynchronous interface to the table entry of
+        its counterpart in the remote interface.
+
+        @throws Error If a method does not return a
+                      <code>CompletableFuture</code>, or has no counterpart.
+     */
+    static HashMap<Method, MethodTable.Entry> resolve(Class<?> asyncInterface, Class<?> remoteInterface) {
+        MethodTable table = MethodTable.of(remoteInterface);
+        HashMap<Method, MethodTable.Entry> entries = new HashMap<Method, MethodTable.Entry>();
+        for (Method method : asyncInterface.getMethods()) {
+            Class<?> result = method.getReturnType();
+            if (result == Object.class || !result.isAssignableFrom(CompletableFuture.class)) {
+                throw new Error(method + " does not return a CompletableFuture");
+            }
+            MethodTable.Entry entry = table.entry(method.getName(), method.getParameterTypes());
+            if (entry == null) {
+                throw new Error(method + " has no counterpart in " + remoteInterface.getName());
+            }
+            entries.put(method, entry);
+        }
+        return entries;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        if (m.getDeclaringClass() == Object.class) {
+            if (m.getName().equals("equals")) {
+                if (args[0] == null || !Proxy.isProxyClass(args[0].getClass())) {
+                    return false;
+                }
+                InvocationHandler other = Proxy.getInvocationHandler(args[0]);
+                return (other instanceof AsyncInvocationHandler)
+                    && ((AsyncInvocationHandler) other).asyncInterface == asyncInterface
+                    && ((AsyncInvocationHandler) other).address.equals(address);
+            } else if (m.getName().equals("hashCode")) {
+                return (address.toString() + asyncInterface.toString()).hashCode();
+            } else {
+                return "Name of AsyncInterface: " + asyncInterface + " remote address: " + address.getHostName() + "; " + address.getPort();
+            }
+        }
+
+        if (entries == null) {
+            entries = resolve(asyncInterface, remoteInterface);
+        }
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+        MethodTable.Entry entry = entries.get(m);
+        Request request = new Request(0, entry.id, args);
+        Timing timing = Metrics.ENABLED ? new Timing(entry) : null;
+        long deadline = deadline();
+        if (deadline != 0) {
+            long delay = deadline - System.nanoTime();
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() ->
+                result.completeExceptionally(new CallTimeoutException("call to " + entry.signature + " timed out")));
+        }
+        try {
+            CompletableFuture<Reply> reply = send(request, entry.idempotent, timing, deadline);
+            reply.whenComplete((value, failure) -> {
+                if (timing != null) {
+                    timing.done(request, value, failure);
+                }
+                complete(result, value, failure);
+            });
+            // a call that times out or is cancelled is forgotten by its
+            // connection, as a synchronous call is
+            result.whenComplete((value, failure) -> reply.cancel(false));
+        } catch (RMIException e) {
+            if (timing != null) {
+                timing.done(request, null, e);
+            }
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Writes the call to a pooled connection. As with synchronous stubs, a
+    // call that cannot be written to a connection which has already served
+    // other calls is sent once more on a fresh connection. The call is not
+    // sent again once it has been written, since it may have run.
+    private CompletableFuture<Reply> send(Request request, boolean idempotent, Timing timing, long deadline)
+        throws RMIException {
+        ConnectionPool pool = ConnectionPool.get(address);
+        for (int attempt = 0; ; attempt++) {
+            Connection connection;
+            long before = System.nanoTime();
+            try {
+                connection = pool.acquire(MyInvocationHandler.connect_timeout(policy, deadline));
+            } catch (SocketTimeoutException e) {
+                throw new CallTimeoutException("timed out connecting to " + address, e);
+            } catch (IOException e) {
+                throw new RMIException("Fail to invoke a remote call", e);
+            }
+            if (timing != null) {
+                timing.connect += System.nanoTime() - before;
+            }
+            boolean reused = connection.completed() > 0;
+            try {
+                return connection.send(request);
+            } catch (IOException e) {
+                pool.discard(connection);
+                if (!reused || attempt > 0 || (request.written && !idempotent)) {
+                    throw new RMIException("Fail to invoke a remote call", e);
+                }
+            }
+        }
+    }
+
+    // Times one call for the stub metrics of the remote object.
+    private class Timing {
+        private final MethodTable.Entry entry;
+        private final Metrics metrics;
+        private final long start;
+        long connect;
+
+        Timing(MethodTable.Entry entry) {
+            this.entry = entry;
+            this.metrics = Metrics.stub(remoteInterface, address);
+            this.start = System.nanoTime();
+            this.connect = 0;
+            metrics.begin();
+        }
+
+        void done(Request request, Reply reply, Throwable failure) {
+            metrics.end();
+            metrics.method(entry.signature).record(
+                connect, request.marshal_nanos, -1,
+                reply == null ? -1 : reply.unmarshal_nanos, System.nanoTime() - start,
+                reply == null ? 0 : reply.size, request.size,
+                failure != null || reply.status != Reply.RETURN);
+        }
+    }
+
+    // The time by which a call made now must complete, from the policy's
+    // timeout and deadline and the thread's Deadline; zero means none.
+    private long deadline() {
+        long now = System.nanoTime();
+        long deadline = policy.deadline() == 0 ? 0 : now + policy.deadline() * 1000000L;
+        if (policy.timeout() != 0) {
+            long timeout = now + policy.timeout() * 1000000L;
+            if (deadline == 0 || timeout - deadline < 0) {
+                deadline = timeout;
+            }
+        }
+        return Deadline.earliest(deadline);
+    }
+
+    private static void complete(CompletableFuture<Object> result, Reply reply, Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure instanceof RMIException) {
+            result.completeExceptionally(failure);
+        } else if (failure != null) {
+            result.completeExceptionally(new RMIException("Fail to invoke a remote call", failure));
+        } else if (reply.status == Reply.RETURN) {
+            result.complete(reply.value);
+        } else if (reply.status == Reply.NO_SUCH_METHOD) {
+            result.completeExceptionally(new RMIException("Security Error"));
+        } else {
+            result.completeExceptionally((Throwable) reply.value);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Batch of remote calls sent to a skeleton in one round trip.
+
+    <p>
+    Calls are queued by making them on the object returned by
+    <code>calls()</code>, which implements the remote interface of the stub the
+    batch was created for. Queued calls are not sent, and return
+    <code>null</code>, <code>false</code> or zero at once. <code>flush</code>
+    sends every queued call in a single frame; the skeleton runs them and
+    sends back every result and exception in a single reply.
+
+    <p>
+    For example, to ask the naming server whether many paths are directories:
+
+    <pre>
+    Batch&lt;Service&gt;  batch = new Batch&lt;Service&gt;(naming_server);
+    for(Path path : paths)
+        batch.calls().isDirectory(path);
+    List&lt;Batch.Result&gt;   results = batch.flush(true);
+    </pre>
+
+    <p>
+    A batch follows the <code>CallPolicy</code> of the stub it was created
+    for, and the caller's <code>Deadline</code>, as a single call would: each
+    attempt at sending it is bounded by the policy's timeout, and all of them
+    by the policy's deadline. A batch that fails because of the network is
+    attempted again only if every call in it is to an idempotent method.
+
+    <p>
+    Batches are not thread-safe. A batch may be reused after it has been
+    flushed.
+ */
+public class Batch<T>
+{
+    private final InetSocketAddress address;
+    private final CallPolicy policy;
+    private final MethodTable table;
+    private final T calls;
+    private final ArrayList<Request> queued;
+    // whether every queued call is to an idempotent method
+    private boolean idempotent = true;
+
+    /** Creates an empty batch of calls to the remote object of a stub.
+
+        @param stub A stub created by <code>Stub</code>.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by <code>Stub</code>.
+     */
+    @SuppressWarnings("unchecked")
+    public Batch(T stub)
+    {
+        if (stub == null) {
+            throw new NullPointerException("stub is null");
+        }
+        if (!Proxy.isProxyClass(stub.getClass()) || !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler)) {
+            throw new IllegalArgumentException("not a stub");
+        }
+        MyInvocationHandler h = (MyInvocationHandler) Proxy.getInvocationHandler(stub);
+        Class<?> c = h.getInterface();
+
+        this.address = h.getInetSocketAddress();
+        this.policy = h.policy();
+        this.table = MethodTable.of(c);
+        this.queued = new ArrayList<Request>();
+        this.calls = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, new Recorder());
+    }
+
+    /** Returns an object on which calls are queued rather than sent. */
+    public T calls()
+    {
+        return calls;
+    }
+
+    /** Returns the number of calls queued. */
+    public int size()
+    {
+        return queued.size();
+    }
+
+    /** Sends the queued calls and waits for their results.
+
+        <p>
+        The batch is emptied whether or not the calls can be sent. Every call
+        in the batch is run, even if an earlier one throws.
+
+        @param parallel If <code>false</code>, the skeleton runs the calls one
+                        after another, in the order they were queued. If
+                        <code>true</code>, it may run them at the same time, in
+                        any order.
+        @return The result of each call, in the order the calls were queued.
+        @throws CallTimeoutException If the results do not arrive within the
+                                     stub's policy or the caller's deadline.
+        @throws RMIException If the batch cannot be sent, or its results
+                             cannot be received.
+     */
+    public List<Result> flush(boolean parallel) throws RMIException
+    {
+        Request[] batch = queued.toArray(new Request[0]);
+        boolean retry = idempotent;
+        queued.clear();
+        idempotent = true;
+        ArrayList<Result> results = new ArrayList<Result>(batch.length);
+        if (batch.length == 0) {
+            return results;
+        }
+
+        Reply reply = send(new Request(0, batch, parallel), retry);
+        if (reply.status != Reply.BATCH) {
+            throw new RMIException("batch not supported by skeleton");
+        }
+        Reply[] replies = (Reply[]) reply.value;
+        if (replies.length != batch.length) {
+            throw new RMIException("wrong number of results in batch reply");
+        }
+        for (Reply each : replies) {
+            if (each.status == Reply.RETURN) {
+                results.add(new Result(each.value, null));
+            } else if (each.status == Reply.NO_SUCH_METHOD) {
+                results.add(new Result(null, new RMIException("Security Error")));
+            } else {
+                results.add(new Result(null, (Throwable) each.value));
+            }
+        }
+        return results;
+    }
+
+    // Sends the batch under the stub's policy, as a stub makes a single
+    // call. A batch that fails because of the network is attempted again
+    // after a backoff if retry is set.
+    private Reply send(Request batch, boolean retry) throws RMIException
+    {
+        long start = System.nanoTime();
+        long deadline = Deadline.earliest(policy.deadline() == 0 ? 0 : start + policy.deadline() * 1000000L);
+        for (int attempt = 1; ; attempt++) {
+            IOException failure;
+            try {
+                return attempt(batch, deadline, retry);
+            } catch (IOException e) {
+                failure = e;
+            }
+            long backoff = policy.backoff(attempt) * 1000000L;
+            boolean expired = deadline != 0 && System.nanoTime() + backoff - deadline >= 0;
+            if (!retry || attempt >= policy.maxAttempts() || expired) {
+                if (failure instanceof SocketTimeoutException || expired) {
+                    throw new CallTimeoutException("batch timed out after "
+                        + (System.nanoTime() - start) / 1000000L + " ms", failure);
+                }
+                throw new RMIException("Fail to invoke a remote call", failure);
+            }
+            try {
+                Thread.sleep(backoff / 1000000L);
+            } catch (InterruptedException e) {
+                throw new RMIException("interrupted while waiting to retry batch", e);
+            }
+        }
+    }
+
+    // Makes one attempt at sending the batch on a pooled connection, bounded
+    // by the policy's timeout. A batch that fails on a connection which has
+    // already served other calls is sent once more on a fresh connection, as
+    // stubs do, if it was never written in full or retry is set. Throws
+    // IOException if the batch fails because of the network or times out.
+    private Reply attempt(Request batch, long deadline, boolean retry) throws IOException, RMIException
+    {
+        ConnectionPool pool = ConnectionPool.get(address);
+        if (policy.timeout() != 0) {
+            long timeout = System.nanoTime() + policy.timeout() * 1000000L;
+            if (deadline == 0 || timeout - deadline < 0) {
+                deadline = timeout;
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            Connection connection = pool.acquire(MyInvocationHandler.connect_timeout(policy, deadline));
+            boolean reused = connection.completed() > 0;
+            try {
+                return connection.call(batch, deadline);
+            } catch (SocketTimeoutException e) {
+                // the connection may only be slow, and stays in the pool
+                throw e;
+            } catch (IOException e) {
+                pool.discard(connection);
+                if (!reused || attempt > 0 || (batch.written && !retry)) {
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                throw new RMIException("interrupted while waiting for reply", e);
+            }
+        }
+    }
+
+    /** The outcome of one call in a batch: either a result, or the exception
+        the call threw. */
+    public static class Result
+    {
+        private final Object value;
+        private final Throwable exception;
+
+        Result(Object value, Throwable exception)
+        {
+            this.value = value;
+            this.exception = exception;
+        }
+
+        /** Returns <code>true</code> if the call threw an exception. */
+        public boolean failed()
+        {
+            return exception != null;
+        }
+
+        /** Returns the exception thrown by the call, or <code>null</code>. */
+        public Throwable exception()
+        {
+            return exception;
+        }
+
+        /** Returns the result of the call.
+
+            @throws Exception The exception thrown by the call, if any.
+         */
+        public Object get() throws Exception
+        {
+            if (exception instanceof Exception) {
+                throw (Exception) exception;
+            } else if (exception instanceof Error) {
+                throw (Error) exception;
+            } else if (exception != null) {
+                throw new RMIException("call failed", exception);
+            }
+            return value;
+        }
+    }
+
+    // Queues each call made on the object returned by calls().
+    private class Recorder implements InvocationHandler
+    {
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args)
+        {
+            MethodTable.Entry entry = table.stub_entry(m);
+            if (entry.kind == MethodTable.EQUALS) {
+                return proxy == args[0];
+            } else if (entry.kind == MethodTable.HASH_CODE) {
+                return System.identityHashCode(proxy);
+            } else if (entry.kind == MethodTable.TO_STRING) {
+                return "Batch of " + queued.size() + " calls to " + address;
+            }
+
+            queued.add(new Request(queued.size(), entry.id, args == null ? null : args.clone()));
+            idempotent &= entry.idempotent;
+
+            // the zero value of the return type, which a proxy must return for
+            // primitive types
+            Class<?> result = m.getReturnType();
+            if (result.isPrimitive() && result != void.class) {
+                return Array.get(Array.newInstance(result, 1), 0);
+            }
+            return null;
+        }
+    }
+}
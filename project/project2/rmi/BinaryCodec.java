@@ -0,0 +1,197 @@
+package rmi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import common.Path;
+
+/** Compact codec for the argument and result types used by the filesystem.
+
+    <p>
+    Every value is written as a one-byte tag followed by its encoding. Byte
+    arrays, strings, integers, longs, booleans and <code>common.Path</code>
+    objects, and arrays of strings and paths, have encoders of their own, which
+    write the raw value with a length prefix where needed and no class
+    descriptors. Any other object, including exceptions and stubs, is written
+    with Java serialization and carried as a length-prefixed byte array.
+ */
+class BinaryCodec implements Codec
+{
+    static final int ID = 1;
+    static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    static final int NULL = 0;
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int INT = 3;
+    static final int LONG = 4;
+    static final int BYTES = 5;
+    static final int STRING = 6;
+    static final int PATH = 7;
+    static final int STRINGS = 8;
+    static final int PATHS = 9;
+    static final int SERIALIZED = 10;
+
+    public int id() {
+        return ID;
+    }
+
+    public void encode_request(Request request, DataOutputStream out) throws IOException {
+        out.writeInt(request.method_id);
+        if (request.args == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(request.args.length);
+        for (Object arg : request.args) {
+            write_value(arg, out);
+        }
+    }
+
+    public Request decode_request(long id, DataInputStream in) throws IOException, ClassNotFoundException {
+        int method_id = in.readInt();
+        Object[] args = new Object[in.readUnsignedByte()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = read_value(in);
+        }
+        return new Request(id, method_id, args);
+    }
+
+    public void encode_reply(Reply reply, DataOutputStream out) throws IOException {
+        out.writeByte(reply.status);
+        write_value(reply.value, out);
+    }
+
+    public Reply decode_reply(long id, DataInputStream in) throws IOException, ClassNotFoundException {
+        int status = in.readByte();
+        return new Reply(id, status, read_value(in));
+    }
+
+    static void write_value(Object value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value) ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            write_string((String) value, out);
+        } else if (value.getClass() == Path.class) {
+            out.writeByte(PATH);
+            write_path((Path) value, out);
+        } else if (value.getClass() == String[].class) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRINGS);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                write_string(string, out);
+            }
+        } else if (value.getClass() == Path[].class) {
+            Path[] paths = (Path[]) value;
+            out.writeByte(PATHS);
+            out.writeInt(paths.length);
+            for (Path path : paths) {
+                write_path(path, out);
+            }
+        } else {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            SerializationCodec.write_object(value, serialized);
+            out.writeByte(SERIALIZED);
+            out.writeInt(serialized.size());
+            serialized.writeTo(out);
+        }
+    }
+
+    static Object read_value(DataInputStream in) throws IOException, ClassNotFoundException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case INT:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case BYTES:
+            byte[] bytes = new byte[length(in)];
+            in.readFully(bytes);
+            return bytes;
+        case STRING:
+            return read_string(in);
+        case PATH:
+            return read_path(in);
+        case STRINGS:
+            String[] strings = new String[length(in)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = read_string(in);
+            }
+            return strings;
+        case PATHS:
+            Path[] paths = new Path[length(in)];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = read_path(in);
+            }
+            return paths;
+        case SERIALIZED:
+            byte[] serialized = new byte[length(in)];
+            in.readFully(serialized);
+            return SerializationCodec.read_object(new ByteArrayInputStream(serialized));
+        default:
+            throw new StreamCorruptedException("unknown value tag " + tag);
+        }
+    }
+
+    // Strings are written as UTF-8 with a four-byte length;
+    // DataOutputStream.writeUTF cannot write more than 64KB.
+    private static void write_string(String string, DataOutputStream out) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String read_string(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // Paths are written as their string form, which the Path(String)
+    // constructor parses back into the same components.
+    private static void write_path(Path path, DataOutputStream out) throws IOException {
+        write_string(path == null ? null : path.toString(), out);
+    }
+
+    private static Path read_path(DataInputStream in) throws IOException {
+        String string = read_string(in);
+        return string == null ? null : new Path(string);
+    }
+
+    private static int length(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new StreamCorruptedException("negative length " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,123 @@
+package rmi;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and latency histograms for the calls to one remote method.
+
+    <p>
+    Latencies are in nanoseconds and are split into the phases of a call:
+
+    <ul>
+    <li><code>connect</code>: obtaining a connection to the skeleton (stubs
+        only).</li>
+    <li><code>marshal</code>: encoding the arguments on a stub, or the result
+        on a skeleton.</li>
+    <li><code>execute</code>: running the method on the server object
+        (skeletons only).</li>
+    <li><code>unmarshal</code>: decoding the result on a stub, or the
+        arguments on a skeleton.</li>
+    <li><code>total</code>: the whole call, as seen by the side recording
+        it.</li>
+    </ul>
+
+    <p>
+    A phase is not recorded where it cannot be told apart from the network:
+    the single-call protocol, for example, reads arguments and results while
+    waiting for them to arrive.
+ */
+public class CallMetrics
+{
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes_in = new LongAdder();
+    private final LongAdder bytes_out = new LongAdder();
+    private final Histogram connect = new Histogram();
+    private final Histogram marshal = new Histogram();
+    private final Histogram execute = new Histogram();
+    private final Histogram unmarshal = new Histogram();
+    private final Histogram total = new Histogram();
+
+    /** Returns the number of calls completed. */
+    public long calls()
+    {
+        return calls.sum();
+    }
+
+    /** Returns the number of calls that threw an exception. */
+    public long errors()
+    {
+        return errors.sum();
+    }
+
+    /** Returns the number of bytes received for these calls. */
+    public long bytesIn()
+    {
+        return bytes_in.sum();
+    }
+
+    /** Returns the number of bytes sent for these calls. */
+    public long bytesOut()
+    {
+        return bytes_out.sum();
+    }
+
+    /** Returns the histogram of connecting latencies. */
+    public Histogram connect()
+    {
+        return connect;
+    }
+
+    /** Returns the histogram of marshalling latencies. */
+    public Histogram marshal()
+    {
+        return marshal;
+    }
+
+    /** Returns the histogram of execution latencies. */
+    public Histogram execute()
+    {
+        return execute;
+    }
+
+    /** Returns the histogram of unmarshalling latencies. */
+    public Histogram unmarshal()
+    {
+        return unmarshal;
+    }
+
+    /** Returns the histogram of total call latencies. */
+    public Histogram total()
+    {
+        return total;
+    }
+
+    // Records a completed call. Phases that were not measured are negative
+    // and are left out, as are unknown byte counts.
+    void record(long connect, long marshal, long execute, long unmarshal, long total,
+                long bytes_in, long bytes_out, boolean failed)
+    {
+        calls.increment();
+        if (failed) {
+            errors.increment();
+        }
+        if (connect >= 0) {
+            this.connect.record(connect);
+        }
+        if (marshal >= 0) {
+            this.marshal.record(marshal);
+        }
+        if (execute >= 0) {
+            this.execute.record(execute);
+        }
+        if (unmarshal >= 0) {
+            this.unmarshal.record(unmarshal);
+        }
+        this.total.record(total);
+        if (bytes_in > 0) {
+            this.bytes_in.add(bytes_in);
+        }
+        if (bytes_out > 0) {
+            this.bytes_out.add(bytes_out);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Timeouts and retry policy followed by a stub for each call.
+
+    <p>
+    A policy bounds how long a stub waits to connect to its skeleton, how long
+    it waits for the reply to each attempt at a call, and how long the call
+    may take as a whole, over all its attempts. A call to a method marked
+    <code>Idempotent</code> that fails because of the network, or whose
+    attempt times out, is attempted again, up to <code>maxAttempts()</code>
+    times in all, after an exponentially growing, jittered backoff. Calls to
+    other methods are attempted once. A call that runs out of time throws
+    <code>CallTimeoutException</code>.
+
+    <p>
+    Policies are immutable; each <code>with...</code> method returns a
+    modified copy. A policy is given to a stub with
+    <code>Stub.create(Class, InetSocketAddress, CallPolicy)</code> or
+    <code>Stub.withPolicy</code>, and travels with the stub when it is
+    serialized. A timeout or deadline of zero means none. The default policy
+    waits up to the number of milliseconds in the system property
+    <code>rmi.connect_timeout</code>, or ten seconds, to connect, and up to
+    <code>rmi.call_timeout</code>, or forever, for each reply, and does not
+    retry.
+
+    <p>
+    Timeouts and retries apply to stubs sharing pooled connections. Stubs
+    using the single-call protocol only bound the time taken to connect and
+    to read the reply.
+ */
+public final class CallPolicy implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final CallPolicy DEFAULT =
+        new CallPolicy(Long.getLong("rmi.connect_timeout", 10000),
+                       Long.getLong("rmi.call_timeout", 0), 0, 1, 50, 2000);
+
+    private final long connect_timeout;
+    private final long timeout;
+    private final long deadline;
+    private final int max_attempts;
+    private final long initial_backoff;
+    private final long max_backoff;
+
+    private CallPolicy(long connect_timeout, long timeout, long deadline,
+                       int max_attempts, long initial_backoff, long max_backoff)
+    {
+        if (connect_timeout < 0 || timeout < 0 || deadline < 0 || max_attempts < 1
+            || initial_backoff < 0 || max_backoff < initial_backoff) {
+            throw new IllegalArgumentException("bad call policy");
+        }
+        this.connect_timeout = connect_timeout;
+        this.timeout = timeout;
+        this.deadline = deadline;
+        this.max_attempts = max_attempts;
+        this.initial_backoff = initial_backoff;
+        this.max_backoff = max_backoff;
+    }
+
+    /** Returns the policy followed by stubs created without one. */
+    public static CallPolicy defaults()
+    {
+        return DEFAULT;
+    }
+
+    /** Returns a copy of this policy with the given connect timeout, in
+        milliseconds. */
+    public CallPolicy withConnectTimeout(long millis)
+    {
+        return new CallPolicy(millis, timeout, deadline, max_attempts, initial_backoff, max_backoff);
+    }
+
+    /** Returns a copy of this policy with the given timeout for each attempt
+        at a call, in milliseconds. */
+    public CallPolicy withTimeout(long millis)
+    {
+        return new CallPolicy(connect_timeout, millis, deadline, max_attempts, initial_backoff, max_backoff);
+    }
+
+    /** Returns a copy of this policy with the given deadline for each call,
+        over all its attempts, in milliseconds from the start of the call. */
+    public CallPolicy withDeadline(long millis)
+    {
+        return new CallPolicy(connect_timeout, timeout, millis, max_attempts, initial_backoff, max_backoff);
+    }
+
+    /** Returns a copy of this policy that retries idempotent calls.
+
+        @param max_attempts The most attempts made at each idempotent call.
+        @param initial_backoff The longest wait before the second attempt, in
+                               milliseconds. The wait at most doubles for each
+                               further attempt.
+        @param max_backoff The longest wait before any attempt.
+        @throws IllegalArgumentException If <code>max_attempts</code> is less
+                                         than one, or a backoff is negative or
+                                         the longest is shorter than the first.
+     */
+    public CallPolicy withRetries(int max_attempts, long initial_backoff, long max_backoff)
+    {
+        return new CallPolicy(connect_timeout, timeout, deadline, max_attempts, initial_backoff, max_backoff);
+    }
+
+    /** Returns the connect timeout, in milliseconds. */
+    public long connectTimeout()
+    {
+        return connect_timeout;
+    }
+
+    /** Returns the timeout for each attempt at a call, in milliseconds. */
+    public long timeout()
+    {
+        return timeout;
+    }
+
+    /** Returns the deadline for each call, in milliseconds. */
+    public long deadline()
+    {
+        return deadline;
+    }
+
+    /** Returns the most attempts made at each idempotent call. */
+    public int maxAttempts()
+    {
+        return max_attempts;
+    }
+
+    // The wait before the attempt after the given one: between half and all
+    // of an exponentially growing bound, so that clients retrying together
+    // spread out.
+    long backoff(int attempt)
+    {
+        long bound = initial_backoff;
+        for (int i = 1; i < attempt && bound < max_backoff; i++) {
+            bound *= 2;
+        }
+        bound = Math.min(bound, max_backoff);
+        return bound == 0 ? 0 : ThreadLocalRandom.current().nextLong(bound / 2, bound + 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CallPolicy[connect " + connect_timeout + " ms, timeout " + timeout
+            + " ms, deadline " + deadline + " ms, " + max_attempts + " attempts]";
+    }
+}
@@ -0,0 +1,26 @@
+package rmi;
+
+/** Thrown by a stub when a call does not complete within the timeout or
+    deadline set by its <code>CallPolicy</code> or by a <code>Deadline</code>.
+
+    <p>
+    The server may or may not have run the call.
+ */
+public class CallTimeoutException extends RMIException
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Creates a <code>CallTimeoutException</code> with the given message
+        string. */
+    public CallTimeoutException(String message)
+    {
+        super(message);
+    }
+
+    /** Creates a <code>CallTimeoutException</code> with a message string and
+        the given cause. */
+    public CallTimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
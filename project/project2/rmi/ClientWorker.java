@@ -0,0 +1,215 @@
+package rmi;
+
+import java.net.*;
+import java.lang.reflect.*;
+import java.io.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The thread is trigged if a socket request is accepted
+// The thread receives the signature of the called method.
+// A stub that keeps its connection open starts the connection with
+// Connection.MAGIC; the thread then serves calls until the stub closes the
+// connection or the skeleton is stopped.
+class ClientWorker<T> implements Runnable {
+    private Socket socket;
+    private T server;
+    private Skeleton<T> skeleton; 
+    private Class<?> c;
+    
+    // bytes already read from the socket by the selector transport
+    private byte[] preread;
+    
+    ClientWorker(Socket socket, T server, Skeleton<T> skeleton, Class<?> c) {
+        this.socket = socket;
+        this.server = server;
+        this.skeleton = skeleton;
+        this.c = c;
+    }
+
+    ClientWorker(Socket socket, T server, Skeleton<T> skeleton, Class<?> c, byte[] preread) {
+        this(socket, server, skeleton, c);
+        this.preread = preread;
+    }
+
+    public void run() {
+        try {
+            InputStream raw = socket.getInputStream();
+            if (preread != null) {
+                raw = new SequenceInputStream(new ByteArrayInputStream(preread), raw);
+            }
+            final BufferedInputStream input = new BufferedInputStream(raw);
+            input.mark(4);
+            int magic = new DataInputStream(input).readInt();
+            if (magic == Connection.MAGIC) {
+                if (this.skeleton.pooled()) {
+                    // reading a long-lived connection must not hold a pool
+                    // thread; only the calls themselves go to the executor
+                    try {
+                        this.skeleton.read_connection(new Runnable() {
+                            public void run() {
+                                try {
+                                    serve_multiplexed(input);
+                                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                                    skeleton.service_error(new RMIException("Service Error!", e));
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        socket.close();
+                        this.skeleton.service_error(new RMIException("connection limit reached", e));
+                    }
+                } else {
+                    serve_multiplexed(input);
+                }
+                return;
+            }
+            input.reset();
+            ObjectInputStream in = new ObjectInputStream(input);
+            Class<?> return_class;
+            String method_name;
+            Integer method_argc;
+            try { 
+                method_name = (String) in.readObject();
+           	method_argc = (Integer) in.readObject();
+            } catch ( ClassNotFoundException e ) {
+       	        throw e;
+            }
+            Class<?>[] classes = new Class<?>[method_argc];
+            Object[] args = new Object[method_argc];
+            try { 
+		classes = (Class<?>[])in.readObject();		
+		args = (Object[])in.readObject();
+            } catch ( ClassNotFoundException e ) {
+                  throw e;
+            }
+	    // Take care that this.server.class and this.c can be different
+	    // this.server implements a superset of c
+            MethodTable.Entry method = this.skeleton.table().entry(method_name, classes);
+            if ( method == null ) {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream()); 
+                out.writeObject(-2);
+                out.flush();
+                socket.close();
+        	return;
+	    }
+	    if ( !method.accepts(args) ) {
+	        // the arguments do not match the parameter types
+	        socket.close();
+	        return;
+	    }
+
+            Object return_obj;
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream()); 
+            long start = System.nanoTime();
+            long execute = -1;
+            boolean failed = true;
+            Metrics metrics = Metrics.ENABLED ? this.skeleton.metrics() : null;
+            if (metrics != null) {
+                metrics.begin();
+            }
+            try {
+                return_obj = method.invoke(this.server, args);
+                execute = System.nanoTime() - start;
+                out.writeObject(-1);
+                out.writeObject(return_obj);
+                failed = false;
+            } catch ( Throwable ex ) {
+                if (execute < 0) {
+                    execute = System.nanoTime() - start;
+                }
+                out.writeObject(1);
+                out.writeObject(ex);
+	    } finally {
+	        if (metrics != null) {
+	            metrics.end();
+	            metrics.method(method.signature).record(
+	                -1, -1, execute, -1, System.nanoTime() - start, 0, 0, failed);
+	        }
+	    }
+            out.flush();
+            socket.close();
+        } catch (IOException e ) {
+	    RMIException ex_rmi = new RMIException("Service Error!");
+	    this.skeleton.service_error(ex_rmi);
+        } catch (ClassNotFoundException e) {
+        } catch (Exception e) {
+	}
+    }    
+
+    // Serves calls on a multiplexed connection. Each call runs as a service
+    // task of its own, so that a call which blocks (a lock request, for
+    // example) does not hold up the calls behind it; replies are written as
+    // calls complete.
+    private void serve_multiplexed(InputStream input) throws IOException, ClassNotFoundException {
+        this.skeleton.add_connection(socket);
+        final AtomicInteger in_flight = new AtomicInteger(0);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(input);
+            int codec_id = in.readUnsignedByte();
+            final Codec codec = Codec.for_id(codec_id);
+            if (codec == null) {
+                throw new StreamCorruptedException("unknown codec " + codec_id);
+            }
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                final Frame.Incoming frame;
+                try {
+                    frame = Frame.read(in);
+                } catch (EOFException | SocketException e) {
+                    // closed by the stub, or shut down by Skeleton.stop
+                    break;
+                }
+                in_flight.incrementAndGet();
+                Runnable task = new Runnable() {
+                    public void run() {
+                        try {
+                            Frame reply = skeleton.serve(codec, frame);
+                            try {
+                                synchronized (out) {
+                                    reply.write_to(out, frame.id);
+                                    out.flush();
+                                }
+                            } finally {
+                                reply.release();
+                            }
+                        } catch (IOException e) {
+                            // the connection has failed; the stub fails the
+                            // call on its side
+                        }
+                        finish(in_flight);
+                    }
+                };
+                try {
+                    this.skeleton.execute(task);
+                } catch (RejectedExecutionException e) {
+                    finish(in_flight);
+                    this.skeleton.service_error(new RMIException("call rejected by executor", e));
+                    break;
+                }
+            }
+
+            // let calls already received finish and send their replies
+            synchronized (in_flight) {
+                while (in_flight.get() > 0) {
+                    try {
+                        in_flight.wait();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            this.skeleton.remove_connection(socket);
+            socket.close();
+        }
+    }
+
+    private static void finish(AtomicInteger in_flight) {
+        synchronized (in_flight) {
+            in_flight.decrementAndGet();
+            in_flight.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package rmi;
+
+import java.io.*;
+
+/** Encoding of calls and replies on multiplexed connections.
+
+    <p>
+    Each call and each reply is sent as one frame: a four-byte length, the
+    eight-byte request identifier, and a body produced by the codec. The stub
+    chooses the codec when it opens a connection and names it by its
+    identifier right after <code>Connection.MAGIC</code>; the skeleton uses
+    the same codec for everything it sends back on that connection.
+
+    <p>
+    The codec is chosen with the system property <code>rmi.codec</code>:
+    <code>binary</code> (the default) or <code>serialization</code>.
+ */
+interface Codec
+{
+    /** Returns the identifier sent in the connection preamble. */
+    int id();
+
+    /** Writes the body of a call frame. */
+    void encode_request(Request request, DataOutputStream out) throws IOException;
+
+    /** Reads the body of a call frame. */
+    Request decode_request(long id, DataInputStream in) throws IOException, ClassNotFoundException;
+
+    /** Writes the body of a reply frame. */
+    void encode_reply(Reply reply, DataOutputStream out) throws IOException;
+
+    /** Reads the body of a reply frame. */
+    Reply decode_reply(long id, DataInputStream in) throws IOException, ClassNotFoundException;
+
+    /** Writes the body of a call frame, which may carry a batch of calls.
+
+        <p>
+        A batch is written as <code>Request.BATCH</code>, a flag byte which is
+        <code>1</code> if the calls may run in parallel, the number of calls,
+        and then each call as a length-prefixed body written by
+        <code>encode_request</code>. Single calls are written by
+        <code>encode_request</code> alone.
+     */
+    default void write_request(Request request, DataOutputStream out) throws IOException {
+        if (request.calls == null) {
+            encode_request(request, out);
+            return;
+        }
+        out.writeInt(Request.BATCH);
+        out.writeByte(request.parallel ? 1 : 0);
+        out.writeInt(request.calls.length);
+        Frame call = new Frame();
+        for (Request single : request.calls) {
+            call.reset();
+            encode_request(single, call.data);
+            out.writeInt(call.size());
+            call.writeTo(out);
+        }
+    }
+
+    /** Reads the body of a call frame written by <code>write_request</code>.
+        The stream must support <code>mark</code>. */
+    default Request read_request(long id, DataInputStream in) throws IOException, ClassNotFoundException {
+        in.mark(4);
+        if (in.readInt() != Request.BATCH) {
+            in.reset();
+            return decode_request(id, in);
+        }
+        boolean parallel = in.readByte() == 1;
+        Request[] calls = new Request[count(in)];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = decode_request(i, nested(in));
+        }
+        return new Request(id, calls, parallel);
+    }
+
+    /** Writes the body of a reply frame, which may carry the replies to a
+        batch of calls, each as a length-prefixed body written by
+        <code>encode_reply</code>. */
+    default void write_reply(Reply reply, DataOutputStream out) throws IOException {
+        if (reply.status != Reply.BATCH) {
+            encode_reply(reply, out);
+            return;
+        }
+        Reply[] replies = (Reply[]) reply.value;
+        out.writeByte(Reply.BATCH);
+        out.writeInt(replies.length);
+        Frame single = new Frame();
+        for (Reply each : replies) {
+            single.reset();
+            encode_reply(each, single.data);
+            out.writeInt(single.size());
+            single.writeTo(out);
+        }
+    }
+
+    /** Reads the body of a reply frame written by <code>write_reply</code>.
+        The stream must support <code>mark</code>. */
+    default Reply read_reply(long id, DataInputStream in) throws IOException, ClassNotFoundException {
+        in.mark(1);
+        if (in.readByte() != Reply.BATCH) {
+            in.reset();
+            return decode_reply(id, in);
+        }
+        Reply[] replies = new Reply[count(in)];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = decode_reply(i, nested(in));
+        }
+        return new Reply(id, Reply.BATCH, replies);
+    }
+
+    // Reads a length-prefixed body nested in a batch.
+    private static DataInputStream nested(DataInputStream in) throws IOException {
+        byte[] body = new byte[count(in)];
+        in.readFully(body);
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    private static int count(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("negative count " + count);
+        }
+        return count;
+    }
+
+    /** Returns the codec with the given identifier, or <code>null</code> if
+        there is none. */
+    static Codec for_id(int id) {
+        if (id == BinaryCodec.ID) {
+            return BinaryCodec.INSTANCE;
+        } else if (id == SerializationCodec.ID) {
+            return SerializationCodec.INSTANCE;
+        }
+        return null;
+    }
+
+    /** Returns the codec new connections are opened with. */
+    static Codec preferred() {
+        if ("serialization".equals(System.getProperty("rmi.codec"))) {
+            return SerializationCodec.INSTANCE;
+        }
+        return BinaryCodec.INSTANCE;
+    }
+}
@@ -0,0 +1,249 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Long-lived client connection to a skeleton.
+
+    <p>
+    Many calls, from any number of threads, may be outstanding on one
+    connection at the same time. Each call is tagged with a request identifier.
+    A reader thread owned by the connection receives replies in whatever order
+    the skeleton sends them and completes the matching pending call.
+
+    <p>
+    A connection opens with <code>MAGIC</code>, which tells the skeleton to
+    serve many calls on it instead of a single call, followed by the identifier
+    of the <code>Codec</code> used for every frame on the connection. Once a
+    connection fails, every call outstanding on it fails, and the connection is
+    never used again. A call whose arguments or result cannot be encoded fails
+    alone, with an <code>RMIException</code>.
+ */
+class Connection implements Runnable
+{
+    static final int MAGIC = 0x524d4958;
+
+    private final Socket socket;
+    private final Codec codec;
+    private final DataOutputStream out;
+    private final Map<Long, CompletableFuture<Reply>> pending;
+    private final AtomicLong next_id;
+    private volatile boolean closed;
+    private volatile long last_used;
+    private volatile long completed;
+
+    /** Opens a connection.
+
+        @param connect_timeout The longest time to wait for the connection to
+                               be made, in milliseconds, or zero to wait as
+                               long as it takes.
+     */
+    Connection(InetSocketAddress address, int connect_timeout) throws IOException {
+        this.socket = new Socket();
+        this.codec = Codec.preferred();
+        this.pending = new ConcurrentHashMap<Long, CompletableFuture<Reply>>();
+        this.next_id = new AtomicLong(0);
+        this.closed = false;
+        this.last_used = System.currentTimeMillis();
+        this.completed = 0;
+        try {
+            socket.connect(new InetSocketAddress(address.getHostName(), address.getPort()), connect_timeout);
+            socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(codec.id());
+            this.out.flush();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        Thread reader = new Thread(this, "rmi-connection " + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Sends a call and waits for its reply.
+
+        @throws IOException If the connection fails before the reply arrives.
+        @throws RMIException If the arguments or the result cannot be encoded.
+        @throws InterruptedException If the calling thread is interrupted while
+                                     waiting for the reply.
+     */
+    Reply call(int method_id, Object[] args)
+        throws IOException, RMIException, InterruptedException
+    {
+        return call(new Request(0, method_id, args), 0);
+    }
+
+    /** Sends a request and waits for its reply until a deadline.
+
+        @param deadline The <code>System.nanoTime()</code> by which the reply
+                        must arrive, or zero to wait as long as it takes.
+        @throws SocketTimeoutException If the reply has not arrived by the
+                                       deadline. The call is forgotten, and
+                                       the connection stays usable.
+        @see #call(int, Object[])
+     */
+    Reply call(Request request, long deadline)
+        throws IOException, RMIException, InterruptedException
+    {
+        CompletableFuture<Reply> future = send(request);
+        try {
+            if (deadline == 0) {
+                return future.get();
+            }
+            return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            pending.remove(request.id);
+            throw new SocketTimeoutException("no reply before deadline");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RMIException) {
+                throw (RMIException) cause;
+            }
+            throw new IOException("connection failed", cause);
+        }
+    }
+
+    /** Sends a call without waiting for its reply.
+
+        @return A future completed with the reply. It is completed
+                exceptionally with an <code>IOException</code> if the
+                connection fails first, or with an <code>RMIException</code>
+                if the result cannot be decoded. Cancelling it forgets the
+                call, and its reply is dropped when it arrives.
+        @throws IOException If the call cannot be written. The skeleton then
+                            has not received the whole call, and does not run
+                            it.
+        @throws RMIException If the arguments cannot be encoded.
+     */
+    CompletableFuture<Reply> send(int method_id, Object[] args)
+        throws IOException, RMIException
+    {
+        return send(new Request(0, method_id, args));
+    }
+
+    /** Sends a request, which may be a batch of calls, without waiting for
+        its reply. The request is given an identifier first.
+
+        @see #send(int, Object[])
+     */
+    CompletableFuture<Reply> send(Request request)
+        throws IOException, RMIException
+    {
+        long id = next_id.incrementAndGet();
+        request.id = id;
+        request.written = false;
+        Frame frame;
+        long start = System.nanoTime();
+        try {
+            frame = Frame.request(codec, request);
+        } catch (IOException e) {
+            throw new RMIException("cannot marshal arguments", e);
+        }
+        request.marshal_nanos = System.nanoTime() - start;
+        request.size = frame.wire_size();
+        if (request.size - 4 > Integer.MAX_VALUE) {
+            throw new RMIException("call too large to send");
+        }
+
+        CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+        future.whenComplete((reply, failure) -> {
+            if (future.isCancelled()) {
+                pending.remove(id, future);
+            }
+        });
+        pending.put(id, future);
+        if (closed) {
+            pending.remove(id);
+            throw new IOException("connection closed");
+        }
+        last_used = System.currentTimeMillis();
+        try {
+            synchronized (out) {
+                frame.write_to(out, id);
+                out.flush();
+            }
+            request.written = true;
+        } catch (IOException e) {
+            pending.remove(id);
+            close(e);
+            throw e;
+        }
+        return future;
+    }
+
+    /** Returns the number of calls waiting for a reply. */
+    int outstanding() {
+        return pending.size();
+    }
+
+    /** Returns the number of calls that have received a reply. */
+    long completed() {
+        return completed;
+    }
+
+    long lastUsed() {
+        return last_used;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** Closes the connection and fails every outstanding call. */
+    void close(Throwable cause) {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        IOException failure = new IOException("connection closed", cause);
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Reply> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    // the reader thread matches replies to outstanding calls
+    public void run() {
+        Throwable cause = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (!closed) {
+                Frame.Incoming frame = Frame.read(in);
+                CompletableFuture<Reply> future = pending.remove(frame.id);
+                completed++;
+                last_used = System.currentTimeMillis();
+                if (future == null) {
+                    continue;
+                }
+                try {
+                    long start = System.nanoTime();
+                    Reply reply = frame.reply(codec);
+                    reply.unmarshal_nanos = System.nanoTime() - start;
+                    reply.size = frame.wire_size();
+                    future.complete(reply);
+                } catch (IOException | ClassNotFoundException e) {
+                    // frames are delimited, so the connection is still usable
+                    future.completeExceptionally(new RMIException("cannot unmarshal result", e));
+                }
+            }
+        } catch (Throwable t) {
+            cause = t;
+        }
+        close(cause);
+    }
+}
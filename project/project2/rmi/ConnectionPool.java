@@ -0,0 +1,139 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Pool of multiplexed connections to one skeleton address.
+
+    <p>
+    Stubs carrying equal addresses share a pool. A call is sent on an idle
+    connection if there is one. Otherwise a new connection is opened, up to
+    <code>MAX_CONNECTIONS</code>, after which calls are spread over the
+    existing connections by the number of calls outstanding on each.
+    Connections still being opened count towards the limit, so that a burst
+    of calls does not open more. Connections that have been idle for <code>IDLE_TIMEOUT</code>
+    milliseconds are closed the next time the pool is used.
+ */
+class ConnectionPool
+{
+    static final int MAX_CONNECTIONS = 4;
+    static final long IDLE_TIMEOUT = 60000;
+
+    private static final ConcurrentHashMap<InetSocketAddress, ConnectionPool> pools =
+        new ConcurrentHashMap<InetSocketAddress, ConnectionPool>();
+
+    private final InetSocketAddress address;
+    private final ArrayList<Connection> connections;
+    // connections being opened outside the lock; guarded by this
+    private int connecting;
+
+    private ConnectionPool(InetSocketAddress address) {
+        this.address = address;
+        this.connections = new ArrayList<Connection>();
+    }
+
+    /** Returns the pool for the given address, creating it if necessary. */
+    static ConnectionPool get(InetSocketAddress address) {
+        ConnectionPool pool = pools.get(address);
+        if (pool == null) {
+            pools.putIfAbsent(address, new ConnectionPool(address));
+            pool = pools.get(address);
+        }
+        return pool;
+    }
+
+    /** Returns a connection on which a call can be sent, opening one with the
+        default connect timeout if necessary.
+
+        @throws IOException If a new connection is needed and cannot be
+                            opened.
+     */
+    Connection acquire() throws IOException {
+        return acquire((int) Math.min(CallPolicy.defaults().connectTimeout(), Integer.MAX_VALUE));
+    }
+
+    /** Returns a connection on which a call can be sent.
+
+        @param connect_timeout The longest time to wait for a new connection
+                               to be made, in milliseconds, or zero for no
+                               limit.
+        @throws IOException If a new connection is needed and cannot be
+                            opened.
+     */
+    Connection acquire(int connect_timeout) throws IOException {
+        synchronized (this) {
+            while (true) {
+                Connection least = null;
+                long now = System.currentTimeMillis();
+                Iterator<Connection> it = connections.iterator();
+                while (it.hasNext()) {
+                    Connection connection = it.next();
+                    if (connection.isClosed()) {
+                        it.remove();
+                    } else if (connection.outstanding() == 0 && now - connection.lastUsed() > IDLE_TIMEOUT) {
+                        it.remove();
+                        connection.close(null);
+                    } else if (least == null || connection.outstanding() < least.outstanding()) {
+                        least = connection;
+                    }
+                }
+                boolean full = connections.size() + connecting >= MAX_CONNECTIONS;
+                if (least != null && (least.outstanding() == 0 || full)) {
+                    return least;
+                }
+                if (!full) {
+                    // reserve the slot before connecting
+                    connecting++;
+                    break;
+                }
+                // every slot is taken by a connection still being opened
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for a connection");
+                }
+            }
+        }
+
+        // connect outside the lock, so that calls on existing connections
+        // are not held up by a slow connect
+        Connection connection = null;
+        try {
+            connection = new Connection(address, connect_timeout);
+            return connection;
+        } finally {
+            synchronized (this) {
+                connecting--;
+                if (connection != null) {
+                    connections.add(connection);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** Returns the number of connections in the pool. */
+    synchronized int size() {
+        return connections.size();
+    }
+
+    /** Returns the number of calls waiting for a reply on the pool's
+        connections. */
+    synchronized int outstanding() {
+        int outstanding = 0;
+        for (Connection connection : connections) {
+            outstanding += connection.outstanding();
+        }
+        return outstanding;
+    }
+
+    /** Removes a failed connection from the pool. */
+    synchronized void discard(Connection connection) {
+        connections.remove(connection);
+    }
+}
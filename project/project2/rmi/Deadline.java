@@ -0,0 +1,90 @@
+package rmi;
+
+/** Deadline for the calls made by one thread within a block of code.
+
+    <p>
+    While a deadline is open, every call the thread makes through a stub must
+    complete before it, in addition to any timeout or deadline set by the
+    stub's <code>CallPolicy</code>; a call that runs out of time throws
+    <code>CallTimeoutException</code>. Deadlines nest: a deadline opened while
+    another is open cannot extend it. For example, to bound a series of reads
+    to one second in all:
+
+    <pre>
+    try(Deadline deadline = Deadline.after(1000))
+    {
+        for(long offset = 0; offset &lt; length; offset += chunk)
+            storage.read(file, offset, chunk);
+    }
+    </pre>
+ */
+public final class Deadline implements AutoCloseable
+{
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+    // System.nanoTime() at the deadline
+    private final long at;
+    private final Deadline enclosing;
+    private final Thread thread;
+
+    private Deadline(long at, Deadline enclosing)
+    {
+        this.at = at;
+        this.enclosing = enclosing;
+        this.thread = Thread.currentThread();
+    }
+
+    /** Opens a deadline the given number of milliseconds from now for the
+        calls made by the current thread, until the deadline is closed. */
+    public static Deadline after(long millis)
+    {
+        Deadline enclosing = current.get();
+        long at = System.nanoTime() + millis * 1000000L;
+        if (enclosing != null && enclosing.at - at < 0) {
+            at = enclosing.at;
+        }
+        Deadline deadline = new Deadline(at, enclosing);
+        current.set(deadline);
+        return deadline;
+    }
+
+    /** Returns the number of milliseconds left before the deadline, which is
+        negative once it has passed. */
+    public long remaining()
+    {
+        return (at - System.nanoTime()) / 1000000L;
+    }
+
+    /** Closes the deadline, reopening the one enclosing it, if any.
+
+        @throws IllegalStateException If the deadline is not the innermost one
+                                      open on the current thread.
+     */
+    @Override
+    public void close()
+    {
+        if (Thread.currentThread() != thread || current.get() != this) {
+            throw new IllegalStateException("deadline closed out of order");
+        }
+        if (enclosing == null) {
+            current.remove();
+        } else {
+            current.set(enclosing);
+        }
+    }
+
+    /** Returns the earlier of the given time and the current thread's
+        deadline, as <code>System.nanoTime()</code> values; zero means no
+        deadline. */
+    static long earliest(long at)
+    {
+        Deadline deadline = current.get();
+        if (deadline == null) {
+            return at;
+        }
+        if (at == 0 || deadline.at - at < 0) {
+            return deadline.at;
+        }
+        return at;
+    }
+}
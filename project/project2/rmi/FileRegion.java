@@ -0,0 +1,113 @@
+package rmi;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/** Region of a file sent as the result of a call returning a byte array.
+
+    <p>
+    A server object implementing <code>FileRegionSource</code> returns a
+    region instead of reading the bytes into an array. The skeleton writes the
+    region to the connection with <code>FileChannel.transferTo</code>, so that
+    on connections served by event loops the bytes go from the file to the
+    socket without being copied through the Java heap. The stub receives an
+    ordinary byte array.
+
+    <p>
+    The skeleton closes the region, and with it the channel, once the region
+    has been sent or cannot be.
+ */
+public class FileRegion implements Closeable
+{
+    private final FileChannel channel;
+    // closed with the region
+    private final Closeable resource;
+    private final long position;
+    private final int length;
+    // bytes of the region written so far
+    private long written;
+
+    /** Creates a region of a file.
+
+        @param channel Channel open for reading on the file. It is closed with
+                       the region.
+        @param position Offset of the region in the file.
+        @param length Length of the region, in bytes.
+        @throws IndexOutOfBoundsException If <code>position</code> or
+                                          <code>length</code> is negative.
+     */
+    public FileRegion(FileChannel channel, long position, int length)
+    {
+        this(channel, position, length, channel);
+    }
+
+    /** Creates a region of a file whose channel stays open after the region
+        is closed.
+
+        @param channel Channel open for reading on the file.
+        @param position Offset of the region in the file.
+        @param length Length of the region, in bytes.
+        @param resource Closed with the region instead of the channel, to
+                        release the channel to its owner.
+        @throws IndexOutOfBoundsException If <code>position</code> or
+                                          <code>length</code> is negative.
+     */
+    public FileRegion(FileChannel channel, long position, int length,
+                      Closeable resource)
+    {
+        if (position < 0 || length < 0) {
+            throw new IndexOutOfBoundsException("bad file region");
+        }
+        this.channel = channel;
+        this.resource = resource;
+        this.position = position;
+        this.length = length;
+        this.written = 0;
+    }
+
+    /** Returns the length of the region, in bytes. */
+    public int length()
+    {
+        return length;
+    }
+
+    /** Writes as much of the rest of the region as the channel will take.
+
+        @return <code>true</code> once the whole region has been written.
+        @throws EOFException If the file has been truncated since the region
+                             was created.
+     */
+    boolean transfer(WritableByteChannel target) throws IOException
+    {
+        while (written < length) {
+            long count = channel.transferTo(position + written, length - written, target);
+            if (count == 0) {
+                if (position + written >= channel.size()) {
+                    throw new EOFException("file truncated while being sent");
+                }
+                // a non-blocking target is full
+                return false;
+            }
+            written += count;
+        }
+        return true;
+    }
+
+    /** Writes the whole region to a stream. */
+    void write_to(OutputStream out) throws IOException
+    {
+        WritableByteChannel target = Channels.newChannel(out);
+        if (!transfer(target)) {
+            throw new IOException("stream did not accept region");
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            resource.close();
+        } catch (IOException e) {
+        }
+    }
+}
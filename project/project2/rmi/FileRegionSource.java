@@ -0,0 +1,26 @@
+package rmi;
+
+import java.lang.reflect.Method;
+
+/** Server object that can answer some calls with regions of files.
+
+    <p>
+    Before a skeleton serving calls on a multiplexed connection runs a method
+    that returns <code>byte[]</code>, it asks a server object implementing this
+    interface for the region of a file holding the result. If a region is
+    returned, its bytes are sent as the result, and the method itself is not
+    run. Calls in batches, and calls from stubs using the single-call protocol,
+    are always run normally.
+ */
+public interface FileRegionSource
+{
+    /** Returns the region of a file holding the result of a call.
+
+        @param method The method of the remote interface being called.
+        @param args The arguments of the call.
+        @return The region, or <code>null</code> to run the method normally.
+        @throws Throwable The exception the method would throw, which is sent
+                          to the stub as if the method had thrown it.
+     */
+    FileRegion region(Method method, Object[] args) throws Throwable;
+}
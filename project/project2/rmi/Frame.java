@@ -0,0 +1,271 @@
+package rmi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** Buffer holding the body of one outgoing frame.
+
+    <p>
+    The body is encoded into the buffer by the calling thread, so that the
+    lock on the connection's output stream is held only while the finished
+    frame is copied out. A frame is written as its length, which counts the
+    request identifier and the body, the identifier, and the body.
+
+    <p>
+    A byte array of at least <code>BULK_THRESHOLD</code> bytes, given as the
+    last argument of a call or as the result of a call, is not encoded into
+    the body: it is carried raw at the end of a bulk frame, and read straight
+    into the array handed to the server object or returned by the stub. The
+    result may also be a <code>FileRegion</code>, which is written from its
+    file. A bulk frame is written as its length, negated, the request
+    identifier, the length of the body, the body, and then the raw bytes. The
+    codec encodes the value carried raw as <code>null</code>.
+ */
+class Frame extends ByteArrayOutputStream
+{
+    static final int BULK_THRESHOLD = 8 * 1024;
+
+    final DataOutputStream data;
+    // value carried raw after the body, if any
+    private byte[] bulk;
+    private FileRegion region;
+
+    Frame() {
+        super(256);
+        this.data = new DataOutputStream(this);
+    }
+
+    /** Encodes a request, carrying a large last argument raw. */
+    static Frame request(Codec codec, Request request) throws IOException {
+        Frame frame = new Frame();
+        Object[] args = request.args;
+        if (request.calls == null && args != null && args.length > 0 && bulk(args[args.length - 1])) {
+            frame.bulk = (byte[]) args[args.length - 1];
+            Object[] head = args.clone();
+            head[head.length - 1] = null;
+            codec.write_request(new Request(request.id, request.method_id, head), frame.data);
+        } else {
+            codec.write_request(request, frame.data);
+        }
+        return frame;
+    }
+
+    /** Encodes a reply, carrying a large result or a file region raw. */
+    static Frame reply(Codec codec, Reply reply) throws IOException {
+        Frame frame = new Frame();
+        if (reply.status == Reply.RETURN && (reply.value instanceof FileRegion || bulk(reply.value))) {
+            if (reply.value instanceof FileRegion) {
+                frame.region = (FileRegion) reply.value;
+            } else {
+                frame.bulk = (byte[]) reply.value;
+            }
+            codec.write_reply(new Reply(reply.id, reply.status, null), frame.data);
+        } else {
+            codec.write_reply(reply, frame.data);
+        }
+        return frame;
+    }
+
+    private static boolean bulk(Object value) {
+        return value instanceof byte[] && ((byte[]) value).length >= BULK_THRESHOLD;
+    }
+
+    // length of the value carried raw
+    private int raw_length() {
+        if (region != null) {
+            return region.length();
+        }
+        return bulk == null ? 0 : bulk.length;
+    }
+
+    /** Returns the number of bytes the frame takes on the wire. */
+    long wire_size() {
+        return bulk == null && region == null ? 12 + count : 16 + count + (long) raw_length();
+    }
+
+    // the length field of the frame
+    private int length_field() throws IOException {
+        if (bulk == null && region == null) {
+            return count + 8;
+        }
+        long length = 12 + count + (long) raw_length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("frame too large");
+        }
+        return -(int) length;
+    }
+
+    /** Writes the frame with the given request identifier. */
+    void write_to(DataOutputStream out, long id) throws IOException {
+        int length = length_field();
+        out.writeInt(length);
+        out.writeLong(id);
+        if (length < 0) {
+            out.writeInt(count);
+        }
+        out.write(buf, 0, count);
+        if (bulk != null) {
+            out.write(bulk);
+        } else if (region != null) {
+            out.flush();
+            region.write_to(out);
+        }
+    }
+
+    /** Returns the frame with the given request identifier as buffers ready
+        to be written to a channel. A file region, if the frame carries one,
+        is written after them; see <code>region()</code>. */
+    ByteBuffer[] to_buffers(long id) throws IOException {
+        int length = length_field();
+        ByteBuffer head = ByteBuffer.allocate((length < 0 ? 16 : 12) + count);
+        head.putInt(length).putLong(id);
+        if (length < 0) {
+            head.putInt(count);
+        }
+        head.put(buf, 0, count);
+        head.flip();
+        if (bulk != null) {
+            return new ByteBuffer[] { head, ByteBuffer.wrap(bulk) };
+        }
+        return new ByteBuffer[] { head };
+    }
+
+    /** Returns the file region the frame ends with, or <code>null</code>. */
+    FileRegion region() {
+        return region;
+    }
+
+    /** Closes the file region the frame ends with, if any, once the frame has
+        been written or cannot be. */
+    void release() {
+        if (region != null) {
+            region.close();
+        }
+    }
+
+    /** Reads the next frame.
+
+        @return The request identifier and body of the frame.
+        @throws EOFException If the stream ends before the next frame.
+     */
+    static Incoming read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        boolean bulk = length < 0;
+        if (bulk) {
+            length = -length;
+        }
+        if (length < (bulk ? 12 : 8)) {
+            throw new StreamCorruptedException("bad frame length " + length);
+        }
+        long id = in.readLong();
+        int body_length = length - 8;
+        if (bulk) {
+            body_length = in.readInt();
+            if (body_length < 0 || body_length > length - 12) {
+                throw new StreamCorruptedException("bad frame body length " + body_length);
+            }
+        }
+        byte[] body = new byte[body_length];
+        in.readFully(body);
+        byte[] raw = null;
+        if (bulk) {
+            raw = new byte[length - 12 - body_length];
+            in.readFully(raw);
+        }
+        return new Incoming(id, body, raw);
+    }
+
+    /** Reads a frame from a buffer holding the whole of it; see
+        <code>frame_length</code>. */
+    static Incoming read(ByteBuffer in) throws IOException {
+        DataInputStream stream = new DataInputStream(new ByteBufferInput(in));
+        return read(stream);
+    }
+
+    /** Returns the length, including the length field, of the frame at the
+        start of a buffer, or <code>-1</code> if not even the length field has
+        been received. The buffer's position is not changed. */
+    static long frame_length(ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        if (length == Integer.MIN_VALUE) {
+            throw new StreamCorruptedException("bad frame length " + length);
+        }
+        return 4L + Math.abs(length);
+    }
+
+    /** A frame that has been read. */
+    static class Incoming
+    {
+        final long id;
+        final byte[] body;
+        // value carried raw after the body, or null
+        final byte[] bulk;
+
+        Incoming(long id, byte[] body, byte[] bulk) {
+            this.id = id;
+            this.body = body;
+            this.bulk = bulk;
+        }
+
+        DataInputStream body() {
+            return new DataInputStream(new ByteArrayInputStream(body));
+        }
+
+        /** Returns the number of bytes the frame took on the wire. */
+        long wire_size() {
+            return bulk == null ? 12 + body.length : 16 + body.length + (long) bulk.length;
+        }
+
+        /** Decodes the request carried by the frame. */
+        Request request(Codec codec) throws IOException, ClassNotFoundException {
+            Request request = codec.read_request(id, body());
+            if (bulk != null) {
+                if (request.args == null || request.args.length == 0) {
+                    throw new StreamCorruptedException("bulk frame without arguments");
+                }
+                request.args[request.args.length - 1] = bulk;
+            }
+            return request;
+        }
+
+        /** Decodes the reply carried by the frame. */
+        Reply reply(Codec codec) throws IOException, ClassNotFoundException {
+            Reply reply = codec.read_reply(id, body());
+            if (bulk != null) {
+                reply.value = bulk;
+            }
+            return reply;
+        }
+    }
+
+    // Reads a frame out of a buffer without copying it first.
+    private static class ByteBufferInput extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
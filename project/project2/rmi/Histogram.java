@@ -0,0 +1,110 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Histogram of non-negative values, such as latencies in nanoseconds.
+
+    <p>
+    Values are counted in log-linear buckets: each power of two is split into
+    eight buckets of equal width, so a value is known to within 12.5% whatever
+    its magnitude, and values below eight are counted exactly. The histogram
+    has a fixed size, and recording a value takes a few atomic increments and
+    no locks, so it may be updated on every call by any number of threads.
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /** Records a value. Negative values are recorded as zero. */
+    public void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long count()
+    {
+        return count.sum();
+    }
+
+    /** Returns the largest value recorded, or zero if there is none. */
+    public long max()
+    {
+        return max.get();
+    }
+
+    /** Returns the mean of the values recorded, or zero if there is none. */
+    public double mean()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Returns an upper bound on the given percentile of the values recorded.
+
+        @param percentile The percentile, from <code>0</code> to
+                          <code>100</code>.
+        @return The upper bound of the bucket holding the percentile, or zero
+                if no values have been recorded.
+     */
+    public long percentile(double percentile)
+    {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upper_bound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+    }
+
+    static long upper_bound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        if (exponent >= 62) {
+            return Long.MAX_VALUE;
+        }
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1;
+    }
+}
@@ -0,0 +1,19 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks a method of a remote interface as safe to call more than once.
+
+    <p>
+    Calling an idempotent method twice with the same arguments has the same
+    effect on the server as calling it once. A stub may therefore retry a call
+    to an idempotent method that failed because of the network, or timed out,
+    without knowing whether the server ran it; see <code>CallPolicy</code>.
+    Calls to other methods are never retried.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent
+{
+}
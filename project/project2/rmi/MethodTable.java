@@ -0,0 +1,269 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Dispatch table of a remote interface.
+
+    <p>
+    Calls on multiplexed connections name the method by a 32-bit identifier
+    instead of by name and parameter types. The identifier is taken from a hash
+    of the method name and parameter type names, so the stub and the skeleton
+    compute the same identifier independently, and a stub for one interface
+    can call a method with the same signature on a skeleton for another.
+
+    <p>
+    The table is built once per interface, when the first skeleton or stub for
+    the interface is created, and shared afterwards. It resolves everything a
+    call needs ahead of time: the skeleton finds the <code>MethodHandle</code>
+    to invoke by binary search on the identifier, and the stub finds the
+    identifier, and whether the method is one of the <code>Object</code>
+    methods it answers locally, with one map lookup. Neither side performs
+    reflective lookups or string comparisons while serving a call.
+ */
+class MethodTable
+{
+    /** The stub answers the call itself. */
+    static final int REMOTE = 0;
+    static final int EQUALS = 1;
+    static final int HASH_CODE = 2;
+    static final int TO_STRING = 3;
+
+    private static final ConcurrentHashMap<Class<?>, MethodTable> tables =
+        new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private static final MethodType INVOKER_TYPE =
+        MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    // entries sorted by identifier, for lookup by binary search
+    private final int[] ids;
+    private final Entry[] entries;
+    // entries by method name, for the single-call protocol
+    private final HashMap<String, Entry[]> by_name;
+    // entries by the Method objects a proxy passes to its handler
+    private final ConcurrentHashMap<Method, Entry> by_method;
+    private final boolean equals_remote;
+    private final boolean hash_code_remote;
+    private final boolean to_string_remote;
+
+    /** A method of the interface. */
+    static class Entry
+    {
+        final int id;
+        final Method method;
+        final int kind;
+        // name and simple parameter type names, under which calls are
+        // recorded in Metrics
+        final String signature;
+        // whether a stub may retry calls; see Idempotent
+        final boolean idempotent;
+        // (Object server, Object[] args) -> Object; null for methods the
+        // stub answers, or which cannot be made accessible
+        final MethodHandle invoker;
+        private final Class<?>[] parameters;
+        // parameter types, with primitive types replaced by their wrappers
+        private final Class<?>[] accepted;
+
+        Entry(int id, Method method, int kind, MethodHandle invoker) {
+            this.id = id;
+            this.method = method;
+            this.kind = kind;
+            this.invoker = invoker;
+            this.parameters = method.getParameterTypes();
+            this.accepted = parameters.clone();
+            StringBuilder signature = new StringBuilder(method.getName()).append('(');
+            for (int i = 0; i < parameters.length; i++) {
+                signature.append(i == 0 ? "" : ", ").append(parameters[i].getSimpleName());
+            }
+            this.signature = signature.append(')').toString();
+            this.idempotent = method.isAnnotationPresent(Idempotent.class);
+            for (int i = 0; i < accepted.length; i++) {
+                if (accepted[i].isPrimitive()) {
+                    accepted[i] = MethodType.methodType(accepted[i]).wrap().returnType();
+                }
+            }
+        }
+
+        /** Checks the arguments of a call before it is invoked.
+
+            <p>
+            An exception thrown by <code>invoke</code> is always thrown by the
+            server object, as long as the arguments were accepted first.
+         */
+        boolean accepts(Object[] args) {
+            int count = args == null ? 0 : args.length;
+            if (invoker == null || count != accepted.length) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (args[i] == null ? parameters[i].isPrimitive()
+                                    : !accepted[i].isInstance(args[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Invokes the method on the server object. */
+        Object invoke(Object server, Object[] args) throws Throwable {
+            Object[] arguments = args == null ? NO_ARGUMENTS : args;
+            return (Object) invoker.invokeExact(server, arguments);
+        }
+    }
+
+    private MethodTable(Class<?> c) {
+        boolean eq_ow = false, hash_ow = false, str_ow = false;
+        for (Method method : c.getMethods()) {
+            Class<?>[] parameters = method.getParameterTypes();
+            if (method.getName().equals("equals") && parameters.length == 1 && parameters[0] == Object.class) {
+                eq_ow = true;
+            } else if (method.getName().equals("hashCode") && parameters.length == 0) {
+                hash_ow = true;
+            } else if (method.getName().equals("toString") && parameters.length == 0) {
+                str_ow = true;
+            }
+        }
+        this.equals_remote = eq_ow;
+        this.hash_code_remote = hash_ow;
+        this.to_string_remote = str_ow;
+
+        HashMap<Integer, Entry> unique = new HashMap<Integer, Entry>();
+        this.by_method = new ConcurrentHashMap<Method, Entry>();
+        for (Method method : c.getMethods()) {
+            int id = signature_id(method);
+            if (id == Request.BATCH) {
+                throw new Error("method " + method + " has the identifier reserved for batches");
+            }
+            Entry other = unique.get(id);
+            if (other != null && !same_signature(method, other.method)) {
+                throw new Error("methods " + method + " and " + other.method + " have the same identifier");
+            }
+            if (other == null) {
+                other = new Entry(id, method, REMOTE, invoker(method));
+                unique.put(id, other);
+            }
+            by_method.put(method, other);
+        }
+
+        this.entries = unique.values().toArray(new Entry[0]);
+        Arrays.sort(this.entries, (a, b) -> Integer.compare(a.id, b.id));
+        this.ids = new int[entries.length];
+        HashMap<String, ArrayList<Entry>> names = new HashMap<String, ArrayList<Entry>>();
+        for (int i = 0; i < entries.length; i++) {
+            ids[i] = entries[i].id;
+            names.computeIfAbsent(entries[i].method.getName(), k -> new ArrayList<Entry>()).add(entries[i]);
+        }
+        this.by_name = new HashMap<String, Entry[]>();
+        for (String name : names.keySet()) {
+            by_name.put(name, names.get(name).toArray(new Entry[0]));
+        }
+    }
+
+    /** Returns the table for the given interface. */
+    static MethodTable of(Class<?> c) {
+        MethodTable table = tables.get(c);
+        if (table == null) {
+            tables.putIfAbsent(c, new MethodTable(c));
+            table = tables.get(c);
+        }
+        return table;
+    }
+
+    /** Returns the entry for a method called through a stub.
+
+        <p>
+        Proxies pass <code>equals</code>, <code>hashCode</code> and
+        <code>toString</code> as methods of <code>Object</code>, even when the
+        interface redeclares them. They are answered by the stub unless the
+        interface redeclares them, in which case they are remote calls.
+     */
+    Entry stub_entry(Method method) {
+        Entry entry = by_method.get(method);
+        if (entry == null) {
+            entry = new Entry(signature_id(method), method, local_kind(method), null);
+            by_method.put(method, entry);
+        }
+        return entry;
+    }
+
+    /** Returns the entry with the given identifier, or <code>null</code> if
+        the interface has no such method. */
+    Entry entry(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? null : entries[i];
+    }
+
+    /** Returns the entry with the given name and parameter types, or
+        <code>null</code> if the interface has no such method. */
+    Entry entry(String name, Class<?>[] parameters) {
+        Entry[] candidates = by_name.get(name);
+        if (candidates == null) {
+            return null;
+        }
+        for (Entry candidate : candidates) {
+            if (Arrays.equals(candidate.parameters, parameters)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private int local_kind(Method method) {
+        if (method.getDeclaringClass() != Object.class) {
+            return REMOTE;
+        }
+        String name = method.getName();
+        if (name.equals("equals") && !equals_remote) {
+            return EQUALS;
+        } else if (name.equals("hashCode") && !hash_code_remote) {
+            return HASH_CODE;
+        } else if (name.equals("toString") && !to_string_remote) {
+            return TO_STRING;
+        }
+        return REMOTE;
+    }
+
+    // Adapts the method to a handle taking the server object and the argument
+    // array, so that every method is invoked the same way.
+    private static MethodHandle invoker(Method method) {
+        try {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method)
+                .asSpreader(Object[].class, method.getParameterCount())
+                .asType(INVOKER_TYPE);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static int signature_id(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+        for (Class<?> parameter : method.getParameterTypes()) {
+            signature.append(parameter.getName()).append(';');
+        }
+        signature.append(')');
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(signature.toString().getBytes(StandardCharsets.UTF_8));
+            return ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) | ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-1 not available", e);
+        }
+    }
+
+    private static boolean same_signature(Method a, Method b) {
+        return a.getName().equals(b.getName())
+            && Arrays.equals(a.getParameterTypes(), b.getParameterTypes());
+    }
+}
@@ -0,0 +1,215 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Call metrics of a skeleton, or of all stubs for one remote object.
+
+    <p>
+    Every skeleton records the calls it serves, and the stubs for each remote
+    interface and address share a set of metrics recording the calls they
+    make. For each method, given by its signature, a <code>CallMetrics</code>
+    object counts calls, errors and bytes, and holds latency histograms for
+    each phase of a call. The number of calls outstanding is kept over all
+    methods.
+
+    <p>
+    Metrics can be read through this class, and through JMX: see
+    <code>MetricsMXBean</code>. A skeleton's metrics are registered while it is
+    running; stub metrics are registered when the first stub for the remote
+    object makes a call. Recording can be turned off by setting the system
+    property <code>rmi.metrics</code> to <code>false</code>.
+ */
+public class Metrics implements MetricsMXBean
+{
+    static final boolean ENABLED = !"false".equals(System.getProperty("rmi.metrics"));
+
+    private static final ConcurrentHashMap<Map.Entry<Class<?>, InetSocketAddress>, Metrics> stub_metrics =
+        new ConcurrentHashMap<Map.Entry<Class<?>, InetSocketAddress>, Metrics>();
+
+    private final String name;
+    private final ConcurrentHashMap<String, CallMetrics> methods;
+    private final AtomicLong in_flight;
+    private ObjectName object_name;
+
+    Metrics(String name)
+    {
+        this.name = name;
+        this.methods = new ConcurrentHashMap<String, CallMetrics>();
+        this.in_flight = new AtomicLong(0);
+    }
+
+    /** Returns the metrics shared by the stubs for the given remote object,
+        creating and registering them if necessary. */
+    static Metrics stub(Class<?> c, InetSocketAddress address)
+    {
+        // keyed by the address itself: its string form changes once the host
+        // name has been looked up
+        Map.Entry<Class<?>, InetSocketAddress> key =
+            new AbstractMap.SimpleImmutableEntry<Class<?>, InetSocketAddress>(c, address);
+        Metrics metrics = stub_metrics.get(key);
+        if (metrics == null) {
+            Metrics created = new Metrics("stubs for " + c.getName() + " at " + address.getHostString() + ":" + address.getPort());
+            metrics = stub_metrics.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                metrics.register("Stub", c, address);
+            }
+        }
+        return metrics;
+    }
+
+    /** Returns the metrics recorded by the stubs for the same remote object
+        as the given stub.
+
+        @param stub A stub created by <code>Stub</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by <code>Stub</code>.
+     */
+    public static Metrics of(Object stub)
+    {
+        if (stub == null || !Proxy.isProxyClass(stub.getClass())) {
+            throw new IllegalArgumentException("not a stub");
+        }
+        Object h = Proxy.getInvocationHandler(stub);
+        if (h instanceof MyInvocationHandler) {
+            MyInvocationHandler handler = (MyInvocationHandler) h;
+            return stub(handler.getInterface(), handler.getInetSocketAddress());
+        } else if (h instanceof AsyncInvocationHandler) {
+            AsyncInvocationHandler handler = (AsyncInvocationHandler) h;
+            return stub(handler.getInterface(), handler.getInetSocketAddress());
+        }
+        throw new IllegalArgumentException("not a stub");
+    }
+
+    /** Returns the metrics of the method with the given signature, creating
+        them if no call to the method has been recorded yet. */
+    public CallMetrics method(String signature)
+    {
+        CallMetrics metrics = methods.get(signature);
+        if (metrics == null) {
+            methods.putIfAbsent(signature, new CallMetrics());
+            metrics = methods.get(signature);
+        }
+        return metrics;
+    }
+
+    /** Returns the metrics of every method called so far, by signature. */
+    public Map<String, CallMetrics> methods()
+    {
+        return Collections.unmodifiableMap(new TreeMap<String, CallMetrics>(methods));
+    }
+
+    // in-flight gauge, raised when a call starts and lowered when it ends
+    void begin()
+    {
+        in_flight.incrementAndGet();
+    }
+
+    void end()
+    {
+        in_flight.decrementAndGet();
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public long getInFlight()
+    {
+        return in_flight.get();
+    }
+
+    @Override
+    public long getCalls()
+    {
+        long calls = 0;
+        for (CallMetrics metrics : methods.values()) {
+            calls += metrics.calls();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getErrors()
+    {
+        long errors = 0;
+        for (CallMetrics metrics : methods.values()) {
+            errors += metrics.errors();
+        }
+        return errors;
+    }
+
+    @Override
+    public long getBytesIn()
+    {
+        long bytes = 0;
+        for (CallMetrics metrics : methods.values()) {
+            bytes += metrics.bytesIn();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut()
+    {
+        long bytes = 0;
+        for (CallMetrics metrics : methods.values()) {
+            bytes += metrics.bytesOut();
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, MethodSummary> getMethods()
+    {
+        TreeMap<String, MethodSummary> summaries = new TreeMap<String, MethodSummary>();
+        for (Map.Entry<String, CallMetrics> entry : methods.entrySet()) {
+            summaries.put(entry.getKey(), new MethodSummary(entry.getValue()));
+        }
+        return summaries;
+    }
+
+    // Registers the metrics with the platform MBean server. Failure to
+    // register leaves the metrics readable through this class only.
+    synchronized void register(String type, Class<?> c, InetSocketAddress address)
+    {
+        unregister();
+        try {
+            ObjectName object_name = new ObjectName("rmi:type=" + type
+                + ",interface=" + c.getName()
+                + ",address=" + ObjectName.quote(address.getHostString() + ":" + address.getPort()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(object_name)) {
+                server.unregisterMBean(object_name);
+            }
+            server.registerMBean(this, object_name);
+            this.object_name = object_name;
+        } catch (Exception e) {
+        }
+    }
+
+    synchronized void unregister()
+    {
+        if (object_name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(object_name);
+        } catch (Exception e) {
+        }
+        object_name = null;
+    }
+}
@@ -0,0 +1,107 @@
+package rmi;
+
+import java.util.Map;
+
+/** Management interface of the <code>Metrics</code> of a skeleton or of the
+    stubs for one remote object.
+
+    <p>
+    Each set of metrics is registered with the platform MBean server under the
+    domain <code>rmi</code>, with <code>type=Skeleton</code> or
+    <code>type=Stub</code>, the name of the remote interface, and the address
+    of the skeleton. Latencies are given in microseconds.
+ */
+public interface MetricsMXBean
+{
+    /** Returns a description of the skeleton or stub target. */
+    public String getName();
+
+    /** Returns the number of calls currently outstanding. */
+    public long getInFlight();
+
+    /** Returns the number of calls completed, over all methods. */
+    public long getCalls();
+
+    /** Returns the number of calls that threw an exception. */
+    public long getErrors();
+
+    /** Returns the number of bytes received, over all methods. */
+    public long getBytesIn();
+
+    /** Returns the number of bytes sent, over all methods. */
+    public long getBytesOut();
+
+    /** Returns a summary of the calls to each method, by method signature. */
+    public Map<String, MethodSummary> getMethods();
+
+    /** Summary of the calls to one method. */
+    public static class MethodSummary
+    {
+        private final CallMetrics metrics;
+
+        MethodSummary(CallMetrics metrics)
+        {
+            this.metrics = metrics;
+        }
+
+        public long getCalls()
+        {
+            return metrics.calls();
+        }
+
+        public long getErrors()
+        {
+            return metrics.errors();
+        }
+
+        public long getBytesIn()
+        {
+            return metrics.bytesIn();
+        }
+
+        public long getBytesOut()
+        {
+            return metrics.bytesOut();
+        }
+
+        public double getMeanConnectMicros()
+        {
+            return metrics.connect().mean() / 1000;
+        }
+
+        public double getMeanMarshalMicros()
+        {
+            return metrics.marshal().mean() / 1000;
+        }
+
+        public double getMeanExecuteMicros()
+        {
+            return metrics.execute().mean() / 1000;
+        }
+
+        public double getMeanUnmarshalMicros()
+        {
+            return metrics.unmarshal().mean() / 1000;
+        }
+
+        public double getMeanTotalMicros()
+        {
+            return metrics.total().mean() / 1000;
+        }
+
+        public long getMedianTotalMicros()
+        {
+            return metrics.total().percentile(50) / 1000;
+        }
+
+        public long getP99TotalMicros()
+        {
+            return metrics.total().percentile(99) / 1000;
+        }
+
+        public long getMaxTotalMicros()
+        {
+            return metrics.total().max() / 1000;
+        }
+    }
+}
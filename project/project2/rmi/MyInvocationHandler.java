@@ -0,0 +1,284 @@
+package rmi;
+
+import java.net.*;
+import java.lang.reflect.*;
+import java.lang.Object;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.io.*;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+//import java.lang.reflect.Proxy.ProxyFactory.newProxyInstance; 
+import java.lang.reflect.Proxy;
+
+
+class MyInvocationHandler implements InvocationHandler, Serializable {
+    protected InetSocketAddress address;
+    public InetSocketAddress getInetSocketAddress() {
+        return this.address;
+    }
+    protected Class<?> remoteInterface;
+    public Class<?> getInterface() {
+    	return remoteInterface;
+    }
+    // whether calls share pooled connections (see ConnectionPool) or each
+    // open a connection of their own
+    protected boolean reuse;
+    // resolved once per interface; rebuilt after the stub is deserialized
+    private transient MethodTable table;
+    // timeouts and retries; null in stubs serialized before policies existed
+    private CallPolicy policy;
+    public MyInvocationHandler(InetSocketAddress address, Class<?> remoteInterface) {
+	this(address, remoteInterface, CallPolicy.defaults());
+    }
+    public MyInvocationHandler(InetSocketAddress address, Class<?> remoteInterface, CallPolicy policy) {
+    	this.address = address;
+	this.remoteInterface = remoteInterface;
+	this.reuse = Boolean.parseBoolean(System.getProperty("rmi.reuse", "true"));
+	this.table = MethodTable.of(remoteInterface);
+	this.policy = policy;
+    } 
+
+    CallPolicy policy() {
+        return this.policy == null ? CallPolicy.defaults() : this.policy;
+    }
+
+    private MethodTable table() {
+        if (this.table == null) {
+            this.table = MethodTable.of(this.remoteInterface);
+        }
+        return this.table;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        Object return_obj = null;
+        Reply reply = null;
+	
+        try{
+		MethodTable.Entry entry = table().stub_entry(m);
+		// handle equals, hashcode, toString separately
+		
+		// the method described in the handout would be used if
+		// and only if the method is not overridden and it is 
+		// called with the same signature
+		if ( entry.kind == MethodTable.EQUALS ) {	
+		    if ( args.length != 1 ) {
+		        throw new Error("equal signature mismatch");
+		    }
+		    if (proxy == null && args[0] == null ) {
+		    	return true;
+		    } else if ( proxy == null || args[0] == null ) {
+		    	return false;
+		    } else {
+			try {
+		            MyInvocationHandler mih = this;
+			    InetSocketAddress maddr = mih.getInetSocketAddress();
+			    MyInvocationHandler oih = (MyInvocationHandler) Proxy.getInvocationHandler(args[0]);
+		            InetSocketAddress oaddr = oih.getInetSocketAddress();
+		            return ((mih.getInterface() == oih.getInterface()) && (maddr.equals(oaddr)));
+			} catch ( Throwable t ) {
+			    return false;
+			}
+		    }
+		} else if ( entry.kind == MethodTable.HASH_CODE ) {
+		    MyInvocationHandler mih = this;
+		    InetSocketAddress addr = mih.getInetSocketAddress();
+	            final int prime = 31;
+	            int ret = 0;
+	            Class<?> c = mih.getInterface();
+	            String ret_str = ( addr.toString() + c.toString() );
+	            return ret = ret_str.hashCode();
+		} else if ( entry.kind == MethodTable.TO_STRING ) {
+	  	    MyInvocationHandler mih = this;
+		    InetSocketAddress addr = mih.getInetSocketAddress();
+		    String ret = "Name of RemoteInterface: " + mih.getInterface() + " remote address: " + addr.getHostName() + "; " + addr.getPort(); 
+	            return ret;
+		}
+		if (this.reuse) {
+		    reply = call(entry, args);
+		} else {
+		    // only the single-call protocol sends the method by name
+		    String method_name = m.getName();
+		    Class<?>[] classes = m.getParameterTypes();
+		    int method_argc = classes.length;
+		    long start = System.nanoTime();
+		    long connect = -1, marshal = -1;
+		    boolean failed = true;
+		    try {
+		    CallPolicy policy = policy();
+		    long deadline = Deadline.earliest(policy.deadline() == 0 ? 0 : start + policy.deadline() * 1000000L);
+		    Socket socket = new Socket();
+		    socket.connect(new InetSocketAddress(address.getHostName(), address.getPort()),
+		                   connect_timeout(policy, deadline));
+		    connect = System.nanoTime() - start;
+		    long timeout = policy.timeout();
+		    if (deadline != 0) {
+		        long left = Math.max(1, (deadline - System.nanoTime()) / 1000000L);
+		        timeout = timeout == 0 ? left : Math.min(timeout, left);
+		    }
+		    socket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+		
+		    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+		    out.writeObject(method_name);
+		    out.writeObject(method_argc);
+		
+		    out.writeObject(classes);		
+		    out.writeObject(args);
+
+		    out.flush();
+		    marshal = System.nanoTime() - start - connect;
+		
+		    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+		
+		    int exceptionNum = (int) in.readObject(); 
+		    if ( exceptionNum == -1 ) {
+		        return_obj = in.readObject();
+		        failed = false;
+		    } else if (exceptionNum == -2) {
+		        throw new RMIException("Security Error");
+		    } else {
+		        Throwable t = (Throwable) in.readObject();
+		        throw t;
+		    }
+		    } finally {
+		        if (Metrics.ENABLED) {
+		            Metrics.stub(this.remoteInterface, this.address).method(entry.signature).record(
+		                connect, marshal, -1, -1, System.nanoTime() - start, 0, 0, failed);
+		        }
+		    }
+		}
+
+	    } catch (InvocationTargetException e) {
+	        throw e;
+	    } catch (FileNotFoundException e) {
+		throw e;
+	    } catch (SocketTimeoutException e) {
+	        throw new CallTimeoutException("call timed out", e);
+	    } catch (IOException e) {
+	        throw new RMIException("Fail to invoke a remote call");
+	    } catch (Exception e) {
+		throw e;
+	    } 
+        // remote exceptions are thrown outside the try block, so that an
+        // IOException raised by the server is not mistaken for a network error
+        if (reply != null) {
+            if (reply.status == Reply.RETURN) {
+                return reply.value;
+            } else if (reply.status == Reply.NO_SUCH_METHOD) {
+                throw new RMIException("Security Error");
+            } else {
+                throw (Throwable) reply.value;
+            }
+        }
+        return return_obj;
+    }
+
+    // Makes a call on a pooled connection under the stub's policy. Each
+    // attempt is bounded by the policy's timeout, and the call as a whole by
+    // the policy's deadline and the thread's Deadline. Calls to idempotent
+    // methods that fail because of the network are attempted again after a
+    // backoff.
+    private Reply call(MethodTable.Entry entry, Object[] args) throws RMIException {
+	CallPolicy policy = policy();
+	long start = System.nanoTime();
+	long deadline = Deadline.earliest(policy.deadline() == 0 ? 0 : start + policy.deadline() * 1000000L);
+	for (int attempt = 1; ; attempt++) {
+	    IOException failure;
+	    try {
+	        return call_multiplexed(entry, args, policy, deadline);
+	    } catch (IOException e) {
+	        failure = e;
+	    }
+	    long backoff = policy.backoff(attempt) * 1000000L;
+	    boolean expired = deadline != 0 && System.nanoTime() + backoff - deadline >= 0;
+	    if (!entry.idempotent || attempt >= policy.maxAttempts() || expired) {
+	        if (failure instanceof SocketTimeoutException || expired) {
+	            throw new CallTimeoutException("call to " + entry.signature + " timed out after "
+	                + (System.nanoTime() - start) / 1000000L + " ms", failure);
+	        }
+	        throw new RMIException("Fail to invoke a remote call", failure);
+	    }
+	    try {
+	        Thread.sleep(backoff / 1000000L);
+	    } catch (InterruptedException e) {
+	        throw new RMIException("interrupted while waiting to retry call", e);
+	    }
+	}
+    }
+
+    // Sends the call on a pooled connection. A call that fails on a connection
+    // which has already served other calls is sent once more on a fresh
+    // connection, since the skeleton may have closed the connection while it
+    // was idle, if the call was never written in full or is to an idempotent
+    // method: a call that was written may have run before the connection
+    // failed. Throws IOException if the call fails because of the network or
+    // times out.
+    private Reply call_multiplexed(MethodTable.Entry entry, Object[] args, CallPolicy policy, long deadline)
+	throws IOException, RMIException {
+	ConnectionPool pool = ConnectionPool.get(this.address);
+	Metrics metrics = Metrics.ENABLED ? Metrics.stub(this.remoteInterface, this.address) : null;
+	long start = System.nanoTime();
+	long connect = 0;
+	Request request = null;
+	Reply reply = null;
+	if (policy.timeout() != 0) {
+	    long timeout = start + policy.timeout() * 1000000L;
+	    if (deadline == 0 || timeout - deadline < 0) {
+	        deadline = timeout;
+	    }
+	}
+	if (metrics != null) {
+	    metrics.begin();
+	}
+	try {
+	    for (int attempt = 0; reply == null; attempt++) {
+	        long before = System.nanoTime();
+	        Connection connection = pool.acquire(connect_timeout(policy, deadline));
+	        connect += System.nanoTime() - before;
+	        boolean reused = connection.completed() > 0;
+	        try {
+	            request = new Request(0, entry.id, args);
+	            reply = connection.call(request, deadline);
+	        } catch (SocketTimeoutException e) {
+	            // the connection may only be slow, and stays in the pool
+	            throw e;
+	        } catch (IOException e) {
+	            pool.discard(connection);
+	            if (!reused || attempt > 0 || (request.written && !entry.idempotent)) {
+	                throw e;
+	            }
+	        } catch (InterruptedException e) {
+	            throw new RMIException("interrupted while waiting for reply", e);
+	        }
+	    }
+	    return reply;
+	} finally {
+	    if (metrics != null) {
+	        metrics.end();
+	        metrics.method(entry.signature).record(
+	            connect, request == null ? -1 : request.marshal_nanos, -1,
+	            reply == null ? -1 : reply.unmarshal_nanos, System.nanoTime() - start,
+	            reply == null ? 0 : reply.size, request == null ? 0 : request.size,
+	            reply == null || reply.status != Reply.RETURN);
+	    }
+	}
+    }
+
+    // The connect timeout in milliseconds, shortened to the time left before
+    // the deadline; zero means none.
+    static int connect_timeout(CallPolicy policy, long deadline) throws SocketTimeoutException {
+	long timeout = policy.connectTimeout();
+	if (deadline != 0) {
+	    long left = (deadline - System.nanoTime()) / 1000000L;
+	    if (left <= 0) {
+	        throw new SocketTimeoutException("deadline passed before connecting");
+	    }
+	    if (timeout == 0 || left < timeout) {
+	        timeout = left;
+	    }
+	}
+	return (int) Math.min(timeout, Integer.MAX_VALUE);
+    }
+}
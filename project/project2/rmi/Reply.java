@@ -0,0 +1,32 @@
+package rmi;
+
+/** The result of a <code>Request</code> carried over a multiplexed
+    connection.
+
+    <p>
+    The status codes are the ones written by the single-call protocol: a
+    normal return, a call to a method the skeleton does not serve, or an
+    exception thrown by the server object. The reply to a batch has status
+    <code>BATCH</code>, and its value is an array holding the reply to each
+    call of the batch, in order.
+ */
+class Reply
+{
+    static final int RETURN = -1;
+    static final int NO_SUCH_METHOD = -2;
+    static final int EXCEPTION = 1;
+    static final int BATCH = 2;
+
+    long id;
+    int status;
+    Object value;
+    // set by the connection that receives the reply, for Metrics
+    long unmarshal_nanos = -1;
+    long size;
+
+    Reply(long id, int status, Object value) {
+        this.id = id;
+        this.status = status;
+        this.value = value;
+    }
+}
@@ -0,0 +1,46 @@
+package rmi;
+
+/** A method call carried over a multiplexed connection.
+
+    <p>
+    The identifier is chosen by the stub and is unique among the calls
+    outstanding on one connection. The skeleton echoes it in the matching
+    <code>Reply</code>, so that replies may be sent back in any order. The
+    method is named by its identifier in the interface's
+    <code>MethodTable</code>.
+
+    <p>
+    A request may instead carry a batch of calls, sent together by
+    <code>Batch</code>. Its method identifier is then <code>BATCH</code>, and
+    the skeleton answers it with a single reply carrying one reply per call.
+ */
+class Request
+{
+    static final int BATCH = 0;
+
+    long id;
+    int method_id;
+    Object[] args;
+    // the calls of a batch, and whether they may run at the same time
+    Request[] calls;
+    boolean parallel;
+    // set by the connection that sends the request, for Metrics
+    long marshal_nanos = -1;
+    long size;
+    // set by the connection once the whole request has been written; a
+    // request that was not may be sent again without being run twice
+    boolean written;
+
+    Request(long id, int method_id, Object[] args) {
+        this.id = id;
+        this.method_id = method_id;
+        this.args = args;
+    }
+
+    Request(long id, Request[] calls, boolean parallel) {
+        this.id = id;
+        this.method_id = BATCH;
+        this.calls = calls;
+        this.parallel = parallel;
+    }
+}
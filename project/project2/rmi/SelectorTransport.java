@@ -0,0 +1,492 @@
+package rmi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Skeleton transport built on non-blocking channels.
+
+    <p>
+    An acceptor thread accepts connections and hands them, in turn, to a small
+    number of event loops. Each event loop owns a <code>Selector</code> and
+    does all reading and writing for its connections, so an idle connection
+    holds no thread. Calls read from multiplexed connections are decoded, run
+    and encoded as service tasks on the skeleton's executor; their replies are
+    queued on the connection and written by its event loop.
+
+    <p>
+    A connection that does not begin with <code>Connection.MAGIC</code> comes
+    from a stub using the single-call protocol. It is taken off its event loop,
+    switched to blocking mode and served by a <code>ClientWorker</code>, with
+    the bytes already read given back to it.
+
+    <p>
+    A connection stops being read while <code>MAX_IN_FLIGHT</code> of its calls
+    are running, so that a client cannot queue unbounded work on the server,
+    and is closed if it announces a frame longer than the number of bytes in
+    the system property <code>rmi.max_frame</code>, 64 MB by default, so that
+    it cannot make the server allocate an unbounded read buffer. A connection
+    whose handling fails is closed without affecting the others on its event
+    loop. When the skeleton is stopped, connections stop being read, and each
+    is closed once the replies to the calls already received have been
+    written.
+
+    <p>
+    A failure to accept a connection, such as running out of file
+    descriptors, is reported to the skeleton's <code>service_error</code>, and
+    the acceptor pauses before accepting again, for longer after each failure
+    in a row, rather than retrying at once.
+ */
+class SelectorTransport implements Runnable
+{
+    static final int MAX_IN_FLIGHT = 256;
+    // initial size of each connection's read buffer; grown to fit large frames
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // longest frame read, including its length field
+    static final int MAX_FRAME = Integer.getInteger("rmi.max_frame", 64 << 20);
+    // pauses of the acceptor after failures to accept, in milliseconds,
+    // doubled on each failure in a row up to the maximum
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1000;
+
+    private final Skeleton<?> skeleton;
+    private final Class<?> c;
+    private final ServerSocketChannel server_channel;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean stopping;
+
+    SelectorTransport(Skeleton<?> skeleton, Class<?> c, ServerSocketChannel server_channel, int loop_count)
+        throws IOException
+    {
+        this.skeleton = skeleton;
+        this.c = c;
+        this.server_channel = server_channel;
+        this.loops = new EventLoop[loop_count];
+        for (int i = 0; i < loop_count; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        this.acceptor = new Thread(this, "rmi-acceptor " + server_channel.socket().getLocalPort());
+        this.stopping = false;
+    }
+
+    void start() {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        acceptor.start();
+    }
+
+    /** Stops accepting connections and lets the event loops finish the calls
+        already received. Returns once the listening channel is closed. */
+    void stop() {
+        stopping = true;
+        try {
+            server_channel.close();
+        } catch (IOException e) {
+        }
+        if (Thread.currentThread() != acceptor) {
+            // wakes the acceptor if it is pausing after a failure
+            acceptor.interrupt();
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    // the acceptor thread
+    public void run() {
+        int next = 0;
+        long backoff = 0;
+        while (!stopping) {
+            SocketChannel channel;
+            try {
+                channel = server_channel.accept();
+            } catch (IOException e) {
+                if (stopping || !server_channel.isOpen()) {
+                    return;
+                }
+                skeleton.service_error(new RMIException("cannot accept connection", e));
+                backoff = Math.min(Math.max(MIN_ACCEPT_BACKOFF, backoff * 2), MAX_ACCEPT_BACKOFF);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException f) {
+                    if (stopping) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            backoff = 0;
+            loops[next].add(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /** An event loop serving some of the skeleton's connections. */
+    private class EventLoop implements Runnable
+    {
+        final Thread thread;
+        private final Selector selector;
+        // work handed to the loop by other threads
+        private final ConcurrentLinkedQueue<Runnable> tasks;
+        // touched only by the loop thread
+        private final HashSet<NioConnection> connections;
+        private boolean stopping;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<Runnable>();
+            this.connections = new HashSet<NioConnection>();
+            this.stopping = false;
+            this.thread = new Thread(this, "rmi-event-loop-" + index + " " + server_channel.socket().getLocalPort());
+            this.thread.setDaemon(true);
+        }
+
+        void add(final SocketChannel channel) {
+            submit(new Runnable() {
+                public void run() {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        NioConnection connection = new NioConnection(channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        connections.add(connection);
+                        if (stopping) {
+                            connection.input_closed();
+                        }
+                    } catch (IOException e) {
+                        try {
+                            channel.close();
+                        } catch (IOException f) {
+                        }
+                    }
+                }
+            });
+        }
+
+        void stop() {
+            submit(new Runnable() {
+                public void run() {
+                    stopping = true;
+                    for (NioConnection connection : new ArrayList<NioConnection>(connections)) {
+                        connection.input_closed();
+                    }
+                }
+            });
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!(stopping && connections.isEmpty())) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            skeleton.service_error(new RMIException("event loop task failed", e));
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // one bad connection must not end the loop
+                            skeleton.service_error(new RMIException("connection failed", e));
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                skeleton.service_error(new RMIException("event loop failed", e));
+            } finally {
+                for (NioConnection connection : new ArrayList<NioConnection>(connections)) {
+                    connection.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /** State of one connection, touched only by the loop thread except
+            for the reply queue. */
+        private class NioConnection
+        {
+            private final SocketChannel channel;
+            SelectionKey key;
+            private ByteBuffer in;
+            private Codec codec;
+            private final ConcurrentLinkedQueue<Outgoing> out;
+            private int in_flight;
+            private boolean input_closed;
+            // set once the connection is closed; replies queued after that
+            // are released by the service task that queued them
+            private volatile boolean closed;
+
+            NioConnection(SocketChannel channel) {
+                this.channel = channel;
+                this.in = ByteBuffer.allocate(BUFFER_SIZE);
+                this.codec = null;
+                this.out = new ConcurrentLinkedQueue<Outgoing>();
+                this.in_flight = 0;
+                this.input_closed = false;
+            }
+
+            void read() throws IOException {
+                if (channel.read(in) < 0) {
+                    input_closed();
+                    return;
+                }
+                parse();
+            }
+
+            // Starts a call for each complete frame in the read buffer, up to
+            // MAX_IN_FLIGHT calls, and grows the buffer if the next frame
+            // does not fit in it.
+            private void parse() throws IOException {
+                in.flip();
+                if (codec == null && !preamble()) {
+                    return;
+                }
+                while (in_flight < MAX_IN_FLIGHT) {
+                    long length = Frame.frame_length(in);
+                    if (length < 0 || in.remaining() < length) {
+                        break;
+                    }
+                    call(Frame.read(in));
+                }
+                long needed = Frame.frame_length(in);
+                if (needed > MAX_FRAME) {
+                    throw new StreamCorruptedException("frame of " + needed + " bytes exceeds limit of "
+                                                       + MAX_FRAME);
+                }
+                in.compact();
+                if (needed > in.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate((int) needed);
+                    in.flip();
+                    larger.put(in);
+                    in = larger;
+                }
+                interest();
+            }
+
+            // Reads the connection preamble. Returns false if the connection
+            // is not yet ready for frames, or has been handed off.
+            private boolean preamble() throws IOException {
+                if (in.remaining() < 4) {
+                    in.compact();
+                    return false;
+                }
+                if (in.getInt(in.position()) != Connection.MAGIC) {
+                    hand_off();
+                    return false;
+                }
+                if (in.remaining() < 5) {
+                    in.compact();
+                    return false;
+                }
+                in.getInt();
+                int codec_id = in.get() & 0xff;
+                codec = Codec.for_id(codec_id);
+                if (codec == null) {
+                    throw new StreamCorruptedException("unknown codec " + codec_id);
+                }
+                return true;
+            }
+
+            // Gives a single-call connection to a blocking ClientWorker. The
+            // key must be deregistered before the channel can block, which
+            // the next select does; the rest is therefore left to a task,
+            // which runs after it and outside the iteration over the
+            // selected keys.
+            private void hand_off() {
+                final byte[] preread = new byte[in.remaining()];
+                in.get(preread);
+                connections.remove(this);
+                key.cancel();
+                submit(new Runnable() {
+                    @SuppressWarnings({"unchecked", "rawtypes"})
+                    public void run() {
+                        try {
+                            channel.configureBlocking(true);
+                            skeleton.execute(new ClientWorker(channel.socket(), skeleton.server(), (Skeleton) skeleton,
+                                                              c, preread));
+                        } catch (IOException | RejectedExecutionException e) {
+                            try {
+                                channel.close();
+                            } catch (IOException f) {
+                            }
+                            skeleton.service_error(new RMIException("connection could not be handed off", e));
+                        }
+                    }
+                });
+            }
+
+            // Runs a call as a service task, which queues the reply.
+            private void call(final Frame.Incoming frame) {
+                in_flight++;
+                try {
+                    skeleton.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                Frame reply = skeleton.serve(codec, frame);
+                                try {
+                                    out.add(new Outgoing(reply, frame.id));
+                                } catch (IOException e) {
+                                    reply.release();
+                                    throw e;
+                                }
+                                if (closed) {
+                                    // close() may have drained the queue
+                                    // before the reply was added
+                                    release();
+                                }
+                            } catch (IOException e) {
+                                // no reply can be sent; the stub fails the
+                                // call when the connection closes
+                            }
+                            submit(new Runnable() {
+                                public void run() {
+                                    replied();
+                                }
+                            });
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    in_flight--;
+                    skeleton.service_error(new RMIException("call rejected by executor", e));
+                    close();
+                }
+            }
+
+            private void replied() {
+                in_flight--;
+                if (!key.isValid()) {
+                    return;
+                }
+                try {
+                    write();
+                    if (in_flight == MAX_IN_FLIGHT - 1) {
+                        // frames may have been left in the buffer at the limit
+                        parse();
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            void write() throws IOException {
+                Outgoing reply;
+                while ((reply = out.peek()) != null) {
+                    if (!reply.write(channel)) {
+                        break;
+                    }
+                    out.poll();
+                }
+                interest();
+            }
+
+            void input_closed() {
+                input_closed = true;
+                interest();
+            }
+
+            // Updates the events the loop waits for, and closes the
+            // connection once it has nothing left to do.
+            private void interest() {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (input_closed && in_flight == 0 && out.isEmpty()) {
+                    close();
+                    return;
+                }
+                int ops = 0;
+                if (!input_closed && in_flight < MAX_IN_FLIGHT) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (!out.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+
+            void close() {
+                closed = true;
+                connections.remove(this);
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+                release();
+            }
+
+            // Releases the replies left unwritten.
+            private void release() {
+                Outgoing reply;
+                while ((reply = out.poll()) != null) {
+                    reply.frame.release();
+                }
+            }
+        }
+    }
+
+    /** A reply queued on a connection, written as far as the channel will
+        take it each time the connection is writable. A file region is
+        written with <code>transferTo</code> after the frame's buffers. */
+    private static class Outgoing
+    {
+        final Frame frame;
+        private final ByteBuffer[] buffers;
+
+        Outgoing(Frame frame, long id) throws IOException {
+            this.frame = frame;
+            this.buffers = frame.to_buffers(id);
+        }
+
+        // Returns true once the whole reply has been written.
+        boolean write(SocketChannel channel) throws IOException {
+            channel.write(buffers);
+            if (buffers[buffers.length - 1].hasRemaining()) {
+                return false;
+            }
+            if (frame.region() != null && !frame.region().transfer(channel)) {
+                return false;
+            }
+            frame.release();
+            return true;
+        }
+    }
+}
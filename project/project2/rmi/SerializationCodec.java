@@ -0,0 +1,50 @@
+package rmi;
+
+import java.io.*;
+
+/** Codec that writes arguments and results with Java serialization.
+
+    <p>
+    Each frame carries its own object stream, so no class descriptors are
+    shared between frames. <code>BinaryCodec</code> falls back to this encoding
+    for objects it has no specialised encoder for.
+ */
+class SerializationCodec implements Codec
+{
+    static final int ID = 0;
+    static final SerializationCodec INSTANCE = new SerializationCodec();
+
+    public int id() {
+        return ID;
+    }
+
+    public void encode_request(Request request, DataOutputStream out) throws IOException {
+        out.writeInt(request.method_id);
+        write_object(request.args, out);
+    }
+
+    public Request decode_request(long id, DataInputStream in) throws IOException, ClassNotFoundException {
+        int method_id = in.readInt();
+        return new Request(id, method_id, (Object[]) read_object(in));
+    }
+
+    public void encode_reply(Reply reply, DataOutputStream out) throws IOException {
+        out.writeByte(reply.status);
+        write_object(reply.value, out);
+    }
+
+    public Reply decode_reply(long id, DataInputStream in) throws IOException, ClassNotFoundException {
+        int status = in.readByte();
+        return new Reply(id, status, read_object(in));
+    }
+
+    static void write_object(Object value, OutputStream out) throws IOException {
+        ObjectOutputStream object_out = new ObjectOutputStream(out);
+        object_out.writeObject(value);
+        object_out.flush();
+    }
+
+    static Object read_object(InputStream in) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(in).readObject();
+    }
+}
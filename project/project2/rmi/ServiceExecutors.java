@@ -0,0 +1,159 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Executors for running skeleton service threads.
+
+    <p>
+    A skeleton runs the service of each connection, and of each call received
+    on a multiplexed connection, as a task on an <code>Executor</code>. By
+    default every task is given a new platform thread, with no upper limit.
+    The executors returned by this class can be passed to the
+    <code>Skeleton</code> constructor or to <code>setExecutor</code> to bound
+    the number of threads instead.
+
+    <p>
+    Care must be taken with bounded executors when the server object has
+    methods that block until another call is made - the naming server's
+    <code>lock</code>, for example. If every thread is blocked in such a call,
+    the call that would release them waits in the queue and the server
+    deadlocks. The pool must be sized for the largest number of calls that may
+    block at the same time.
+ */
+public abstract class ServiceExecutors
+{
+    /** Returns an executor that starts a new platform thread for each task.
+        This is the behavior of a skeleton with no executor set.
+     */
+    public static Executor threadPerRequest()
+    {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+    }
+
+    /** Returns an executor with a fixed number of platform threads and a
+        bounded admission queue.
+
+        <p>
+        Tasks submitted while all threads are busy wait in the queue. When the
+        queue is also full, the submitting thread blocks until there is room.
+        For a skeleton this means that the listening thread stops accepting
+        connections, and the threads reading multiplexed connections stop
+        reading calls, so that the backlog is pushed back onto the clients
+        instead of accumulating on the server.
+
+        @param threads The number of service threads.
+        @param queue_capacity The number of tasks that may wait for a thread.
+        @throws IllegalArgumentException If <code>threads</code> is not
+                                         positive or
+                                         <code>queue_capacity</code> is
+                                         negative.
+     */
+    public static ExecutorService bounded(int threads, int queue_capacity)
+    {
+        if (threads <= 0 || queue_capacity < 0) {
+            throw new IllegalArgumentException("bad pool size");
+        }
+
+        BlockingQueue<Runnable> queue;
+        if (queue_capacity == 0) {
+            queue = new SynchronousQueue<Runnable>();
+        } else {
+            queue = new ArrayBlockingQueue<Runnable>(queue_capacity);
+        }
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                      queue, new ServiceThreadFactory("rmi-service-"),
+                                      new BlockingAdmission());
+    }
+
+    /** Returns an executor that starts a new virtual thread for each task.
+
+        <p>
+        Virtual threads are cheap enough that one may be created for every
+        call, even when tens of thousands of calls are outstanding. They are
+        available from Java 21. On an older runtime this method returns
+        <code>threadPerRequest()</code> instead.
+     */
+    public static Executor virtualThreadPerRequest()
+    {
+        try {
+            // looked up at run time so that the library still builds and runs
+            // on Java versions without virtual threads
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return threadPerRequest();
+        }
+    }
+
+    // Returns a pool of up to limit threads, each reading one multiplexed
+    // connection for as long as it stays open. Threads are created as
+    // connections arrive and end after a minute idle. A connection beyond the
+    // limit is rejected rather than queued, since it would wait for another
+    // connection to close.
+    static ThreadPoolExecutor connectionReaders(int limit)
+    {
+        return new ThreadPoolExecutor(0, limit, 60L, TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(),
+                                      new ServiceThreadFactory("rmi-connection-"));
+    }
+
+    // Makes a full pool block the submitting thread until the queue has room.
+    // A task submitted by one of the pool's own threads - a service task
+    // running the calls of a parallel batch, for example - is run by that
+    // thread instead, since every thread of the pool could otherwise be
+    // blocked waiting for room that only they can make.
+    private static class BlockingAdmission implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+            ThreadFactory factory = executor.getThreadFactory();
+            if (factory instanceof ServiceThreadFactory && ((ServiceThreadFactory) factory).created(Thread.currentThread())) {
+                task.run();
+                return;
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for admission", e);
+            }
+        }
+    }
+
+    // Service threads are daemons, so that an idle pool does not keep the
+    // virtual machine running.
+    private static class ServiceThreadFactory implements ThreadFactory
+    {
+        private static final AtomicInteger pool_number = new AtomicInteger(0);
+        private final int pool = pool_number.incrementAndGet();
+        private final AtomicInteger thread_number = new AtomicInteger(0);
+        private final String prefix;
+        private final ThreadGroup group;
+
+        ServiceThreadFactory(String prefix) {
+            this.prefix = prefix;
+            this.group = new ThreadGroup(prefix + pool);
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(group, task, prefix + pool + "-" + thread_number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        boolean created(Thread thread) {
+            return thread.getThreadGroup() == group;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package rmi;
 
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.lang.reflect.*;
 import java.lang.Object;
 import java.lang.reflect.InvocationHandler;
@@ -11,6 +12,14 @@ import java.io.Serializable;
 import java.net.InetSocketAddress;
 //import java.lang.reflect.Proxy.ProxyFactory.newProxyInstance; 
 import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** RMI skeleton
 
@@ -44,6 +53,21 @@ public class Skeleton<T>
     public ServerSocket serverSocket;
     private Thread listen_thread;
     private Listener listener;
+    private volatile Executor executor;
+    private MethodTable table;
+    // number of selector event loops; zero for a thread per connection
+    private int event_loops = Integer.getInteger("rmi.event_loops", 0);
+    private SelectorTransport transport;
+    // the most multiplexed connections read at once when an executor is set
+    private int max_connections = Integer.getInteger("rmi.max_connections", 1024);
+    // threads reading multiplexed connections when an executor is set
+    private volatile ThreadPoolExecutor readers;
+    // calls served, by method; registered with JMX while running
+    private final Metrics metrics;
+    // the most threads that run the calls of one parallel batch
+    private static final int BATCH_THREADS = 8;
+    // sockets carrying multiplexed connections, closed for reading on stop
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
     public String hostname() {
     	return hostname;
     }
@@ -59,6 +83,12 @@ public class Skeleton<T>
     public T server() {
     	return server;
     }
+    void add_connection(Socket socket) {
+        connections.add(socket);
+    }
+    void remove_connection(Socket socket) {
+        connections.remove(socket);
+    }
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
         called. Equivalent to using <code>Skeleton(null)</code>.
@@ -115,6 +145,8 @@ public class Skeleton<T>
 	    
 	this.c = c;
 	this.server = server;
+	this.table = MethodTable.of(c);
+	this.metrics = new Metrics("skeleton for " + c.getName());
 	this.isStopped = true;
 	this.hostname = "wildcard";
    }
@@ -174,6 +206,8 @@ public class Skeleton<T>
 	}    
 	this.c = c;
 	this.server = server;
+	this.table = MethodTable.of(c);
+	this.metrics = new Metrics("skeleton for " + c.getName());
 	this.isStopped = true;
 	if ( address != null ) {
 	    this.hostname = address.getHostName();
@@ -181,6 +215,285 @@ public class Skeleton<T>
 	}
     }
 
+    /** Creates a <code>Skeleton</code> with the given initial server address,
+        whose service threads are run by the given executor.
+
+        @param c An object representing the class of the interface for which the
+                 skeleton server is to handle method call requests.
+        @param server An object implementing said interface. Requests for method
+                      calls are forwarded by the skeleton to this object.
+        @param address The address at which the skeleton is to run. If
+                       <code>null</code>, the address will be chosen by the
+                       system when <code>start</code> is called.
+        @param executor The executor used to serve connections and calls. If
+                        <code>null</code>, a new thread is created for each.
+        @throws Error If <code>c</code> does not represent a remote interface -
+                      an interface whose methods are all marked as throwing
+                      <code>RMIException</code>.
+        @throws NullPointerException If either of <code>c</code> or
+                                     <code>server</code> is <code>null</code>.
+     */
+    public Skeleton(Class<T> c, T server, InetSocketAddress address, Executor executor)
+    {
+        this(c, server, address);
+        this.executor = executor;
+    }
+
+    /** Sets the executor used to serve connections and calls.
+
+        <p>
+        The executor takes effect for connections accepted after this call. It
+        is not shut down when the skeleton stops; the caller remains
+        responsible for it. See <code>ServiceExecutors</code> for bounded and
+        virtual-thread executors.
+
+        @param executor The executor, or <code>null</code> to create a new
+                        thread for each connection and call.
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /** Sets the number of event loops serving connections.
+
+        <p>
+        By default the skeleton listens with a blocking server socket and
+        serves each connection on a thread of its own, which is held for as
+        long as the connection stays open. With one or more event loops, the
+        skeleton instead uses non-blocking channels: the event loops do all
+        reading and writing on connections kept open by stubs, and only the
+        calls themselves are run as service tasks. Idle connections then hold
+        no thread, so the skeleton can keep many thousands of them open.
+        Connections from stubs that open one connection per call are still
+        served by a thread each.
+
+        <p>
+        The default is taken from the system property
+        <code>rmi.event_loops</code>, or is zero if the property is not set.
+        The setting takes effect the next time the skeleton is started.
+
+        @param loops The number of event loops, or zero to serve each
+                     connection on a thread of its own.
+        @throws IllegalArgumentException If <code>loops</code> is negative.
+     */
+    public synchronized void setEventLoops(int loops)
+    {
+        if (loops < 0) {
+            throw new IllegalArgumentException("negative number of event loops");
+        }
+        this.event_loops = loops;
+    }
+
+    /** Sets the most connections kept open by stubs that are served at once
+        when an executor is set.
+
+        <p>
+        With an executor set and no event loops, each connection kept open by
+        a stub is read by a thread of the skeleton's own, so that it does not
+        hold one of the executor's threads for as long as it stays open. A
+        connection accepted while this many are already being read is closed,
+        and reported to <code>service_error</code>.
+
+        <p>
+        The default is taken from the system property
+        <code>rmi.max_connections</code>, or is 1024 if the property is not
+        set. The setting takes effect the next time the skeleton is started.
+
+        @param connections The most connections read at once.
+        @throws IllegalArgumentException If <code>connections</code> is not
+                                         positive.
+     */
+    public synchronized void setMaxConnections(int connections)
+    {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("non-positive number of connections");
+        }
+        this.max_connections = connections;
+    }
+
+    // Reads a multiplexed connection on a thread of the skeleton's own.
+    // Throws RejectedExecutionException if max_connections are already being
+    // read, or the skeleton is stopped.
+    void read_connection(Runnable task)
+    {
+        ThreadPoolExecutor readers = this.readers;
+        if (readers == null) {
+            throw new RejectedExecutionException("skeleton is stopped");
+        }
+        readers.execute(task);
+    }
+
+    // Runs a service task on the executor, or on a new thread if none is set.
+    void execute(Runnable task)
+    {
+        Executor executor = this.executor;
+        if (executor == null) {
+            new Thread(task).start();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    // Whether service tasks run on a shared executor, whose threads must not
+    // be held for the lifetime of a connection.
+    boolean pooled()
+    {
+        return this.executor != null;
+    }
+
+    // The dispatch table of the remote interface, built by the constructor.
+    MethodTable table()
+    {
+        return this.table;
+    }
+
+    /** Returns the metrics of the calls served by this skeleton. */
+    public Metrics metrics()
+    {
+        return this.metrics;
+    }
+
+    // Runs the calls of a batch. Every call is run, whether or not an earlier
+    // one threw. Ordered calls run one after another on this thread. Parallel
+    // calls are taken in turn by this thread and by up to BATCH_THREADS - 1
+    // service tasks; since this thread runs whatever calls are left, the
+    // batch completes even if the executor has no thread to spare.
+    private Reply[] dispatch_batch(final Request[] calls, boolean parallel) {
+        final Reply[] replies = new Reply[calls.length];
+        if (!parallel || calls.length < 2) {
+            for (int i = 0; i < calls.length; i++) {
+                replies[i] = dispatch(calls[i]);
+            }
+            return replies;
+        }
+
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(calls.length);
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < calls.length) {
+                    replies[i] = dispatch(calls[i]);
+                    done.countDown();
+                }
+            }
+        };
+        try {
+            for (int k = 1; k < Math.min(calls.length, BATCH_THREADS); k++) {
+                this.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // this thread runs the remaining calls itself
+        }
+        worker.run();
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return replies;
+    }
+
+    // Decodes a call received on a multiplexed connection, runs it, and
+    // encodes the reply. A call whose arguments or result cannot be encoded
+    // is answered with an RMIException.
+    Frame serve(Codec codec, Frame.Incoming frame) throws IOException {
+        long start = System.nanoTime();
+        long unmarshal = -1, execute = -1, marshal = -1;
+        String signature = "unknown";
+        boolean failed = true;
+        Frame reply = null;
+        if (Metrics.ENABLED) {
+            this.metrics.begin();
+        }
+        try {
+            Request request = frame.request(codec);
+            long decoded = System.nanoTime();
+            unmarshal = decoded - start;
+            signature = signature(request);
+            Reply result = dispatch_single(request);
+            long executed = System.nanoTime();
+            execute = executed - decoded;
+            try {
+                reply = Frame.reply(codec, result);
+            } finally {
+                if (reply == null && result.value instanceof FileRegion) {
+                    ((FileRegion) result.value).close();
+                }
+            }
+            if (reply.wire_size() - 4 > Integer.MAX_VALUE) {
+                reply.release();
+                throw new IOException("result too large to send");
+            }
+            marshal = System.nanoTime() - executed;
+            failed = result.status != Reply.RETURN && result.status != Reply.BATCH;
+        } catch (IOException | ClassNotFoundException e) {
+            reply = new Frame();
+            RMIException error = new RMIException("cannot marshal call", e);
+            codec.encode_reply(new Reply(frame.id, Reply.EXCEPTION, error), reply.data);
+        } finally {
+            if (Metrics.ENABLED) {
+                this.metrics.end();
+                this.metrics.method(signature).record(
+                    -1, marshal, execute, unmarshal, System.nanoTime() - start,
+                    frame.wire_size(), reply == null ? 0 : reply.wire_size(), failed);
+            }
+        }
+        return reply;
+    }
+
+    // Runs a call received on a multiplexed connection. A server object that
+    // is a FileRegionSource may answer a call returning a byte array with a
+    // region of a file, which is sent without being read into the heap.
+    private Reply dispatch_single(Request request) {
+        if (request.calls == null && this.server instanceof FileRegionSource) {
+            MethodTable.Entry method = this.table.entry(request.method_id);
+            if (method != null && method.method.getReturnType() == byte[].class && method.accepts(request.args)) {
+                try {
+                    FileRegion region = ((FileRegionSource) this.server).region(method.method, request.args);
+                    if (region != null) {
+                        return new Reply(request.id, Reply.RETURN, region);
+                    }
+                } catch (Throwable t) {
+                    return new Reply(request.id, Reply.EXCEPTION, t);
+                }
+            }
+        }
+        return dispatch(request);
+    }
+
+    // The name under which a call is recorded in the skeleton's metrics.
+    private String signature(Request request) {
+        if (request.calls != null) {
+            return "batch";
+        }
+        MethodTable.Entry method = this.table.entry(request.method_id);
+        return method == null ? "unknown" : method.signature;
+    }
+
+    // Invokes the requested method on the server object.
+    Reply dispatch(Request request) {
+        if (request.calls != null) {
+            return new Reply(request.id, Reply.BATCH, dispatch_batch(request.calls, request.parallel));
+        }
+        MethodTable.Entry method = this.table.entry(request.method_id);
+        if (method == null || !method.accepts(request.args)) {
+            return new Reply(request.id, Reply.NO_SUCH_METHOD, null);
+        }
+        try {
+            return new Reply(request.id, Reply.RETURN, method.invoke(this.server, request.args));
+        } catch (Throwable t) {
+            return new Reply(request.id, Reply.EXCEPTION, t);
+        }
+    }
+
     /** Called when the listening thread exits.
 
         <p>
@@ -240,7 +553,8 @@ public class Skeleton<T>
         <p>
         A thread is created to listen for connection requests, and the method
         returns immediately. Additional threads are created when connections are
-        accepted. The network address used for the server is determined by which
+        accepted, or service tasks are given to the executor if one has been
+        set. The network address used for the server is determined by which
         constructor was used to create the <code>Skeleton</code> object.
 
         @throws RMIException When the listening socket cannot be created or
@@ -265,14 +579,32 @@ public class Skeleton<T>
 
 	this.isStopped = false;	
 	try {
+	    if (this.event_loops > 0) {
+	        ServerSocketChannel channel = ServerSocketChannel.open();
+	        try {
+	            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+	            channel.bind(new InetSocketAddress(this.port));
+	            this.serverSocket = channel.socket();
+	            this.port = this.serverSocket.getLocalPort();
+	            this.transport = new SelectorTransport(this, this.c, channel, this.event_loops);
+	        } catch (IOException e) {
+	            channel.close();
+	            throw e;
+	        }
+	        this.transport.start();
+	        this.metrics.register("Skeleton", this.c, new InetSocketAddress(this.hostname, this.port));
+	        return;
+	    }
   	    this.serverSocket = new ServerSocket(this.port);
 		if (this.port == 0)
 		{
 			this.port = this.serverSocket.getLocalPort();
 		}
+	    this.readers = ServiceExecutors.connectionReaders(this.max_connections);
 	    this.listener = new Listener(this, this.serverSocket, this.c);
             this.listen_thread = new Thread(this.listener);
 	    this.listen_thread.start();
+	    this.metrics.register("Skeleton", this.c, new InetSocketAddress(this.hostname, this.port));
 	    return;        
 	} catch (IOException e ) {
 	    throw new RMIException("listening port cannot be created!");	
@@ -287,11 +619,20 @@ public class Skeleton<T>
         method return. The server stops at some later time; the method
         <code>stopped</code> is called at that point. The server may then be
         restarted.
+
+        <p>
+        Connections kept open by stubs for multiple calls stop accepting new
+        calls. Calls already received are completed and their results sent
+        before the connection is closed.
      */
     public synchronized void stop()
     {	
 	if ( !this.isStopped() ) {	
 	}
+	if ( this.transport != null ) {
+	    this.transport.stop();
+	    this.transport = null;
+	}
 	if ( this.listen_thread != null && this.listen_thread.isAlive() ) {
 	    this.listen_thread.stop();
             try {
@@ -299,6 +640,18 @@ public class Skeleton<T>
             } catch ( Exception e ) {
             }
 	}
+	for (Socket socket : this.connections) {
+	    try {
+	        socket.shutdownInput();
+	    } catch (IOException e) {
+	    }
+	}
+	if ( this.readers != null ) {
+	    // readers end as their connections, shut down above, are drained
+	    this.readers.shutdown();
+	    this.readers = null;
+	}
+	this.metrics.unregister();
 	this.isStopped = true;
 	this.stopped(null);
 	return;
@@ -323,7 +676,12 @@ class Listener<T> implements Runnable {
  	    try {
  	        if ( ! this.skeleton.isStopped() ) {
  	    	    Socket socket = this.serverSocket.accept();
-		    new Thread( new ClientWorker(socket, this.skeleton.server(), this.skeleton, this.c)).start();
+		    try {
+		        this.skeleton.execute(new ClientWorker(socket, this.skeleton.server(), this.skeleton, this.c));
+		    } catch (RejectedExecutionException e) {
+		        socket.close();
+		        this.skeleton.service_error(new RMIException("connection rejected by executor", e));
+		    }
 	    	} else {
 		    return;
 		}
@@ -344,80 +702,3 @@ class Listener<T> implements Runnable {
 	}
     }
 }
-
-
-// The thread is trigged if a socket request is accepted
-// The thread receives the signature of the called method
-class ClientWorker<T> implements Runnable {
-    private Socket socket;
-    private T server;
-    private Skeleton<T> skeleton; 
-    private Class<?> c;
-    
-    ClientWorker(Socket socket, T server, Skeleton<T> skeleton, Class<?> c) {
-        this.socket = socket;
-        this.server = server;
-        this.skeleton = skeleton;
-        this.c = c;
-    }
-
-    public void run() {
-        try {
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            Class<?> return_class;
-            String method_name;
-            Integer method_argc;
-            try { 
-                method_name = (String) in.readObject();
-           	method_argc = (Integer) in.readObject();
-            } catch ( ClassNotFoundException e ) {
-       	        throw e;
-            }
-            Class<?>[] classes = new Class<?>[method_argc];
-            Object[] args = new Object[method_argc];
-            try { 
-		classes = (Class<?>[])in.readObject();		
-		args = (Object[])in.readObject();
-            } catch ( ClassNotFoundException e ) {
-                  throw e;
-            }
-            Method method;
-            int exceptionNum = -1;
-	    // Take care that this.server.class and this.c can be different
-	    // this.server implements a superset of c
-            try {
-                method = this.c.getMethod(method_name, classes);
-            } catch ( NoSuchMethodException e ) {
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream()); 
-                out.writeObject(-2);
-                out.flush();
-                socket.close();
-        	throw e;
-	    }
-	    if(!method.isAccessible()) {
-  	        method.setAccessible(true);
-	     }
-
-            Class<?>[] exceptions = method.getExceptionTypes();
-            Object return_obj;
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream()); 
-            try {
-                return_obj = method.invoke(this.server, args);
-                out.writeObject(-1);
-                out.writeObject(return_obj);
-            } catch ( InvocationTargetException e ) {
-		Throwable ex = e.getCause();
-                out.writeObject(1);
-                out.writeObject(ex);
-	    }
-            out.flush();
-            socket.close();
-        } catch (IOException e ) {
-	    RMIException ex_rmi = new RMIException("Service Error!");
-	    this.skeleton.service_error(ex_rmi);
-        } catch (ClassNotFoundException e) {
-        } catch (NoSuchMethodException e) {
-        } catch (Exception e) {
-	}
-    }    
-}
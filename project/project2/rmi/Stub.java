@@ -13,117 +13,6 @@ import java.net.InetSocketAddress;
 import java.lang.reflect.Proxy;
 
 
-class MyInvocationHandler implements InvocationHandler, Serializable {
-    protected InetSocketAddress address;
-    public InetSocketAddress getInetSocketAddress() {
-        return this.address;
-    }
-    protected Class<?> remoteInterface;
-    public Class<?> getInterface() {
-    	return remoteInterface;
-    }
-    public MyInvocationHandler(InetSocketAddress address, Class<?> remoteInterface) {
-    	this.address = address;
-	this.remoteInterface = remoteInterface;
-    } 
-
-    @Override
-    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
-        Object return_obj = null;
-	
-        try{
-		String method_name = m.getName();
-		Class<?>[] classes = m.getParameterTypes();
-		Class<?>[] exceptions = m.getExceptionTypes();
-		Method[] allmethods = this.remoteInterface.getDeclaredMethods();
-		boolean eq_ow = false, str_ow = false, hash_ow = false;
-
-		for (int i = 0; i < allmethods.length; i++) {
-	    	    if ( allmethods[i].getName() == "equals" && allmethods[i].getParameterCount() == 1 && allmethods[i].getParameterTypes()[0].getName() == "java.lang.Object") { 
-		        eq_ow = true;
-		    }
-    		    if ( allmethods[i].getName() == "hashCode" && allmethods[i].getParameterCount() == 0)
-                        hash_ow = true;
-		    if ( allmethods[i].getName() == "toString" && allmethods[i].getParameterCount() == 0)
-                        str_ow = true;
-		}
-		// handle equals, hashcode, toString separately
-		
-		// the method described in the handout would be used if
-		// and only if the method is not overridden and it is 
-		// called with the same signature
-		if ( method_name == "equals" && !eq_ow && m.getParameterCount() == 1 && m.getParameterTypes()[0].getName() == "java.lang.Object" ) {	
-		    if ( args.length != 1 ) {
-		        throw new Error("equal signature mismatch");
-		    }
-		    if (proxy == null && args[0] == null ) {
-		    	return true;
-		    } else if ( proxy == null || args[0] == null ) {
-		    	return false;
-		    } else {
-			try {
-		            MyInvocationHandler mih = this;
-			    InetSocketAddress maddr = mih.getInetSocketAddress();
-			    MyInvocationHandler oih = (MyInvocationHandler) Proxy.getInvocationHandler(args[0]);
-		            InetSocketAddress oaddr = oih.getInetSocketAddress();
-		            return ((mih.getInterface() == oih.getInterface()) && (maddr.equals(oaddr)));
-			} catch ( Throwable t ) {
-			    return false;
-			}
-		    }
-		} else if ( method_name == "hashCode" && !hash_ow && m.getParameterCount() == 0) {
-		    MyInvocationHandler mih = this;
-		    InetSocketAddress addr = mih.getInetSocketAddress();
-	            final int prime = 31;
-	            int ret = 0;
-	            Class<?> c = mih.getInterface();
-	            String ret_str = ( addr.toString() + c.toString() );
-	            return ret = ret_str.hashCode();
-		} else if (method_name == "toString" &&  !str_ow && m.getParameterCount() == 0) {
-	  	    MyInvocationHandler mih = this;
-		    InetSocketAddress addr = mih.getInetSocketAddress();
-		    String ret = "Name of RemoteInterface: " + mih.getInterface() + " remote address: " + addr.getHostName() + "; " + addr.getPort(); 
-	            return ret;
-		}
-		int method_argc = classes.length;
-		int method_exc = exceptions.length; 
-		Socket socket = new Socket(address.getHostName(), address.getPort());
-		
-		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-		out.writeObject(method_name);
-		out.writeObject(method_argc);
-		
-		out.writeObject(classes);		
-		out.writeObject(args);
-
-		out.flush();
-		
-		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-		
-		int exceptionNum = (int) in.readObject(); 
-		if ( exceptionNum == -1 ) {
-		    return_obj = in.readObject();
-		} else if (exceptionNum == -2) {
-		    throw new RMIException("Security Error");
-		} else {
-		    Throwable t = (Throwable) in.readObject();
-		    throw t;
-		}
-
-	    } catch (InvocationTargetException e) {
-	        throw e;
-	    } catch (FileNotFoundException e) {
-		throw e;
-	    } catch (IOException e) {
-	        throw new RMIException("Fail to invoke a remote call");
-	    } catch (Exception e) {
-		throw e;
-	    } 
-        return return_obj;
-    }
-}
-
-
 /** RMI stub factory.
 
     <p>
@@ -136,6 +25,13 @@ class MyInvocationHandler implements InvocationHandler, Serializable {
     may not be modified afterwards. Two stubs are equal if they implement the
     same interface and carry the same remote server address - and would
     therefore connect to the same skeleton. Stubs are serializable.
+
+    <p>
+    By default, stubs carrying the same address share a small pool of
+    long-lived connections to the skeleton, and many calls may be outstanding
+    on one connection at a time. Setting the system property
+    <code>rmi.reuse</code> to <code>false</code> makes each call open and close
+    a connection of its own instead.
  */
 
 
@@ -368,4 +264,157 @@ public abstract class Stub
     	    
 	}
     }
+
+    /** Creates a stub, given the address of a remote server and the policy
+        the stub is to follow for timeouts and retries.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @param policy The stub's call policy.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error For the reasons given for
+                      <code>create(Class, InetSocketAddress)</code>.
+     */
+    public static <T> T create(Class<T> c, InetSocketAddress address,
+                               CallPolicy policy)
+    {
+	if ( policy == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	return withPolicy(create(c, address), policy);
+    }
+
+    /** Returns a stub for the same remote object as an existing stub, which
+        follows the given policy for timeouts and retries.
+
+        <p>
+        This is the usual way to bound the calls made through a stub received
+        over the network, for example a storage server stub returned by the
+        naming server. The new stub is equal to the existing one.
+
+        @param stub A stub created by this class.
+        @param policy The new stub's call policy.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created by
+                                         this class.
+     */
+    public static <T> T withPolicy(T stub, CallPolicy policy)
+    {
+	if ( stub == null || policy == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	if ( !Proxy.isProxyClass(stub.getClass()) || !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler) ) {
+	    throw new IllegalArgumentException("not a stub");
+	}
+	MyInvocationHandler h = (MyInvocationHandler) Proxy.getInvocationHandler(stub);
+	MyInvocationHandler copy = new MyInvocationHandler(h.getInetSocketAddress(), h.getInterface(), policy);
+	Class<?> c = h.getInterface();
+	// the copy implements the same remote interface as stub, so it is a T
+	@SuppressWarnings("unchecked")
+	T result = (T) Proxy.newProxyInstance( c.getClassLoader(), new Class<?>[] { c }, copy);
+	return result;
+    }
+
+    /** Returns the network address of the remote server a stub refers to.
+
+        @param stub A stub created by this class.
+        @return The stub's remote address.
+        @throws NullPointerException If <code>stub</code> is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created by
+                                         this class.
+     */
+    public static InetSocketAddress address(Object stub)
+    {
+	if ( stub == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	if ( !Proxy.isProxyClass(stub.getClass()) || !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler) ) {
+	    throw new IllegalArgumentException("not a stub");
+	}
+	return ((MyInvocationHandler) Proxy.getInvocationHandler(stub)).getInetSocketAddress();
+    }
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        <p>
+        Asynchronous stubs implement a companion of the remote interface. Each
+        method of the companion has the name and parameter types of a method of
+        the remote interface, and returns a <code>CompletableFuture</code> of
+        that method's result instead of the result itself. Calls return as soon
+        as they have been sent, so a single thread may have many calls
+        outstanding. Calls share pooled connections with ordinary stubs for
+        the same address.
+
+        <p>
+        A future is completed exceptionally with whatever exception the remote
+        method throws, or with <code>RMIException</code> if the call cannot be
+        completed. Futures are completed on a thread that reads replies from
+        the network, so dependent actions which may block should be attached
+        with the <code>...Async</code> methods of
+        <code>CompletableFuture</code>.
+
+        @param c A <code>Class</code> object representing the companion
+                 interface.
+        @param remote A <code>Class</code> object representing the remote
+                      interface implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> or <code>remote</code> is not an
+                      interface, if a method of <code>c</code> does not return
+                      a <code>CompletableFuture</code> or has no counterpart in
+                      <code>remote</code>.
+     */
+    public static <A> A createAsync(Class<A> c, Class<?> remote,
+                                    InetSocketAddress address)
+    {
+	if ( c == null || remote == null || address == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	if ( !c.isInterface() || !remote.isInterface() ) {
+	    throw new Error("not an interface!");
+	}
+
+	AsyncInvocationHandler h = new AsyncInvocationHandler(address, remote, c);
+	return c.cast(Proxy.newProxyInstance( c.getClassLoader(), new Class<?>[] { c }, h));
+    }
+
+    /** Creates an asynchronous stub for the same remote object as an existing
+        stub.
+
+        <p>
+        This is the usual way to obtain an asynchronous stub for a server whose
+        stub was received over the network, for example a storage server stub
+        returned by the naming server. The asynchronous stub follows the
+        timeouts of the existing stub's <code>CallPolicy</code>, but does not
+        retry calls.
+
+        @param c A <code>Class</code> object representing the companion
+                 interface.
+        @param stub A stub created by this class.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created by
+                                         this class.
+        @throws Error For the reasons given for
+                      <code>createAsync(Class, Class, InetSocketAddress)</code>.
+     */
+    public static <A> A createAsync(Class<A> c, Object stub)
+    {
+	if ( c == null || stub == null ) {
+	    throw new NullPointerException("null pointer!");
+	}
+	if ( !Proxy.isProxyClass(stub.getClass()) || !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler) ) {
+	    throw new IllegalArgumentException("not a stub");
+	}
+	MyInvocationHandler h = (MyInvocationHandler) Proxy.getInvocationHandler(stub);
+	if ( !c.isInterface() ) {
+	    throw new Error("not an interface!");
+	}
+	AsyncInvocationHandler async = new AsyncInvocationHandler(h.getInetSocketAddress(), h.getInterface(), c, h.policy());
+	return c.cast(Proxy.newProxyInstance( c.getClassLoader(), new Class<?>[] { c }, async));
+    }
 }
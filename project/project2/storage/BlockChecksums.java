@@ -0,0 +1,426 @@
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+import common.*;
+
+/** Checksums of the blocks of the files of a storage server.
+
+    <p>
+    Each file is divided into blocks of <code>storage.checksum_block</code>
+    bytes, the last of which may be shorter, and the CRC-32C of each block is
+    kept in a sidecar file. The sidecar files mirror the files under the
+    storage server's root, in a directory beside it named after the root with
+    <code>.crc</code> appended, so that they are never listed as files of the
+    server. Checksums are kept only if <code>storage.checksums</code> is
+    <code>true</code>, as the directory is created outside the root the server
+    was given.
+
+    <p>
+    A sidecar file holds one eight-byte entry for each block: a marker
+    followed by the checksum. Blocks whose entries are zero have no checksum
+    yet, as for files that were on the server before it kept checksums; their
+    checksums are taken when they are first read. Writes update the checksums
+    of the blocks they change, and reads check the blocks they return, failing
+    with an <code>IOException</code> on a mismatch. CRC-32C is computed with
+    the vector instructions of the processor where the JVM supports them.
+
+    <p>
+    The sidecar directory may outlive the files, as when the root is replaced
+    while the server is down. The first time a file's checksums are used, they
+    are dropped if the file was modified after its sidecar file.
+
+    <p>
+    The caller locks the file, with <code>PathLocks</code>, around each use of
+    its checksums: shared for reads, and exclusive for changes. Reads of a
+    block without a checksum may store it concurrently, but store the same
+    value.
+ */
+class BlockChecksums
+{
+    /** Whether checksums are kept. */
+    static final boolean ENABLED = Boolean.getBoolean("storage.checksums");
+    /** Default block size, in bytes. */
+    private static final int BLOCK = Integer.getInteger("storage.checksum_block", 64 << 10);
+    /** Bytes of each entry in a sidecar file. */
+    private static final int ENTRY = 8;
+    /** Marker of an entry holding a checksum. */
+    private static final long PRESENT = 1L << 32;
+    /** Most bytes read at once to checksum blocks that are not in memory. */
+    private static final int READ_SIZE = 1 << 20;
+
+    private final File data_root;
+    private final File root;
+    private final int block;
+    private final ChannelCache sidecars;
+    // buffer for reading blocks that are not in memory, one per thread
+    private final ThreadLocal<ByteBuffer> buffers;
+    // files whose sidecar files have been checked to be newer than them
+    private final Set<Path> checked = ConcurrentHashMap.newKeySet();
+
+    /** Creates the checksums of the files under a storage server's root,
+        with the default block size.
+
+        @return The checksums, or <code>null</code> if they are not kept or
+                their directory cannot be created.
+     */
+    static BlockChecksums open(File root)
+    {
+        File parent = root.getAbsoluteFile().getParentFile();
+        if (!ENABLED || parent == null)
+        {
+            return null;
+        }
+        return open(root, new File(parent, root.getName() + ".crc"));
+    }
+
+    /** Creates the checksums of the files under a storage server's root,
+        kept under a given directory, with the default block size.
+
+        @return The checksums, or <code>null</code> if their directory cannot
+                be created.
+     */
+    static BlockChecksums open(File root, File directory)
+    {
+        directory.mkdirs();
+        if (!directory.isDirectory())
+        {
+            return null;
+        }
+        return new BlockChecksums(root, directory, BLOCK);
+    }
+
+    /** Creates the checksums of the files under a directory, kept in sidecar
+        files under another. */
+    BlockChecksums(File data_root, File root, int block)
+    {
+        this.data_root = data_root;
+        this.root = root;
+        this.block = Math.max(1, block);
+        this.sidecars = new ChannelCache(root, Integer.getInteger("storage.open_files", 128), true);
+        int size = Math.max(this.block, READ_SIZE / this.block * this.block);
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(size));
+    }
+
+    /** Returns the block size, in bytes. */
+    int block()
+    {
+        return block;
+    }
+
+    /** Returns the checksum of bytes of an array. */
+    static int checksum(byte[] data, int offset, int length)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /** Checks blocks of a file read into an array, storing the checksums of
+        blocks that have none.
+
+        @param file The file.
+        @param start Offset of the first block in the file; a multiple of the
+                     block size.
+        @param data Whole blocks of the file, the last of which may be the
+                    shorter last block of the file.
+        @throws IOException If a block does not match its checksum, or the
+                            checksums cannot be read or stored.
+     */
+    void verify(Path file, long start, byte[] data) throws IOException
+    {
+        verify(file, start, ByteBuffer.wrap(data));
+    }
+
+    private void verify(Path file, long start, ByteBuffer data) throws IOException
+    {
+        long first = start / block;
+        int count = (data.remaining() + block - 1) / block;
+        try (ChannelCache.Handle sidecar = sidecar(file))
+        {
+            long[] entries = entries(sidecar.channel, first, count);
+            boolean missing = false;
+            CRC32C crc = new CRC32C();
+            for (int index = 0; index < count; index++)
+            {
+                int position = data.position() + index * block;
+                crc.reset();
+                crc.update(data.duplicate().position(position)
+                               .limit(Math.min(position + block, data.limit())));
+                int value = (int) crc.getValue();
+                if (entries[index] == 0)
+                {
+                    entries[index] = entry(value);
+                    missing = true;
+                }
+                else if ((int) entries[index] != value)
+                {
+                    throw new IOException("checksum mismatch in block " + (first + index) + " of " + file);
+                }
+            }
+            if (missing)
+            {
+                store(sidecar.channel, first, entries);
+            }
+        }
+    }
+
+    /** Updates the checksums of the blocks changed by a write.
+
+        @param file The file.
+        @param channel Channel open on the file, after the write.
+        @param old_size Size of the file before the write.
+        @param offset Offset of the write.
+        @param data The bytes written.
+        @throws IOException If the file cannot be read back, or the checksums
+                            cannot be stored.
+     */
+    void written(Path file, FileChannel channel, long old_size, long offset, byte[] data)
+        throws IOException
+    {
+        if (data.length == 0)
+        {
+            return;
+        }
+        long end = offset + data.length;
+        long size = Math.max(old_size, end);
+        long first = offset / block;
+        long last = (end - 1) / block;
+        long[] entries = new long[(int) (last - first + 1)];
+        for (int index = 0; index < entries.length; index++)
+        {
+            long start = (first + index) * block;
+            long stop = Math.min(start + block, size);
+            if (start >= offset && stop <= end)
+            {
+                entries[index] = entry(checksum(data, (int) (start - offset), (int) (stop - start)));
+            }
+            else
+            {
+                /* Partly written: the rest of the block is read back. */
+                entries[index] = entry(checksum(channel, start, stop));
+            }
+        }
+        try (ChannelCache.Handle sidecar = sidecar(file))
+        {
+            store(sidecar.channel, first, entries);
+            /* A write past the end extends the old last block with zeros. */
+            long tail = old_size / block;
+            if (old_size % block != 0 && tail < first)
+            {
+                long stop = Math.min((tail + 1) * block, size);
+                store(sidecar.channel, tail, new long[] {entry(checksum(channel, tail * block, stop))});
+            }
+        }
+    }
+
+    /** Drops the checksums of a file if they are older than the file. Called
+        before the file is changed, so that the change is not taken for a
+        change made behind the server's back. */
+    void check(Path file) throws IOException
+    {
+        sidecar(file).close();
+    }
+
+    /** Returns the checksums of all the blocks of a file, taking those that
+        are missing.
+
+        @throws IOException If the file or its checksums cannot be read, or
+                            the checksums taken cannot be stored.
+     */
+    int[] all(Path file, FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        int count = (int) ((size + block - 1) / block);
+        int[] checksums = new int[count];
+        try (ChannelCache.Handle sidecar = sidecar(file))
+        {
+            long[] entries = entries(sidecar.channel, 0, count);
+            boolean missing = false;
+            for (int index = 0; index < count; index++)
+            {
+                if (entries[index] == 0)
+                {
+                    long start = (long) index * block;
+                    entries[index] = entry(checksum(channel, start, Math.min(start + block, size)));
+                    missing = true;
+                }
+                checksums[index] = (int) entries[index];
+            }
+            if (missing)
+            {
+                store(sidecar.channel, 0, entries);
+            }
+        }
+        return checksums;
+    }
+
+    /** Stores checksums of consecutive blocks of a file, known to be those of
+        the data written to them. */
+    void put(Path file, long first, int[] checksums, int offset, int count) throws IOException
+    {
+        long[] entries = new long[count];
+        for (int index = 0; index < count; index++)
+        {
+            entries[index] = entry(checksums[offset + index]);
+        }
+        try (ChannelCache.Handle sidecar = sidecar(file))
+        {
+            store(sidecar.channel, first, entries);
+        }
+    }
+
+    /** Replaces the checksums of a file with those of the data that replaced
+        it. */
+    void replace(Path file, int[] checksums) throws IOException
+    {
+        remove(file);
+        if (checksums.length > 0)
+        {
+            put(file, 0, checksums, 0, checksums.length);
+        }
+    }
+
+    /** Deletes the checksums of a file, or of every file under a
+        directory. */
+    void remove(Path path)
+    {
+        sidecars.remove(path);
+        checked.removeIf(file -> ChannelCache.under(file, path));
+        if (path.isRoot())
+        {
+            return;
+        }
+        try
+        {
+            Files.walkFileTree(path.toFile(root).toPath(), new SimpleFileVisitor<java.nio.file.Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attributes)
+                    throws IOException
+                {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(java.nio.file.Path directory, IOException exception)
+                    throws IOException
+                {
+                    Files.deleteIfExists(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            /* Absent, or left to be overwritten by later checksums. */
+        }
+    }
+
+    /** Closes the sidecar files. */
+    void close()
+    {
+        sidecars.clear();
+    }
+
+    /** Returns the sidecar file of a file, emptied if it is older than the
+        file the first time it is used. */
+    private ChannelCache.Handle sidecar(Path file) throws IOException
+    {
+        ChannelCache.Handle sidecar = sidecars.acquire(file);
+        if (!checked.contains(file))
+        {
+            try
+            {
+                java.nio.file.Path local = file.toFile(data_root).toPath();
+                java.nio.file.Path sums = file.toFile(root).toPath();
+                if (Files.getLastModifiedTime(local).compareTo(Files.getLastModifiedTime(sums)) > 0)
+                {
+                    sidecar.channel.truncate(0);
+                }
+            }
+            catch (IOException e)
+            {
+                sidecar.close();
+                throw e;
+            }
+            checked.add(file);
+        }
+        return sidecar;
+    }
+
+    private static long entry(int checksum)
+    {
+        return PRESENT | (checksum & 0xffffffffL);
+    }
+
+    /** Returns the checksum of a range of a file, reading it. */
+    private int checksum(FileChannel channel, long start, long end) throws IOException
+    {
+        ByteBuffer buffer = buffers.get();
+        CRC32C crc = new CRC32C();
+        while (start < end)
+        {
+            read(channel, buffer, start, end);
+            crc.update(buffer);
+            start += buffer.position();
+        }
+        return (int) crc.getValue();
+    }
+
+    /** Reads as much of a range of a file as fits into a buffer, leaving the
+        buffer ready to be read. */
+    private static void read(FileChannel channel, ByteBuffer buffer, long start, long end)
+        throws IOException
+    {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - start));
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, start + buffer.position()) < 0)
+            {
+                throw new EOFException("file truncated while being checked");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static long[] entries(FileChannel sidecar, long first, int count) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY);
+        long position = first * ENTRY;
+        while (buffer.hasRemaining())
+        {
+            if (sidecar.read(buffer, position + buffer.position()) < 0)
+            {
+                /* Entries past the end of the sidecar file are zero. */
+                break;
+            }
+        }
+        buffer.clear();
+        long[] entries = new long[count];
+        buffer.asLongBuffer().get(entries);
+        return entries;
+    }
+
+    private static void store(FileChannel sidecar, long first, long[] entries) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(entries.length * ENTRY);
+        buffer.asLongBuffer().put(entries);
+        long position = first * ENTRY;
+        while (buffer.hasRemaining())
+        {
+            sidecar.write(buffer, position + buffer.position());
+        }
+    }
+}
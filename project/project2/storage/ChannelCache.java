@@ -0,0 +1,247 @@
+package storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.*;
+
+/** Cache of the open files of a storage server.
+
+    <p>
+    Each file is opened once, and its channel is shared by the accesses to it
+    until it is evicted. At most <code>storage.open_files</code> channels are
+    kept, the least recently used being evicted first. A channel is closed
+    once it has been evicted and released by every access holding it, so an
+    access never sees its channel closed under it.
+
+    <p>
+    Channels are removed from the cache when their files are deleted, so that
+    a file created again under the same path is opened anew. The caller locks
+    the file, with <code>PathLocks</code>, around acquiring a channel and
+    removing it.
+ */
+class ChannelCache
+{
+    /** Default number of channels kept open. */
+    private static final int CAPACITY = Integer.getInteger("storage.open_files", 128);
+
+    /** Channel open on a file, and the accesses holding it. */
+    static final class Handle implements Closeable
+    {
+        final FileChannel channel;
+        // accesses holding the channel, and one more while it is cached
+        private int references = 1;
+
+        private Handle(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        /** Releases the channel, closing it if it is no longer cached or held
+            by another access. */
+        @Override
+        public void close()
+        {
+            synchronized (this)
+            {
+                if (--references > 0)
+                {
+                    return;
+                }
+            }
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+
+        private synchronized boolean retain()
+        {
+            if (references == 0)
+            {
+                return false;
+            }
+            references++;
+            return true;
+        }
+    }
+
+    private final File root;
+    private final int capacity;
+    // whether missing files are created when acquired
+    private final boolean create;
+    private final LinkedHashMap<Path, Handle> open;
+
+    /** Creates a cache of the default capacity. */
+    ChannelCache(File root)
+    {
+        this(root, CAPACITY);
+    }
+
+    /** Creates a cache holding at most a given number of open channels. */
+    ChannelCache(File root, int capacity)
+    {
+        this(root, capacity, false);
+    }
+
+    /** Creates a cache holding at most a given number of open channels,
+        creating the files acquired, and their directories, if they do not
+        exist. */
+    ChannelCache(File root, int capacity, boolean create)
+    {
+        this.root = root;
+        this.capacity = Math.max(1, capacity);
+        this.create = create;
+        this.open = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** Returns a channel open on a file, opening the file if it is not in the
+        cache. The handle must be closed once the access is complete.
+
+        @throws FileNotFoundException If the file does not exist or is a
+                                      directory.
+        @throws IOException If the file cannot be opened.
+     */
+    Handle acquire(Path file) throws IOException
+    {
+        synchronized (this)
+        {
+            Handle handle = open.get(file);
+            if (handle != null && handle.retain())
+            {
+                return handle;
+            }
+        }
+        /* Opened without holding the cache, so that a slow open does not
+         * hold up accesses to other files. */
+        Handle handle = new Handle(openChannel(file));
+        Handle evicted = null;
+        synchronized (this)
+        {
+            Handle cached = open.get(file);
+            if (cached != null && cached.retain())
+            {
+                /* Opened by another access meanwhile. */
+                evicted = handle;
+                handle = cached;
+            }
+            else
+            {
+                handle.retain();
+                open.put(file, handle);
+                if (open.size() > capacity)
+                {
+                    Iterator<Handle> eldest = open.values().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        if (evicted != null)
+        {
+            evicted.close();
+        }
+        return handle;
+    }
+
+    private FileChannel openChannel(Path file) throws IOException
+    {
+        java.nio.file.Path local = file.toFile(root).toPath();
+        if (create)
+        {
+            Files.createDirectories(local.getParent());
+            return FileChannel.open(local, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                    StandardOpenOption.CREATE);
+        }
+        try
+        {
+            try
+            {
+                return FileChannel.open(local, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            catch (AccessDeniedException e)
+            {
+                /* A read-only file can still be read. */
+                return FileChannel.open(local, StandardOpenOption.READ);
+            }
+        }
+        catch (IOException e)
+        {
+            if (!Files.isRegularFile(local))
+            {
+                throw new FileNotFoundException(file.toFile(root) + " does not exist.");
+            }
+            throw e;
+        }
+    }
+
+    /** Removes the channels of a path, and of every file under it if it is a
+        directory, from the cache. */
+    void remove(Path path)
+    {
+        List<Handle> removed = new ArrayList<>();
+        synchronized (this)
+        {
+            Iterator<Map.Entry<Path, Handle>> entries = open.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Path, Handle> entry = entries.next();
+                if (under(entry.getKey(), path))
+                {
+                    removed.add(entry.getValue());
+                    entries.remove();
+                }
+            }
+        }
+        for (Handle handle : removed)
+        {
+            handle.close();
+        }
+    }
+
+    /** Removes every channel from the cache. */
+    void clear()
+    {
+        List<Handle> removed;
+        synchronized (this)
+        {
+            removed = new ArrayList<>(open.values());
+            open.clear();
+        }
+        for (Handle handle : removed)
+        {
+            handle.close();
+        }
+    }
+
+    /** Returns the number of channels in the cache. */
+    synchronized int size()
+    {
+        return open.size();
+    }
+
+    /** Returns whether a path is a directory or any path under it. */
+    static boolean under(Path file, Path directory)
+    {
+        Iterator<String> components = file.iterator();
+        for (String component : directory)
+        {
+            if (!components.hasNext() || !components.next().equals(component))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
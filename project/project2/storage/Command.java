@@ -45,6 +45,39 @@ public interface Command
      */
     public boolean delete(Path path) throws RMIException;
 
+    /** Deletes a directory and everything under it on the storage server.
+
+        <p>
+        The files the naming server knows the storage server to host under the
+        directory are listed, so that they can be deleted in parallel without
+        first listing the directory. Whatever else remains under the directory
+        is then deleted, and the directory itself. Files that were already
+        absent count as deleted.
+
+        <p>
+        The default implementation throws
+        <code>UnsupportedOperationException</code>; a naming server receiving
+        it should call <code>delete</code> on the directory instead.
+
+        @param directory Path to the directory to be deleted. The root
+                         directory cannot be deleted.
+        @param files The files hosted under the directory.
+        @return The listed files that could not be deleted. Files that are not
+                under the directory are never deleted, and are returned.
+        @throws IllegalArgumentException If <code>directory</code> is the root
+                                         directory.
+        @throws UnsupportedOperationException If the storage server does not
+                                              support subtree deletion.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] deleteTree(Path directory, Path[] files)
+        throws RMIException
+    {
+        throw new UnsupportedOperationException("subtree deletion is not " +
+                                                "supported");
+    }
+
     /** Copies a file from another storage server.
 
         @param file Path to the file to be deleted.
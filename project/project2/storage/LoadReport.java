@@ -0,0 +1,82 @@
+package storage;
+
+import java.io.Serializable;
+
+/** Load of a storage server, as reported to the naming server in heartbeats.
+
+    <p>
+    The naming server uses the reports it receives to place new files on
+    servers that are lightly loaded and have room for them.
+ */
+public final class LoadReport implements Serializable
+{
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /** Free space on the server's storage, in bytes. */
+    private final long      free_space;
+    /** Total space on the server's storage, in bytes. */
+    private final long      total_space;
+    /** Number of files hosted by the server. */
+    private final long      file_count;
+    /** Recent rate of client requests, per second. */
+    private final double    request_rate;
+
+    /** Creates a load report.
+
+        @param free_space Free space on the server's storage, in bytes.
+        @param total_space Total space on the server's storage, in bytes.
+        @param file_count Number of files hosted by the server.
+        @param request_rate Recent rate of client requests, per second.
+     */
+    public LoadReport(long free_space, long total_space, long file_count,
+                      double request_rate)
+    {
+        this.free_space = free_space;
+        this.total_space = total_space;
+        this.file_count = file_count;
+        this.request_rate = request_rate;
+    }
+
+    /** Returns the free space on the server's storage, in bytes. */
+    public long freeSpace()
+    {
+        return free_space;
+    }
+
+    /** Returns the total space on the server's storage, in bytes. */
+    public long totalSpace()
+    {
+        return total_space;
+    }
+
+    /** Returns the number of files hosted by the server. */
+    public long fileCount()
+    {
+        return file_count;
+    }
+
+    /** Returns the recent rate of client requests, per second. */
+    public double requestRate()
+    {
+        return request_rate;
+    }
+
+    /** Returns the fraction of the server's storage in use, between zero and
+        one. */
+    public double used()
+    {
+        if(total_space <= 0)
+            return 0;
+
+        return 1.0 - (double)free_space / total_space;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LoadReport[free " + free_space + " of " + total_space +
+               " bytes, " + file_count + " files, " +
+               String.format("%.1f", request_rate) + " requests/s]";
+    }
+}
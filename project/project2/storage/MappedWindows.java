@@ -0,0 +1,178 @@
+package storage;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import common.*;
+
+/** Memory-mapped windows of the large files of a storage server.
+
+    <p>
+    When the <code>storage.mmap</code> system property is <code>true</code>,
+    reads of files of at least <code>storage.mmap_min_size</code> bytes are
+    served from read-only mappings instead of reading the file on each call.
+    Each file is mapped in windows of <code>storage.mmap_window</code> bytes,
+    which are kept and reused by later reads. A read copies its range out of
+    the windows it spans, with no system call once they are mapped.
+
+    <p>
+    At most <code>storage.mmap_windows</code> windows are kept, the least
+    recently read being dropped first. Java has no safe way to unmap a buffer
+    that another read may still be copying from, so a dropped window is
+    unmapped by the garbage collector once no read holds it. The windows of a
+    file are dropped when it is written or deleted, so that a window never
+    outlives the size of the file it was mapped for.
+ */
+class MappedWindows
+{
+    /** Whether large files are read through mappings. */
+    static final boolean ENABLED = Boolean.getBoolean("storage.mmap");
+    /** Smallest file size, in bytes, read through mappings. */
+    static final long MIN_SIZE = Long.getLong("storage.mmap_min_size", 16L << 20);
+    /** Default window size, in bytes. */
+    private static final int WINDOW = Integer.getInteger("storage.mmap_window", 64 << 20);
+    /** Default number of windows kept. */
+    private static final int WINDOWS = Integer.getInteger("storage.mmap_windows", 32);
+
+    /** Window of a file, by its index in the file. */
+    private static final class Key
+    {
+        final Path file;
+        final long index;
+
+        Key(Path file, long index)
+        {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key) other;
+            return index == key.index && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(file, index);
+        }
+    }
+
+    private final int window;
+    private final int capacity;
+    private final LinkedHashMap<Key, MappedByteBuffer> mapped;
+
+    /** Creates windows of the default size and number. */
+    MappedWindows()
+    {
+        this(WINDOW, WINDOWS);
+    }
+
+    /** Creates windows of a given size, keeping a given number of them. */
+    MappedWindows(int window, int capacity)
+    {
+        this.window = Math.max(1, window);
+        this.capacity = Math.max(1, capacity);
+        this.mapped = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** Reads a range of a file through its windows, mapping those not yet
+        mapped. The range must lie within the file.
+
+        @param file The file.
+        @param channel Channel open for reading on the file.
+        @param offset Offset of the range in the file.
+        @param length Length of the range, in bytes.
+        @return The bytes of the range.
+        @throws IOException If a window cannot be mapped.
+     */
+    byte[] read(Path file, FileChannel channel, long offset, int length)
+        throws IOException
+    {
+        byte[] data = new byte[length];
+        int copied = 0;
+        while (copied < length)
+        {
+            long position = offset + copied;
+            long index = position / window;
+            int start = (int) (position - index * window);
+            int count = Math.min(length - copied, window - start);
+            MappedByteBuffer buffer = window(file, channel, index, start + count);
+            buffer.get(start, data, copied, count);
+            copied += count;
+        }
+        return data;
+    }
+
+    /** Returns a window of a file holding at least a given number of bytes,
+        mapping it if it is not kept or is too short. */
+    private MappedByteBuffer window(Path file, FileChannel channel, long index, int needed)
+        throws IOException
+    {
+        Key key = new Key(file, index);
+        synchronized (this)
+        {
+            MappedByteBuffer buffer = mapped.get(key);
+            if (buffer != null && buffer.capacity() >= needed)
+            {
+                return buffer;
+            }
+        }
+        /* Mapped without holding the windows, so that reads of mapped
+         * windows do not wait for it. */
+        long start = index * window;
+        long size = Math.min(window, channel.size() - start);
+        if (size < needed)
+        {
+            throw new EOFException("file truncated while being read");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        synchronized (this)
+        {
+            mapped.put(key, buffer);
+            if (mapped.size() > capacity)
+            {
+                Iterator<MappedByteBuffer> eldest = mapped.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return buffer;
+    }
+
+    /** Drops the windows of a path, and of every file under it if it is a
+        directory. */
+    synchronized void remove(Path path)
+    {
+        Iterator<Key> keys = mapped.keySet().iterator();
+        while (keys.hasNext())
+        {
+            if (ChannelCache.under(keys.next().file, path))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+    /** Drops every window. */
+    synchronized void clear()
+    {
+        mapped.clear();
+    }
+
+    /** Returns the number of windows kept. */
+    synchronized int size()
+    {
+        return mapped.size();
+    }
+}
@@ -0,0 +1,71 @@
+package storage;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.*;
+
+/** Read-write locks on the files of a storage server.
+
+    <p>
+    Paths are spread over a fixed number of striped locks by their hash codes,
+    so that no lock is ever created or removed as files come and go. Accesses
+    to two files share a lock only when their paths fall on the same stripe.
+    The number of stripes is set by the <code>storage.lock_stripes</code>
+    system property.
+
+    <p>
+    Since a stripe covers many files, and every server spreads paths over its
+    stripes in the same way, a lock must never be held across a call to
+    another server: two servers calling each other for files of the same
+    stripe would each wait for the other's lock.
+
+    <p>
+    A lock on a directory does not cover the files under it. The naming server
+    locks a directory exclusively before deleting it, so that no file under it
+    is accessed meanwhile; an access that still reaches a deleted file fails
+    as it would had the file never existed.
+ */
+class PathLocks
+{
+    /** Default number of stripes. */
+    private static final int STRIPES = Integer.getInteger("storage.lock_stripes", 256);
+
+    private final ReentrantReadWriteLock[] stripes;
+
+    /** Creates the default number of locks. */
+    PathLocks()
+    {
+        this(STRIPES);
+    }
+
+    /** Creates locks with a given number of stripes. */
+    PathLocks(int count)
+    {
+        stripes = new ReentrantReadWriteLock[Math.max(1, count)];
+        for (int index = 0; index < stripes.length; index++)
+        {
+            stripes[index] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /** Returns the shared lock for reading a file. */
+    Lock read(Path file)
+    {
+        return stripe(file).readLock();
+    }
+
+    /** Returns the exclusive lock for changing a file. */
+    Lock write(Path file)
+    {
+        return stripe(file).writeLock();
+    }
+
+    private ReentrantReadWriteLock stripe(Path file)
+    {
+        int hash = file.hashCode();
+        /* Mix the high bits into the low ones, which select the stripe. */
+        hash ^= hash >>> 16;
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+}
@@ -3,6 +3,7 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 
 /** Storage server client interface.
@@ -23,6 +24,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
@@ -43,6 +45,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
@@ -58,6 +61,41 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the checksums of the blocks of a file.
+
+        <p>
+        The file is divided into blocks of <code>block_size</code> bytes, the
+        last of which may be shorter. Each block's checksum is its CRC-32C. A
+        storage server copying the file compares these with the checksums of
+        its own copy, so that it reads only the blocks that differ, and checks
+        the blocks it reads against them.
+
+        <p>
+        The default implementation throws
+        <code>UnsupportedOperationException</code>; a server receiving it
+        should copy the whole file without checking it.
+
+        @param file Path to the file.
+        @param block_size Size of the blocks, in bytes.
+        @return The checksum of each block, in order.
+        @throws IllegalArgumentException If the server does not keep checksums
+                                         for blocks of the given size.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file cannot be read on the server.
+        @throws UnsupportedOperationException If the server does not keep
+                                              checksums.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default int[] checksums(Path file, int block_size)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        throw new UnsupportedOperationException("checksums are not kept");
+    }
 }
@@ -0,0 +1,34 @@
+package storage;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+
+/** Asynchronous companion of the storage server client interface.
+
+    <p>
+    Stubs for this interface are created with <code>Stub.createAsync</code>.
+    Each method sends the call of the same name in {@link Storage} and returns
+    at once. The returned future is completed with the result of the call, or
+    exceptionally with the exception the call would have thrown.
+ */
+public interface StorageAsync
+{
+    /** Returns the length of a file, in bytes.
+
+        @see Storage#size(Path)
+     */
+    public CompletableFuture<Long> size(Path file);
+
+    /** Reads a sequence of bytes from a file.
+
+        @see Storage#read(Path, long, int)
+     */
+    public CompletableFuture<byte[]> read(Path file, long offset, int length);
+
+    /** Writes bytes to a file.
+
+        @see Storage#write(Path, long, byte[])
+     */
+    public CompletableFuture<Void> write(Path file, long offset, byte[] data);
+}
@@ -1,21 +1,36 @@
 package storage;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 
 import common.*;
 import rmi.*;
 import naming.*;
 
-import static javafx.scene.input.KeyCode.T;
-
 /** Storage server.
 
     <p>
@@ -23,14 +38,43 @@ import static javafx.scene.input.KeyCode.T;
     through a storage server are those accessible under a given directory of the
     local filesystem.
  */
-public class StorageServer implements Storage, Command
+public class StorageServer implements Storage, Command, FileRegionSource
 {
+    /** Number of files sent to the naming server in each registration call. */
+    private static final int REGISTRATION_CHUNK = 4096;
+    /** Milliseconds between heartbeats sent to the naming server. */
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("storage.heartbeat_interval", 1000);
+    /** Weight of the latest interval in the reported request rate. */
+    private static final double RATE_WEIGHT = 0.3;
+    /** Bytes requested from the source server by each read of a copy. */
+    static final int COPY_CHUNK = Integer.getInteger("storage.copy_chunk", 1 << 20);
+    /** Reads of a copy outstanding at once. */
+    static final int COPY_WINDOW = Integer.getInteger("storage.copy_window", 8);
+    /** Suffix of the staged files that copies are streamed into. Staged files
+        left by a server that stopped during a copy are deleted when it next
+        starts, instead of being registered. */
+    private static final String STAGED = ".copying";
+
     ExecutorService executor;
     private File root;
     private int clientPort;
     private int commandPort;
     private Skeleton<Storage> clientSkeleton;
     private Skeleton<Command> commandSkeleton;
+    /** Client requests served, for the request rate sent in heartbeats. */
+    private final AtomicLong requests = new AtomicLong();
+    /** Number of files hosted. */
+    private final AtomicLong files = new AtomicLong();
+    private ScheduledExecutorService heartbeats;
+    /** Locks on the files, held by each access instead of the server's
+        monitor, so that different files are accessed in parallel. */
+    private final PathLocks locks = new PathLocks();
+    /** Channels open on the files, shared by their accesses. */
+    private final ChannelCache channels;
+    /** Mapped windows of large files, if reads are served from mappings. */
+    private final MappedWindows windows;
+    /** Checksums of the blocks of the files, if they are kept. */
+    private final BlockChecksums checksums;
 
     /** Creates a storage server, given a directory on the local filesystem, and
         ports to use for the client and command interfaces.
@@ -48,8 +92,25 @@ public class StorageServer implements Storage, Command
         @throws NullPointerException If <code>root</code> is <code>null</code>.
     */
     public StorageServer(File root, int client_port, int command_port)
+    {
+        this(root, client_port, command_port, root == null ? null : BlockChecksums.open(root));
+    }
+
+    /** Creates a storage server that keeps the checksums of its files under a
+        given directory, whether or not <code>storage.checksums</code> is set.
+        The system picks the ports.
+     */
+    StorageServer(File root, File checksum_root)
+    {
+        this(root, 0, 0, BlockChecksums.open(root, checksum_root));
+    }
+
+    private StorageServer(File root, int client_port, int command_port, BlockChecksums checksums)
     {
         this.root = root;
+        this.channels = new ChannelCache(root);
+        this.windows = MappedWindows.ENABLED ? new MappedWindows() : null;
+        this.checksums = checksums;
         this.clientPort = client_port;
         this.commandPort = command_port;
     }
@@ -101,35 +162,266 @@ public class StorageServer implements Storage, Command
         clientSkeleton.start();
         commandSkeleton.start();
 
-        Path[] toDelete = naming_server.register(Stub.create(Storage.class, clientSkeleton, hostname),
-                Stub.create(Command.class, commandSkeleton, hostname),
-                Path.list(root));
+        Storage client_stub = Stub.create(Storage.class, clientSkeleton, hostname);
+        Command command_stub = Stub.create(Command.class, commandSkeleton, hostname);
 
-        registrationCleanup(toDelete);
+        register(naming_server, client_stub, command_stub, false);
+        startHeartbeats(naming_server, client_stub, command_stub);
     }
 
-    private synchronized void registrationCleanup(Path[] toDelete) throws FileNotFoundException
+    /** Registers the server's files with the naming server, streaming them if
+        the naming server supports it, and deletes the duplicates.
+
+        @param again <code>false</code> when the server starts, in which case
+                     the staged files left by an earlier run are deleted;
+                     <code>true</code> when the server registers again while
+                     running, in which case staged files belong to copies in
+                     progress and are only left out.
+     */
+    private void register(Registration naming_server, Storage client_stub, Command command_stub,
+                          boolean again)
+        throws RMIException, FileNotFoundException
     {
-        Path[] beforePrune = Path.list(root);
-        for (Path file : toDelete)
+        long registration;
+        try
         {
-            delete(file);
+            registration = naming_server.beginRegistration(client_stub, command_stub);
+        }
+        catch (UnsupportedOperationException e)
+        {
+            if (!again)
+            {
+                removeStaged(root);
+            }
+            ArrayList<Path> listed = new ArrayList<>();
+            for (Path file : Path.list(root))
+            {
+                if (!staged(file.toFile(root)))
+                {
+                    listed.add(file);
+                }
+            }
+            Path[] toDelete = naming_server.register(client_stub, command_stub,
+                listed.toArray(new Path[listed.size()]));
+            files.set(listed.size());
+            registrationCleanup(toDelete);
+            return;
+        }
+
+        streamRegistration(naming_server, registration, again);
+    }
+
+    /** Reports the server's load to the naming server every
+        <code>HEARTBEAT_INTERVAL</code> milliseconds, until the server stops
+        or the naming server turns out not to accept heartbeats. A server the
+        naming server has declared failed registers again.
+     */
+    private void startHeartbeats(final Registration naming_server, final Storage client_stub,
+                                 final Command command_stub)
+    {
+        heartbeats = Executors.newSingleThreadScheduledExecutor(task ->
+        {
+            Thread thread = new Thread(task, "storage heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(new Runnable()
+        {
+            private long last = requests.get();
+            private long lastTime = System.nanoTime();
+            private double rate = 0;
+
+            @Override
+            public void run()
+            {
+                long count = requests.get();
+                long now = System.nanoTime();
+                double seconds = Math.max(1e-3, (now - lastTime) / 1e9);
+                rate = RATE_WEIGHT * ((count - last) / seconds) + (1 - RATE_WEIGHT) * rate;
+                last = count;
+                lastTime = now;
+                try
+                {
+                    naming_server.heartbeat(client_stub, new LoadReport(root.getUsableSpace(),
+                        root.getTotalSpace(), files.get(), rate));
+                }
+                catch (UnsupportedOperationException e)
+                {
+                    heartbeats.shutdown();
+                }
+                catch (IllegalStateException e)
+                {
+                    reregister();
+                }
+                catch (Throwable t)
+                {
+                    // the naming server may be restarting; try again later
+                }
+            }
+
+            // The naming server has dropped the replicas of this server that
+            // have copies elsewhere. Registering again tells it which files
+            // are still here, and returns those to delete.
+            private void reregister()
+            {
+                try
+                {
+                    register(naming_server, client_stub, command_stub, true);
+                }
+                catch (Throwable t)
+                {
+                    // the next heartbeat is refused, and registration tried
+                    // again
+                }
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends the files under the root to the naming server in chunks of
+        <code>REGISTRATION_CHUNK</code>, as the directory tree is walked, and
+        deletes the duplicates reported for each chunk as they come back. The
+        directory tree is pruned at the end. The registration is ended whether
+        or not the files can be sent, so that the naming server does not keep
+        it.
+     */
+    private void streamRegistration(Registration naming_server, long registration, boolean again)
+        throws RMIException, FileNotFoundException
+    {
+        try
+        {
+            sendFiles(naming_server, registration, again);
+        }
+        catch (Throwable t)
+        {
+            try
+            {
+                naming_server.endRegistration(registration);
+            }
+            catch (Throwable e)
+            {
+                // the naming server drops the registration when this server
+                // registers again
+                t.addSuppressed(e);
+            }
+            throw t;
         }
-        List<Path> afterPrune = Arrays.asList(Path.list(root));
+        naming_server.endRegistration(registration);
+        prune(root);
+    }
 
-        for (Path toPrune : beforePrune)
+    /** Walks the directory tree, sending its files in chunks. */
+    private void sendFiles(Registration naming_server, long registration, boolean again)
+        throws RMIException, FileNotFoundException
+    {
+        if (!root.isDirectory())
+        {
+            throw new FileNotFoundException(root + " is not a directory");
+        }
+        String rootPath = root.getAbsolutePath().replace("\\", "/");
+        this.files.set(0);
+        ArrayList<Path> chunk = new ArrayList<>(REGISTRATION_CHUNK);
+        ArrayDeque<File> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty())
         {
-            if (afterPrune.contains(toPrune))
+            File[] files = toVisit.pop().listFiles();
+            if (files == null)
             {
                 continue;
             }
-            File directory = toPrune.toFile(root).getParentFile();
-            while (directory.listFiles().length == 0)
+            for (File file : files)
+            {
+                if (file.isDirectory())
+                {
+                    toVisit.push(file);
+                    continue;
+                }
+                if (staged(file))
+                {
+                    if (!again)
+                    {
+                        file.delete();
+                    }
+                    continue;
+                }
+                String absolutePath = file.getAbsolutePath().replace("\\", "/");
+                chunk.add(new Path(absolutePath.substring(rootPath.length())));
+                this.files.incrementAndGet();
+                if (chunk.size() == REGISTRATION_CHUNK)
+                {
+                    sendChunk(naming_server, registration, chunk);
+                }
+            }
+        }
+        sendChunk(naming_server, registration, chunk);
+    }
+
+    /** Deletes the staged files under a directory. */
+    private static void removeStaged(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        for (File file : files)
+        {
+            if (file.isDirectory())
+            {
+                removeStaged(file);
+            }
+            else if (staged(file))
+            {
+                file.delete();
+            }
+        }
+    }
+
+    private void sendChunk(Registration naming_server, long registration, ArrayList<Path> chunk)
+        throws RMIException
+    {
+        if (chunk.isEmpty())
+        {
+            return;
+        }
+        Path[] toDelete = naming_server.registerFiles(registration, chunk.toArray(new Path[chunk.size()]));
+        chunk.clear();
+        for (Path file : toDelete)
+        {
+            delete(file);
+        }
+    }
+
+    private void registrationCleanup(Path[] toDelete)
+    {
+        for (Path file : toDelete)
+        {
+            delete(file);
+        }
+        prune(root);
+    }
+
+    /** Removes the empty directories under a directory, and the directories
+        left empty by their removal.
+
+        @return <code>true</code> if the directory itself is left empty.
+     */
+    private boolean prune(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return false;
+        }
+        boolean empty = true;
+        for (File file : files)
+        {
+            if (!file.isDirectory() || !prune(file) || !file.delete())
             {
-                directory.delete();
-                directory = directory.getParentFile();
+                empty = false;
             }
         }
+        return empty;
     }
 
     /** Stops the storage server.
@@ -139,8 +431,21 @@ public class StorageServer implements Storage, Command
      */
     public void stop()
     {
+        if (heartbeats != null)
+        {
+            heartbeats.shutdownNow();
+        }
         clientSkeleton.stop();
         commandSkeleton.stop();
+        channels.clear();
+        if (windows != null)
+        {
+            windows.clear();
+        }
+        if (checksums != null)
+        {
+            checksums.close();
+        }
     }
 
     /** Called when the storage server has shut down.
@@ -154,16 +459,123 @@ public class StorageServer implements Storage, Command
 
     // The following methods are documented in Storage.java.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws FileNotFoundException
     {
-        File f = file.toFile(root);
-        isValidFile(f);
-        return f.length();
+        requests.incrementAndGet();
+        Lock lock = locks.read(file);
+        lock.lock();
+        try
+        {
+            File f = file.toFile(root);
+            isValidFile(f);
+            return f.length();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] read(Path file, long offset, int length)
+        throws FileNotFoundException, IOException
+    {
+        requests.incrementAndGet();
+        Lock lock = locks.read(file);
+        lock.lock();
+        try (ChannelCache.Handle handle = readableRange(file, offset, length))
+        {
+            if (checksums == null || length == 0)
+            {
+                return readRange(file, handle, offset, length);
+            }
+            /* Whole blocks are read, so that each can be checked. */
+            int block = checksums.block();
+            long start = offset / block * block;
+            long end = Math.min((offset + length + block - 1) / block * block, handle.channel.size());
+            byte[] blocks = readRange(file, handle, start, Math.toIntExact(end - start));
+            checksums.verify(file, start, blocks);
+            if (start == offset && blocks.length == length)
+            {
+                return blocks;
+            }
+            int from = (int) (offset - start);
+            return Arrays.copyOfRange(blocks, from, from + length);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private byte[] readRange(Path file, ChannelCache.Handle handle, long offset, int length)
+        throws IOException
+    {
+        if (windows != null && handle.channel.size() >= MappedWindows.MIN_SIZE)
+        {
+            return windows.read(file, handle.channel, offset, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (handle.channel.read(buffer, offset + buffer.position()) < 0)
+            {
+                throw new EOFException("file truncated while being read");
+            }
+        }
+        return buffer.array();
     }
 
+    /** Answers reads made through the rmi library with the region of the file
+        read, which the skeleton sends without copying it into an array.
+
+        <p>
+        The region is sent after this method returns, so a read which overlaps
+        a concurrent write may see some of the written bytes. The file's cached
+        channel is held until the region has been sent.
+
+        <p>
+        If checksums are kept, no region is returned, and the skeleton calls
+        <code>read</code> instead: the blocks are checked as they are read
+        into memory, rather than read once to be checked and again to be
+        sent.
+     */
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public FileRegion region(Method method, Object[] args)
         throws FileNotFoundException, IOException
+    {
+        if (method.getDeclaringClass() != Storage.class
+            || !method.getName().equals("read") || checksums != null)
+        {
+            return null;
+        }
+        requests.incrementAndGet();
+        Path file = (Path) args[0];
+        long offset = (Long) args[1];
+        int length = (Integer) args[2];
+        Lock lock = locks.read(file);
+        lock.lock();
+        try
+        {
+            ChannelCache.Handle handle = readableRange(file, offset, length);
+            return new FileRegion(handle.channel, offset, length, handle);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Checks that a range of a file can be read.
+
+        @return The file's channel, which must be released once read.
+        @throws IndexOutOfBoundsException If the range is outside the file, or
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file does not exist or is a
+                                      directory.
+     */
+    private ChannelCache.Handle readableRange(Path file, long offset, int length)
+        throws IOException
     {
         if (offset < 0)
         {
@@ -173,32 +585,85 @@ public class StorageServer implements Storage, Command
         {
             throw new IndexOutOfBoundsException("Trying to read negative length.");
         }
-        File f = file.toFile(root);
-        isValidFile(f);
-        if (offset + length > f.length())
+        ChannelCache.Handle handle = channels.acquire(file);
+        try
         {
-            throw new IndexOutOfBoundsException("Reading past file size.");
+            if (offset + length > handle.channel.size())
+            {
+                throw new IndexOutOfBoundsException("Reading past file size.");
+            }
         }
-        RandomAccessFile raf = new RandomAccessFile(f, "r");
-        byte[] readBuffer = new byte[length];
-        /* TODO kevin: support long offset. */
-        raf.read(readBuffer, (int) offset, length);
-        return readBuffer;
+        catch (IndexOutOfBoundsException | IOException e)
+        {
+            handle.close();
+            throw e;
+        }
+        return handle;
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public void write(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
     {
         if (offset < 0)
         {
             throw new IndexOutOfBoundsException("Writing to negative offset.");
         }
-        File f = file.toFile(root);
-        isValidFile(f);
-        RandomAccessFile raf = new RandomAccessFile(f, "rw");
-        raf.seek(offset);
-        raf.write(data);
+        requests.incrementAndGet();
+        Lock lock = locks.write(file);
+        lock.lock();
+        try (ChannelCache.Handle handle = channels.acquire(file))
+        {
+            forget(file);
+            if (checksums != null)
+            {
+                checksums.check(file);
+            }
+            long old_size = handle.channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+            {
+                handle.channel.write(buffer, offset + buffer.position());
+            }
+            if (checksums != null)
+            {
+                checksums.written(file, handle.channel, old_size, offset, data);
+            }
+        }
+        catch (NonWritableChannelException e)
+        {
+            throw new IOException(file + " is read-only.", e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int[] checksums(Path file, int block_size)
+        throws FileNotFoundException, IOException
+    {
+        if (checksums == null)
+        {
+            throw new UnsupportedOperationException("checksums are not kept");
+        }
+        if (block_size != checksums.block())
+        {
+            throw new IllegalArgumentException("checksums are kept for blocks of "
+                                               + checksums.block() + " bytes");
+        }
+        requests.incrementAndGet();
+        Lock lock = locks.read(file);
+        lock.lock();
+        try (ChannelCache.Handle handle = channels.acquire(file))
+        {
+            return checksums.all(file, handle.channel);
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     /** Private validation of file for reading or writing
@@ -218,7 +683,21 @@ public class StorageServer implements Storage, Command
 
     // The following methods are documented in Command.java.
     @Override
-    public synchronized boolean create(Path file)
+    public boolean create(Path file)
+    {
+        Lock lock = locks.write(file);
+        lock.lock();
+        try
+        {
+            return createFile(file);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean createFile(Path file)
     {
         File f = file.toFile(root);
         File parent = f.getParentFile();
@@ -233,7 +712,17 @@ public class StorageServer implements Storage, Command
         try
         {
             /* Note: Returns false if file already existed. */
-            return f.createNewFile();
+            if (!f.createNewFile())
+            {
+                return false;
+            }
+            if (checksums != null)
+            {
+                /* Left from a file deleted while the server was down. */
+                checksums.remove(file);
+            }
+            files.incrementAndGet();
+            return true;
         }
         catch (IOException e)
         {
@@ -242,12 +731,32 @@ public class StorageServer implements Storage, Command
     }
 
     @Override
-    public synchronized boolean delete(Path file)
+    public boolean delete(Path file)
     {
         if (file.isRoot())
         {
             return false;
         }
+        Lock lock = locks.write(file);
+        lock.lock();
+        try
+        {
+            return deletePath(file);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean deletePath(Path file)
+    {
+        channels.remove(file);
+        forget(file);
+        if (checksums != null)
+        {
+            checksums.remove(file);
+        }
         File f = file.toFile(root);
         if (!f.exists())
         {
@@ -257,10 +766,12 @@ public class StorageServer implements Storage, Command
         {
             return deleteDirectory(f);
         }
-        else
+        else if (f.delete())
         {
-            return f.delete();
+            files.decrementAndGet();
+            return true;
         }
+        return false;
     }
 
     /** Recursive deletion of directory
@@ -280,6 +791,10 @@ public class StorageServer implements Storage, Command
             else
             {
                 success = file.delete();
+                if (success)
+                {
+                    files.decrementAndGet();
+                }
             }
             if(!success)
             {
@@ -290,45 +805,421 @@ public class StorageServer implements Storage, Command
     }
 
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public Path[] deleteTree(Path directory, Path[] listed)
+    {
+        if (directory.isRoot())
+        {
+            throw new IllegalArgumentException("cannot delete the root directory");
+        }
+        java.nio.file.Path top = directory.toFile(root).toPath();
+        channels.remove(directory);
+        forget(directory);
+        if (checksums != null)
+        {
+            checksums.remove(directory);
+        }
+        AtomicLong deleted = new AtomicLong();
+        /* The listed files are deleted in parallel, as each is one system
+         * call and needs no listing of its directory. */
+        Path[] failed = Arrays.stream(listed).parallel().filter(file ->
+        {
+            java.nio.file.Path local = file.toFile(root).toPath();
+            if (!local.startsWith(top) || local.equals(top))
+            {
+                return true;
+            }
+            Lock lock = locks.write(file);
+            lock.lock();
+            try
+            {
+                if (Files.deleteIfExists(local))
+                {
+                    deleted.incrementAndGet();
+                }
+                return false;
+            }
+            catch (IOException e)
+            {
+                return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }).toArray(Path[]::new);
+        files.addAndGet(-deleted.get());
+        /* Anything left, and the directories, are deleted children first. */
+        try
+        {
+            Files.walkFileTree(top, new SimpleFileVisitor<java.nio.file.Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attributes)
+                {
+                    try
+                    {
+                        Files.delete(file);
+                        if (!staged(file.toFile()))
+                        {
+                            files.decrementAndGet();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException exception)
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(java.nio.file.Path dir, IOException exception)
+                {
+                    try
+                    {
+                        Files.delete(dir);
+                    }
+                    catch (IOException e)
+                    {
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            /* The directory was absent, or could not be opened. */
+        }
+        /* Files that failed at first may have been deleted by the walk. */
+        return Arrays.stream(failed).filter(file ->
+        {
+            java.nio.file.Path local = file.toFile(root).toPath();
+            return !local.startsWith(top) || local.equals(top) || Files.exists(local);
+        }).toArray(Path[]::new);
+    }
+
+    @Override
+    public boolean copy(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        /* No lock is held while the file is streamed from the other server:
+         * a lock is shared by every file of its stripe, and the other server
+         * may at the same time be copying a file of the same stripe from
+         * this one. The copy is staged in a file of its own, which replaces
+         * the file under its lock only once complete. */
+        return copyFile(file, server);
+    }
+
+    /** Streams a file from another server into a staged file, in chunks of
+        about <code>COPY_CHUNK</code> bytes, then replaces the file with it. Up
+        to <code>COPY_WINDOW</code> chunks are requested at once through an
+        asynchronous stub, so that the round trips overlap each other and the
+        writing of the staged file, and each chunk is written in order as it
+        arrives. At most <code>COPY_WINDOW</code> chunks are held in memory,
+        whatever the size of the file.
+
+        <p>
+        If both servers keep checksums, the blocks of the local copy whose
+        checksums match the source's are copied into the staged file, only the
+        others are read from the source, and each block read is checked
+        against the source's checksum.
+     */
+    private boolean copyFile(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException
     {
         /* Throws FileNotFoundException if file didn't exist or is directory
          * in the other server. */
         long file_size = server.size(file);
-        boolean success = create(file);
-        /* File already existed, empty it first. */
-        if (!success)
+        int[] expected = sourceChecksums(file, server, file_size);
+        int[] sums = null;
+        if (checksums != null)
+        {
+            sums = new int[(int) ((file_size + checksums.block() - 1) / checksums.block())];
+        }
+
+        StorageAsync source;
+        try
+        {
+            source = Stub.createAsync(StorageAsync.class, server);
+        }
+        catch (IllegalArgumentException e)
         {
-            emptyFile(file);
+            /* Not a stub: the chunks are read one at a time. */
+            source = null;
         }
 
-        int cur_offset = 0;
-        while(cur_offset < file_size)
+        File staged = stage(file);
+        boolean published = false;
+        ArrayDeque<CompletableFuture<byte[]>> reads = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.WRITE))
         {
-            int toRead;
-            if (file_size - cur_offset > Integer.MAX_VALUE)
+            ArrayDeque<long[]> ranges = copyRanges(file, channel, file_size, expected, sums);
+            ArrayDeque<long[]> pending = new ArrayDeque<>();
+            while (!ranges.isEmpty() || !pending.isEmpty())
             {
-                toRead = Integer.MAX_VALUE;
+                while (!ranges.isEmpty() && reads.size() < COPY_WINDOW)
+                {
+                    long[] range = ranges.remove();
+                    if (source != null)
+                    {
+                        reads.add(source.read(file, range[0], (int) range[1]));
+                    }
+                    else
+                    {
+                        reads.add(CompletableFuture.completedFuture(server.read(file, range[0], (int) range[1])));
+                    }
+                    pending.add(range);
+                }
+                writeChunk(file, channel, pending.remove()[0], chunk(reads.remove()), expected, sums);
             }
-            else
+            publish(file, staged, sums);
+            published = true;
+        }
+        finally
+        {
+            /* The replies to reads abandoned after a failure are dropped. */
+            for (CompletableFuture<byte[]> read : reads)
+            {
+                read.cancel(false);
+            }
+            if (!published)
             {
-                toRead = (int) file_size - cur_offset;
+                staged.delete();
             }
-            byte[] data = server.read(file, cur_offset, toRead);
-            write(file, cur_offset, data);
-            cur_offset += toRead;
         }
         return true;
     }
 
-    private void emptyFile(Path file) throws IOException
+    /** Creates an empty staged file beside a file to be copied, creating the
+        file's directory if needed. */
+    private File stage(Path file) throws IOException
     {
-        FileWriter fw = new FileWriter(file.toFile(root), false);
-        PrintWriter pw = new PrintWriter(fw, false);
-        pw.flush();
-        pw.close();
-        fw.close();
+        File parent = file.toFile(root).getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+        {
+            throw new IOException("cannot create the directory of " + file);
+        }
+        return File.createTempFile("." + file.last() + ".", STAGED, parent);
+    }
+
+    /** Replaces a file with the staged copy of it, under the file's lock, and
+        drops what was cached of the file it replaces.
+
+        @param sums Checksums of the blocks of the staged file, or
+                    <code>null</code> if none are kept.
+     */
+    private void publish(Path file, File staged, int[] sums) throws IOException
+    {
+        Lock lock = locks.write(file);
+        lock.lock();
+        try
+        {
+            File f = file.toFile(root);
+            boolean existed = f.exists();
+            Files.move(staged.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            channels.remove(file);
+            forget(file);
+            if (checksums != null)
+            {
+                checksums.replace(file, sums);
+            }
+            if (!existed)
+            {
+                files.incrementAndGet();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether a local file is a staged copy, left behind if the
+        server stopped during a copy. */
+    private static boolean staged(File file)
+    {
+        return file.getName().endsWith(STAGED);
+    }
+
+    /** Returns the checksums of a file on the server it is copied from, or
+        <code>null</code> if they cannot be had for the local block size. */
+    private int[] sourceChecksums(Path file, Storage server, long file_size)
+    {
+        if (checksums == null)
+        {
+            return null;
+        }
+        int block = checksums.block();
+        try
+        {
+            int[] expected = server.checksums(file, block);
+            return expected.length == (file_size + block - 1) / block ? expected : null;
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException | IOException | RMIException e)
+        {
+            /* The copy reads the whole file, and fails if the source does. */
+            return null;
+        }
+    }
+
+    /** Returns the ranges of a file to read in a copy, each of at most
+        <code>COPY_CHUNK</code> bytes, rounded down to whole blocks if
+        checksums are kept. With the source's checksums, the blocks of the
+        local copy that match them are first written to the staged file, and
+        the ranges are the runs of blocks that do not; without, the whole
+        file. */
+    private ArrayDeque<long[]> copyRanges(Path file, FileChannel staged, long file_size,
+                                          int[] expected, int[] sums)
+        throws IOException
+    {
+        ArrayDeque<long[]> ranges = new ArrayDeque<>();
+        int block = checksums == null ? 1 : checksums.block();
+        long chunk = Math.max(block, COPY_CHUNK / block * block);
+        if (expected == null)
+        {
+            for (long offset = 0; offset < file_size; offset += chunk)
+            {
+                ranges.add(new long[] {offset, Math.min(chunk, file_size - offset)});
+            }
+            return ranges;
+        }
+        long[] run = null;
+        for (long offset = 0; offset < file_size; offset += chunk)
+        {
+            byte[] local = readLocal(file, offset, (int) Math.min(chunk, file_size - offset));
+            for (int start = 0; offset + start < file_size && start < chunk; start += block)
+            {
+                int index = (int) ((offset + start) / block);
+                int length = (int) Math.min(block, file_size - offset - start);
+                if (start + length <= local.length
+                    && BlockChecksums.checksum(local, start, length) == expected[index])
+                {
+                    writeFully(staged, offset + start, ByteBuffer.wrap(local, start, length));
+                    sums[index] = expected[index];
+                    continue;
+                }
+                if (run != null && run[0] + run[1] == offset + start && run[1] + length <= chunk)
+                {
+                    run[1] += length;
+                }
+                else
+                {
+                    run = new long[] {offset + start, length};
+                    ranges.add(run);
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /** Reads as much of a range of the local copy of a file as it has, under
+        the file's lock, for a copy to reuse. */
+    private byte[] readLocal(Path file, long offset, int length) throws IOException
+    {
+        Lock lock = locks.read(file);
+        lock.lock();
+        try (ChannelCache.Handle handle = channels.acquire(file))
+        {
+            long available = Math.min(length, handle.channel.size() - offset);
+            return available <= 0 ? new byte[0] : readRange(file, handle, offset, (int) available);
+        }
+        catch (FileNotFoundException e)
+        {
+            return new byte[0];
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Writes a chunk read by a copy to the staged file, checking it against
+        the source's checksums if there are any, and records the checksums of
+        its blocks if they are kept. */
+    private void writeChunk(Path file, FileChannel staged, long offset, byte[] data, int[] expected,
+                            int[] sums)
+        throws IOException
+    {
+        if (sums != null)
+        {
+            int block = checksums.block();
+            int first = (int) (offset / block);
+            for (int start = 0; start < data.length; start += block)
+            {
+                int index = first + start / block;
+                sums[index] = BlockChecksums.checksum(data, start, Math.min(block, data.length - start));
+                if (expected != null && sums[index] != expected[index])
+                {
+                    throw new IOException("block " + index + " of " + file + " corrupted in copy");
+                }
+            }
+        }
+        writeFully(staged, offset, ByteBuffer.wrap(data));
+    }
+
+    /** Writes the remaining bytes of a buffer to a channel at an offset. */
+    private static void writeFully(FileChannel channel, long offset, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    /** Waits for a chunk read by a copy.
+
+        @throws RMIException If the chunk cannot be read from the source.
+        @throws IOException If the source cannot read the chunk, or the copy is
+                            interrupted.
+     */
+    private static byte[] chunk(CompletableFuture<byte[]> read)
+        throws RMIException, IOException
+    {
+        try
+        {
+            return read.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("copy interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RMIException)
+            {
+                throw (RMIException) cause;
+            }
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new RMIException(cause);
+        }
+    }
+
+    /** Drops the mapped windows of a path that is changed or deleted. */
+    private void forget(Path path)
+    {
+        if (windows != null)
+        {
+            windows.remove(path);
+        }
     }
 }
 
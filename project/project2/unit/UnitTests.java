@@ -5,7 +5,34 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link rmi.CodecTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link rmi.BulkTransferTest}</li>
+    <li>{@link rmi.CallPolicyTest}</li>
+    <li>{@link rmi.ConnectionLimitTest}</li>
+    <li>{@link rmi.ResendTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.SelectorTransportTest}</li>
+    <li>{@link naming.NamespaceTest}</li>
+    <li>{@link naming.LockManagerTest}</li>
+    <li>{@link naming.JournalTest}</li>
+    <li>{@link naming.StreamedRegistrationTest}</li>
+    <li>{@link naming.PlacementTest}</li>
+    <li>{@link naming.ReplicatorTest}</li>
+    <li>{@link naming.ReadBalancerTest}</li>
+    <li>{@link naming.FanoutTest}</li>
+    <li>{@link naming.FailureDetectorTest}</li>
+    <li>{@link storage.DeleteTreeTest}</li>
+    <li>{@link storage.FileLockTest}</li>
+    <li>{@link storage.ChannelCacheTest}</li>
+    <li>{@link storage.MappedWindowsTest}</li>
+    <li>{@link storage.PipelinedCopyTest}</li>
+    <li>{@link storage.BlockChecksumsTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +45,25 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {rmi.CodecTest.class, rmi.AsyncStubTest.class,
+                        rmi.BatchTest.class, rmi.MetricsTest.class,
+                        rmi.BulkTransferTest.class, rmi.CallPolicyTest.class,
+                        rmi.ConnectionLimitTest.class, rmi.ResendTest.class,
+                        rmi.ConnectionPoolTest.class, rmi.SelectorTransportTest.class,
+                        naming.NamespaceTest.class, naming.LockManagerTest.class,
+                        naming.JournalTest.class,
+                        naming.StreamedRegistrationTest.class,
+                        naming.PlacementTest.class,
+                        naming.ReplicatorTest.class,
+                        naming.ReadBalancerTest.class,
+                        naming.FanoutTest.class,
+                        naming.FailureDetectorTest.class,
+                        storage.DeleteTreeTest.class,
+                        storage.FileLockTest.class,
+                        storage.ChannelCacheTest.class,
+                        storage.MappedWindowsTest.class,
+                        storage.PipelinedCopyTest.class,
+                        storage.BlockChecksumsTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
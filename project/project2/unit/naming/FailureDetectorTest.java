@@ -0,0 +1,264 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Checks failure detection and re-replication.
+
+    <p>
+    A storage server sending heartbeats at regular intervals must not be
+    suspected while its heartbeats keep coming, and must be suspected once
+    they stop for many intervals. When a server hosting a replica of a file
+    fails, the replica must be dropped and the file copied to another live
+    server. The failed server's heartbeats must be refused until it registers
+    again, which a running storage server must do by itself.
+ */
+public class FailureDetectorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking failure detection";
+
+    /** Longest wait for a background copy, or for a storage server to
+        register again, in milliseconds. */
+    private static final long   TIMEOUT = 5000;
+
+    /** Skeleton for the storage servers' command interface. */
+    private Skeleton<Command>   skeleton;
+
+    /** Storage server command interface that accepts every command. */
+    private static class NullCommand implements Command
+    {
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            return true;
+        }
+    }
+
+    /** Starts the command skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Command>(Command.class, new NullCommand(),
+                                         new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start command skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a server is suspected wrongly, or a file is not
+                           re-replicated after a failure.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testSuspicion();
+        testReplication();
+        testRegistration();
+    }
+
+    /** Checks the suspicion level of a server sending heartbeats each
+        second. */
+    private void testSuspicion() throws TestFailed
+    {
+        FailureDetector.Arrivals    arrivals = new FailureDetector.Arrivals();
+        long                        second = TimeUnit.SECONDS.toNanos(1);
+
+        if(arrivals.phi(100 * second) != 0)
+            throw new TestFailed("silent server suspected");
+
+        arrivals.heard(0);
+        if(arrivals.phi(2 * second) != 0)
+            throw new TestFailed("server suspected after one heartbeat");
+
+        for(int beat = 1; beat <= 10; ++beat)
+            arrivals.heard(beat * second);
+
+        if(arrivals.phi(12 * second) >= FailureDetector.THRESHOLD)
+            throw new TestFailed("server suspected after two intervals");
+
+        if(arrivals.phi(60 * second) < FailureDetector.THRESHOLD)
+            throw new TestFailed("server not suspected after fifty intervals");
+    }
+
+    /** Fails a server hosting a replica, and checks that the file is copied
+        to the remaining server. */
+    private void testReplication() throws TestFailed
+    {
+        NamingServer    server = new NamingServer();
+        Command         command =
+            Stub.create(Command.class,
+                        new InetSocketAddress("127.0.0.1", skeleton.port()));
+        Storage         first = client(1);
+        Storage         second = client(2);
+        Storage         third = client(3);
+        Path            file = new Path("/file");
+
+        try
+        {
+            server.register(first, command, new Path[] {file});
+            server.register(second, command, new Path[0]);
+
+            // Read the file until it is replicated on the second server.
+            await(server, file, first, second, true);
+
+            server.register(third, command, new Path[0]);
+            server.failed(server.machine(second));
+
+            // The replica on the failed server is replaced on the third.
+            await(server, file, first, third, false);
+
+            if(Arrays.asList(server.getReplicas(file, null)).contains(second))
+                throw new TestFailed("replica kept on failed server");
+
+            // The failed server's heartbeats are refused.
+            LoadReport  load = new LoadReport(0, 0, 0, 0);
+            try
+            {
+                server.heartbeat(second, load);
+                throw new TestFailed("heartbeat accepted from failed server");
+            }
+            catch(IllegalStateException e) { }
+
+            if(server.machine(second).alive)
+                throw new TestFailed("failed server revived by heartbeat");
+
+            // The failed server registers again.
+            server.register(second, command, new Path[0]);
+            if(!server.machine(second).alive)
+                throw new TestFailed("registered server not live");
+
+            server.heartbeat(second, load);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in re-replication", t);
+        }
+    }
+
+    /** Fails a running storage server, and checks that it registers again
+        when its heartbeats are refused. */
+    private void testRegistration() throws TestFailed
+    {
+        NamingServer    server = new NamingServer();
+        File            root = null;
+        StorageServer   storage = null;
+
+        try
+        {
+            root = File.createTempFile("storage", ".root");
+            root.delete();
+            root.mkdirs();
+            new File(root, "file").createNewFile();
+
+            storage = new StorageServer(root);
+            storage.start("127.0.0.1", server);
+
+            StorageMachine  machine =
+                server.machine(server.getStorage(new Path("/file")));
+            server.failed(machine);
+
+            long        deadline = System.currentTimeMillis() + TIMEOUT;
+            while(!machine.alive)
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("failed storage server not " +
+                                         "registered again");
+
+                Thread.sleep(10);
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in registration", t);
+        }
+        finally
+        {
+            if(storage != null)
+                storage.stop();
+
+            if(root != null)
+            {
+                new File(root, "file").delete();
+                root.delete();
+            }
+        }
+    }
+
+    /** Waits until a file has replicas on two given servers, reading it if
+        requested. */
+    private void await(NamingServer server, Path file, Storage one,
+                       Storage other, boolean read) throws Throwable
+    {
+        long            deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(true)
+        {
+            List<Storage>   replicas =
+                Arrays.asList(server.getReplicas(file, null));
+            if(replicas.contains(one) && replicas.contains(other))
+                return;
+
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("file not copied to " + other);
+
+            if(read)
+            {
+                server.lock(file, false);
+                server.unlock(file, false);
+            }
+            else
+                Thread.sleep(10);
+        }
+    }
+
+    /** Creates a client stub for a storage server that is never contacted. */
+    private static Storage client(int port)
+    {
+        return Stub.create(Storage.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Stops the command skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
@@ -0,0 +1,153 @@
+package naming;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Checks parallel deletion on storage servers.
+
+    <p>
+    Every path given for a server must reach it, including paths sent in one
+    batch, and a server that cannot be contacted must be reported without
+    holding up the others. When the naming server deletes a directory and one
+    server cannot be contacted, the directory must be kept, holding only the
+    files on that server.
+ */
+public class FanoutTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking parallel deletion";
+
+    /** Skeleton for the storage server that can be contacted. */
+    private Skeleton<Command>   skeleton;
+    /** Paths deleted on that server. */
+    private final Set<Path>     deleted =
+        Collections.synchronizedSet(new HashSet<Path>());
+    /** Fan-out under test. */
+    private Fanout              fanout;
+
+    /** Storage server command interface recording deletions. */
+    private class RecordingCommand implements Command
+    {
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            deleted.add(path);
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            return true;
+        }
+    }
+
+    /** Starts the command skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Command>(Command.class, new RecordingCommand(),
+                                         new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start command skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a path is not deleted or a failure is not
+                           reported.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Command         live =
+            Stub.create(Command.class,
+                        new InetSocketAddress("127.0.0.1", skeleton.port()));
+        Command         dead =
+            Stub.withPolicy(Stub.create(Command.class,
+                                        new InetSocketAddress("127.0.0.1", 1)),
+                            CallPolicy.defaults().withRetries(1, 0, 0));
+        Storage         live_client =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 2));
+        Storage         dead_client =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 3));
+
+        // Many paths to one server, in a batch, and one to a failing server.
+        fanout = new Fanout();
+        StorageMachine  up = new StorageMachine(live, live_client);
+        StorageMachine  down = new StorageMachine(dead, dead_client);
+        List<Path>      paths = new ArrayList<Path>();
+        for(int index = 0; index < 50; ++index)
+            paths.add(new Path("/batch/" + index));
+
+        Map<StorageMachine, List<Path>>     work =
+            new LinkedHashMap<StorageMachine, List<Path>>();
+        work.put(up, paths);
+        work.put(down, Collections.singletonList(new Path("/batch/0")));
+
+        Map<StorageMachine, Throwable>      failures = fanout.delete(work, true);
+        if(!deleted.containsAll(paths))
+            throw new TestFailed("batched paths not deleted");
+
+        if(failures.size() != 1 || !failures.containsKey(down))
+            throw new TestFailed("failing server not reported");
+
+        // A directory with files on both servers.
+        NamingServer    server = new NamingServer();
+        deleted.clear();
+
+        try
+        {
+            server.register(live_client, live, new Path[] {new Path("/d/x")});
+            server.register(dead_client, dead, new Path[] {new Path("/d/y")});
+
+            if(server.delete(new Path("/d")))
+                throw new TestFailed("partial deletion reported as success");
+
+            if(!deleted.contains(new Path("/d")))
+                throw new TestFailed("directory not deleted on live server");
+
+            List<String>    left =
+                Arrays.asList(server.list(new Path("/d")));
+            if(left.size() != 1 || !left.contains("y"))
+                throw new TestFailed("wrong files kept after partial deletion");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in deletion", t);
+        }
+    }
+
+    /** Stops the fan-out and the command skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(fanout != null)
+            fanout.close();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
@@ -0,0 +1,221 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Checks that the naming server recovers its metadata from its journal and
+    snapshots.
+
+    <p>
+    A naming server created on a metadata directory must find the directories,
+    files and storage servers recorded there by an earlier server, whether
+    they were recorded in the journal or in a snapshot. A torn record at the
+    end of the journal must be dropped. A file the storage server failed to
+    create must not be found. A recovered storage server must be suspected if
+    it is not heard from again, and one registering again after the restart
+    must keep its files.
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server journal and snapshots";
+
+    /** Metadata directory. */
+    private File                directory;
+    /** Skeleton for the storage server's command interface. */
+    private Skeleton<Command>   command_skeleton;
+
+    /** File the storage server fails to create. */
+    private static final Path   REFUSED = new Path("/c/refused");
+
+    /** Storage server command interface that does nothing, and fails to
+        create <code>REFUSED</code>. */
+    private static class NullCommand implements Command
+    {
+        @Override
+        public boolean create(Path file) throws RMIException
+        {
+            if(file.equals(REFUSED))
+                throw new RMIException("unable to create file");
+
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            return true;
+        }
+    }
+
+    /** Creates the metadata directory and starts the command skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = File.createTempFile("naming", ".meta");
+            directory.delete();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create metadata directory", e);
+        }
+
+        command_skeleton =
+            new Skeleton<Command>(Command.class, new NullCommand(),
+                                  new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            command_skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start command skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If metadata is lost or changed across a restart.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Storage         client_stub =
+            Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 1));
+        Command         command_stub =
+            Stub.create(Command.class,
+                        new InetSocketAddress("127.0.0.1",
+                                              command_skeleton.port()));
+
+        try
+        {
+            // Record changes in the journal only.
+            NamingServer    server = new NamingServer(directory);
+            server.register(client_stub, command_stub,
+                            new Path[] {new Path("/a/file"),
+                                        new Path("/b/file")});
+            server.createDirectory(new Path("/c"));
+            server.delete(new Path("/b"));
+
+            if(server.createFile(REFUSED))
+                throw new TestFailed("file created despite storage failure");
+            if(server.list(new Path("/c")).length != 0)
+                throw new TestFailed("file kept despite storage failure");
+
+            // A torn record at the end of the journal.
+            try(FileOutputStream journal =
+                    new FileOutputStream(new File(directory, "journal"), true))
+            {
+                journal.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+            }
+
+            server = new NamingServer(directory);
+            check(server, client_stub);
+
+            // The storage server registers again and keeps its file.
+            Path[]          duplicates =
+                server.register(client_stub, command_stub,
+                                new Path[] {new Path("/a/file")});
+            if(duplicates.length != 0)
+                throw new TestFailed("hosted file reported as duplicate");
+
+            try
+            {
+                server.register(client_stub, command_stub, new Path[0]);
+                throw new TestFailed("storage server registered twice");
+            }
+            catch(IllegalStateException e) { }
+
+            // Take a snapshot and record further changes after it.
+            Namespace               namespace = new Namespace();
+            List<StorageMachine>    machines =
+                new ArrayList<StorageMachine>();
+            Journal                 journal =
+                Journal.open(directory, namespace, machines);
+            journal.snapshot(namespace, machines);
+            Path                    d = new Path("/d");
+            namespace.root().add(new PathMachinePair(d, FileType.DIRECTORY,
+                                                     null));
+            journal.createDirectory(d);
+            journal.close();
+
+            server = new NamingServer(directory);
+            check(server, client_stub);
+            if(!server.isDirectory(d))
+                throw new TestFailed("directory recorded after snapshot lost");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to recover metadata", t);
+        }
+    }
+
+    /** Checks the state recorded before the first restart. */
+    private void check(NamingServer server, Storage client_stub)
+        throws Throwable
+    {
+        Set<String>     root =
+            new HashSet<String>(Arrays.asList(server.list(new Path("/"))));
+        Set<String>     expected = new HashSet<String>(Arrays.asList("a", "c"));
+
+        if(!root.containsAll(expected) || root.contains("b"))
+            throw new TestFailed("root directory recovered incorrectly");
+
+        if(!server.isDirectory(new Path("/c")))
+            throw new TestFailed("directory recovered as file");
+
+        if(server.list(new Path("/c")).length != 0)
+            throw new TestFailed("file storage failed to create recovered");
+
+        if(!server.getStorage(new Path("/a/file")).equals(client_stub))
+            throw new TestFailed("file recovered with wrong storage server");
+
+        long            silent = System.nanoTime() +
+            (FailureDetector.FIRST_TIMEOUT + 1000) * 1000000L;
+        if(server.machine(client_stub).arrivals.phi(silent) <
+           FailureDetector.THRESHOLD)
+        {
+            throw new TestFailed("recovered storage server never suspected");
+        }
+    }
+
+    /** Stops the command skeleton and deletes the metadata directory. */
+    @Override
+    protected void clean()
+    {
+        if(command_skeleton != null)
+            command_skeleton.stop();
+
+        if(directory == null)
+            return;
+
+        File[]          files = directory.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+                file.delete();
+        }
+
+        directory.delete();
+    }
+}
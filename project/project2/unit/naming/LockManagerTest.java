@@ -0,0 +1,164 @@
+package naming;
+
+import java.io.FileNotFoundException;
+
+import common.*;
+import test.*;
+
+/** Checks the naming server's lock manager.
+
+    <p>
+    A request waiting on one subtree must not hold up requests on another. A
+    shared request arriving after an exclusive request has begun to wait must
+    wait behind it. Requests waiting when the manager closes must fail with
+    <code>IllegalStateException</code>.
+ */
+public class LockManagerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lock manager";
+
+    /** Time given to a blocked request to show it is blocked, in
+        milliseconds. */
+    private static final long   SETTLE = 200;
+
+    /** Directory tree under test. */
+    private Namespace           namespace;
+    /** Lock manager under test. */
+    private LockManager         locks;
+
+    /** Performs the test.
+
+        @throws TestFailed If a request is granted or refused wrongly.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        namespace = new Namespace();
+        locks = new LockManager(namespace);
+        add(namespace.root(), "/a", FileType.DIRECTORY);
+        add(namespace.root(), "/b", FileType.DIRECTORY);
+        add(namespace.get(new Path("/a")), "/a/file", FileType.FILE);
+
+        Path                a = new Path("/a");
+        Path                file = new Path("/a/file");
+        Path                b = new Path("/b");
+
+        try
+        {
+            // An exclusive request waits behind a shared lock, and a later
+            // shared request waits behind it, but /b stays free.
+            lock(file, false);
+            Locker          writer = new Locker(file, true);
+            Locker          reader = new Locker(file, false);
+
+            writer.start();
+            settle();
+            reader.start();
+            settle();
+
+            if(writer.done || reader.done)
+                throw new TestFailed("request granted over a conflicting lock");
+
+            lock(b, true);
+            locks.unlock(b, true);
+
+            // Releasing the shared lock lets the writer in, then the reader.
+            locks.unlock(file, false);
+            writer.join();
+            writer.check();
+            settle();
+            if(reader.done)
+                throw new TestFailed("shared request overtook exclusive lock");
+
+            locks.unlock(file, true);
+            reader.join();
+            reader.check();
+            locks.unlock(file, false);
+
+            // A directory locked for exclusive access blocks its subtree, and
+            // closing the manager fails the waiting request.
+            lock(a, true);
+            Locker          blocked = new Locker(file, false);
+            blocked.start();
+            settle();
+            if(blocked.done)
+                throw new TestFailed("request granted under exclusive lock");
+
+            locks.close();
+            blocked.join();
+            if(!(blocked.failure instanceof IllegalStateException))
+            {
+                throw new TestFailed("waiting request not failed on close",
+                                     blocked.failure);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for lock", e);
+        }
+    }
+
+    /** Takes a lock, failing the test if the path is not found. */
+    private void lock(Path path, boolean exclusive) throws TestFailed
+    {
+        try
+        {
+            locks.lock(path, exclusive);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to lock " + path, e);
+        }
+    }
+
+    /** Gives blocked requests time to be granted wrongly. */
+    private static void settle() throws InterruptedException
+    {
+        Thread.sleep(SETTLE);
+    }
+
+    /** Thread making a single lock request. */
+    private class Locker extends Thread
+    {
+        private final Path          path;
+        private final boolean       exclusive;
+        volatile boolean            done = false;
+        volatile Throwable          failure = null;
+
+        Locker(Path path, boolean exclusive)
+        {
+            this.path = path;
+            this.exclusive = exclusive;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                locks.lock(path, exclusive);
+                done = true;
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+
+        /** Fails the test if the request was not granted. */
+        void check() throws TestFailed
+        {
+            if(!done)
+                throw new TestFailed("lock on " + path + " not granted",
+                                     failure);
+        }
+    }
+
+    /** Adds an entry under the given directory. */
+    private static void add(Namespace.Node directory, String path,
+                            FileType type)
+    {
+        directory.add(new PathMachinePair(new Path(path), type, null));
+    }
+}
@@ -0,0 +1,136 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+import test.*;
+
+/** Checks the naming server's directory tree.
+
+    <p>
+    Paths must be found in large directories and deep trees, listings must
+    name every child, and when several threads add the same path at once,
+    exactly one of them must succeed.
+ */
+public class NamespaceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server directory tree";
+
+    /** Number of files in the large directory. */
+    private static final int    WIDTH = 100000;
+    /** Depth of the deep tree. */
+    private static final int    DEPTH = 1000;
+    /** Number of threads adding the same path. */
+    private static final int    THREADS = 8;
+
+    /** Performs the test.
+
+        @throws TestFailed If a path is lost or found where it should not be,
+                           or two threads both add the same path.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Namespace           namespace = new Namespace();
+
+        // A large directory.
+        Namespace.Node      wide = add(namespace.root(), "/wide",
+                                       FileType.DIRECTORY);
+        for(int index = 0; index < WIDTH; ++index)
+            add(wide, "/wide/file" + index, FileType.FILE);
+
+        for(int index = 0; index < WIDTH; ++index)
+        {
+            Namespace.Node  node = namespace.get(new Path("/wide/file" + index));
+
+            if(node == null || node.isDirectory() || node.parent != wide)
+                throw new TestFailed("file in large directory not found");
+        }
+
+        if(new HashSet<String>(Arrays.asList(wide.names())).size() != WIDTH)
+            throw new TestFailed("large directory listed incorrectly");
+
+        if(namespace.get(new Path("/wide/file" + WIDTH)) != null ||
+           namespace.get(new Path("/wide/file0/child")) != null)
+        {
+            throw new TestFailed("missing path found");
+        }
+
+        // A deep tree.
+        Namespace.Node      node = namespace.root();
+        Path                path = new Path("/");
+        for(int depth = 0; depth < DEPTH; ++depth)
+        {
+            path = new Path(path, "d");
+            node = add(node, path.toString(), FileType.DIRECTORY);
+        }
+
+        if(namespace.get(path) != node)
+            throw new TestFailed("deep directory not found");
+
+        // Removal takes the subtree with it.
+        Namespace.Node      top = namespace.get(new Path("/d"));
+        if(!top.remove() || top.remove())
+            throw new TestFailed("directory removed incorrectly");
+
+        if(namespace.get(path) != null || namespace.get(new Path("/d")) != null)
+            throw new TestFailed("removed directory still found");
+
+        checkConcurrentAdd(namespace);
+    }
+
+    /** Checks that only one of several threads adding the same path
+        succeeds. */
+    private void checkConcurrentAdd(final Namespace namespace)
+        throws TestFailed
+    {
+        final AtomicInteger added = new AtomicInteger();
+        Thread[]            threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    PathMachinePair entry =
+                        new PathMachinePair(new Path("/race"),
+                                            FileType.FILE, null);
+
+                    if(namespace.root().add(entry) != null)
+                        added.incrementAndGet();
+                }
+            };
+            threads[index].start();
+        }
+
+        try
+        {
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while adding paths", e);
+        }
+
+        if(added.get() != 1)
+            throw new TestFailed(added.get() + " threads added the same path");
+    }
+
+    /** Adds an entry under the given directory. */
+    private static Namespace.Node add(Namespace.Node directory, String path,
+                                      FileType type) throws TestFailed
+    {
+        Namespace.Node      node =
+            directory.add(new PathMachinePair(new Path(path), type, null));
+
+        if(node == null)
+            throw new TestFailed("unable to add " + path);
+
+        return node;
+    }
+}
@@ -0,0 +1,100 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Checks the strategies placing new files on storage servers.
+
+    <p>
+    Each strategy must pass over servers whose storage is full, unless every
+    server is full. The least loaded strategy must choose the server with the
+    lowest request rate, counting files placed since the last heartbeat. The
+    two choices strategy must never choose the more loaded of two servers.
+    The consistent hashing strategy must place the files of a directory
+    together, and spread directories over the servers.
+ */
+public class PlacementTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking file placement strategies";
+
+    /** Storage size reported by test servers, in bytes. */
+    private static final long   TOTAL = 1L << 40;
+
+    /** Performs the test.
+
+        @throws TestFailed If a strategy chooses a server it should not.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Path                    file = new Path("/directory/file");
+
+        // Least loaded, with a full server that would otherwise be chosen.
+        StorageMachine          idle_full = server(0, 0.0, 0);
+        StorageMachine          busy = server(1, 50.0, TOTAL / 2);
+        StorageMachine          quiet = server(2, 10.0, TOTAL / 2);
+        List<StorageMachine>    servers = Arrays.asList(idle_full, busy, quiet);
+
+        Placement               least = new Placement.LeastLoaded();
+        if(least.place(file, servers) != quiet)
+            throw new TestFailed("least loaded server not chosen");
+
+        // Files placed since the last heartbeat count as load.
+        quiet.placed.set(100);
+        if(least.place(file, servers) != busy)
+            throw new TestFailed("placed files not counted as load");
+
+        // Every server full: the full server is chosen after all.
+        StorageMachine          other_full = server(3, 5.0, 0);
+        if(least.place(file, Arrays.asList(idle_full, other_full)) != idle_full)
+            throw new TestFailed("full servers not used when all are full");
+
+        // Two choices between two servers always takes the less loaded.
+        Placement               two = new Placement.TwoChoices();
+        StorageMachine          light = server(4, 1.0, TOTAL / 2);
+        StorageMachine          heavy = server(5, 90.0, TOTAL / 2);
+        for(int round = 0; round < 20; ++round)
+        {
+            light.placed.set(0);
+            if(two.place(file, Arrays.asList(heavy, light)) != light)
+                throw new TestFailed("more loaded of two servers chosen");
+        }
+
+        // Consistent hashing keeps directories together and spreads them.
+        Placement               hash = new Placement.ConsistentHash();
+        List<StorageMachine>    ring = new ArrayList<StorageMachine>();
+        for(int id = 10; id < 14; ++id)
+            ring.add(server(id, 0.0, TOTAL / 2));
+
+        Set<StorageMachine>     used = new HashSet<StorageMachine>();
+        for(int directory = 0; directory < 64; ++directory)
+        {
+            StorageMachine      first =
+                hash.place(new Path("/d" + directory + "/a"), ring);
+            StorageMachine      second =
+                hash.place(new Path("/d" + directory + "/b"), ring);
+
+            if(first != second)
+                throw new TestFailed("files of one directory placed apart");
+
+            used.add(first);
+        }
+
+        if(used.size() < 3)
+            throw new TestFailed("directories not spread over servers");
+    }
+
+    /** Creates a server that has reported the given load. */
+    private static StorageMachine server(int id, double rate, long free)
+    {
+        StorageMachine          sm = new StorageMachine(null, null);
+
+        sm.id = id;
+        sm.load = new LoadReport(free, TOTAL, 0, rate);
+        return sm;
+    }
+}
@@ -0,0 +1,93 @@
+package naming;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Checks the policies ordering the replicas of a file for readers.
+
+    <p>
+    The least outstanding policy must put first the least loaded server,
+    counting the readers given to each server since its last heartbeat. The
+    round robin policy must give each server the first place in turn. The
+    locality policy must put first the server on the client's host.
+ */
+public class ReadBalancerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking replica read policies";
+
+    /** Performs the test.
+
+        @throws TestFailed If a policy orders replicas incorrectly.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageMachine          remote = server("10.0.0.1", 1, 5.0);
+        StorageMachine          near = server("127.0.0.1", 2, 20.0);
+        StorageMachine          other = server("10.0.0.2", 3, 10.0);
+        List<StorageMachine>    replicas = Arrays.asList(near, other, remote);
+
+        // Least outstanding, with readers counted as load.
+        ReadBalancer            least = new ReadBalancer.LeastOutstanding();
+        StorageMachine[]        order = least.order(replicas, null);
+        if(order[0] != remote || order[1] != other || order[2] != near)
+            throw new TestFailed("replicas not ordered by load");
+
+        for(int reader = 1; reader < 10; ++reader)
+            least.order(replicas, null);
+
+        if(near.served.get() != 0 ||
+           remote.served.get() + other.served.get() != 10 ||
+           remote.served.get() <= other.served.get())
+        {
+            throw new TestFailed("readers not spread by load");
+        }
+
+        // Round robin gives each server the first place in turn.
+        ReadBalancer            round = new ReadBalancer.RoundRobin();
+        Set<StorageMachine>     first = new HashSet<StorageMachine>();
+        for(int reader = 0; reader < replicas.size(); ++reader)
+        {
+            order = round.order(replicas, null);
+            if(order.length != replicas.size() ||
+               !new HashSet<StorageMachine>(Arrays.asList(order))
+                    .containsAll(replicas))
+            {
+                throw new TestFailed("round robin lost replicas");
+            }
+
+            first.add(order[0]);
+        }
+
+        if(first.size() != replicas.size())
+            throw new TestFailed("round robin did not rotate");
+
+        // Locality puts the server on the client's host first, whatever its
+        // load, and orders the others by load.
+        ReadBalancer            local = new ReadBalancer.Locality();
+        order = local.order(replicas, "127.0.0.1");
+        if(order[0] != near)
+            throw new TestFailed("local replica not preferred");
+
+        order = local.order(replicas, null);
+        if(order[0] == near)
+            throw new TestFailed("loaded replica preferred with no client");
+    }
+
+    /** Creates a server at the given address that has reported the given
+        request rate. */
+    private static StorageMachine server(String host, int port, double rate)
+    {
+        Storage                 stub =
+            Stub.create(Storage.class, new InetSocketAddress(host, port));
+        StorageMachine          sm = new StorageMachine(null, stub);
+
+        sm.load = new LoadReport(1L << 30, 1L << 31, 0, rate);
+        return sm;
+    }
+}
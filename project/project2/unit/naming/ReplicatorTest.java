@@ -0,0 +1,155 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Checks the naming server's replication manager.
+
+    <p>
+    Reads of a file must not wait for the copy they start, and a file must be
+    copied only once at a time. A replica must be added once its copy
+    completes, unless the file was written while the copy ran, in which case
+    the copy must be deleted instead.
+ */
+public class ReplicatorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous replication";
+
+    /** Longest wait for a background copy, in milliseconds. */
+    private static final long   TIMEOUT = 5000;
+
+    /** Replication manager under test. */
+    private Replicator          replicator;
+
+    /** Storage server command interface whose copies wait to be released. */
+    private static class SlowCommand implements Command
+    {
+        /** Released to let copies complete. */
+        final CountDownLatch        release = new CountDownLatch(1);
+        /** Number of copies requested. */
+        final Semaphore             copies = new Semaphore(0);
+        /** Paths deleted. */
+        final BlockingQueue<Path>   deleted = new LinkedBlockingQueue<Path>();
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            deleted.add(path);
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            copies.release();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a read waits for a copy, a file is copied twice
+                           at once, or a replica is added when it should not
+                           be.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Namespace               namespace = new Namespace();
+        LockManager             locks = new LockManager(namespace);
+        SlowCommand             target = new SlowCommand();
+        StorageMachine          first = new StorageMachine(new SlowCommand(),
+                                                           null);
+        StorageMachine          second = new StorageMachine(target, null);
+        List<StorageMachine>    servers = Arrays.asList(first, second);
+
+        replicator = new Replicator(new NamingServer(), locks, servers);
+
+        PathMachinePair         hot =
+            new PathMachinePair(new Path("/hot"), FileType.FILE, first);
+        PathMachinePair         written =
+            new PathMachinePair(new Path("/written"), FileType.FILE, first);
+        namespace.root().add(hot);
+        namespace.root().add(written);
+
+        try
+        {
+            // Reads return while the copy they started waits.
+            for(int read = 0; read < 3 * Replicator.READS_PER_REPLICA; ++read)
+                replicator.read(hot);
+
+            if(!target.copies.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("hot file not copied");
+
+            if(hot.machine.size() != 1)
+                throw new TestFailed("replica added before copy completed");
+
+            // The file is written while its copy runs.
+            for(int read = 0; read < 3 * Replicator.READS_PER_REPLICA; ++read)
+                replicator.read(written);
+
+            if(!target.copies.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("second file not copied");
+
+            written.version.incrementAndGet();
+
+            if(target.copies.tryAcquire())
+                throw new TestFailed("file copied twice at once");
+
+            target.release.countDown();
+
+            Path                deleted =
+                target.deleted.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            if(!written.path.equals(deleted))
+                throw new TestFailed("stale copy not deleted");
+
+            if(written.machine.size() != 1)
+                throw new TestFailed("stale copy added as replica");
+
+            long                deadline = System.currentTimeMillis() + TIMEOUT;
+            while(hot.machine.size() != 2)
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("replica not added after copy");
+
+                Thread.sleep(10);
+            }
+
+            if(hot.machine.get(1) != second)
+                throw new TestFailed("replica added on wrong server");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for copy", e);
+        }
+    }
+
+    /** Stops the replication manager. */
+    @Override
+    protected void clean()
+    {
+        if(replicator != null)
+            replicator.close();
+    }
+}
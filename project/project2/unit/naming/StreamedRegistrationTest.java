@@ -0,0 +1,193 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Checks streamed storage server registration.
+
+    <p>
+    Files sent in chunks must be merged with the directory tree, and each chunk
+    must report the duplicates among its own files: files already hosted by
+    another server, paths taken by directories, and paths under files. A
+    registration must be rejected once it has ended, or once the registering
+    server has been declared failed. A storage server that cannot send its
+    files must end its registration.
+ */
+public class StreamedRegistrationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed registration";
+
+    /** Performs the test.
+
+        @throws TestFailed If files are merged incorrectly or duplicates are
+                           reported incorrectly.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        NamingServer    server = new NamingServer();
+
+        try
+        {
+            Path[]      duplicates =
+                server.register(stub(Storage.class, 1), stub(Command.class, 2),
+                                paths("/a/x", "/b/c/y"));
+            if(duplicates.length != 0)
+                throw new TestFailed("first server given duplicates");
+
+            long        registration =
+                server.beginRegistration(stub(Storage.class, 3),
+                                         stub(Command.class, 4));
+
+            duplicates = server.registerFiles(registration,
+                                              paths("/a/x", "/a/w", "/b/c"));
+            check(duplicates, "/a/x", "/b/c");
+
+            duplicates = server.registerFiles(registration,
+                                              paths("/a/x/v", "/d/e/f"));
+            check(duplicates, "/a/x/v");
+
+            server.endRegistration(registration);
+
+            if(!server.isDirectory(new Path("/d/e")) ||
+               server.isDirectory(new Path("/d/e/f")) ||
+               server.isDirectory(new Path("/a/w")))
+            {
+                throw new TestFailed("streamed files merged incorrectly");
+            }
+
+            try
+            {
+                server.registerFiles(registration, paths("/g"));
+                throw new TestFailed("ended registration accepted files");
+            }
+            catch(IllegalArgumentException e) { }
+
+            // A server that fails while registering does not end its
+            // registration, which is dropped.
+            Storage     client = stub(Storage.class, 5);
+            Command     command = stub(Command.class, 6);
+            registration = server.beginRegistration(client, command);
+            server.failed(server.machine(client));
+            try
+            {
+                server.registerFiles(registration, paths("/h"));
+                throw new TestFailed("registration of failed server accepted " +
+                                     "files");
+            }
+            catch(IllegalArgumentException e) { }
+
+            registration = server.beginRegistration(client, command);
+            server.registerFiles(registration, paths("/h"));
+            server.endRegistration(registration);
+
+            testFailure();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in registration", t);
+        }
+    }
+
+    /** Registration interface on which sending files fails, and which records
+        whether the registration was ended. */
+    private static class FailingRegistration implements Registration
+    {
+        /** Whether the registration was ended. */
+        volatile boolean    ended = false;
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            throw new IllegalStateException("streamed registration expected");
+        }
+
+        @Override
+        public long beginRegistration(Storage client_stub, Command command_stub)
+        {
+            return 1;
+        }
+
+        @Override
+        public Path[] registerFiles(long registration, Path[] files)
+            throws RMIException
+        {
+            throw new RMIException("unable to send files");
+        }
+
+        @Override
+        public void endRegistration(long registration)
+        {
+            ended = true;
+        }
+    }
+
+    /** Starts a storage server whose files cannot be sent, and checks that
+        it ends its registration. */
+    private void testFailure() throws Throwable
+    {
+        FailingRegistration registration = new FailingRegistration();
+        File                root = File.createTempFile("storage", ".root");
+        StorageServer       storage = new StorageServer(root);
+
+        root.delete();
+        root.mkdirs();
+        new File(root, "file").createNewFile();
+
+        try
+        {
+            storage.start("127.0.0.1", registration);
+            throw new TestFailed("storage server started without sending " +
+                                 "files");
+        }
+        catch(RMIException e) { }
+        finally
+        {
+            storage.stop();
+            new File(root, "file").delete();
+            root.delete();
+        }
+
+        if(!registration.ended)
+            throw new TestFailed("failed registration not ended");
+    }
+
+    /** Checks that the reported duplicates are exactly the given paths. */
+    private void check(Path[] duplicates, String... expected)
+        throws TestFailed
+    {
+        Set<Path>       reported = new HashSet<Path>(Arrays.asList(duplicates));
+
+        if(!reported.equals(new HashSet<Path>(Arrays.asList(paths(expected)))))
+            throw new TestFailed("wrong duplicates reported: " + reported);
+    }
+
+    /** Creates paths from path strings. */
+    private static Path[] paths(String... strings)
+    {
+        Path[]          paths = new Path[strings.length];
+
+        for(int index = 0; index < strings.length; ++index)
+            paths[index] = new Path(strings[index]);
+
+        return paths;
+    }
+
+    /** Creates a stub for a server that is never contacted. */
+    private static <T> T stub(Class<T> c, int port)
+    {
+        return Stub.create(c, new InetSocketAddress("127.0.0.1", port));
+    }
+}
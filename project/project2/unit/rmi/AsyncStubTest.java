@@ -0,0 +1,151 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that asynchronous stubs complete their futures with the results and
+    exceptions of remote calls.
+
+    <p>
+    Many calls are sent before any reply is waited for, so that they are
+    outstanding on the same connections together.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of calls outstanding together. */
+    private static final int    CALLS = 100;
+
+    /** Remote interface of the test server. */
+    public interface Echo
+    {
+        String echo(String message) throws RMIException;
+        int missing(int code) throws RMIException, FileNotFoundException;
+    }
+
+    /** Asynchronous companion of <code>Echo</code>. */
+    public interface EchoAsync
+    {
+        CompletableFuture<String> echo(String message);
+        CompletableFuture<Integer> missing(int code);
+    }
+
+    /** Companion with a method that has no counterpart in <code>Echo</code>.
+     */
+    public interface BadAsync
+    {
+        CompletableFuture<String> shout(String message);
+    }
+
+    /** Test server. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public String echo(String message)
+        {
+            return message;
+        }
+
+        @Override
+        public int missing(int code) throws FileNotFoundException
+        {
+            throw new FileNotFoundException("missing " + code);
+        }
+    }
+
+    /** Skeleton for the test server. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(),
+                                      new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a future is not completed as the corresponding
+                           synchronous call would have returned or thrown.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", skeleton.port());
+        EchoAsync           stub =
+            Stub.createAsync(EchoAsync.class, Echo.class, address);
+
+        List<CompletableFuture<String>> results =
+            new ArrayList<CompletableFuture<String>>();
+        for(int index = 0; index < CALLS; ++index)
+            results.add(stub.echo("message " + index));
+
+        CompletableFuture<Integer>  failure = stub.missing(7);
+
+        try
+        {
+            for(int index = 0; index < CALLS; ++index)
+            {
+                if(!results.get(index).get().equals("message " + index))
+                    throw new TestFailed("wrong result for call " + index);
+            }
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("asynchronous call failed", e);
+        }
+
+        try
+        {
+            failure.get();
+            throw new TestFailed("remote exception not propagated");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+                throw new TestFailed("wrong remote exception", e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(!stub.equals(Stub.createAsync(EchoAsync.class, Echo.class,
+                                         address)))
+        {
+            throw new TestFailed("equal asynchronous stubs are not equal");
+        }
+
+        try
+        {
+            Stub.createAsync(BadAsync.class, Echo.class, address);
+            throw new TestFailed("companion without counterpart accepted");
+        }
+        catch(Error e) { }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
@@ -0,0 +1,141 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.List;
+
+import test.*;
+
+/** Checks that batches of calls return every result and exception, in the
+    order the calls were queued.
+
+    <p>
+    Ordered batches must run their calls one after another. Parallel batches
+    must run every call, on a skeleton whose executor has fewer threads than
+    the batch has calls.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched calls";
+
+    /** Number of calls in each batch. */
+    private static final int    CALLS = 50;
+
+    /** Remote interface of the test server. */
+    public interface Counter
+    {
+        int next() throws RMIException;
+        int fail(int code) throws RMIException, FileNotFoundException;
+    }
+
+    /** Test server. */
+    private static class CounterServer implements Counter
+    {
+        private int     count = 0;
+
+        @Override
+        public synchronized int next()
+        {
+            return count++;
+        }
+
+        @Override
+        public int fail(int code) throws FileNotFoundException
+        {
+            throw new FileNotFoundException("missing " + code);
+        }
+    }
+
+    /** Skeleton for the test server. */
+    private Skeleton<Counter>   skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Counter>(Counter.class, new CounterServer(),
+                                         new InetSocketAddress("127.0.0.1", 0),
+                                         ServiceExecutors.bounded(2, 1));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a batch returns a wrong result or exception.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Counter         stub =
+            Stub.create(Counter.class,
+                        new InetSocketAddress("127.0.0.1", skeleton.port()));
+        Batch<Counter>  batch = new Batch<Counter>(stub);
+
+        try
+        {
+            // Ordered calls see the counter advance one step at a time.
+            for(int index = 0; index < CALLS; ++index)
+                batch.calls().next();
+            batch.calls().fail(3);
+
+            List<Batch.Result>  results = batch.flush(false);
+
+            if(results.size() != CALLS + 1 || batch.size() != 0)
+                throw new TestFailed("wrong number of results");
+
+            for(int index = 0; index < CALLS; ++index)
+            {
+                if((Integer)results.get(index).get() != index)
+                    throw new TestFailed("ordered calls ran out of order");
+            }
+
+            if(!(results.get(CALLS).exception()
+                    instanceof FileNotFoundException))
+            {
+                throw new TestFailed("exception not returned in batch");
+            }
+
+            // Parallel calls each see a different value of the counter.
+            for(int index = 0; index < CALLS; ++index)
+                batch.calls().next();
+
+            results = batch.flush(true);
+
+            boolean[]           seen = new boolean[CALLS];
+            for(Batch.Result result : results)
+            {
+                int             value = (Integer)result.get() - CALLS;
+
+                if(value < 0 || value >= CALLS || seen[value])
+                    throw new TestFailed("parallel call lost or repeated");
+
+                seen[value] = true;
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("batch failed", e);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
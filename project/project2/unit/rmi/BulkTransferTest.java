@@ -0,0 +1,216 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import test.*;
+
+/** Checks that large byte arrays and file regions cross the rmi layer
+    intact.
+
+    <p>
+    Arrays passed as the last argument of a call or returned by a call, and
+    regions of a file returned by a <code>FileRegionSource</code> server, must
+    arrive unchanged, both on connections served by a thread each and on
+    connections served by event loops. Exceptions thrown by the server's
+    <code>region</code> method must reach the stub.
+ */
+public class BulkTransferTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking bulk byte transfers";
+
+    /** Size of the file read through regions. */
+    private static final int    FILE_SIZE = 1024 * 1024 + 17;
+
+    /** Remote interface of the test server. */
+    public interface Blob
+    {
+        byte[] echo(int offset, byte[] data) throws RMIException;
+        byte[] read(long offset, int length)
+            throws RMIException, IOException;
+    }
+
+    /** Test server. Reads on multiplexed connections are answered with
+        regions of a file. */
+    private static class BlobServer implements Blob, FileRegionSource
+    {
+        private final File      file;
+
+        BlobServer(File file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public byte[] echo(int offset, byte[] data)
+        {
+            return Arrays.copyOfRange(data, offset, data.length);
+        }
+
+        @Override
+        public byte[] read(long offset, int length) throws IOException
+        {
+            if(offset + length > file.length())
+                throw new IndexOutOfBoundsException("read past end of file");
+
+            byte[]          data = new byte[length];
+            try(RandomAccessFile input = new RandomAccessFile(file, "r"))
+            {
+                input.seek(offset);
+                input.readFully(data);
+            }
+
+            return data;
+        }
+
+        @Override
+        public FileRegion region(Method method, Object[] args)
+            throws IOException
+        {
+            if(!method.getName().equals("read"))
+                return null;
+
+            long            offset = (Long)args[0];
+            int             length = (Integer)args[1];
+
+            if(offset + length > file.length())
+                throw new IndexOutOfBoundsException("read past end of file");
+
+            return new FileRegion(FileChannel.open(file.toPath(),
+                                                   StandardOpenOption.READ),
+                                  offset, length);
+        }
+    }
+
+    /** File read through regions. */
+    private File                file;
+    /** Contents of the file. */
+    private byte[]              contents;
+
+    /** Creates the file read by the test server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        contents = pattern(FILE_SIZE, 7);
+
+        try
+        {
+            file = File.createTempFile("bulk", ".dat");
+            Files.write(file.toPath(), contents);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create test file", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If bytes are lost or changed, or an exception is not
+                           returned.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        check(0);
+        check(2);
+    }
+
+    /** Checks transfers with a skeleton using the given number of event
+        loops. */
+    private void check(int loops) throws TestFailed
+    {
+        Skeleton<Blob>  skeleton =
+            new Skeleton<Blob>(Blob.class, new BlobServer(file),
+                               new InetSocketAddress("127.0.0.1", 0));
+        skeleton.setEventLoops(loops);
+
+        try
+        {
+            skeleton.start();
+
+            Blob        stub =
+                Stub.create(Blob.class,
+                            new InetSocketAddress("127.0.0.1",
+                                                  skeleton.port()));
+
+            // Small and large arguments and results.
+            for(int size : new int[] {0, 100, Frame.BULK_THRESHOLD,
+                                      3 * 1024 * 1024})
+            {
+                byte[]  data = pattern(size, size);
+                byte[]  result = stub.echo(0, data);
+
+                if(!Arrays.equals(data, result))
+                    throw new TestFailed("array of " + size + " bytes changed");
+            }
+
+            // A large argument with a small result.
+            byte[]      data = pattern(2 * Frame.BULK_THRESHOLD, 3);
+            byte[]      tail = stub.echo(data.length - 10, data);
+            if(!Arrays.equals(Arrays.copyOfRange(data, data.length - 10,
+                                                 data.length), tail))
+            {
+                throw new TestFailed("small result of large call changed");
+            }
+
+            // Regions at the start, middle and end of the file.
+            long[][]    ranges = {{0, FILE_SIZE}, {12345, 100},
+                                  {FILE_SIZE - 70000, 70000}, {5, 0}};
+            for(long[] range : ranges)
+            {
+                byte[]  result = stub.read(range[0], (int)range[1]);
+                byte[]  expected =
+                    Arrays.copyOfRange(contents, (int)range[0],
+                                       (int)(range[0] + range[1]));
+
+                if(!Arrays.equals(expected, result))
+                    throw new TestFailed("file region changed");
+            }
+
+            try
+            {
+                stub.read(FILE_SIZE - 1, 2);
+                throw new TestFailed("region exception not returned");
+            }
+            catch(IndexOutOfBoundsException e) { }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("bulk transfer failed", e);
+        }
+        finally
+        {
+            skeleton.stop();
+        }
+    }
+
+    /** Returns an array of the given size filled with a pattern. */
+    private static byte[] pattern(int size, int seed)
+    {
+        byte[]          data = new byte[size];
+
+        for(int index = 0; index < size; ++index)
+            data[index] = (byte)(index * 31 + seed);
+
+        return data;
+    }
+
+    /** Deletes the test file. */
+    @Override
+    protected void clean()
+    {
+        if(file != null)
+            file.delete();
+    }
+}
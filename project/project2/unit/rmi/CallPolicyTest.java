@@ -0,0 +1,292 @@
+package rmi;
+
+import java.net.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Checks that stubs follow the timeouts, deadlines and retries set by their
+    call policies.
+
+    <p>
+    A call that takes longer than the policy's timeout, or than a
+    <code>Deadline</code> opened by the caller, must throw
+    <code>CallTimeoutException</code> soon after the time runs out. On pooled
+    connections, a timed out call to an idempotent method must be attempted
+    again, and a call to any other method must not. Batches and asynchronous
+    stubs must follow the policy of their stub in the same way, and a timed
+    out or cancelled asynchronous call must no longer be counted as
+    outstanding on its connection.
+ */
+public class CallPolicyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call timeouts and retries";
+
+    /** Longest time a call may take to time out, in milliseconds. */
+    private static final long   SLACK = 1500;
+
+    /** Remote interface of the test server. */
+    public interface Slow
+    {
+        @Idempotent
+        int first(boolean stall) throws RMIException;
+        int stall() throws RMIException;
+    }
+
+    /** Asynchronous companion of the remote interface. */
+    public interface SlowAsync
+    {
+        CompletableFuture<Integer> stall();
+    }
+
+    /** Test server. Stalled calls wait until the test releases them. */
+    private static class SlowServer implements Slow
+    {
+        final AtomicInteger     calls = new AtomicInteger();
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public int first(boolean stall)
+        {
+            int                 call = calls.incrementAndGet();
+
+            if(stall && call == 1)
+                wait_for_release();
+
+            return call;
+        }
+
+        @Override
+        public int stall()
+        {
+            calls.incrementAndGet();
+            wait_for_release();
+            return 0;
+        }
+
+        private void wait_for_release()
+        {
+            try
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+
+    /** Test server. */
+    private SlowServer          server;
+    /** Skeleton for the test server. */
+    private Skeleton<Slow>      skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress   address;
+
+    /** Starts the test server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new SlowServer();
+        skeleton = new Skeleton<Slow>(Slow.class, server,
+                                      new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+
+        address = new InetSocketAddress("127.0.0.1", skeleton.port());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a call does not time out, or is retried when it
+                           should not be or not retried when it should be.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        CallPolicy      timeout = CallPolicy.defaults().withTimeout(200);
+
+        // A call outliving the policy's timeout.
+        expectTimeout(Stub.create(Slow.class, address, timeout),
+                      "call outlived its timeout");
+
+        // A call outliving the caller's deadline.
+        Deadline        deadline = Deadline.after(200);
+        try
+        {
+            expectTimeout(Stub.create(Slow.class, address),
+                          "call outlived its deadline");
+        }
+        finally
+        {
+            deadline.close();
+        }
+
+        // An asynchronous call outliving its stub's timeout, and one
+        // cancelled by the caller, are both forgotten by their connection.
+        SlowAsync       async =
+            Stub.createAsync(SlowAsync.class,
+                             Stub.create(Slow.class, address, timeout));
+        server.calls.set(0);
+        expectTimeout(async);
+        async.stall().cancel(false);
+        if(ConnectionPool.get(address).outstanding() != 0)
+            throw new TestFailed("abandoned asynchronous call still pending");
+
+        // The cancelled call must reach the server before calls are counted
+        // again.
+        long            wait = System.currentTimeMillis() + SLACK;
+        while(server.calls.get() < 2 && System.currentTimeMillis() < wait)
+        {
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted", e);
+            }
+        }
+
+        // A batch outliving its stub's timeout, which is not attempted again.
+        Slow            retrying =
+            Stub.withPolicy(Stub.create(Slow.class, address),
+                            timeout.withRetries(3, 10, 50));
+        Batch<Slow>     batch = new Batch<Slow>(retrying);
+
+        server.calls.set(0);
+        expectTimeout(batch, "batch outlived its timeout");
+        if(server.calls.get() != 1)
+            throw new TestFailed("non-idempotent batch attempted again");
+
+        // A batch of idempotent calls, attempted again.
+        server.calls.set(0);
+        try
+        {
+            batch.calls().first(true);
+            if(!Integer.valueOf(2).equals(batch.flush(false).get(0).get()))
+                throw new TestFailed("idempotent batch not attempted again");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("idempotent batch failed", e);
+        }
+
+        // Retries are made only on pooled connections.
+        if(!Boolean.parseBoolean(System.getProperty("rmi.reuse", "true")))
+            return;
+
+        server.calls.set(0);
+        expectTimeout(retrying, "non-idempotent call outlived its timeout");
+        if(server.calls.get() != 1)
+            throw new TestFailed("non-idempotent call attempted again");
+
+        server.calls.set(0);
+        try
+        {
+            if(retrying.first(true) != 2)
+                throw new TestFailed("idempotent call not attempted again");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("idempotent call failed", e);
+        }
+    }
+
+    /** Checks that a stalled call through the given stub times out in good
+        time. */
+    private void expectTimeout(Slow stub, String message) throws TestFailed
+    {
+        long            start = System.currentTimeMillis();
+
+        try
+        {
+            stub.stall();
+            throw new TestFailed(message);
+        }
+        catch(CallTimeoutException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from stalled call", e);
+        }
+
+        if(System.currentTimeMillis() - start > SLACK)
+            throw new TestFailed("call took too long to time out");
+    }
+
+    /** Checks that a stalled call through the given asynchronous stub times
+        out in good time. */
+    private void expectTimeout(SlowAsync stub) throws TestFailed
+    {
+        long            start = System.currentTimeMillis();
+
+        try
+        {
+            stub.stall().get();
+            throw new TestFailed("asynchronous call outlived its timeout");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof CallTimeoutException))
+            {
+                throw new TestFailed("unexpected exception from stalled " +
+                                     "asynchronous call", e.getCause());
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(System.currentTimeMillis() - start > SLACK)
+            throw new TestFailed("asynchronous call took too long to time out");
+    }
+
+    /** Checks that a stalled call sent in the given batch times out in good
+        time. */
+    private void expectTimeout(Batch<Slow> batch, String message)
+        throws TestFailed
+    {
+        long            start = System.currentTimeMillis();
+
+        try
+        {
+            batch.calls().stall();
+            batch.flush(false);
+            throw new TestFailed(message);
+        }
+        catch(CallTimeoutException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from stalled batch", e);
+        }
+
+        if(System.currentTimeMillis() - start > SLACK)
+            throw new TestFailed("batch took too long to time out");
+    }
+
+    /** Releases stalled calls and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.countDown();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
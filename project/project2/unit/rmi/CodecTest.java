@@ -0,0 +1,75 @@
+package rmi;
+
+import java.io.*;
+import java.util.Arrays;
+
+import test.*;
+import common.Path;
+
+/** Checks that <code>BinaryCodec</code> reads back every value it writes.
+
+    <p>
+    Values with a specialised encoding are checked, as well as an object that
+    is carried by the Java serialization fallback.
+ */
+public class CodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary codec round trips";
+
+    /** Performs the test.
+
+        @throws TestFailed If a value is not read back as it was written.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Object[]    values = new Object[] {
+            null, true, false, 7, -1L, Long.MAX_VALUE, new byte[] {1, 2, 3},
+            "", "d\u00e9j\u00e0 vu", new Path("/a/b/c"), new Path("/"),
+            new String[] {"x", null, "y"}, new Path[] {new Path("/x")},
+            new FileNotFoundException("missing")};
+
+        Request     request = round_trip(new Request(5, 42, values));
+
+        if(request.method_id != 42)
+            throw new TestFailed("method identifier not read back");
+
+        if(request.args.length != values.length)
+            throw new TestFailed("wrong number of arguments read back");
+
+        for(int i = 0; i < values.length - 1; ++i)
+        {
+            if(!Arrays.deepEquals(new Object[] {values[i]},
+                                  new Object[] {request.args[i]}))
+            {
+                throw new TestFailed("value " + values[i] + " not read back");
+            }
+        }
+
+        Object      last = request.args[values.length - 1];
+        if(!(last instanceof FileNotFoundException) ||
+           !((FileNotFoundException)last).getMessage().equals("missing"))
+        {
+            throw new TestFailed("serialized value not read back");
+        }
+    }
+
+    /** Encodes and decodes a request. */
+    private Request round_trip(Request request) throws TestFailed
+    {
+        try
+        {
+            Frame   frame = new Frame();
+            BinaryCodec.INSTANCE.encode_request(request, frame.data);
+
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(frame.toByteArray()));
+            return BinaryCodec.INSTANCE.decode_request(request.id, in);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode and decode request", t);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that a skeleton with an executor bounds the connections it reads.
+
+    <p>
+    Connections kept open by stubs are read by threads of the skeleton's own,
+    of which there are at most the skeleton's connection limit. A connection
+    accepted beyond the limit must be closed and reported, and a connection
+    must be accepted again once one of those being read is closed.
+ */
+public class ConnectionLimitTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton connection limit";
+
+    /** Connection limit of the skeleton. */
+    private static final int    LIMIT = 2;
+    /** Longest wait for the skeleton, in milliseconds. */
+    private static final long   TIMEOUT = 5000;
+
+    /** Remote interface of the test server. */
+    public interface Echo
+    {
+        int echo(int value) throws RMIException;
+    }
+
+    /** Test server. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+
+    /** Skeleton that records the errors reported in its service threads. */
+    private static class RecordingSkeleton extends Skeleton<Echo>
+    {
+        final BlockingQueue<RMIException>   errors =
+            new LinkedBlockingQueue<RMIException>();
+
+        RecordingSkeleton(ExecutorService executor)
+        {
+            super(Echo.class, new EchoServer(),
+                  new InetSocketAddress("127.0.0.1", 0), executor);
+        }
+
+        @Override
+        protected void service_error(RMIException exception)
+        {
+            errors.add(exception);
+        }
+    }
+
+    /** Service threads of the skeleton. */
+    private ExecutorService     executor;
+    /** Skeleton under test. */
+    private RecordingSkeleton   skeleton;
+    /** Connections held open. */
+    private final List<Socket>  held = new ArrayList<Socket>();
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        executor = ServiceExecutors.bounded(4, 0);
+        skeleton = new RecordingSkeleton(executor);
+        // The limit is on threads reading connections, whatever
+        // rmi.event_loops says.
+        skeleton.setEventLoops(0);
+        skeleton.setMaxConnections(LIMIT);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a connection beyond the limit is read, or a
+                           connection is refused below it.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            for(int index = 0; index < LIMIT; ++index)
+                held.add(open());
+
+            // The connections being read are not closed by the skeleton.
+            for(Socket socket : held)
+            {
+                socket.setSoTimeout(200);
+                try
+                {
+                    socket.getInputStream().read();
+                    throw new TestFailed("connection within limit closed");
+                }
+                catch(SocketTimeoutException e) { }
+            }
+
+            Socket          refused = open();
+            refused.setSoTimeout((int)TIMEOUT);
+            try
+            {
+                if(refused.getInputStream().read() != -1)
+                    throw new TestFailed("data sent on refused connection");
+            }
+            catch(SocketException e) { }
+            refused.close();
+
+            if(!refused(skeleton.errors.poll(TIMEOUT, TimeUnit.MILLISECONDS)))
+                throw new TestFailed("refused connection not reported");
+
+            // Once a connection closes, a stub's connection is read.
+            held.remove(0).close();
+
+            Echo            stub =
+                Stub.create(Echo.class,
+                            new InetSocketAddress("127.0.0.1",
+                                                  skeleton.port()));
+            long            deadline = System.currentTimeMillis() + TIMEOUT;
+            while(true)
+            {
+                try
+                {
+                    if(stub.echo(7) != 7)
+                        throw new TestFailed("wrong result from stub");
+                    break;
+                }
+                catch(RMIException e)
+                {
+                    // The closed connection's reader may not have ended yet.
+                    if(System.currentTimeMillis() > deadline)
+                        throw new TestFailed("connection refused below limit",
+                                             e);
+                    Thread.sleep(50);
+                }
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Opens a connection announcing calls to be multiplexed on it. */
+    private Socket open() throws IOException
+    {
+        Socket              socket = new Socket("127.0.0.1", skeleton.port());
+        DataOutputStream    output =
+            new DataOutputStream(socket.getOutputStream());
+
+        output.writeInt(Connection.MAGIC);
+        output.flush();
+        return socket;
+    }
+
+    /** Returns whether an error reports a refused connection, skipping
+        errors reported for connections closed by the test. */
+    private boolean refused(RMIException error) throws InterruptedException
+    {
+        while(error != null)
+        {
+            if("connection limit reached".equals(error.getMessage()))
+                return true;
+
+            error = skeleton.errors.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        return false;
+    }
+
+    /** Closes the connections and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        for(Socket socket : held)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e) { }
+        }
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(executor != null)
+            executor.shutdownNow();
+    }
+}
@@ -0,0 +1,136 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that a burst of calls does not open more pooled connections than
+    the pool allows.
+
+    <p>
+    Many threads call a slow server through the same stub at once, starting
+    on an empty pool. Each call must succeed, and the pool must hold no more
+    than <code>ConnectionPool.MAX_CONNECTIONS</code> connections afterwards.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking connection pool limit";
+
+    /** Number of threads calling the skeleton at once. */
+    private static final int    THREADS = 16;
+    /** Time each call takes on the server, in milliseconds. */
+    private static final long   DELAY = 100;
+
+    /** Remote interface of the test server. */
+    public interface Echo
+    {
+        int echo(int value) throws RMIException;
+    }
+
+    /** Test server, which holds each call for a while so that calls in a
+        burst overlap. */
+    private static class SlowServer implements Echo
+    {
+        @Override
+        public int echo(int value)
+        {
+            try
+            {
+                Thread.sleep(DELAY);
+            }
+            catch(InterruptedException e) { }
+
+            return value;
+        }
+    }
+
+    /** Skeleton for the test server. */
+    private Skeleton<Echo>      skeleton;
+    /** Threads making calls. */
+    private ExecutorService     callers;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new SlowServer(),
+                                      new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+
+        callers = Executors.newFixedThreadPool(THREADS);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a call fails, or the pool opens too many
+                           connections.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        // Only pooled connections are limited.
+        if(!Boolean.parseBoolean(System.getProperty("rmi.reuse", "true")))
+            return;
+
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1", skeleton.port());
+        final Echo              stub = Stub.create(Echo.class, address);
+        final CountDownLatch    start = new CountDownLatch(1);
+        List<Future<Integer>>   results = new ArrayList<Future<Integer>>();
+
+        for(int thread = 0; thread < THREADS; ++thread)
+        {
+            final int           value = thread;
+
+            results.add(callers.submit(() ->
+            {
+                start.await();
+                return stub.echo(value);
+            }));
+        }
+
+        start.countDown();
+
+        try
+        {
+            for(int thread = 0; thread < THREADS; ++thread)
+            {
+                if(results.get(thread).get() != thread)
+                    throw new TestFailed("wrong result from skeleton");
+            }
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        int                     size = ConnectionPool.get(address).size();
+        if(size > ConnectionPool.MAX_CONNECTIONS)
+        {
+            throw new TestFailed("burst of calls opened " + size +
+                                 " connections");
+        }
+    }
+
+    /** Stops the callers and the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(callers != null)
+            callers.shutdownNow();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
@@ -0,0 +1,145 @@
+package rmi;
+
+import java.lang.reflect.*;
+
+import common.Path;
+import storage.Storage;
+
+/** Measures the cost of resolving and invoking a remote method.
+
+    <p>
+    The benchmark compares reflective resolution on every call, as the
+    single-call protocol once did, with the dispatch table built by
+    <code>MethodTable</code>. Network and marshalling costs are left out, so
+    that only the per-call bookkeeping of the stub and the skeleton is
+    measured.
+
+    <p>
+    This is not a unit test. It is run by hand, with
+    <code>java rmi.DispatchBenchmark [iterations]</code>, and prints the mean
+    time per call of each variant.
+ */
+public class DispatchBenchmark
+{
+    /** Results of the measured calls, printed at the end so that the calls
+        cannot be optimized away. */
+    private static long     sink;
+
+    /** Server object whose methods do no work. */
+    private static class NullStorage implements Storage
+    {
+        private static final byte[]     EMPTY = new byte[0];
+
+        @Override
+        public long size(Path file)
+        {
+            return 0;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            return EMPTY;
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+        }
+    }
+
+    /** Runs the benchmark.
+
+        @param arguments The number of calls measured per variant; one million
+                         by default.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        int                 iterations =
+            arguments.length > 0 ? Integer.parseInt(arguments[0]) : 1000000;
+
+        Storage             server = new NullStorage();
+        Method              method =
+            Storage.class.getMethod("read", Path.class, long.class, int.class);
+        Object[]            args = new Object[] {new Path("/f"), 0L, 16};
+
+        MethodTable         table = MethodTable.of(Storage.class);
+        int                 id = table.stub_entry(method).id;
+
+        // Warm up both variants before measuring either.
+        for(int round = 0; round < 2; ++round)
+        {
+            long            reflective = reflective(server, method, args,
+                                                    iterations);
+            long            cached = cached(server, table, method, id, args,
+                                            iterations);
+
+            if(round == 1)
+            {
+                report("reflective lookup", reflective, iterations);
+                report("dispatch table", cached, iterations);
+            }
+        }
+
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /** Resolves the method by name and invokes it reflectively on every
+        call. */
+    private static long reflective(Storage server, Method called,
+                                   Object[] args, int iterations)
+        throws Exception
+    {
+        long                start = System.nanoTime();
+        for(int i = 0; i < iterations; ++i)
+        {
+            // stub side: scan the interface for redeclared Object methods
+            boolean         overridden = false;
+            for(Method declared : Storage.class.getDeclaredMethods())
+            {
+                if(declared.getName().equals("equals"))
+                    overridden = true;
+            }
+
+            // skeleton side: find the method by name and parameter types
+            Method          method =
+                Storage.class.getMethod(called.getName(),
+                                        called.getParameterTypes());
+            method.setAccessible(true);
+            sink += System.identityHashCode(method.invoke(server, args));
+
+            if(overridden)
+                throw new AssertionError();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Resolves the method through the dispatch table and invokes its method
+        handle. */
+    private static long cached(Storage server, MethodTable table,
+                               Method called, int id, Object[] args,
+                               int iterations)
+        throws Throwable
+    {
+        long                start = System.nanoTime();
+        for(int i = 0; i < iterations; ++i)
+        {
+            MethodTable.Entry   stub = table.stub_entry(called);
+            MethodTable.Entry   entry = table.entry(stub.id);
+
+            if(!entry.accepts(args))
+                throw new AssertionError();
+
+            sink += System.identityHashCode(entry.invoke(server, args));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Prints the mean time per call of a variant. */
+    private static void report(String variant, long nanoseconds,
+                               int iterations)
+    {
+        System.out.printf("%-20s %8.1f ns/call%n", variant,
+                          (double)nanoseconds / iterations);
+    }
+}
@@ -0,0 +1,187 @@
+package rmi;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import javax.management.*;
+
+import test.*;
+
+/** Checks that skeletons and stubs record the calls they serve and make.
+
+    <p>
+    Histogram percentiles must bound the values recorded. A skeleton must count
+    each call and each exception thrown by the server, under the signature of
+    the method called, and must be registered with JMX while it is running.
+    The stubs for the skeleton must count the same calls.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+
+    /** Number of successful calls made. */
+    private static final int    CALLS = 20;
+
+    /** Remote interface of the test server. */
+    public interface Echo
+    {
+        String echo(String message) throws RMIException;
+        void fail() throws RMIException, FileNotFoundException;
+    }
+
+    /** Test server. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public String echo(String message)
+        {
+            return message;
+        }
+
+        @Override
+        public void fail() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("always");
+        }
+    }
+
+    /** Skeleton for the test server. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(),
+                                      new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a count or percentile is wrong, or the skeleton
+                           is not registered.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkHistogram();
+
+        // Nothing is recorded when metrics are turned off.
+        if(!Metrics.ENABLED)
+            return;
+
+        Echo            stub =
+            Stub.create(Echo.class,
+                        new InetSocketAddress("127.0.0.1", skeleton.port()));
+
+        try
+        {
+            for(int index = 0; index < CALLS; ++index)
+                stub.echo("message " + index);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        try
+        {
+            stub.fail();
+            throw new TestFailed("exception not thrown");
+        }
+        catch(FileNotFoundException e) { }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+
+        checkCounts(skeleton.metrics(), "skeleton");
+        checkCounts(Metrics.of(stub), "stub");
+
+        if(skeleton.metrics().getInFlight() != 0)
+            throw new TestFailed("calls left in flight");
+
+        ObjectName      name;
+        try
+        {
+            name = new ObjectName("rmi:type=Skeleton,interface="
+                                  + Echo.class.getName() + ",*");
+        }
+        catch(MalformedObjectNameException e)
+        {
+            throw new TestFailed("bad object name", e);
+        }
+
+        MBeanServer     server = ManagementFactory.getPlatformMBeanServer();
+        if(server.queryNames(name, null).size() != 1)
+            throw new TestFailed("skeleton metrics not registered");
+
+        skeleton.stop();
+        skeleton = null;
+
+        if(server.queryNames(name, null).size() != 0)
+            throw new TestFailed("skeleton metrics registered after stop");
+    }
+
+    /** Checks percentiles of a histogram of the values 1 to 1000. */
+    private void checkHistogram() throws TestFailed
+    {
+        Histogram       histogram = new Histogram();
+
+        for(long value = 1; value <= 1000; ++value)
+            histogram.record(value);
+
+        if(histogram.count() != 1000 || histogram.max() != 1000)
+            throw new TestFailed("wrong histogram count or maximum");
+
+        long            median = histogram.percentile(50);
+        if(median < 500 || median > 500 * 9 / 8)
+            throw new TestFailed("median out of bounds: " + median);
+
+        if(histogram.percentile(100) != 1000)
+            throw new TestFailed("wrong histogram maximum percentile");
+    }
+
+    /** Checks the counts recorded for each method of the test server. */
+    private void checkCounts(Metrics metrics, String side) throws TestFailed
+    {
+        CallMetrics     echo = metrics.methods().get("echo(String)");
+        CallMetrics     fail = metrics.methods().get("fail()");
+
+        if(echo == null || fail == null)
+            throw new TestFailed(side + " did not record every method");
+
+        if(echo.calls() != CALLS || echo.errors() != 0)
+            throw new TestFailed(side + " recorded wrong echo counts");
+
+        if(fail.calls() != 1 || fail.errors() != 1)
+            throw new TestFailed(side + " recorded wrong fail counts");
+
+        if(echo.total().count() != CALLS)
+            throw new TestFailed(side + " recorded no latencies");
+
+        // Bytes are counted only on connections carrying many calls.
+        boolean         reuse =
+            Boolean.parseBoolean(System.getProperty("rmi.reuse", "true"));
+        if(reuse && (echo.bytesIn() == 0 || echo.bytesOut() == 0))
+            throw new TestFailed(side + " recorded no bytes");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
@@ -0,0 +1,292 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Checks that calls lost with their connection are sent again only when
+    that cannot run them twice.
+
+    <p>
+    Calls pass through a relay, which can drop a connection once the skeleton
+    has run a call and begun to send its reply. A call to a method that is not
+    idempotent must then fail, having run exactly once, whether it was made
+    through a stub, a batch or an asynchronous stub. A call to an idempotent
+    method must be sent again on a fresh connection and succeed.
+ */
+public class ResendTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking calls resent after a connection is lost";
+
+    /** Remote interface of the test server. */
+    public interface Counter
+    {
+        int add() throws RMIException;
+        @Idempotent
+        int count() throws RMIException;
+    }
+
+    /** Asynchronous companion of the remote interface. */
+    public interface CounterAsync
+    {
+        CompletableFuture<Integer> add();
+    }
+
+    /** Test server. */
+    private static class CounterServer implements Counter
+    {
+        final AtomicInteger     added = new AtomicInteger();
+
+        @Override
+        public int add()
+        {
+            return added.incrementAndGet();
+        }
+
+        @Override
+        public int count()
+        {
+            return added.get();
+        }
+    }
+
+    /** Relay between stubs and the skeleton, which drops a given number of
+        connections when replies arrive on them. */
+    private static class Relay implements Runnable
+    {
+        private final ServerSocket      listener;
+        private final InetSocketAddress target;
+        /** Sockets opened by the relay. */
+        private final List<Socket>      sockets =
+            Collections.synchronizedList(new ArrayList<Socket>());
+        /** Connections still to drop when a reply arrives. */
+        final AtomicInteger             drops = new AtomicInteger();
+
+        Relay(InetSocketAddress target) throws IOException
+        {
+            this.listener = new ServerSocket(0, 50,
+                                             InetAddress.getByName("127.0.0.1"));
+            this.target = target;
+        }
+
+        InetSocketAddress address()
+        {
+            return new InetSocketAddress("127.0.0.1", listener.getLocalPort());
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    Socket      client = listener.accept();
+                    Socket      server = new Socket();
+                    server.connect(target);
+                    sockets.add(client);
+                    sockets.add(server);
+                    pump(client, server, false);
+                    pump(server, client, true);
+                }
+            }
+            catch(IOException e) { }
+        }
+
+        /** Copies bytes from one socket to another on a thread of its own.
+            Bytes from the skeleton may instead drop the connection. */
+        private void pump(final Socket from, final Socket to,
+                          final boolean replies)
+        {
+            Thread      thread = new Thread(() ->
+            {
+                byte[]  buffer = new byte[8192];
+                try
+                {
+                    InputStream     in = from.getInputStream();
+                    OutputStream    out = to.getOutputStream();
+                    int             read;
+                    while((read = in.read(buffer)) != -1)
+                    {
+                        if(replies && drops.getAndUpdate(
+                               n -> Math.max(0, n - 1)) > 0)
+                        {
+                            break;
+                        }
+
+                        out.write(buffer, 0, read);
+                        out.flush();
+                    }
+                }
+                catch(IOException e) { }
+                close(from);
+                close(to);
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop()
+        {
+            close(listener);
+            synchronized(sockets)
+            {
+                for(Socket socket : sockets)
+                    close(socket);
+            }
+        }
+
+        private static void close(Closeable closeable)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch(IOException e) { }
+        }
+    }
+
+    /** Test server. */
+    private CounterServer       server;
+    /** Skeleton for the test server. */
+    private Skeleton<Counter>   skeleton;
+    /** Relay in front of the skeleton. */
+    private Relay               relay;
+
+    /** Starts the skeleton and the relay. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new CounterServer();
+        skeleton = new Skeleton<Counter>(Counter.class, server,
+                                         new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+            relay = new Relay(new InetSocketAddress("127.0.0.1",
+                                                    skeleton.port()));
+        }
+        catch(RMIException | IOException e)
+        {
+            throw new TestFailed("unable to start skeleton and relay", e);
+        }
+
+        Thread          thread = new Thread(relay);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a call that is not idempotent runs twice, or an
+                           idempotent call is not sent again.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        // Only pooled connections are reused.
+        if(!Boolean.parseBoolean(System.getProperty("rmi.reuse", "true")))
+            return;
+
+        Counter         stub = Stub.create(Counter.class, relay.address());
+        CounterAsync    async =
+            Stub.createAsync(CounterAsync.class, Counter.class,
+                             relay.address());
+        Batch<Counter>  batch = new Batch<Counter>(stub);
+
+        try
+        {
+            warm(stub);
+            expectOnce(() -> stub.add(), "call");
+
+            warm(stub);
+            expectOnce(() ->
+                {
+                    batch.calls().add();
+                    batch.flush(false);
+                }, "batch");
+
+            warm(stub);
+            expectOnce(() ->
+                {
+                    try
+                    {
+                        async.add().get();
+                    }
+                    catch(ExecutionException e)
+                    {
+                        if(e.getCause() instanceof RMIException)
+                            throw (RMIException)e.getCause();
+                        throw e;
+                    }
+                }, "asynchronous call");
+
+            // An idempotent call is sent again, and succeeds.
+            warm(stub);
+            relay.drops.set(1);
+            if(stub.count() != server.added.get())
+                throw new TestFailed("idempotent call returned wrong result");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Call made by <code>expectOnce</code>. */
+    private interface Call
+    {
+        void run() throws Exception;
+    }
+
+    /** Makes a call whose connection is dropped, and checks that it fails
+        having run exactly once. */
+    private void expectOnce(Call call, String kind) throws Exception
+    {
+        int             before = server.added.get();
+
+        relay.drops.set(2);
+        try
+        {
+            call.run();
+            throw new TestFailed(kind + " succeeded on dropped connection");
+        }
+        catch(RMIException e) { }
+
+        relay.drops.set(0);
+        if(server.added.get() != before + 1)
+        {
+            throw new TestFailed("non-idempotent " + kind + " ran " +
+                                 (server.added.get() - before) + " times");
+        }
+    }
+
+    /** Makes a call, so that the stubs' next call is sent on a connection
+        that has already served one. */
+    private void warm(Counter stub) throws RMIException
+    {
+        stub.count();
+    }
+
+    /** Stops the relay and the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(relay != null)
+            relay.stop();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
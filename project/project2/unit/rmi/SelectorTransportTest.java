@@ -0,0 +1,205 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks the skeleton transport built on non-blocking channels.
+
+    <p>
+    A skeleton with a single event loop must serve stubs that keep their
+    connections open and stubs that open a connection for each call at the
+    same time, handing the latter off to threads of their own while the loop
+    goes on serving the former. A connection announcing a frame longer than
+    the limit must be closed, and the loop must go on serving other
+    connections.
+ */
+public class SelectorTransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking non-blocking transport";
+
+    /** Number of threads calling the skeleton at once. */
+    private static final int    THREADS = 8;
+    /** Number of calls made by each thread. */
+    private static final int    CALLS = 25;
+    /** Longest wait for the skeleton, in milliseconds. */
+    private static final int    TIMEOUT = 2000;
+
+    /** Remote interface of the test server. */
+    public interface Echo
+    {
+        int echo(int value) throws RMIException;
+    }
+
+    /** Test server. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+
+    /** Skeleton under test. */
+    private Skeleton<Echo>      skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress   address;
+    /** Threads making calls. */
+    private ExecutorService     callers;
+
+    /** Starts the skeleton on one event loop. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(),
+                                      new InetSocketAddress("127.0.0.1", 0));
+        skeleton.setEventLoops(1);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeleton", e);
+        }
+
+        address = new InetSocketAddress("127.0.0.1", skeleton.port());
+        callers = Executors.newFixedThreadPool(THREADS);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a call fails or returns a wrong result, or an
+                           oversized frame is accepted.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testMixed();
+            testOversized();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Calls the skeleton from many threads at once, half of them through
+        stubs that open a connection for each call. */
+    private void testMixed() throws Throwable
+    {
+        final Echo              pooled = Stub.create(Echo.class, address);
+        final Echo              single = singleCallStub();
+        List<Future<Void>>      results = new ArrayList<Future<Void>>();
+
+        for(int thread = 0; thread < THREADS; ++thread)
+        {
+            final Echo          stub = thread % 2 == 0 ? pooled : single;
+            final int           base = thread * CALLS;
+
+            results.add(callers.submit(() ->
+            {
+                for(int call = base; call < base + CALLS; ++call)
+                {
+                    if(stub.echo(call) != call)
+                        throw new TestFailed("wrong result from skeleton");
+                }
+
+                return null;
+            }));
+        }
+
+        for(Future<Void> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch(ExecutionException e)
+            {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /** Announces an oversized frame, and checks that the connection is
+        closed and other connections are still served. */
+    private void testOversized() throws Throwable
+    {
+        Socket                  socket = new Socket();
+
+        try
+        {
+            socket.connect(address);
+            socket.setSoTimeout(TIMEOUT);
+
+            DataOutputStream    output =
+                new DataOutputStream(socket.getOutputStream());
+            output.writeInt(Connection.MAGIC);
+            output.writeByte(Codec.preferred().id());
+            output.writeInt(SelectorTransport.MAX_FRAME);
+            output.flush();
+
+            try
+            {
+                if(socket.getInputStream().read() != -1)
+                    throw new TestFailed("data sent on oversized connection");
+            }
+            catch(SocketTimeoutException e)
+            {
+                throw new TestFailed("connection announcing oversized frame " +
+                                     "not closed");
+            }
+            catch(SocketException e) { }
+        }
+        finally
+        {
+            socket.close();
+        }
+
+        if(Stub.create(Echo.class, address).echo(7) != 7)
+            throw new TestFailed("wrong result after oversized frame");
+    }
+
+    /** Creates a stub that opens a connection for each call. */
+    private Echo singleCallStub()
+    {
+        String                  reuse = System.getProperty("rmi.reuse");
+
+        System.setProperty("rmi.reuse", "false");
+        try
+        {
+            return Stub.create(Echo.class, address);
+        }
+        finally
+        {
+            if(reuse == null)
+                System.clearProperty("rmi.reuse");
+            else
+                System.setProperty("rmi.reuse", reuse);
+        }
+    }
+
+    /** Stops the callers and the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(callers != null)
+            callers.shutdownNow();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+}
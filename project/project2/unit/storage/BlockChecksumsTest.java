@@ -0,0 +1,290 @@
+package storage;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Checks block checksums on the storage server.
+
+    <p>
+    Writes anywhere in a file, including past its end, must leave checksums
+    that match the file. A block changed on disk behind the server's back must
+    fail reads that cover it, while other blocks are still read, and must not
+    be sent as a region that bypasses the check. A server started after the
+    change must take it for a legitimate one. A copy must read only the blocks
+    that differ from the local copy, and must fail if a block arrives
+    corrupted.
+ */
+public class BlockChecksumsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage block checksums";
+
+    /** Block size of the servers. */
+    private static final int    BLOCK =
+        Integer.getInteger("storage.checksum_block", 64 << 10);
+
+    /** Source server root directory. */
+    private File                source_root;
+    /** Directory of the source server's checksums. */
+    private File                source_sums;
+    /** Destination server root directory. */
+    private File                destination_root;
+    /** Directory of the destination server's checksums. */
+    private File                destination_sums;
+
+    /** Source server that counts the bytes read from it, and may corrupt
+        them. */
+    private static class CountingStorage implements Storage
+    {
+        private final StorageServer server;
+        /** Bytes read from the server. */
+        long                        read = 0;
+        /** Whether the bytes read are corrupted. */
+        boolean                     corrupt = false;
+
+        CountingStorage(StorageServer server)
+        {
+            this.server = server;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            return server.size(file);
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws IOException
+        {
+            byte[]          data = server.read(file, offset, length);
+            read += length;
+            if(corrupt)
+                data[0] ^= 1;
+            return data;
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws IOException
+        {
+            server.write(file, offset, data);
+        }
+
+        @Override
+        public int[] checksums(Path file, int block_size) throws IOException
+        {
+            return server.checksums(file, block_size);
+        }
+    }
+
+    /** Creates the servers' directories. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            source_root = directory();
+            source_sums = directory();
+            destination_root = directory();
+            destination_sums = directory();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create storage directories", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a checksum does not match after a write, a
+                           corrupted block is read, or a copy reads blocks it
+                           has.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testWrites();
+            testCorruption();
+            testCopy();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in checksummed access",
+                                 t);
+        }
+    }
+
+    /** Writes across blocks and past the end of a file, and reads it back. */
+    private void testWrites() throws Throwable
+    {
+        StorageServer       server =
+            new StorageServer(source_root, source_sums);
+        Path                file = new Path("/written");
+        byte[]              expected = new byte[3 * BLOCK + 5 + 100];
+
+        server.create(file);
+        write(server, file, expected, 0, bytes(100, 1));
+        write(server, file, expected, 3 * BLOCK + 5, bytes(100, 2));
+        write(server, file, expected, BLOCK - 10, bytes(BLOCK + 20, 3));
+
+        if(!Arrays.equals(server.read(file, 0, expected.length), expected))
+            throw new TestFailed("written file read back wrongly");
+
+        if(!Arrays.equals(server.read(file, BLOCK + 3, 7),
+                          Arrays.copyOfRange(expected, BLOCK + 3,
+                                             BLOCK + 10)))
+        {
+            throw new TestFailed("range within a block read wrongly");
+        }
+    }
+
+    /** Changes a block on disk, and checks that reads of it fail. */
+    private void testCorruption() throws Throwable
+    {
+        StorageServer       server =
+            new StorageServer(source_root, source_sums);
+        Path                file = new Path("/corrupted");
+        Method              read =
+            Storage.class.getMethod("read", Path.class, long.class,
+                                    int.class);
+
+        server.create(file);
+        server.write(file, 0, bytes(3 * BLOCK, 4));
+
+        RandomAccessFile    local =
+            new RandomAccessFile(file.toFile(source_root), "rw");
+        local.seek(BLOCK + 17);
+        local.write(0xff ^ local.readByte());
+        local.close();
+        file.toFile(source_root).setLastModified(System.currentTimeMillis() +
+                                                 2000);
+
+        server.read(file, 0, BLOCK);
+        server.read(file, 2 * BLOCK, BLOCK);
+
+        try
+        {
+            server.read(file, BLOCK + 100, 10);
+            throw new TestFailed("corrupted block read");
+        }
+        catch(IOException e) { }
+
+        // The skeleton reads the range instead, checking it.
+        if(server.region(read, new Object[] {file, 2L * BLOCK, 10}) != null)
+            throw new TestFailed("checked file sent as region");
+
+        // A server started later finds the file newer than its checksums.
+        new StorageServer(source_root, source_sums).read(file, BLOCK + 100,
+                                                         10);
+    }
+
+    /** Copies a file over a copy differing in one block, then with corrupted
+        transfers. */
+    private void testCopy() throws Throwable
+    {
+        StorageServer       source =
+            new StorageServer(source_root, source_sums);
+        StorageServer       destination =
+            new StorageServer(destination_root, destination_sums);
+        CountingStorage     counting = new CountingStorage(source);
+        Path                file = new Path("/copied");
+        byte[]              contents = bytes(4 * BLOCK + 123, 5);
+
+        source.create(file);
+        source.write(file, 0, contents);
+        destination.create(file);
+        destination.write(file, 0, contents);
+        destination.write(file, 2 * BLOCK + 1, new byte[] {42});
+        destination.write(file, contents.length, new byte[BLOCK]);
+
+        if(!destination.copy(file, counting))
+            throw new TestFailed("copy failed");
+
+        if(!Arrays.equals(destination.read(file, 0, contents.length),
+                          contents) ||
+           destination.size(file) != contents.length)
+        {
+            throw new TestFailed("copy differs from source");
+        }
+
+        // The local copy's tail past the source's end is cut off, leaving
+        // the last block matching.
+        if(counting.read != BLOCK)
+        {
+            throw new TestFailed("copy read " + counting.read + " bytes " +
+                                 "instead of the differing blocks");
+        }
+
+        destination.delete(file);
+        counting.corrupt = true;
+        try
+        {
+            destination.copy(file, counting);
+            throw new TestFailed("corrupted copy accepted");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Writes bytes to a file and to the array of its expected contents. */
+    private static void write(StorageServer server, Path file,
+                              byte[] expected, int offset, byte[] data)
+        throws IOException
+    {
+        server.write(file, offset, data);
+        System.arraycopy(data, 0, expected, offset, data.length);
+    }
+
+    /** Returns pseudo-random bytes. */
+    private static byte[] bytes(int length, long seed)
+    {
+        byte[]              data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /** Deletes the directories. */
+    @Override
+    protected void clean()
+    {
+        for(File directory : new File[] {source_root, source_sums,
+                                         destination_root, destination_sums})
+        {
+            if(directory != null)
+                delete(directory);
+        }
+    }
+
+    /** Creates an empty temporary directory. */
+    private static File directory() throws IOException
+    {
+        File                directory = File.createTempFile("storage", ".root");
+
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    /** Deletes a file or directory and everything under it. */
+    private static void delete(File file)
+    {
+        File[]              children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,183 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Checks the open file cache of the storage server.
+
+    <p>
+    The cache must keep at most its capacity of channels open, must not close
+    a channel evicted while an access holds it, and must forget the channels
+    of deleted files. Reads and writes through the cached channels must honour
+    their offsets, including offsets past the range of an <code>int</code>.
+ */
+public class ChannelCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage open file cache";
+
+    /** Offset past the range of an <code>int</code>. */
+    private static final long   FAR = 3L * Integer.MAX_VALUE;
+
+    /** Storage server root directory. */
+    private File                root;
+
+    /** Creates the root directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            root = File.createTempFile("storage", ".root");
+            root.delete();
+            root.mkdirs();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create storage directory", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a channel is closed too early or kept too long,
+                           or data is read from the wrong offset.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testEviction();
+            testOffsets();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in file access", t);
+        }
+    }
+
+    /** Checks eviction and removal of channels. */
+    private void testEviction() throws Throwable
+    {
+        ChannelCache        cache = new ChannelCache(root, 2);
+        Path                a = new Path("/a");
+        Path                b = new Path("/b");
+        Path                c = new Path("/d/c");
+
+        StorageServer       server = new StorageServer(root);
+        server.create(a);
+        server.create(b);
+        server.create(c);
+
+        ChannelCache.Handle held = cache.acquire(a);
+        cache.acquire(b).close();
+        cache.acquire(c).close();
+
+        if(cache.size() != 2)
+            throw new TestFailed("cache holds " + cache.size() + " channels");
+
+        // The evicted channel stays open until its access releases it.
+        if(!held.channel.isOpen())
+            throw new TestFailed("held channel closed on eviction");
+
+        held.close();
+        if(held.channel.isOpen())
+            throw new TestFailed("evicted channel left open");
+
+        ChannelCache.Handle again = cache.acquire(c);
+        again.close();
+        if(cache.acquire(c) != again)
+            throw new TestFailed("cached channel opened again");
+        again.close();
+
+        cache.remove(new Path("/d"));
+        if(again.channel.isOpen() || cache.size() != 1)
+            throw new TestFailed("channel under removed directory kept");
+
+        cache.clear();
+
+        try
+        {
+            cache.acquire(new Path("/absent")).close();
+            throw new TestFailed("missing file opened");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Checks reads and writes at offsets, and deletion of cached files. */
+    private void testOffsets() throws Throwable
+    {
+        StorageServer       server = new StorageServer(root);
+        Path                file = new Path("/offsets");
+        byte[]              data = new byte[64];
+
+        for(int index = 0; index < data.length; ++index)
+            data[index] = (byte)index;
+
+        server.create(file);
+        server.write(file, 0, data);
+
+        if(!Arrays.equals(server.read(file, 16, 8),
+                          Arrays.copyOfRange(data, 16, 24)))
+        {
+            throw new TestFailed("read from wrong offset");
+        }
+
+        // The file is sparse up to the far offset.
+        server.write(file, FAR, data);
+        if(server.size(file) != FAR + data.length)
+            throw new TestFailed("write at far offset has wrong size");
+
+        if(!Arrays.equals(server.read(file, FAR + 8, 8),
+                          Arrays.copyOfRange(data, 8, 16)))
+        {
+            throw new TestFailed("read from wrong far offset");
+        }
+
+        // A file created again after deletion is not read through the old
+        // channel.
+        server.delete(file);
+        server.create(file);
+        if(server.size(file) != 0)
+            throw new TestFailed("deleted file still cached");
+
+        try
+        {
+            server.read(file, 0, 1);
+            throw new TestFailed("read past end of new file");
+        }
+        catch(IndexOutOfBoundsException e) { }
+
+        server.delete(file);
+    }
+
+    /** Deletes the root directory. */
+    @Override
+    protected void clean()
+    {
+        if(root != null)
+            delete(root);
+    }
+
+    /** Deletes a file or directory and everything under it. */
+    private static void delete(File file)
+    {
+        File[]              children = file.listFiles();
+
+        if(children != null)
+        {
+            for(File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,149 @@
+package storage;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import common.Path;
+import rmi.*;
+
+/** Measures the cost of checksums to reads from a storage server.
+
+    <p>
+    The benchmark reads one file from start to end, in reads of a given size,
+    through a stub and a skeleton on the loopback interface, as a client
+    reads it. It compares a server that keeps no checksums, whose reads are
+    sent as file regions without being copied into memory, with a server that
+    keeps checksums, whose reads are copied into memory and checked block by
+    block.
+
+    <p>
+    This is not a unit test. It is run by hand, with
+    <code>java storage.ChecksumBenchmark [file size in MB] [read size]
+    [passes]</code>, and prints the throughput of each variant. The file and
+    the checksums are created in the temporary directory and deleted
+    afterwards. <code>storage.checksums</code> must not be set, so that the
+    first server keeps no checksums.
+ */
+public class ChecksumBenchmark
+{
+    /** Runs the benchmark.
+
+        @param arguments The file size in megabytes, 256 by default; the size
+                         of each read in bytes, 1048576 by default; and the
+                         number of passes over the file measured per variant,
+                         5 by default.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        long                size =
+            (arguments.length > 0 ? Long.parseLong(arguments[0]) : 256) << 20;
+        int                 block =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 1 << 20;
+        int                 passes =
+            arguments.length > 2 ? Integer.parseInt(arguments[2]) : 5;
+
+        File                root = directory();
+        File                sums = directory();
+        Path                file = new Path("/bench");
+
+        try
+        {
+            RandomAccessFile    local =
+                new RandomAccessFile(file.toFile(root), "rw");
+            byte[]              chunk = new byte[1 << 20];
+            new Random(1).nextBytes(chunk);
+            for(long written = 0; written < size; written += chunk.length)
+                local.write(chunk);
+            local.close();
+
+            StorageServer   plain = new StorageServer(root);
+            StorageServer   checked = new StorageServer(root, sums);
+
+            // Checksums are taken on the first pass, and checked on the rest.
+            measure(checked, file, size, block, 1);
+
+            long            without = measure(plain, file, size, block, passes);
+            long            with = measure(checked, file, size, block, passes);
+
+            report("no checksums", without, size * passes);
+            report("checksums", with, size * passes);
+            System.out.printf("%-20s %8.1f %%%n", "cost",
+                              100.0 * (with - without) / without);
+        }
+        finally
+        {
+            delete(root);
+            delete(sums);
+        }
+    }
+
+    /** Reads a file through a stub for a given number of passes, and returns
+        the time taken. */
+    private static long measure(StorageServer server, Path file, long size,
+                                int block, int passes) throws Throwable
+    {
+        Skeleton<Storage>   skeleton =
+            new Skeleton<Storage>(Storage.class, server,
+                                  new InetSocketAddress("127.0.0.1", 0));
+        skeleton.start();
+
+        try
+        {
+            Storage         stub =
+                Stub.create(Storage.class,
+                            new InetSocketAddress("127.0.0.1",
+                                                  skeleton.port()));
+
+            // One unmeasured pass warms up the connection and page cache.
+            pass(stub, file, size, block);
+
+            long            start = System.nanoTime();
+            for(int pass = 0; pass < passes; ++pass)
+                pass(stub, file, size, block);
+            return System.nanoTime() - start;
+        }
+        finally
+        {
+            skeleton.stop();
+        }
+    }
+
+    /** Reads a file from start to end. */
+    private static void pass(Storage stub, Path file, long size, int block)
+        throws Throwable
+    {
+        for(long offset = 0; offset < size; offset += block)
+            stub.read(file, offset, (int)Math.min(block, size - offset));
+    }
+
+    /** Prints the throughput of a variant. */
+    private static void report(String variant, long nanoseconds, long bytes)
+    {
+        System.out.printf("%-20s %8.1f MB/s%n", variant,
+                          bytes / 1e6 / (nanoseconds / 1e9));
+    }
+
+    /** Creates an empty temporary directory. */
+    private static File directory() throws IOException
+    {
+        File                directory = File.createTempFile("storage", ".bench");
+
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    /** Deletes a directory and the files in it. */
+    private static void delete(File directory)
+    {
+        File[]              files = directory.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+                file.delete();
+        }
+
+        directory.delete();
+    }
+}
@@ -0,0 +1,126 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Checks subtree deletion on the storage server.
+
+    <p>
+    Deleting a directory must delete the listed files, anything else under
+    the directory, and the directory itself. Listed files outside the
+    directory must be kept and returned.
+ */
+public class DeleteTreeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage subtree deletion";
+
+    /** Number of listed files in each of two subdirectories. */
+    private static final int    FILES = 200;
+
+    /** Storage server root directory. */
+    private File                root;
+
+    /** Creates the files under the root directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            root = File.createTempFile("storage", ".root");
+            root.delete();
+
+            for(int index = 0; index < FILES; ++index)
+            {
+                create(new Path("/d/a/" + index));
+                create(new Path("/d/b/" + index));
+            }
+
+            create(new Path("/d/c/stray"));
+            create(new Path("/e/keep"));
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create storage files", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If files are left under the directory, or a file
+                           outside it is deleted.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        StorageServer   server = new StorageServer(root);
+        List<Path>      listed = new ArrayList<Path>();
+
+        for(int index = 0; index < FILES; ++index)
+        {
+            listed.add(new Path("/d/a/" + index));
+            listed.add(new Path("/d/b/" + index));
+        }
+
+        // Listed but already absent, and listed but outside the directory.
+        listed.add(new Path("/d/a/absent"));
+        listed.add(new Path("/e/keep"));
+
+        Path[]          left =
+            server.deleteTree(new Path("/d"),
+                              listed.toArray(new Path[listed.size()]));
+
+        if(new File(root, "d").exists())
+            throw new TestFailed("directory left after deletion");
+
+        if(!new File(root, "e/keep").exists())
+            throw new TestFailed("file outside directory deleted");
+
+        if(left.length != 1 || !left[0].equals(new Path("/e/keep")))
+        {
+            throw new TestFailed("wrong files reported left: " +
+                                 Arrays.toString(left));
+        }
+
+        try
+        {
+            server.deleteTree(new Path("/"), new Path[0]);
+            throw new TestFailed("root directory deleted");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Deletes the root directory. */
+    @Override
+    protected void clean()
+    {
+        if(root != null)
+            delete(root);
+    }
+
+    /** Creates an empty file under the root directory. */
+    private void create(Path path) throws IOException
+    {
+        File            file = path.toFile(root);
+
+        file.getParentFile().mkdirs();
+        new FileOutputStream(file).close();
+    }
+
+    /** Deletes a file or directory and everything under it. */
+    private static void delete(File file)
+    {
+        File[]          children = file.listFiles();
+
+        if(children != null)
+        {
+            for(File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,183 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import test.*;
+
+/** Checks that the storage server locks files separately.
+
+    <p>
+    While one file is being copied from a slow server, another file must be
+    read and written without waiting. So must the file being copied, whose
+    lock is shared with every file on its stripe: the copy holds no lock
+    while it waits for the source, and replaces the file only once complete.
+ */
+public class FileLockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage file locking";
+
+    /** Longest wait for an access that should not block, in milliseconds. */
+    private static final long   TIMEOUT = 5000;
+
+    /** Contents of the copied file. */
+    private static final byte[] CONTENTS = "copied contents".getBytes();
+
+    /** Storage server root directory. */
+    private File                root;
+    /** Threads making accesses that may block. */
+    private ExecutorService     threads;
+
+    /** Source server that blocks reads until released. */
+    private static class SlowStorage implements Storage
+    {
+        /** Counted down when the first read starts. */
+        final CountDownLatch    reading = new CountDownLatch(1);
+        /** Counted down to let reads complete. */
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public long size(Path file)
+        {
+            return CONTENTS.length;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            reading.countDown();
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+
+            return Arrays.copyOfRange(CONTENTS, (int)offset,
+                                      (int)offset + length);
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+        }
+    }
+
+    /** Creates the root directory, a file that is not copied, and an older
+        version of the copied file. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            root = File.createTempFile("storage", ".root");
+            root.delete();
+            root.mkdirs();
+
+            for(String name : new String[] {"other", "copied"})
+            {
+                FileOutputStream    stream =
+                    new FileOutputStream(new File(root, name));
+                stream.write(new byte[16]);
+                stream.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create storage files", e);
+        }
+
+        threads = Executors.newCachedThreadPool();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If an access waits for the copy, or the copied file
+                           is replaced before the copy is complete.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final StorageServer server = new StorageServer(root);
+        final SlowStorage   source = new SlowStorage();
+        final Path          copied = new Path("/copied");
+        final Path          other = new Path("/other");
+
+        try
+        {
+            Future<Boolean> copy =
+                threads.submit(() -> server.copy(copied, source));
+            if(!source.reading.await(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("copy did not start");
+
+            // Another file is read and written during the copy.
+            threads.submit(() ->
+            {
+                server.write(other, 0, new byte[] {1, 2, 3});
+                return server.read(other, 0, 16);
+            }).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            // The older version of the file being copied is still read and
+            // written.
+            byte[]          old = threads.submit(() ->
+            {
+                server.write(copied, 0, new byte[] {4, 5, 6});
+                return server.read(copied, 0, 16);
+            }).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            if(old[0] != 4 || server.size(copied) != 16)
+                throw new TestFailed("copied file replaced during its copy");
+
+            source.release.countDown();
+            if(!copy.get(TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new TestFailed("copy failed");
+
+            Future<byte[]>  read =
+                threads.submit(() -> server.read(copied, 0,
+                                                 CONTENTS.length));
+            if(!Arrays.equals(read.get(TIMEOUT, TimeUnit.MILLISECONDS),
+                              CONTENTS) ||
+               server.size(copied) != CONTENTS.length)
+            {
+                throw new TestFailed("copied file has wrong contents");
+            }
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("access waited for copy", e);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception during copy", t);
+        }
+        finally
+        {
+            source.release.countDown();
+        }
+    }
+
+    /** Stops the threads and deletes the root directory. */
+    @Override
+    protected void clean()
+    {
+        if(threads != null)
+            threads.shutdownNow();
+
+        if(root != null)
+        {
+            File[]      files = root.listFiles();
+            if(files != null)
+            {
+                for(File file : files)
+                    file.delete();
+            }
+
+            root.delete();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import common.Path;
+
+/** Measures the cost of reading from a large file.
+
+    <p>
+    The benchmark reads blocks at random offsets of one file, as a storage
+    server answers reads of it, in three ways: opening, seeking and reading a
+    <code>RandomAccessFile</code> on every call, as reads once were; reading
+    with a positional read on a channel kept open; and copying out of mapped
+    windows kept between reads.
+
+    <p>
+    This is not a unit test. It is run by hand, with
+    <code>java storage.MappedReadBenchmark [file size in MB] [block size]
+    [reads]</code>, and prints the mean time per read of each variant. The
+    file is created in the temporary directory and deleted afterwards.
+ */
+public class MappedReadBenchmark
+{
+    /** Runs the benchmark.
+
+        @param arguments The file size in megabytes, 256 by default; the size
+                         of each read in bytes, 4096 by default; and the number
+                         of reads measured per variant, 200000 by default.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        long                size =
+            (arguments.length > 0 ? Long.parseLong(arguments[0]) : 256) << 20;
+        int                 block =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 4096;
+        int                 reads =
+            arguments.length > 2 ? Integer.parseInt(arguments[2]) : 200000;
+
+        File                local = File.createTempFile("storage", ".bench");
+
+        try
+        {
+            RandomAccessFile    file = new RandomAccessFile(local, "rw");
+            byte[]              chunk = new byte[1 << 20];
+            new Random(1).nextBytes(chunk);
+            for(long written = 0; written < size; written += chunk.length)
+                file.write(chunk);
+            file.close();
+
+            long[]          offsets = new long[reads];
+            Random          random = new Random(2);
+            for(int index = 0; index < reads; ++index)
+                offsets[index] = (long)(random.nextDouble() * (size - block));
+
+            FileChannel     channel =
+                FileChannel.open(local.toPath());
+            MappedWindows   windows = new MappedWindows();
+            Path            path = new Path("/bench");
+
+            // The first round warms up the variants and the page cache.
+            for(int round = 0; round < 2; ++round)
+            {
+                long        opened = randomAccess(local, offsets, block);
+                long        positional = positional(channel, offsets, block);
+                long        mapped = mapped(windows, path, channel, offsets,
+                                            block);
+
+                if(round == 1)
+                {
+                    report("random access file", opened, reads);
+                    report("positional read", positional, reads);
+                    report("mapped windows", mapped, reads);
+                }
+            }
+
+            channel.close();
+        }
+        finally
+        {
+            local.delete();
+        }
+    }
+
+    /** Opens, seeks and reads the file on every read. */
+    private static long randomAccess(File local, long[] offsets, int block)
+        throws IOException
+    {
+        byte[]              data = new byte[block];
+        long                start = System.nanoTime();
+        for(long offset : offsets)
+        {
+            RandomAccessFile    file = new RandomAccessFile(local, "r");
+            file.seek(offset);
+            file.readFully(data);
+            file.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Reads with a positional read on an open channel. */
+    private static long positional(FileChannel channel, long[] offsets,
+                                   int block) throws IOException
+    {
+        long                start = System.nanoTime();
+        for(long offset : offsets)
+        {
+            ByteBuffer      buffer = ByteBuffer.allocate(block);
+            while(buffer.hasRemaining())
+                channel.read(buffer, offset + buffer.position());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Copies out of mapped windows. */
+    private static long mapped(MappedWindows windows, Path path,
+                               FileChannel channel, long[] offsets, int block)
+        throws IOException
+    {
+        long                start = System.nanoTime();
+        for(long offset : offsets)
+            windows.read(path, channel, offset, block);
+        return System.nanoTime() - start;
+    }
+
+    /** Prints the mean time per read of a variant. */
+    private static void report(String variant, long nanoseconds, int reads)
+    {
+        System.out.printf("%-20s %8.1f ns/read%n", variant,
+                          (double)nanoseconds / reads);
+    }
+}
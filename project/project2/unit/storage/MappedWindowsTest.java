@@ -0,0 +1,117 @@
+package storage;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Checks reads of files through mapped windows.
+
+    <p>
+    Reads within a window and across windows must return the bytes of the
+    file, at most the given number of windows must be kept, and the windows
+    of a removed path, or of a directory above it, must be dropped.
+ */
+public class MappedWindowsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage mapped reads";
+
+    /** Window size used by the test, in bytes. */
+    private static final int    WINDOW = 4096;
+
+    /** Local file read by the test. */
+    private File                local;
+    /** Contents of the file: five and a half windows. */
+    private byte[]              contents;
+
+    /** Creates the file. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        contents = new byte[5 * WINDOW + WINDOW / 2];
+        new Random(23).nextBytes(contents);
+
+        try
+        {
+            local = File.createTempFile("storage", ".mapped");
+
+            FileOutputStream    stream = new FileOutputStream(local);
+            stream.write(contents);
+            stream.close();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create file", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a read returns the wrong bytes, or windows are
+                           kept when they should be dropped.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        MappedWindows       windows = new MappedWindows(WINDOW, 3);
+        Path                file = new Path("/d/file");
+
+        try(FileChannel channel =
+                FileChannel.open(local.toPath(), StandardOpenOption.READ))
+        {
+            // Within a window, across a boundary, across three windows, and
+            // the tail of the file.
+            check(windows, file, channel, 100, 200);
+            check(windows, file, channel, WINDOW - 10, 20);
+            check(windows, file, channel, WINDOW / 2, 2 * WINDOW + 1);
+            check(windows, file, channel, 5 * WINDOW, WINDOW / 2);
+            check(windows, file, channel, 0, contents.length);
+
+            if(windows.size() != 3)
+                throw new TestFailed("kept " + windows.size() + " windows");
+
+            windows.remove(new Path("/e"));
+            if(windows.size() != 3)
+                throw new TestFailed("windows of another path dropped");
+
+            windows.remove(new Path("/d"));
+            if(windows.size() != 0)
+                throw new TestFailed("windows of removed directory kept");
+
+            check(windows, file, channel, 3 * WINDOW - 1, 2);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in mapped read", t);
+        }
+    }
+
+    /** Reads a range through the windows and checks its bytes. */
+    private void check(MappedWindows windows, Path file, FileChannel channel,
+                       long offset, int length) throws Throwable
+    {
+        byte[]              read = windows.read(file, channel, offset, length);
+
+        if(!Arrays.equals(read, Arrays.copyOfRange(contents, (int)offset,
+                                                   (int)offset + length)))
+        {
+            throw new TestFailed("wrong bytes read at offset " + offset);
+        }
+    }
+
+    /** Deletes the file. */
+    @Override
+    protected void clean()
+    {
+        if(local != null)
+            local.delete();
+    }
+}
@@ -0,0 +1,238 @@
+package storage;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import rmi.*;
+import test.*;
+
+/** Checks copies between storage servers.
+
+    <p>
+    A file of several chunks, not a whole number of them, must be copied
+    exactly from a remote server, replacing a longer copy already on the
+    destination. A source that is not a stub must also be copied from. Two
+    servers copying the same file from each other at once must both complete:
+    neither may hold a lock on the file while it waits for the other.
+ */
+public class PipelinedCopyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage server copies";
+
+    /** Longest wait for crossing copies, in milliseconds. */
+    private static final long   TIMEOUT = 10000;
+    /** Number of times the crossing copies are made. */
+    private static final int    ROUNDS = 10;
+
+    /** Source server root directory. */
+    private File                source_root;
+    /** Destination server root directory. */
+    private File                destination_root;
+    /** Destination server. */
+    private StorageServer       destination;
+    /** Skeleton for the source server's client interface. */
+    private Skeleton<Storage>   skeleton;
+    /** Skeleton for the destination server's client interface. */
+    private Skeleton<Storage>   destination_skeleton;
+    /** Contents of the copied file. */
+    private byte[]              contents;
+
+    /** Creates the servers' directories and starts their skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        contents = new byte[2 * StorageServer.COPY_CHUNK +
+                            StorageServer.COPY_CHUNK / 3];
+        new Random(24).nextBytes(contents);
+
+        try
+        {
+            source_root = directory();
+            destination_root = directory();
+
+            write(new File(source_root, "file"), contents);
+            write(new File(destination_root, "file"),
+                  new byte[contents.length + 100]);
+            write(new File(source_root, "crossed"), contents);
+            write(new File(destination_root, "crossed"),
+                  new byte[contents.length]);
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create storage files", e);
+        }
+
+        skeleton = new Skeleton<Storage>(Storage.class,
+                                         new StorageServer(source_root),
+                                         new InetSocketAddress("127.0.0.1",
+                                                               0));
+        destination = new StorageServer(destination_root);
+        destination_skeleton =
+            new Skeleton<Storage>(Storage.class, destination,
+                                  new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+            destination_skeleton.start();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to start skeletons", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If a copy differs from the source file, or crossing
+                           copies do not complete.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Storage         remote =
+            Stub.create(Storage.class,
+                        new InetSocketAddress("127.0.0.1", skeleton.port()));
+        Path            file = new Path("/file");
+
+        try
+        {
+            if(!destination.copy(file, remote))
+                throw new TestFailed("copy from stub failed");
+
+            check(destination, file, "copy from stub");
+
+            destination.delete(file);
+            if(!destination.copy(file, new StorageServer(source_root)))
+                throw new TestFailed("copy from local server failed");
+
+            check(destination, file, "copy from local server");
+
+            try
+            {
+                destination.copy(new Path("/absent"), remote);
+                throw new TestFailed("missing file copied");
+            }
+            catch(FileNotFoundException e) { }
+
+            testCrossing(remote);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception in copy", t);
+        }
+    }
+
+    /** Copies a file from the source to the destination while the source
+        copies it from the destination, several times over. */
+    private void testCrossing(Storage remote) throws Throwable
+    {
+        StorageServer   source = new StorageServer(source_root);
+        Storage         remote_destination =
+            Stub.create(Storage.class,
+                        new InetSocketAddress("127.0.0.1",
+                                              destination_skeleton.port()));
+        Path            file = new Path("/crossed");
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        CyclicBarrier   start = new CyclicBarrier(2);
+
+        try
+        {
+            for(int round = 0; round < ROUNDS; ++round)
+            {
+                Future<Boolean> forward = threads.submit(() ->
+                {
+                    start.await();
+                    return destination.copy(file, remote);
+                });
+                Future<Boolean> backward = threads.submit(() ->
+                {
+                    start.await();
+                    return source.copy(file, remote_destination);
+                });
+
+                if(!forward.get(TIMEOUT, TimeUnit.MILLISECONDS) ||
+                   !backward.get(TIMEOUT, TimeUnit.MILLISECONDS))
+                {
+                    throw new TestFailed("crossing copy failed");
+                }
+            }
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("crossing copies blocked each other", e);
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+    }
+
+    /** Checks that a copy has the contents of the source file. */
+    private void check(StorageServer server, Path file, String copy)
+        throws Throwable
+    {
+        if(server.size(file) != contents.length)
+            throw new TestFailed(copy + " has wrong size");
+
+        if(!Arrays.equals(server.read(file, 0, contents.length), contents))
+            throw new TestFailed(copy + " has wrong contents");
+    }
+
+    /** Stops the skeleton and deletes the directories. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(destination_skeleton != null)
+            destination_skeleton.stop();
+
+        delete(source_root);
+        delete(destination_root);
+    }
+
+    /** Creates an empty temporary directory. */
+    private static File directory() throws IOException
+    {
+        File            directory = File.createTempFile("storage", ".root");
+
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+
+    /** Writes a file. */
+    private static void write(File file, byte[] data) throws IOException
+    {
+        FileOutputStream    stream = new FileOutputStream(file);
+
+        stream.write(data);
+        stream.close();
+    }
+
+    /** Deletes a file or directory and everything under it. */
+    private static void delete(File file)
+    {
+        if(file == null)
+            return;
+
+        File[]          children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,159 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.Path;
+
+/** Measures the throughput of a storage server accessed from many threads.
+
+    <p>
+    Each thread reads and writes its own file, so that no two threads ever
+    need the same file. The benchmark compares the server as it is, locking
+    each file separately, with the same server behind a single monitor, as
+    every access once was, for an increasing number of threads. The server is
+    called directly, leaving out network and marshalling costs.
+
+    <p>
+    This is not a unit test. It is run by hand, with
+    <code>java storage.StorageBenchmark [seconds] [block size]</code>, and
+    prints the accesses per second of each variant.
+ */
+public class StorageBenchmark
+{
+    /** Server behind a single monitor. */
+    private static class MonitorStorage implements Storage
+    {
+        private final StorageServer server;
+
+        MonitorStorage(StorageServer server)
+        {
+            this.server = server;
+        }
+
+        @Override
+        public synchronized long size(Path file)
+            throws FileNotFoundException
+        {
+            return server.size(file);
+        }
+
+        @Override
+        public synchronized byte[] read(Path file, long offset, int length)
+            throws IOException
+        {
+            return server.read(file, offset, length);
+        }
+
+        @Override
+        public synchronized void write(Path file, long offset, byte[] data)
+            throws IOException
+        {
+            server.write(file, offset, data);
+        }
+    }
+
+    /** Runs the benchmark.
+
+        @param arguments The time measured per variant and thread count, in
+                         seconds, one by default; and the size of each access
+                         in bytes, 4096 by default.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        double              seconds =
+            arguments.length > 0 ? Double.parseDouble(arguments[0]) : 1;
+        int                 block =
+            arguments.length > 1 ? Integer.parseInt(arguments[1]) : 4096;
+        int                 processors =
+            Runtime.getRuntime().availableProcessors();
+
+        File                root = File.createTempFile("storage", ".bench");
+        root.delete();
+        root.mkdirs();
+
+        try
+        {
+            StorageServer   server = new StorageServer(root);
+            Storage         monitor = new MonitorStorage(server);
+
+            for(int index = 0; index < 2 * processors; ++index)
+            {
+                Path        file = new Path("/" + index);
+                server.create(file);
+                server.write(file, 0, new byte[block]);
+            }
+
+            // The first round warms up both variants.
+            for(int round = 0; round < 2; ++round)
+            {
+                for(int threads = 1; threads <= 2 * processors; threads *= 2)
+                {
+                    double  separate =
+                        throughput(server, threads, block, seconds);
+                    double  single =
+                        throughput(monitor, threads, block, seconds);
+
+                    if(round == 1)
+                    {
+                        System.out.printf("%3d threads: %12.0f ops/s per " +
+                                          "file, %12.0f ops/s one monitor%n",
+                                          threads, separate, single);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            File[]          files = root.listFiles();
+            if(files != null)
+            {
+                for(File file : files)
+                    file.delete();
+            }
+
+            root.delete();
+        }
+    }
+
+    /** Runs threads that each read their own file three times for every
+        write, and returns the accesses per second. */
+    private static double throughput(final Storage server, int threads,
+                                     final int block, double seconds)
+        throws Exception
+    {
+        ExecutorService     pool = Executors.newFixedThreadPool(threads);
+        final long          deadline =
+            System.nanoTime() + (long)(seconds * 1e9);
+        List<Future<Long>>  counts = new ArrayList<Future<Long>>();
+
+        long                start = System.nanoTime();
+        for(int thread = 0; thread < threads; ++thread)
+        {
+            final Path      file = new Path("/" + thread);
+            counts.add(pool.submit(() ->
+            {
+                byte[]      data = new byte[block];
+                long        count = 0;
+                while(System.nanoTime() < deadline)
+                {
+                    if(count % 4 == 3)
+                        server.write(file, 0, data);
+                    else
+                        server.read(file, 0, block);
+                    ++count;
+                }
+                return count;
+            }));
+        }
+
+        long                total = 0;
+        for(Future<Long> count : counts)
+            total += count.get();
+
+        long                elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return total / (elapsed / 1e9);
+    }
+}